@@ -0,0 +1,379 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.serenegiant.media.MediaCodecUtils;
+import com.serenegiant.media.RtpMuxer;
+import com.serenegiant.media.RtpPacketizer;
+import com.serenegiant.media.RtpReceiver;
+import com.serenegiant.net.UdpSocket;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.*;
+
+/**
+ * RtpMuxerからUdpSocket経由で127.0.0.1へ送信したRTPパケットを
+ * RtpReceiverで受信してフレームデータを復元できることを確認するテスト
+ * MediaFormat/SystemClockと実際のソケットを使うのでローカルユニットテストではなく端末上で実行する
+ */
+@RunWith(AndroidJUnit4.class)
+public class RtpLoopbackTest {
+	private static final String TAG = RtpLoopbackTest.class.getSimpleName();
+
+	private static final int MTU = 500;
+	private static final int DELAY_MS = 50;
+	private static final long FRAME_INTERVALS_US = 33333;
+	private static final long MAX_WAIT_MS = 5000;
+
+	private static final byte[] SPS = { 0, 0, 0, 1, 0x67, 0x42, (byte)0xc0, 0x1f, 0x11, 0x22 };
+	private static final byte[] PPS = { 0, 0, 0, 1, 0x68, (byte)0xce, 0x3c, (byte)0x80 };
+
+	/**
+	 * 受信したフレーム
+	 */
+	private static class Frame {
+		private final byte[] data;
+		private final long ptsUs;
+		private final int flags;
+
+		private Frame(final byte[] data, final long ptsUs, final int flags) {
+			this.data = data;
+			this.ptsUs = ptsUs;
+			this.flags = flags;
+		}
+	}
+
+	/**
+	 * 受信したフレームを保持するRtpReceiver.Listener
+	 * 受信用スレッドから呼び出されるので自分自身でロックする
+	 */
+	private static class Collector implements RtpReceiver.Listener {
+		private final List<Frame> frames = new ArrayList<>();
+
+		@Override
+		public void onFrame(final int payloadType, @NonNull final ByteBuffer frame,
+			final long presentationTimeUs, final int flags) {
+
+			final byte[] data = new byte[frame.remaining()];
+			frame.get(data);
+			synchronized (this) {
+				frames.add(new Frame(data, presentationTimeUs, flags));
+				notifyAll();
+			}
+		}
+
+		/**
+		 * 指定したデータのフレームを受信するまで待機する
+		 * @param last
+		 * @param maxWaitMs
+		 * @return 受信したフレームのコピー
+		 */
+		private synchronized List<Frame> await(@NonNull final byte[] last, final long maxWaitMs)
+			throws InterruptedException {
+
+			final long end = System.currentTimeMillis() + maxWaitMs;
+			for ( ; ; ) {
+				if (!frames.isEmpty() && endsWith(frames.get(frames.size() - 1).data, last)) {
+					break;
+				}
+				final long remain = end - System.currentTimeMillis();
+				if (remain <= 0) {
+					break;
+				}
+				wait(remain);
+			}
+			return new ArrayList<>(frames);
+		}
+	}
+
+	/**
+	 * 送信したフレーム
+	 */
+	private static class Sample {
+		private final byte[] data;
+		private final long ptsUs;
+		private final boolean isKeyFrame;
+
+		private Sample(final byte[] data, final long ptsUs, final boolean isKeyFrame) {
+			this.data = data;
+			this.ptsUs = ptsUs;
+			this.isKeyFrame = isKeyFrame;
+		}
+	}
+
+	/**
+	 * ペーシングしながら送信したフレームを欠けることなく順番通りに受信できることを確認
+	 * 送信にかかった時間がペーシングレートから計算した時間以上になることも確認する
+	 */
+	@Test
+	public void loopback() throws IOException, InterruptedException {
+		final int bitrate = 1000000;
+		final Random random = new Random(1);
+		final UdpSocket rx = new UdpSocket(0);
+		final UdpSocket tx = new UdpSocket(0);
+		final Collector collector = new Collector();
+		final RtpReceiver receiver = new RtpReceiver(collector, DELAY_MS);
+		final RtpMuxer muxer = createMuxer(tx, rx, RtpMuxer.DEFAULT_MAX_QUEUED_PACKETS);
+		try {
+			muxer.setPacingBitrate(bitrate);
+			final int pt = muxer.getPayloadType(0);
+			receiver.addTrack(pt, MediaCodecUtils.MIME_VIDEO_AVC, 0);
+			receiver.start(rx);
+			muxer.start();
+
+			final List<Sample> samples = new ArrayList<>();
+			for (int i = 0; i < 30; i++) {
+				samples.add(createSample(i, i % 10 == 0, random));
+			}
+			final long startNs = System.nanoTime();
+			for (final Sample sample: samples) {
+				write(muxer, sample);
+			}
+			final List<Frame> frames = collector.await(samples.get(samples.size() - 1).data, MAX_WAIT_MS);
+			final long elapsedNs = System.nanoTime() - startNs;
+
+			// 最初のキーフレームの前にSPS/PPSをBUFFER_FLAG_CODEC_CONFIGで通知する
+			assertEquals(samples.size() + 1, frames.size());
+			assertEquals(MediaCodec.BUFFER_FLAG_CODEC_CONFIG, frames.get(0).flags);
+			assertArrayEquals(concat(SPS, PPS), frames.get(0).data);
+			for (int i = 0; i < samples.size(); i++) {
+				assertFrame(samples.get(i), frames.get(i + 1), samples.get(0).ptsUs);
+			}
+			assertEquals(0, muxer.getDroppedFrames());
+			assertEquals(0, muxer.getDroppedPackets());
+			assertEquals(0, receiver.getLostPackets(pt));
+			assertEquals(0, receiver.getDroppedFrames(pt));
+			assertEquals(0, receiver.getUnknownPackets());
+
+			// 最初のバースト分を除いてペーシングレート以上の速さでは送信しない
+			final long written = muxer.getWrittenBytes();
+			final long minNs = (written - MTU * 4) * 8000000000L / bitrate;
+			Log.i(TAG, "loopback:written=" + written + ",elapsed=" + elapsedNs / 1000000L
+				+ "ms,min=" + minNs / 1000000L + "ms");
+			assertTrue("elapsed=" + elapsedNs + ",min=" + minNs, elapsedNs >= minNs * 9 / 10);
+		} finally {
+			muxer.release();
+			receiver.release();
+			tx.release();
+			rx.release();
+		}
+	}
+
+	/**
+	 * 送信待ちパケット数の上限を超えたときはフレーム単位で破棄して
+	 * 次のキーフレームまでのフレームも送らないことを確認
+	 * 途中までのフレームを送らないので受信側ではパケットの欠落として扱われない
+	 */
+	@Test
+	public void queueFull() throws IOException, InterruptedException {
+		final int maxQueuedPackets = 32;
+		final Random random = new Random(2);
+		final UdpSocket rx = new UdpSocket(0);
+		final UdpSocket tx = new UdpSocket(0);
+		final Collector collector = new Collector();
+		final RtpReceiver receiver = new RtpReceiver(collector, DELAY_MS);
+		final RtpMuxer muxer = createMuxer(tx, rx, maxQueuedPackets);
+		try {
+			// 1パケット送るのに20ミリ秒かかるので書き込んでいる間はほぼ送信されない
+			muxer.setPacingBitrate(200000);
+			final int pt = muxer.getPayloadType(0);
+			receiver.addTrack(pt, MediaCodecUtils.MIME_VIDEO_AVC, 0);
+			receiver.start(rx);
+			muxer.start();
+
+			final List<Sample> samples = new ArrayList<>();
+			int n = 0;
+			// キーフレームより前のフレームは送らない
+			samples.add(createSample(n++, false, random));
+			samples.add(createSample(n++, true, random));
+			for (int i = 0; i < 12; i++) {
+				samples.add(createSample(n++, false, random));
+			}
+			for (final Sample sample: samples) {
+				write(muxer, sample);
+			}
+			assertTrue(muxer.getDroppedFrames() > 1);
+			assertTrue(muxer.getQueueDepth() <= maxQueuedPackets);
+			// 送信待ちのパケットが無くなってから次のキーフレームを書き込む
+			final long end = System.currentTimeMillis() + MAX_WAIT_MS;
+			while ((muxer.getQueueDepth() > 0) && (System.currentTimeMillis() < end)) {
+				Thread.sleep(10);
+			}
+			assertEquals(0, muxer.getQueueDepth());
+			final int head = samples.size();
+			samples.add(createSample(n++, true, random));
+			for (int i = 0; i < 3; i++) {
+				samples.add(createSample(n++, false, random));
+			}
+			for (int i = head; i < samples.size(); i++) {
+				write(muxer, samples.get(i));
+			}
+			final List<Frame> frames = collector.await(samples.get(samples.size() - 1).data, MAX_WAIT_MS);
+
+			assertTrue(frames.size() > 1);
+			assertEquals(MediaCodec.BUFFER_FLAG_CODEC_CONFIG, frames.get(0).flags);
+			// 受信したフレームは送信したフレームのいずれかと完全に一致して順番も同じで,
+			// 破棄したフレームの後は次のキーフレームまで受信しない
+			int ix = 1;
+			boolean waitKeyFrame = true;
+			int received = 0;
+			for (final Sample sample: samples) {
+				final Frame frame = ix < frames.size() ? frames.get(ix) : null;
+				if ((frame != null) && endsWith(frame.data, sample.data)
+					&& (!waitKeyFrame || sample.isKeyFrame)) {
+
+					assertFrame(sample, frame, samples.get(1).ptsUs);
+					waitKeyFrame = false;
+					ix++;
+					received++;
+				} else {
+					waitKeyFrame = true;
+				}
+			}
+			assertEquals(frames.size(), ix);
+			assertEquals(samples.size() - received, muxer.getDroppedFrames());
+			// 2回目のキーフレーム以降は全て受信できる
+			assertTrue(received > 4);
+			assertEquals(0, muxer.getDroppedPackets());
+			assertEquals(0, receiver.getLostPackets(pt));
+			assertEquals(0, receiver.getDroppedFrames(pt));
+		} finally {
+			muxer.release();
+			receiver.release();
+			tx.release();
+			rx.release();
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 127.0.0.1の受信用ソケットのポートへ送信するRtpMuxerを生成してh.264のトラックを追加する
+	 */
+	private static RtpMuxer createMuxer(@NonNull final UdpSocket tx, @NonNull final UdpSocket rx,
+		final int maxQueuedPackets) throws IOException {
+
+		rx.setReceiveBufferSize(1024 * 1024);
+		final InetSocketAddress target
+			= new InetSocketAddress("127.0.0.1", rx.socket().getLocalPort());
+		final RtpMuxer muxer = new RtpMuxer(RtpMuxer.newUdpSender(tx, target), MTU, maxQueuedPackets);
+		final MediaFormat format = MediaFormat.createVideoFormat(MediaCodecUtils.MIME_VIDEO_AVC, 640, 480);
+		format.setByteBuffer("csd-0", ByteBuffer.wrap(SPS));
+		format.setByteBuffer("csd-1", ByteBuffer.wrap(PPS));
+		assertEquals(0, muxer.addTrack(format));
+		return muxer;
+	}
+
+	private static void write(@NonNull final RtpMuxer muxer, @NonNull final Sample sample) {
+		final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+		info.set(0, sample.data.length, sample.ptsUs,
+			sample.isKeyFrame ? MediaCodecUtils.BUFFER_FLAG_KEY_FRAME : 0);
+		muxer.writeSampleData(0, ByteBuffer.wrap(sample.data), info);
+	}
+
+	/**
+	 * IDRフレームまたはSEI+Pフレームを生成する
+	 */
+	private static Sample createSample(final int ix, final boolean isKeyFrame, final Random random) {
+		final byte[] data = isKeyFrame
+			? nal(5, 3000 + random.nextInt(2000), random)
+			: concat(nal(6, 20, random), nal(1, 1000 + random.nextInt(1000), random));
+		return new Sample(data, ix * FRAME_INTERVALS_US, isKeyFrame);
+	}
+
+	/**
+	 * 受信したフレームが送信したフレームと一致することを確認する
+	 * キーフレームの前にはSPS/PPSが付加されている
+	 * 受信側の時刻は最初に受信したフレームが0になる
+	 */
+	private static void assertFrame(@NonNull final Sample expected, @NonNull final Frame actual,
+		final long basePtsUs) {
+
+		if (expected.isKeyFrame) {
+			assertEquals(MediaCodecUtils.BUFFER_FLAG_KEY_FRAME, actual.flags);
+			assertArrayEquals(concat(SPS, PPS, expected.data), actual.data);
+		} else {
+			assertEquals(0, actual.flags);
+			assertArrayEquals(expected.data, actual.data);
+		}
+		// RTPタイムスタンプへ変換したときの丸め誤差(1クロック分)まで許容する
+		assertTrue("pts=" + actual.ptsUs,
+			Math.abs(actual.ptsUs - (expected.ptsUs - basePtsUs)) <= 1000000L / RtpPacketizer.CLOCK_RATE_VIDEO + 1);
+	}
+
+	/**
+	 * 指定したNALユニットタイプでAnnexB形式のNALユニットを生成する
+	 */
+	private static byte[] nal(final int type, final int size, final Random random) {
+		final byte[] result = new byte[size + 4];
+		random.nextBytes(result);
+		result[0] = result[1] = result[2] = 0;
+		result[3] = 1;
+		result[4] = (byte)(0x60 | type);
+		// スタートマーカーと紛らわしい0x000001が出てこないようにする
+		for (int i = 5; i < result.length; i++) {
+			if (result[i] == 0) result[i] = 1;
+		}
+		return result;
+	}
+
+	private static byte[] concat(final byte[]... arrays) {
+		int n = 0;
+		for (final byte[] a: arrays) n += a.length;
+		final byte[] result = new byte[n];
+		int pos = 0;
+		for (final byte[] a: arrays) {
+			System.arraycopy(a, 0, result, pos, a.length);
+			pos += a.length;
+		}
+		return result;
+	}
+
+	/**
+	 * 受信したフレームの末尾が送信したフレームと一致するかどうか
+	 * キーフレームは先頭にSPS/PPSが付加されるので末尾で比較する
+	 */
+	private static boolean endsWith(@NonNull final byte[] data, @NonNull final byte[] tail) {
+		if (data.length < tail.length) {
+			return false;
+		}
+		final int offset = data.length - tail.length;
+		for (int i = 0; i < tail.length; i++) {
+			if (data[offset + i] != tail[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
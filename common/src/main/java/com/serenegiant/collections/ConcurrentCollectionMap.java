@@ -0,0 +1,540 @@
+package com.serenegiant.collections;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * スレッドセーフなCollectionMap相当のクラス
+ * キー毎の値はConcurrentHashMapベースのSetで保持するので同じキーに同じ値は1つしか登録できない
+ * (ArrayListを使うCollectionMapとは異なり値の重複は許可しない)
+ * 値→その値を含むキーの数の逆引きインデックスを保持するので#containsInValueはO(1)
+ * #get/#values/#valuesAll/#keySet/#entrySetはコピーを生成せずに読み込み専用のビューを返す
+ * ビューはConcurrentHashMapのイテレータと同様にweakly consistent
+ * (イテレート中の変更は反映されることもあるし反映されないこともあるがConcurrentModificationExceptionは投げない)
+ * 値の変更は必ずこのクラスのメソッド経由で行うこと
+ * @param <K>
+ * @param <V>
+ */
+public class ConcurrentCollectionMap<K, V> implements Map<K, Collection<V>> {
+	/**
+	 * キー毎の値保持用ホルダー
+	 * キーが削除・置換されたときはmRemovedをセットして
+	 * 並行して追加中の値を呼び出し元で取り消せるようにする
+	 * @param <V>
+	 */
+	private static class ValueSet<V> {
+		@NonNull
+		private final Set<V> mValues
+			= Collections.newSetFromMap(new ConcurrentHashMap<V, Boolean>());
+		@NonNull
+		private final Set<V> mReadOnly = Collections.unmodifiableSet(mValues);
+		private volatile boolean mRemoved;
+	}
+
+	/**
+	 * ConcurrentHashMapとして宣言するとAPI>=24にしか存在しない
+	 * ConcurrentHashMap#keySet(KeySetView)へリンクされてしまうのでConcurrentMapとして保持する
+	 */
+	@NonNull
+	private final ConcurrentMap<K, ValueSet<V>> mContents
+		= new ConcurrentHashMap<>();
+	/**
+	 * 値→その値を含んでいるキーの数
+	 * カウンタが0になったエントリーは削除済みとして扱う
+	 */
+	@NonNull
+	private final ConcurrentMap<V, AtomicInteger> mReverse
+		= new ConcurrentHashMap<>();
+
+	/**
+	 * コンストラクタ
+	 */
+	public ConcurrentCollectionMap() {
+	}
+
+	@Override
+	public void clear() {
+		for (final K key: mContents.keySet()) {
+			remove(key);
+		}
+	}
+
+	@Override
+	public boolean containsKey(final Object key) {
+		return (key != null) && mContents.containsKey(key);
+	}
+
+	/**
+	 * 指定したオブジェクトを値コレクションとして含んでいるかどうかを取得
+	 * オブジェクトがCollection<V>でなければtrueにはならない
+	 * オブジェクトが値コレクションのいずれかに含まれているかどうかを確認するには#containsInValueを使う
+	 * @param value
+	 * @return
+	 */
+	@Override
+	public boolean containsValue(final Object value) {
+		if (value instanceof Collection) {
+			for (final ValueSet<V> set: mContents.values()) {
+				if (set.mValues.equals(value)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 指定したオブジェクトが値コレクションのいずれかに含まれているかどうかを取得
+	 * 逆引きインデックスを使うのでO(1)
+	 * @param value
+	 * @return
+	 */
+	public boolean containsInValue(final V value) {
+		if (value != null) {
+			final AtomicInteger counter = mReverse.get(value);
+			return (counter != null) && (counter.get() > 0);
+		}
+		return false;
+	}
+
+	/**
+	 * 指定した値を含んでいるキーの数を取得
+	 * @param value
+	 * @return
+	 */
+	public int countInValue(final V value) {
+		if (value != null) {
+			final AtomicInteger counter = mReverse.get(value);
+			return counter != null ? Math.max(counter.get(), 0) : 0;
+		}
+		return 0;
+	}
+
+	/**
+	 * 読み込み専用のエントリーセットビューを取得
+	 * @return
+	 */
+	@Override
+	@NonNull
+	public Set<Entry<K, Collection<V>>> entrySet() {
+		return new AbstractSet<Entry<K, Collection<V>>>() {
+			@NonNull
+			@Override
+			public Iterator<Entry<K, Collection<V>>> iterator() {
+				final Iterator<Entry<K, ValueSet<V>>> it = mContents.entrySet().iterator();
+				return new Iterator<Entry<K, Collection<V>>>() {
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					@Override
+					public Entry<K, Collection<V>> next() {
+						final Entry<K, ValueSet<V>> entry = it.next();
+						return new AbstractMap.SimpleImmutableEntry<K, Collection<V>>(
+							entry.getKey(), entry.getValue().mReadOnly);
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return mContents.size();
+			}
+		};
+	}
+
+	/**
+	 * 指定したキーに対応する値コレクションの読み込み専用ビューを取得
+	 * @param key
+	 * @return
+	 */
+	@Nullable
+	@Override
+	public Collection<V> get(final Object key) {
+		final ValueSet<V> set = key != null ? mContents.get(key) : null;
+		return set != null ? set.mReadOnly : null;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return mContents.isEmpty();
+	}
+
+	/**
+	 * 読み込み専用のキーセットビューを取得
+	 * @return
+	 */
+	@Override
+	@NonNull
+	public Set<K> keySet() {
+		return Collections.unmodifiableSet(mContents.keySet());
+	}
+
+	/**
+	 * 指定したキーに対応する値コレクションが存在する場合には置き換える、
+	 * 指定したキーに対応する値コレクションが存在しない場合には新規追加する
+	 * @param key
+	 * @param value
+	 * @return 置き換えられた値コレクション(コピー), 存在しなかった場合はnull
+	 */
+	@Nullable
+	@Override
+	public Collection<V> put(@NonNull final K key, @NonNull final Collection<V> value) {
+		final ValueSet<V> set = new ValueSet<>();
+		for (final V v: value) {
+			if (set.mValues.add(v)) {
+				increment(v);
+			}
+		}
+		return release(mContents.put(key, set));
+	}
+
+	/**
+	 * 指定したキーに対応する値コレクションに指定した値を追加する
+	 * 指定したキーに対応する値コレクションが存在しない場合は生成して追加する
+	 * @param key
+	 * @param value
+	 * 並行して#remove(key, value)されたときに逆引きインデックスのカウンタが
+	 * 生成前に減算されないように値コレクションへ追加する前にカウンタを増やす
+	 * @return 値が追加されたときはtrue, すでに含まれていたときはfalse
+	 */
+	public boolean add(@NonNull final K key, @NonNull final V value) {
+		for ( ; ; ) {
+			final ValueSet<V> set = obtain(key);
+			increment(value);
+			if (!set.mValues.add(value)) {
+				// すでに含まれていたので増やしたカウンタを戻す
+				decrement(value);
+				return false;
+			}
+			if (!set.mRemoved) {
+				return true;
+			}
+			// 追加中にキーが削除・置換されたので取り消して再試行する
+			if (set.mValues.remove(value)) {
+				decrement(value);
+			}
+		}
+	}
+
+	@Override
+	public void putAll(@NonNull final Map<? extends K, ? extends Collection<V>> m) {
+		for (final Entry<? extends K, ? extends Collection<V>> entry : m.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * #putAllと違ってキーに対応する値コレクションがすでに存在していても置換せず追加する
+	 * @param m
+	 */
+	public void addAll(@NonNull final Map<? extends K, ? extends Collection<V>> m) {
+		for (final Entry<? extends K, ? extends Collection<V>> entry : m.entrySet()) {
+			addAll(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * 指定したキーの値コレクションに指定した値コレクションの値をすべて追加する
+	 * @param key
+	 * @param values
+	 * @return 1つでも値が追加されたときはtrue
+	 */
+	public boolean addAll(@NonNull final K key, @NonNull final Collection<? extends V> values) {
+		boolean result = false;
+		for (final V v: values) {
+			result |= add(key, v);
+		}
+		return result;
+	}
+
+	/**
+	 * 指定したキーと対応する値コレクションを削除する
+	 * @param key
+	 * @return 削除された値コレクション(コピー), 存在しなかった場合はnull
+	 */
+	@Nullable
+	@Override
+	public Collection<V> remove(final Object key) {
+		return key != null ? release(mContents.remove(key)) : null;
+	}
+
+	/**
+	 * 指定したキーに対応する値コレクションから指定した値を削除する
+	 * 値コレクションが空になってもキーは削除しない
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public boolean remove(final Object key, final Object value) {
+		final ValueSet<V> set = key != null ? mContents.get(key) : null;
+		if ((set != null) && (value != null) && set.mValues.remove(value)) {
+			decrement((V)value);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 全てのキーに対応する値コレクションから指定した値を削除する
+	 * @param value
+	 * @return 削除した数
+	 */
+	public int removeInValue(@NonNull final V value) {
+		int result = 0;
+		if (containsInValue(value)) {
+			for (final ValueSet<V> set: mContents.values()) {
+				if (set.mValues.remove(value)) {
+					decrement(value);
+					result++;
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public int size() {
+		return mContents.size();
+	}
+
+	/**
+	 * 指定したキーに対応する値コレクションのサイズを取得する
+	 * 指定したキーに対応する値コレクションがなければ0
+	 * @param key
+	 * @return
+	 */
+	public int size(@NonNull final K key) {
+		final ValueSet<V> set = mContents.get(key);
+		return set != null ? set.mValues.size() : 0;
+	}
+
+	/**
+	 * このMapに含まれる値コレクションの読み込み専用ビューを取得する
+	 * @return
+	 */
+	@NonNull
+	@Override
+	public Collection<Collection<V>> values() {
+		return new AbstractCollection<Collection<V>>() {
+			@NonNull
+			@Override
+			public Iterator<Collection<V>> iterator() {
+				final Iterator<ValueSet<V>> it = mContents.values().iterator();
+				return new Iterator<Collection<V>>() {
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					@Override
+					public Collection<V> next() {
+						return it.next().mReadOnly;
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return mContents.size();
+			}
+		};
+	}
+
+	/**
+	 * このMapに含まれる値コレクション内のすべての値の読み込み専用ビューを取得する
+	 * CollectionMap#valuesAllと違ってコピーは生成しない
+	 * 複数のキーに含まれている値はその数だけ出現する
+	 * @return
+	 */
+	@NonNull
+	public Collection<V> valuesAll() {
+		return new AbstractCollection<V>() {
+			@NonNull
+			@Override
+			public Iterator<V> iterator() {
+				return new ValuesIterator();
+			}
+
+			@Override
+			public boolean contains(final Object o) {
+				final AtomicInteger counter = o != null ? mReverse.get(o) : null;
+				return (counter != null) && (counter.get() > 0);
+			}
+
+			@Override
+			public int size() {
+				int result = 0;
+				for (final ValueSet<V> set: mContents.values()) {
+					result += set.mValues.size();
+				}
+				return result;
+			}
+		};
+	}
+
+	/**
+	 * このMapに含まれる値を重複なしで保持する読み込み専用ビューを取得する
+	 * 逆引きインデックスのキーセットなのでコピーは生成しない
+	 * @return
+	 */
+	@NonNull
+	public Set<V> valuesDistinct() {
+		return Collections.unmodifiableSet(mReverse.keySet());
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 指定したキーに対応するValueSetを取得、存在しなければ生成して登録する
+	 * @param key
+	 * @return
+	 */
+	@NonNull
+	private ValueSet<V> obtain(@NonNull final K key) {
+		ValueSet<V> result = mContents.get(key);
+		if (result == null) {
+			final ValueSet<V> set = new ValueSet<>();
+			result = mContents.putIfAbsent(key, set);
+			if (result == null) {
+				result = set;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Mapから取り除いたValueSetを削除済みにして逆引きインデックスを更新する
+	 * @param set
+	 * @return 取り除いた値のコピー
+	 */
+	@Nullable
+	private Collection<V> release(@Nullable final ValueSet<V> set) {
+		if (set != null) {
+			set.mRemoved = true;
+			final Collection<V> result = new ArrayList<>(set.mValues.size());
+			for (final V v: set.mValues) {
+				if (set.mValues.remove(v)) {
+					decrement(v);
+					result.add(v);
+				}
+			}
+			return result;
+		}
+		return null;
+	}
+
+	/**
+	 * 逆引きインデックスのカウンタを増やす
+	 * カウンタが0(他スレッドが削除中)なら削除を手伝ってから再試行する
+	 * @param value
+	 */
+	private void increment(@NonNull final V value) {
+		for ( ; ; ) {
+			final AtomicInteger counter = mReverse.get(value);
+			if (counter == null) {
+				if (mReverse.putIfAbsent(value, new AtomicInteger(1)) == null) {
+					return;
+				}
+			} else {
+				final int n = counter.get();
+				if (n <= 0) {
+					mReverse.remove(value, counter);
+				} else if (counter.compareAndSet(n, n + 1)) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * 逆引きインデックスのカウンタを減らす
+	 * 0になればエントリーを削除する
+	 * @param value
+	 */
+	private void decrement(@NonNull final V value) {
+		final AtomicInteger counter = mReverse.get(value);
+		if ((counter != null) && (counter.decrementAndGet() <= 0)) {
+			mReverse.remove(value, counter);
+		}
+	}
+
+	/**
+	 * 全ての値コレクションを順にたどるイテレータ
+	 */
+	private class ValuesIterator implements Iterator<V> {
+		@NonNull
+		private final Iterator<ValueSet<V>> mSets = mContents.values().iterator();
+		@Nullable
+		private Iterator<V> mCurrent;
+
+		@Override
+		public boolean hasNext() {
+			while ((mCurrent == null) || !mCurrent.hasNext()) {
+				if (!mSets.hasNext()) {
+					return false;
+				}
+				mCurrent = mSets.next().mValues.iterator();
+			}
+			return true;
+		}
+
+		@Override
+		public V next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			//noinspection ConstantConditions
+			return mCurrent.next();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -26,6 +26,9 @@ import androidx.annotation.Nullable;
 
 import com.serenegiant.graphics.BitmapHelper;
 import com.serenegiant.utils.ArrayUtils;
+import com.serenegiant.utils.PrimitiveBytesHelper;
+
+import java.nio.ByteOrder;
 
 public class SQLiteBlobHelper {
 //	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
@@ -194,6 +197,27 @@ public class SQLiteBlobHelper {
 
 		return ArrayUtils.byteArrayToFloatArray(cursor.getBlob(columnIndex));
 	}
+
+	/**
+	 * Cursor#getBlobのヘルパーメソッド。getBlobの返り値を既存のfloatの配列へ変換して書き込む
+	 * 変換用の配列を生成しないので繰り返し読み込む場合はこちらを使う
+	 *
+	 * @param cursor
+	 * @param columnIndex
+	 * @param dst
+	 * @param dstOffset
+	 * @return 書き込んだ要素数
+	 */
+	public static int getBlobFloatArray(@NonNull final Cursor cursor,
+		final int columnIndex, @NonNull final float[] dst, final int dstOffset) {
+
+		final byte[] blob = cursor.getBlob(columnIndex);
+		final int n = blob != null ? Math.min(blob.length / 4, dst.length - dstOffset) : 0;
+		if (n > 0) {
+			PrimitiveBytesHelper.fromBytes(blob, 0, ByteOrder.nativeOrder(), dst, dstOffset, n);
+		}
+		return Math.max(n, 0);
+	}
 	
 	/**
 	 * Cursor#getBlobのヘルパーメソッド。getBlobの返り値をfloatの配列として変換して返す
@@ -224,6 +248,27 @@ public class SQLiteBlobHelper {
 
 		return ArrayUtils.byteArrayToDoubleArray(cursor.getBlob(columnIndex));
 	}
+
+	/**
+	 * Cursor#getBlobのヘルパーメソッド。getBlobの返り値を既存のdoubleの配列へ変換して書き込む
+	 * 変換用の配列を生成しないので繰り返し読み込む場合はこちらを使う
+	 *
+	 * @param cursor
+	 * @param columnIndex
+	 * @param dst
+	 * @param dstOffset
+	 * @return 書き込んだ要素数
+	 */
+	public static int getBlobDoubleArray(@NonNull final Cursor cursor,
+		final int columnIndex, @NonNull final double[] dst, final int dstOffset) {
+
+		final byte[] blob = cursor.getBlob(columnIndex);
+		final int n = blob != null ? Math.min(blob.length / 8, dst.length - dstOffset) : 0;
+		if (n > 0) {
+			PrimitiveBytesHelper.fromBytes(blob, 0, ByteOrder.nativeOrder(), dst, dstOffset, n);
+		}
+		return Math.max(n, 0);
+	}
 	
 	/**
 	 * Cursor#getBlobのヘルパーメソッド。getBlobの返り値をdoubleの配列として変換して返す
@@ -275,6 +320,27 @@ public class SQLiteBlobHelper {
 
 		return ArrayUtils.byteArrayToIntArray(cursor.getBlob(columnIndex));
 	}
+
+	/**
+	 * Cursor#getBlobのヘルパーメソッド。getBlobの返り値を既存のintの配列へ変換して書き込む
+	 * 変換用の配列を生成しないので繰り返し読み込む場合はこちらを使う
+	 *
+	 * @param cursor
+	 * @param columnIndex
+	 * @param dst
+	 * @param dstOffset
+	 * @return 書き込んだ要素数
+	 */
+	public static int getBlobIntArray(@NonNull final Cursor cursor,
+		final int columnIndex, @NonNull final int[] dst, final int dstOffset) {
+
+		final byte[] blob = cursor.getBlob(columnIndex);
+		final int n = blob != null ? Math.min(blob.length / 4, dst.length - dstOffset) : 0;
+		if (n > 0) {
+			PrimitiveBytesHelper.fromBytes(blob, 0, ByteOrder.nativeOrder(), dst, dstOffset, n);
+		}
+		return Math.max(n, 0);
+	}
 	
 	/**
 	 * Cursor#getBlobのヘルパーメソッド。getBlobの返り値をintの配列として変換して返す
@@ -305,6 +371,27 @@ public class SQLiteBlobHelper {
 
 		return ArrayUtils.byteArrayToShortArray(cursor.getBlob(columnIndex));
 	}
+
+	/**
+	 * Cursor#getBlobのヘルパーメソッド。getBlobの返り値を既存のshortの配列へ変換して書き込む
+	 * 変換用の配列を生成しないので繰り返し読み込む場合はこちらを使う
+	 *
+	 * @param cursor
+	 * @param columnIndex
+	 * @param dst
+	 * @param dstOffset
+	 * @return 書き込んだ要素数
+	 */
+	public static int getBlobShortArray(@NonNull final Cursor cursor,
+		final int columnIndex, @NonNull final short[] dst, final int dstOffset) {
+
+		final byte[] blob = cursor.getBlob(columnIndex);
+		final int n = blob != null ? Math.min(blob.length / 2, dst.length - dstOffset) : 0;
+		if (n > 0) {
+			PrimitiveBytesHelper.fromBytes(blob, 0, ByteOrder.nativeOrder(), dst, dstOffset, n);
+		}
+		return Math.max(n, 0);
+	}
 	
 	/**
 	 * Cursor#getBlobのヘルパーメソッド。getBlobの返り値をshortの配列として変換して返す
@@ -335,6 +422,27 @@ public class SQLiteBlobHelper {
 
 		return ArrayUtils.byteArrayToLongArray(cursor.getBlob(columnIndex));
 	}
+
+	/**
+	 * Cursor#getBlobのヘルパーメソッド。getBlobの返り値を既存のlongの配列へ変換して書き込む
+	 * 変換用の配列を生成しないので繰り返し読み込む場合はこちらを使う
+	 *
+	 * @param cursor
+	 * @param columnIndex
+	 * @param dst
+	 * @param dstOffset
+	 * @return 書き込んだ要素数
+	 */
+	public static int getBlobLongArray(@NonNull final Cursor cursor,
+		final int columnIndex, @NonNull final long[] dst, final int dstOffset) {
+
+		final byte[] blob = cursor.getBlob(columnIndex);
+		final int n = blob != null ? Math.min(blob.length / 8, dst.length - dstOffset) : 0;
+		if (n > 0) {
+			PrimitiveBytesHelper.fromBytes(blob, 0, ByteOrder.nativeOrder(), dst, dstOffset, n);
+		}
+		return Math.max(n, 0);
+	}
 	
 	/**
 	 * Cursor#getBlobのヘルパーメソッド。getBlobの返り値をlongの配列として変換して返す
@@ -24,6 +24,7 @@ import android.opengl.Matrix;
 import com.serenegiant.egl.EGLBase;
 import com.serenegiant.glutils.IMirror;
 import com.serenegiant.system.Time;
+import com.serenegiant.utils.FrameTimingRecorder;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -62,6 +63,9 @@ public class RendererTarget implements IMirror {
 	private volatile boolean mEnable = true;
 	@MirrorMode
 	private int mMirror = MIRROR_NORMAL;
+	/** フレーム間隔測定用, nullなら測定しない */
+	@Nullable
+	private volatile FrameTimingRecorder mFrameTimingRecorder;
 
 	/**
 	 * コンストラクタ, ファクトリーメソッドの使用を強制するためprotected
@@ -173,6 +177,23 @@ public class RendererTarget implements IMirror {
 		return mMirror;
 	}
 
+	/**
+	 * 描画時のフレーム間隔測定用のFrameTimingRecorderをセット
+	 * @param recorder nullなら測定しない
+	 */
+	public void setFrameTimingRecorder(@Nullable final FrameTimingRecorder recorder) {
+		mFrameTimingRecorder = recorder;
+	}
+
+	/**
+	 * セットされているFrameTimingRecorderを取得
+	 * @return
+	 */
+	@Nullable
+	public FrameTimingRecorder getFrameTimingRecorder() {
+		return mFrameTimingRecorder;
+	}
+
 	public int width() {
 		return mTargetSurface != null ? mTargetSurface.getWidth() : 0;
 	}
@@ -199,6 +220,10 @@ public class RendererTarget implements IMirror {
 			GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 			doDraw(drawer, texUnit, textId, texMatrix, mMvpMatrix);
 			mTargetSurface.swap();
+			final FrameTimingRecorder recorder = mFrameTimingRecorder;
+			if (recorder != null) {
+				recorder.record();
+			}
 		}
 	}
 
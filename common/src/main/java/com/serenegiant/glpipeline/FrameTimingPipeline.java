@@ -0,0 +1,64 @@
+package com.serenegiant.glpipeline;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.FrameTimingRecorder;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Size;
+import androidx.annotation.WorkerThread;
+
+/**
+ * 映像を受け取ったタイミングをFrameTimingRecorderへ記録して次のパイプラインへ中継するだけのProxyPipeline実装
+ * 測定したいGLPipelineの後ろにGLPipeline#insertで挿入して使う
+ */
+public class FrameTimingPipeline extends ProxyPipeline {
+	@NonNull
+	private final FrameTimingRecorder mRecorder;
+
+	/**
+	 * コンストラクタ
+	 * @param recorder
+	 */
+	public FrameTimingPipeline(@NonNull final FrameTimingRecorder recorder) {
+		super();
+		mRecorder = recorder;
+	}
+
+	/**
+	 * フレーム間隔を記録しているFrameTimingRecorderを取得
+	 * @return
+	 */
+	@NonNull
+	public FrameTimingRecorder getRecorder() {
+		return mRecorder;
+	}
+
+	@WorkerThread
+	@Override
+	public void onFrameAvailable(
+		final boolean isOES, final int texId,
+		@NonNull @Size(min=16) final float[] texMatrix) {
+
+		if (isValid()) {
+			mRecorder.record();
+		}
+		super.onFrameAvailable(isOES, texId, texMatrix);
+	}
+}
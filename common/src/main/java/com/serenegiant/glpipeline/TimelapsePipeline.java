@@ -0,0 +1,331 @@
+package com.serenegiant.glpipeline;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import com.serenegiant.egl.EGLBase;
+import com.serenegiant.gl.GLDrawer2D;
+import com.serenegiant.gl.GLManager;
+import com.serenegiant.gl.GLSurface;
+import com.serenegiant.media.MediaAVTimelapseRecorder;
+import com.serenegiant.system.Time;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.Size;
+import androidx.annotation.WorkerThread;
+
+/**
+ * MediaAVTimelapseRecorderでタイムラプス録画する際に映像入力側で映像フレームを間引いて
+ * 選択した映像フレームだけをエンコーダーの映像入力用Surfaceへ描画するGLPipeline実装
+ * MediaAVTimelapseRecorder#setTimelapseFpsで映像フレームを選択するフレームレートをセットしておくこと
+ * (セットしていなければ受け取った全ての映像フレームをエンコーダーへ送る)
+ * エンコーダーへは動画ファイルの時間軸で等間隔なプレゼンテーションタイムで送るので
+ * エンコーダーのキーフレーム間隔が動画ファイルのフレーム数基準になる
+ * 合成を有効にすると間引いた映像フレームを平均して選択した映像フレームと合成する(モーションブラー効果)
+ * 受け取った映像フレームはそのまま次のGLPipelineへ送る
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class TimelapsePipeline extends ProxyPipeline {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = TimelapsePipeline.class.getSimpleName();
+
+	/**
+	 * 合成する映像フレーム数の上限のデフォルト値
+	 */
+	public static final int DEFAULT_MAX_BLEND_FRAMES = 32;
+
+	@NonNull
+	private final GLManager mManager;
+	@NonNull
+	private final MediaAVTimelapseRecorder mRecorder;
+	private volatile boolean mBlend;
+	private volatile int mMaxBlendFrames = DEFAULT_MAX_BLEND_FRAMES;
+
+	@Nullable
+	private GLDrawer2D mDrawer;
+	/**
+	 * 合成用ワークテクスチャ描画用
+	 */
+	@Nullable
+	private GLDrawer2D mWorkDrawer;
+	/**
+	 * 間引いた映像フレームを合成するためのワーク用GLSurface
+	 */
+	@Nullable
+	private GLSurface mWork;
+	/**
+	 * エンコーダーの映像入力用Surface
+	 */
+	@Nullable
+	private Surface mSurface;
+	/**
+	 * エンコーダーの映像入力用Surfaceへ描画するためのEglSurface
+	 */
+	@Nullable
+	private EGLBase.IEglSurface mTarget;
+
+	/**
+	 * コンストラクタ
+	 * 間引いた映像フレームの合成は無効
+	 * @param manager
+	 * @param recorder
+	 */
+	public TimelapsePipeline(
+		@NonNull final GLManager manager,
+		@NonNull final MediaAVTimelapseRecorder recorder) {
+
+		this(manager, recorder, false);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param manager
+	 * @param recorder
+	 * @param blend 間引いた映像フレームを合成するかどうか
+	 */
+	public TimelapsePipeline(
+		@NonNull final GLManager manager,
+		@NonNull final MediaAVTimelapseRecorder recorder,
+		final boolean blend) {
+
+		super();
+		mManager = manager;
+		mRecorder = recorder;
+		mBlend = blend;
+	}
+
+	@Override
+	protected void internalRelease() {
+		if (DEBUG) Log.v(TAG, "internalRelease:");
+		if (mManager.isValid()) {
+			try {
+				mManager.runOnGLThread(new Runnable() {
+					@WorkerThread
+					@Override
+					public void run() {
+						releaseTargetOnGL();
+						releaseWorkOnGL();
+						if (mDrawer != null) {
+							mDrawer.release();
+							mDrawer = null;
+						}
+					}
+				});
+			} catch (final Exception e) {
+				if (DEBUG) Log.w(TAG, e);
+			}
+		}
+		super.internalRelease();
+	}
+
+	@Override
+	public boolean isValid() {
+		return super.isValid() && mManager.isValid();
+	}
+
+	/**
+	 * 間引いた映像フレームを合成するかどうかをセット
+	 * @param blend
+	 */
+	public void setBlendEnabled(final boolean blend) {
+		mBlend = blend;
+	}
+
+	/**
+	 * 間引いた映像フレームを合成するかどうか
+	 * @return
+	 */
+	public boolean isBlendEnabled() {
+		return mBlend;
+	}
+
+	/**
+	 * 合成する映像フレーム数の上限をセット
+	 * ワーク用テクスチャは各色8ビットなので合成する映像フレーム数が多すぎると
+	 * 1フレーム当たりの重みが小さくなりすぎて反映されなくなる。
+	 * 上限を超える分は上限の映像フレーム数での指数移動平均になる
+	 * @param maxBlendFrames 2以上
+	 * @throws IllegalArgumentException
+	 */
+	public void setMaxBlendFrames(final int maxBlendFrames) throws IllegalArgumentException {
+		if (maxBlendFrames < 2) {
+			throw new IllegalArgumentException("maxBlendFrames should be equal to or greater than 2");
+		}
+		mMaxBlendFrames = maxBlendFrames;
+	}
+
+	/**
+	 * 合成する映像フレーム数の上限を取得
+	 * @return
+	 */
+	public int getMaxBlendFrames() {
+		return mMaxBlendFrames;
+	}
+
+	private int cnt;
+	@WorkerThread
+	@Override
+	public void onFrameAvailable(
+		final boolean isOES, final int texId,
+		@NonNull @Size(min=16) final float[] texMatrix) {
+
+		super.onFrameAvailable(isOES, texId, texMatrix);
+		if (!isValid()) return;
+		final Surface surface = mRecorder.isStarted() ? mRecorder.getInputSurface() : null;
+		if ((surface == null) || !surface.isValid()) {
+			// 録画中でなければ描画先を破棄する
+			releaseTargetOnGL();
+			return;
+		}
+		if ((mDrawer == null) || (isOES != mDrawer.isOES())) {
+			// 初回またはGLPipelineを繋ぎ変えたあとにテクスチャが変わるかもしれない
+			if (mDrawer != null) {
+				mDrawer.release();
+			}
+			if (DEBUG) Log.v(TAG, "onFrameAvailable:create GLDrawer2D");
+			mDrawer = GLDrawer2D.create(mManager.isGLES3(), isOES);
+		}
+		if ((mTarget == null) || (mSurface != surface) || !mTarget.isValid()) {
+			releaseTargetOnGL();
+			mTarget = mManager.getEgl().createFromSurface(surface);
+			mSurface = surface;
+		}
+		final boolean selected = mRecorder.selectFrame(Time.nanoTime());
+		final boolean blend = mBlend && mRecorder.isDecimationEnabled();
+		if (blend) {
+			blendOnGL(mDrawer, texId, texMatrix, mRecorder.getIntervalFrames());
+		}
+		if (selected) {
+			mTarget.makeCurrent();
+			mTarget.setViewPort(0, 0, mTarget.getWidth(), mTarget.getHeight());
+			// 本来は映像が全面に描画されるので#glClearでクリアする必要はないけど
+			// ハングアップする機種があるのでクリアしとく
+			GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+			if (blend && (mWork != null) && (mWorkDrawer != null)) {
+				mWorkDrawer.draw(mWork);
+			} else {
+				mDrawer.draw(GLES20.GL_TEXTURE0, texId, texMatrix, 0);
+			}
+			// 動画ファイルの時間軸に揃えたプレゼンテーションタイムでエンコーダーへ送る
+			final long ptsNs = mRecorder.getPresentationTimeNs();
+			if (ptsNs >= 0) {
+				mTarget.swap(ptsNs);
+			} else {
+				mTarget.swap();
+			}
+			mRecorder.frameAvailableSoon();
+			if (DEBUG && (++cnt % 100) == 0) {
+				Log.v(TAG, "onFrameAvailable:" + cnt + ",decimated=" + mRecorder.getDecimatedFrames());
+			}
+		}
+	}
+
+	@Override
+	public void refresh() {
+		super.refresh();
+		// XXX #removeでパイプラインチェーンのどれかを削除するとなぜか映像が表示されなくなってしまうことへのワークアラウンド
+		// XXX パイプライン中のどれかでシェーダーを再生成すると表示されるようになる
+		if (isValid()) {
+			mManager.runOnGLThread(new Runnable() {
+				@WorkerThread
+				@Override
+				public void run() {
+					if (DEBUG) Log.v(TAG, "refresh#run:release drawer");
+					if (mDrawer != null) {
+						mDrawer.release();
+						mDrawer = null;
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * 受け取った映像フレームをワーク用GLSurfaceへ合成する
+	 * 選択間隔内のn番目の映像フレームを1/nの重みで合成することで
+	 * ワーク用GLSurfaceの内容は選択間隔内の映像フレームの平均になる
+	 * @param drawer
+	 * @param texId
+	 * @param texMatrix
+	 * @param intervalFrames 選択間隔内で受け取った映像フレーム数(今回の映像フレームを含む)
+	 */
+	@WorkerThread
+	private void blendOnGL(
+		@NonNull final GLDrawer2D drawer,
+		final int texId, @NonNull @Size(min=16) final float[] texMatrix,
+		final int intervalFrames) {
+
+		final int width = mTarget != null ? mTarget.getWidth() : getWidth();
+		final int height = mTarget != null ? mTarget.getHeight() : getHeight();
+		if ((mWork == null) || (mWork.getWidth() != width) || (mWork.getHeight() != height)) {
+			releaseWorkOnGL();
+			if (DEBUG) Log.v(TAG, "blendOnGL:create work surface," + width + "x" + height);
+			mWork = GLSurface.newInstance(mManager.isGLES3(), GLES20.GL_TEXTURE0, width, height);
+			mWorkDrawer = GLDrawer2D.create(mManager.isGLES3(), false);
+		}
+		final int n = Math.min(intervalFrames, mMaxBlendFrames);
+		mWork.makeCurrent();
+		mWork.setViewPort(0, 0, width, height);
+		if (n > 1) {
+			GLES20.glEnable(GLES20.GL_BLEND);
+			GLES20.glBlendColor(0.0f, 0.0f, 0.0f, 1.0f / n);
+			GLES20.glBlendFunc(GLES20.GL_CONSTANT_ALPHA, GLES20.GL_ONE_MINUS_CONSTANT_ALPHA);
+			drawer.draw(GLES20.GL_TEXTURE0, texId, texMatrix, 0);
+			GLES20.glDisable(GLES20.GL_BLEND);
+		} else {
+			// 選択間隔内の最初の映像フレームはそのまま上書きする
+			drawer.draw(GLES20.GL_TEXTURE0, texId, texMatrix, 0);
+		}
+		mWork.swap();
+	}
+
+	/**
+	 * エンコーダーの映像入力用Surfaceへ描画するためのEglSurfaceを破棄する
+	 */
+	@WorkerThread
+	private void releaseTargetOnGL() {
+		if (mTarget != null) {
+			if (DEBUG) Log.v(TAG, "releaseTargetOnGL:");
+			mTarget.release();
+			mTarget = null;
+		}
+		mSurface = null;
+	}
+
+	/**
+	 * 合成用のワーク用GLSurfaceを破棄する
+	 */
+	@WorkerThread
+	private void releaseWorkOnGL() {
+		if (mWork != null) {
+			mWork.release();
+			mWork = null;
+		}
+		if (mWorkDrawer != null) {
+			mWorkDrawer.release();
+			mWorkDrawer = null;
+		}
+	}
+}
@@ -34,6 +34,7 @@ import com.serenegiant.gl.GLDrawer2D;
 import com.serenegiant.gl.GLUtils;
 import com.serenegiant.gl.RendererTarget;
 import com.serenegiant.math.Fraction;
+import com.serenegiant.utils.FrameTimingRecorder;
 import com.serenegiant.utils.ThreadUtils;
 
 /**
@@ -304,6 +305,22 @@ public abstract class AbstractDistributeTask implements IMirror {
         }
     }
 
+    /**
+     * 指定したIDの分配描画先のフレーム間隔測定用FrameTimingRecorderをセットする
+     * @param id
+     * @param recorder nullなら測定しない
+     */
+    @AnyThread
+    public void setFrameTimingRecorder(final int id, @Nullable final FrameTimingRecorder recorder) {
+        if (DEBUG) Log.v(TAG, "setFrameTimingRecorder:" + id + ",recorder=" + recorder);
+        synchronized (mTargets) {
+            final RendererTarget target = mTargets.get(id);
+            if (target != null) {
+                target.setFrameTimingRecorder(recorder);
+            }
+        }
+    }
+
     /**
      * 分配描画用のSurfaceの数を取得
      */
@@ -19,6 +19,7 @@ package com.serenegiant.io;
 */
 
 import com.serenegiant.nio.CharsetsUtils;
+import com.serenegiant.utils.PrimitiveBytesHelper;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -26,12 +27,6 @@ import androidx.annotation.Nullable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.CharBuffer;
-import java.nio.DoubleBuffer;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
-import java.nio.LongBuffer;
-import java.nio.ShortBuffer;
 import java.nio.channels.ByteChannel;
 
 /**
@@ -340,19 +335,27 @@ public class ChannelHelper {
 	public static char[] readCharArray(@NonNull final ByteChannel channel)
 		throws IOException {
 		
+		return readCharArray(channel, null);
+	}
+
+	/**
+	 * ByteChannelからchar配列を読み込む
+	 * @param channel
+	 * @param work 作業用バッファ, nullまたは容量が足りなければ新規に確保する
+	 * @return
+	 * @throws IOException
+	 */
+	public static char[] readCharArray(@NonNull final ByteChannel channel,
+		@Nullable final ByteBuffer work) throws IOException {
+		
 		final int n = readInt(channel);
-		final ByteBuffer buf = ByteBuffer.allocate(n * 2).order(ByteOrder.BIG_ENDIAN);
+		final ByteBuffer buf = checkBuffer(work, n * 2);
 		final int readBytes = channel.read(buf);
 		if (readBytes != n * 2) throw new IOException();
-		buf.clear();
-		final CharBuffer result = buf.asCharBuffer();
-		if (result.hasArray()) {
-			return result.array();
-		}  else {
-			final char[] b = new char[n];
-			result.get(b);
-			return b;
-		}
+		buf.flip();
+		final char[] result = new char[n];
+		PrimitiveBytesHelper.fromBytes(buf, ByteOrder.BIG_ENDIAN, result, 0, n);
+		return result;
 	}
 	
 	/**
@@ -364,19 +367,27 @@ public class ChannelHelper {
 	public static short[] readShortArray(@NonNull final ByteChannel channel)
 		throws IOException {
 		
+		return readShortArray(channel, null);
+	}
+
+	/**
+	 * ByteChannelからshort配列を読み込む
+	 * @param channel
+	 * @param work 作業用バッファ, nullまたは容量が足りなければ新規に確保する
+	 * @return
+	 * @throws IOException
+	 */
+	public static short[] readShortArray(@NonNull final ByteChannel channel,
+		@Nullable final ByteBuffer work) throws IOException {
+		
 		final int n = readInt(channel);
-		final ByteBuffer buf = ByteBuffer.allocate(n * 2).order(ByteOrder.BIG_ENDIAN);
+		final ByteBuffer buf = checkBuffer(work, n * 2);
 		final int readBytes = channel.read(buf);
 		if (readBytes != n * 2) throw new IOException();
-		buf.clear();
-		final ShortBuffer result = buf.asShortBuffer();
-		if (result.hasArray()) {
-			return result.array();
-		}  else {
-			final short[] b = new short[n];
-			result.get(b);
-			return b;
-		}
+		buf.flip();
+		final short[] result = new short[n];
+		PrimitiveBytesHelper.fromBytes(buf, ByteOrder.BIG_ENDIAN, result, 0, n);
+		return result;
 	}
 	
 	/**
@@ -388,19 +399,27 @@ public class ChannelHelper {
 	public static int[] readIntArray(@NonNull final ByteChannel channel)
 		throws IOException {
 		
+		return readIntArray(channel, null);
+	}
+
+	/**
+	 * ByteChannelからint配列を読み込む
+	 * @param channel
+	 * @param work 作業用バッファ, nullまたは容量が足りなければ新規に確保する
+	 * @return
+	 * @throws IOException
+	 */
+	public static int[] readIntArray(@NonNull final ByteChannel channel,
+		@Nullable final ByteBuffer work) throws IOException {
+		
 		final int n = readInt(channel);
-		final ByteBuffer buf = ByteBuffer.allocate(n * 4).order(ByteOrder.BIG_ENDIAN);
+		final ByteBuffer buf = checkBuffer(work, n * 4);
 		final int readBytes = channel.read(buf);
 		if (readBytes != n * 4) throw new IOException();
-		buf.clear();
-		final IntBuffer result = buf.asIntBuffer();
-		if (result.hasArray()) {
-			return result.array();
-		}  else {
-			final int[] b = new int[n];
-			result.get(b);
-			return b;
-		}
+		buf.flip();
+		final int[] result = new int[n];
+		PrimitiveBytesHelper.fromBytes(buf, ByteOrder.BIG_ENDIAN, result, 0, n);
+		return result;
 	}
 	
 	/**
@@ -412,19 +431,27 @@ public class ChannelHelper {
 	public static long[] readLongArray(@NonNull final ByteChannel channel)
 		throws IOException {
 		
+		return readLongArray(channel, null);
+	}
+
+	/**
+	 * ByteChannelからlong配列を読み込む
+	 * @param channel
+	 * @param work 作業用バッファ, nullまたは容量が足りなければ新規に確保する
+	 * @return
+	 * @throws IOException
+	 */
+	public static long[] readLongArray(@NonNull final ByteChannel channel,
+		@Nullable final ByteBuffer work) throws IOException {
+		
 		final int n = readInt(channel);
-		final ByteBuffer buf = ByteBuffer.allocate(n * 8).order(ByteOrder.BIG_ENDIAN);
+		final ByteBuffer buf = checkBuffer(work, n * 8);
 		final int readBytes = channel.read(buf);
 		if (readBytes != n * 8) throw new IOException();
-		buf.clear();
-		final LongBuffer result = buf.asLongBuffer();
-		if (result.hasArray()) {
-			return result.array();
-		}  else {
-			final long[] b = new long[n];
-			result.get(b);
-			return b;
-		}
+		buf.flip();
+		final long[] result = new long[n];
+		PrimitiveBytesHelper.fromBytes(buf, ByteOrder.BIG_ENDIAN, result, 0, n);
+		return result;
 	}
 	
 	/**
@@ -436,19 +463,27 @@ public class ChannelHelper {
 	public static float[] readFloatArray(@NonNull final ByteChannel channel)
 		throws IOException {
 		
+		return readFloatArray(channel, null);
+	}
+
+	/**
+	 * ByteChannelからfloat配列を読み込む
+	 * @param channel
+	 * @param work 作業用バッファ, nullまたは容量が足りなければ新規に確保する
+	 * @return
+	 * @throws IOException
+	 */
+	public static float[] readFloatArray(@NonNull final ByteChannel channel,
+		@Nullable final ByteBuffer work) throws IOException {
+		
 		final int n = readInt(channel);
-		final ByteBuffer buf = ByteBuffer.allocate(n * 4).order(ByteOrder.BIG_ENDIAN);
+		final ByteBuffer buf = checkBuffer(work, n * 4);
 		final int readBytes = channel.read(buf);
 		if (readBytes != n * 4) throw new IOException();
-		buf.clear();
-		final FloatBuffer result = buf.asFloatBuffer();
-		if (result.hasArray()) {
-			return result.array();
-		}  else {
-			final float[] b = new float[n];
-			result.get(b);
-			return b;
-		}
+		buf.flip();
+		final float[] result = new float[n];
+		PrimitiveBytesHelper.fromBytes(buf, ByteOrder.BIG_ENDIAN, result, 0, n);
+		return result;
 	}
 	
 	/**
@@ -460,19 +495,27 @@ public class ChannelHelper {
 	public static double[] readDoubleArray(@NonNull final ByteChannel channel)
 		throws IOException {
 		
+		return readDoubleArray(channel, null);
+	}
+
+	/**
+	 * ByteChannelからdouble配列を読み込む
+	 * @param channel
+	 * @param work 作業用バッファ, nullまたは容量が足りなければ新規に確保する
+	 * @return
+	 * @throws IOException
+	 */
+	public static double[] readDoubleArray(@NonNull final ByteChannel channel,
+		@Nullable final ByteBuffer work) throws IOException {
+		
 		final int n = readInt(channel);
-		final ByteBuffer buf = ByteBuffer.allocate(n * 8).order(ByteOrder.BIG_ENDIAN);
+		final ByteBuffer buf = checkBuffer(work, n * 8);
 		final int readBytes = channel.read(buf);
 		if (readBytes != n * 8) throw new IOException();
-		buf.clear();
-		final DoubleBuffer result = buf.asDoubleBuffer();
-		if (result.hasArray()) {
-			return result.array();
-		}  else {
-			final double[] b = new double[n];
-			result.get(b);
-			return b;
-		}
+		buf.flip();
+		final double[] result = new double[n];
+		PrimitiveBytesHelper.fromBytes(buf, ByteOrder.BIG_ENDIAN, result, 0, n);
+		return result;
 	}
 	
 	/**
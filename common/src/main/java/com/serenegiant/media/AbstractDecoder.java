@@ -55,6 +55,14 @@ public abstract class AbstractDecoder implements Decoder {
 	private volatile int mTrackIndex;
 	private volatile boolean mIsRunning;
 	protected boolean mOutputDone;
+	/**
+	 * 出力スレッドでMediaCodec#flushを実行するように要求するかどうか
+	 */
+	private volatile boolean mRequestFlush;
+	/**
+	 * このプレゼンテーションタイムより前のフレームは描画/再生せずに破棄する, 負なら無効
+	 */
+	private volatile long mSkipUntilUs = -1L;
 
 	/**
 	 * コンストラクタ
@@ -169,6 +177,70 @@ public abstract class AbstractDecoder implements Decoder {
 		}
 	}
 
+	/**
+	 * デコーダー内の未処理のデータを破棄する(シーク用)
+	 * 出力スレッドが取り出し中のバッファと競合しないように出力スレッド上でMediaCodec#flushを
+	 * 実行するので、実行されるまで(最大1秒)呼び出しスレッドをブロックする
+	 * デコード開始前は何もしない
+	 */
+	public void flush() {
+		if (DEBUG) Log.v(TAG, "flush:");
+		final MediaCodec decoder = mDecoder;
+		if ((decoder == null) || !isRunning()) {
+			return;
+		}
+		synchronized (mSync) {
+			if (mOutputDone) {
+				// 出力スレッドが終了しているのでここで実行する
+				onFlush();
+				decoder.flush();
+				onTimeBaseReset();
+				return;
+			}
+			mRequestFlush = true;
+			mSync.notifyAll();
+			final long limit = System.currentTimeMillis() + 1000;
+			while (mRequestFlush && isRunning() && !mOutputDone) {
+				final long t = limit - System.currentTimeMillis();
+				if (t <= 0) {
+					Log.w(TAG, "flush:timeout");
+					break;
+				}
+				try {
+					mSync.wait(t);
+				} catch (final InterruptedException e) {
+					break;
+				}
+			}
+			mRequestFlush = false;
+		}
+	}
+
+	/**
+	 * 指定したプレゼンテーションタイムより前のフレームを描画/再生せずに破棄するように設定する
+	 * シーク時に直前のキーフレームからデコードして目的の位置まで読み進めるときに使う
+	 * 目的の位置に達した時点で再生タイミングの基準をリセットする
+	 * @param presentationTimeUs 負なら破棄しない
+	 */
+	public void setSkipUntil(final long presentationTimeUs) {
+		mSkipUntilUs = presentationTimeUs;
+	}
+
+	/**
+	 * MediaCodec#flushを実行する直前に出力スレッド上で呼ばれる
+	 * 出力バッファを保持しているときはここで破棄すること
+	 * (flush後は保持していた出力バッファのインデックスは無効になる)
+	 */
+	protected void onFlush() {
+	}
+
+	/**
+	 * flushした後または#setSkipUntilで指定した位置に達したときに出力スレッド上で呼ばれる
+	 * 再生タイミングの基準をリセットする必要があるときに使う
+	 */
+	protected void onTimeBaseReset() {
+	}
+
 	public void signalEndOfStream() {
 		if (DEBUG) Log.i(TAG, "signalEndOfStream:");
 		while (isRunning()) {
@@ -267,6 +339,9 @@ public abstract class AbstractDecoder implements Decoder {
 			}
 			while ( mIsRunning && !mOutputDone ) {
 				try {
+					if (mRequestFlush) {
+						handleFlush(mDecoder);
+					}
 			        if (!mOutputDone) {
 						handleOutput(mDecoder);
 			        }
@@ -288,6 +363,54 @@ public abstract class AbstractDecoder implements Decoder {
 		 */
 		protected abstract void handleOutput(@NonNull final MediaCodec decoder);
 
+		/**
+		 * MediaCodec#flushの実行要求があるかどうか
+		 * #handleOutputでtrueになったときは速やかに戻ること
+		 * @return
+		 */
+		protected boolean isFlushRequested() {
+			return mRequestFlush;
+		}
+
+		/**
+		 * 指定したプレゼンテーションタイムのフレームを描画/再生せずに破棄するかどうか
+		 * #setSkipUntilで指定した位置に達したときは再生タイミングの基準をリセットする
+		 * @param presentationTimeUs
+		 * @return
+		 */
+		protected boolean isSkipFrame(final long presentationTimeUs) {
+			final long skipUntilUs = mSkipUntilUs;
+			if (skipUntilUs < 0) {
+				return false;
+			} else if (presentationTimeUs < skipUntilUs) {
+				return true;
+			}
+			mSkipUntilUs = -1L;
+			mOffsetPtsNs = mOffsetSysTimeNs = -1L;
+			onTimeBaseReset();
+			return false;
+		}
+
+		/**
+		 * 出力スレッド上でMediaCodec#flushを実行する
+		 * @param decoder
+		 */
+		private void handleFlush(@NonNull final MediaCodec decoder) {
+			if (DEBUG) Log.v(TAG, "handleFlush:");
+			onFlush();
+			try {
+				decoder.flush();
+			} catch (final IllegalStateException e) {
+				Log.w(TAG, e);
+			}
+			mOffsetPtsNs = mOffsetSysTimeNs = -1L;
+			onTimeBaseReset();
+			synchronized (mSync) {
+				mRequestFlush = false;
+				mSync.notifyAll();
+			}
+		}
+
 		/*
 		 * API21以降で使用可能なMediaCodec#releaseOutputBuffer(int,long)は再生したいシステム時刻から
 		 * vsync x 2早く(通常の60fpsディスプレーであれば約33ミリ秒早く)#releaseOutputBufferを呼び出すと
@@ -320,7 +443,7 @@ public abstract class AbstractDecoder implements Decoder {
 				// 現在のptsから最初のptsを引いたのが再生位置、そこから最初のシステム時間と現在システム時間の差を引いたのが待ち時間
 				final long base = mOffsetPtsNs + presentationTimeNs - VSYNC2;
 				for (long t = base - System.nanoTime();
-					isRunning() && (t > 0); t = base - System.nanoTime()) {
+					isRunning() && !mRequestFlush && (t > 0); t = base - System.nanoTime()) {
 
 					if (t > 20000000) t >>= 1;	// 20ミリ以上なら1/2にする
 					synchronized (mSync) {
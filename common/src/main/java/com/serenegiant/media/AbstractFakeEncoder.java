@@ -29,7 +29,6 @@ import android.util.Log;
 import android.view.Surface;
 
 import com.serenegiant.media.exceptions.TimeoutException;
-import com.serenegiant.utils.BufferHelper;
 import com.serenegiant.system.BuildCheck;
 import com.serenegiant.system.Time;
 
@@ -120,6 +119,11 @@ public abstract class AbstractFakeEncoder implements Encoder {
 	 * フレーム情報(ワーク用)
 	 */
 	private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+	/**
+	 * codec specific dataの分離用
+	 */
+	@NonNull
+	private final NalUnitScanner mNalScanner;
 	
 	private Thread mDrainThread;
 	
@@ -184,9 +188,14 @@ public abstract class AbstractFakeEncoder implements Encoder {
 
 		MIME_TYPE = mimeType;
 		FRAME_SZ = frameSz;
+		mNalScanner = new NalUnitScanner(mimeType);
 		mRecorder = recorder;
 		mListener = listener;
 		mFrameQueue = new MemMediaQueue(Math.min(maxPoolSz, 2), maxPoolSz, maxQueueSz);
+		// キュー/バッファプールに空きがなくなったときにキーフレームを破棄しないようにする
+		mFrameQueue.setDropPolicy(new GopFrameDropPolicy(
+			(mimeType != null) && mimeType.startsWith("video/") ? mimeType : null,
+			GopFrameDropPolicy.TRACK_ANY));
 
 		recorder.addEncoder(this);
 	}
@@ -240,8 +249,10 @@ public abstract class AbstractFakeEncoder implements Encoder {
         // 空のバッファをセットするのと等価である
     	// ・・・らしいので空バッファを送る。
     	final RecycleMediaData frame = obtain(0);
-    	frame.set(null, 0, 0, getInputPTSUs(), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-    	offer(frame);
+		if (frame != null) {
+			frame.set(null, 0, 0, getInputPTSUs(), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+			offer(frame);
+		}
 	}
 
 	/**
@@ -274,6 +285,10 @@ public abstract class AbstractFakeEncoder implements Encoder {
 		}
 		if (mRequestStop) return false;
 		final RecycleMediaData frame = obtain(size);
+		if (frame == null) {
+			// バッファプールが空でキュー内のフレームを破棄しても空きを作れなかった
+			return false;
+		}
 		frame.set(buffer, offset, size, presentationTimeUs, flags);
 		return offer(frame);
 	}
@@ -393,6 +408,24 @@ public abstract class AbstractFakeEncoder implements Encoder {
 		mFrameQueue.init(FRAME_SZ);
 	}
 	
+	/**
+	 * フレームキューのIFrameDropPolicyを取得
+	 * デフォルトはGopFrameDropPolicy
+	 * @return
+	 */
+	@Nullable
+	public IFrameDropPolicy getDropPolicy() {
+		return mFrameQueue.getDropPolicy();
+	}
+
+	/**
+	 * フレームキューのIFrameDropPolicyをセット
+	 * @param policy nullなら空きがないときは新しいフレームを追加できない
+	 */
+	public void setDropPolicy(@Nullable final IFrameDropPolicy policy) {
+		mFrameQueue.setDropPolicy(policy);
+	}
+
 	/**
 	 * フレームプールとキューを空にする
 	 */
@@ -490,17 +523,17 @@ public abstract class AbstractFakeEncoder implements Encoder {
 				|| ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0)) ) {
 //			if (DEBUG) Log.d(TAG, "handleFrame:BUFFER_FLAG_KEY_FRAME");
 			// csd-0とcsd-1が同時に来ているはずなので分離してセットする
-			final byte[] tmp = new byte[mBufferInfo.size];
-			final ByteBuffer b = frame.get().duplicate();
-			b.clear();
-			b.get(tmp, 0, mBufferInfo.size);
-			final int ix0 = BufferHelper.findAnnexB(tmp, 0);
-			final int ix1 = BufferHelper.findAnnexB(tmp, ix0 + 2);
-			final int ix2 = BufferHelper.findAnnexB(tmp, ix1 + 2);
+			// フレームデータをコピーせずにスタートマーカーを検索する
+			final ByteBuffer csd = frame.get();
+			final NalUnitScanner scanner = mNalScanner.reset(csd, 0, mBufferInfo.size);
+			final int ix0 = scanner.next() ? scanner.getStart() : -1;
+			final int ix1 = scanner.next() ? scanner.getStart() : -1;
+			final int ix2 = scanner.next() ? scanner.getStart() : -1;
+			scanner.clear();
 //			if (DEBUG) Log.i(TAG, String.format("ix0=%d,ix1=%d,ix2=%d", ix0, ix1, ix2));
 			try {
 				final MediaFormat outFormat = createOutputFormat(MIME_TYPE,
-					tmp, mBufferInfo.size, ix0, ix1, ix2);
+					csd, mBufferInfo.size, ix0, ix1, ix2);
 				if (!startRecorder(recorder, outFormat)) {
 					Log.w(TAG, "handleFrame:failed to start recorder");
 					return;
@@ -538,15 +571,15 @@ public abstract class AbstractFakeEncoder implements Encoder {
 	
 	/**
 	 * Muxer初期化用のMediaFormatを生成する
-	 * @param csd
+	 * @param csd codec specific dataを含むフレームデータ, 先頭から#sizeバイト, position/limitを変更しないこと
 	 * @param size
-	 * @param ix0
-	 * @param ix1
-	 * @param ix2
+	 * @param ix0 1つ目のスタートマーカーの位置, 見つからなければ負
+	 * @param ix1 2つ目のスタートマーカーの位置, 見つからなければ負
+	 * @param ix2 3つ目のスタートマーカーの位置, 見つからなければ負
 	 * @return
 	 */
 	protected abstract MediaFormat createOutputFormat(final String mime,
-		final byte[] csd, final int size,
+		@NonNull final ByteBuffer csd, final int size,
 		final int ix0, final int ix1, final int ix2);
 
 	/**
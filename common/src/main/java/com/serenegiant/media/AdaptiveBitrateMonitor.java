@@ -0,0 +1,225 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.serenegiant.utils.HandlerThreadHandler;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * IPressureSource(MediaSplitMuxerV2等)の混雑状況を定期的に確認して
+ * BitrateControllerが決めた目標ビットレートを映像エンコーダーへ反映するためのヘルパークラス
+ * ビットレートの変更にはMediaCodec#setParameters(PARAMETER_KEY_VIDEO_BITRATE)を使うのでAPI>=19
+ * (API<19の場合は#startがfalseを返して何もしない)
+ *
+ * final MediaSplitMuxerV2 muxer = ...;
+ * final AdaptiveBitrateMonitor monitor = new AdaptiveBitrateMonitor(
+ *     videoEncoder, muxer, muxer.getConfig(), width, height);
+ * monitor.start();
+ * ...
+ * monitor.release();
+ */
+public class AdaptiveBitrateMonitor {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = AdaptiveBitrateMonitor.class.getSimpleName();
+
+	/**
+	 * 目標ビットレートを変更したときのコールバックリスナー
+	 */
+	public interface BitrateListener {
+		/**
+		 * 目標ビットレートを変更したときに呼び出される
+		 * AdaptiveBitrateMonitorのワーカースレッド上で呼ばれる
+		 * @param bitrate 変更後の目標ビットレート[bps]
+		 * @param throughput 直近のmuxerの書き込みスループット[bps]
+		 */
+		public void onBitrateChanged(final int bitrate, final long throughput);
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final MediaEncoder mEncoder;
+	@NonNull
+	private final IPressureSource mSource;
+	@NonNull
+	private final BitrateController mController;
+	@Nullable
+	private volatile BitrateListener mListener;
+	@Nullable
+	private HandlerThreadHandler mHandler;
+
+	/**
+	 * コンストラクタ
+	 * VideoConfigのBPP設定, BPP_MIN, BPP_MAXから初期/最小/最大ビットレートを決める
+	 * @param encoder 映像エンコーダー
+	 * @param source
+	 * @param config
+	 * @param width 映像の幅
+	 * @param height 映像の高さ
+	 */
+	public AdaptiveBitrateMonitor(
+		@NonNull final MediaEncoder encoder,
+		@NonNull final IPressureSource source,
+		@NonNull final VideoConfig config,
+		final int width, final int height) {
+
+		this(encoder, source,
+			new BitrateController(
+				config.getMinBitrate(width, height),
+				config.getMaxBitrate(width, height),
+				config.getBitrate(width, height)));
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param encoder 映像エンコーダー
+	 * @param source
+	 * @param controller
+	 */
+	public AdaptiveBitrateMonitor(
+		@NonNull final MediaEncoder encoder,
+		@NonNull final IPressureSource source,
+		@NonNull final BitrateController controller) {
+
+		mEncoder = encoder;
+		mSource = source;
+		mController = controller;
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			release();
+		} finally {
+			super.finalize();
+		}
+	}
+
+	/**
+	 * 監視を終了して関係するリソースを破棄する
+	 */
+	public void release() {
+		stop();
+		mListener = null;
+	}
+
+	/**
+	 * BitrateControllerを取得
+	 * 閾値等を変更するときは#startを呼ぶ前に行うこと
+	 * @return
+	 */
+	@NonNull
+	public BitrateController getController() {
+		return mController;
+	}
+
+	/**
+	 * 目標ビットレートを変更したときのコールバックリスナーをセット
+	 * @param listener
+	 */
+	public void setBitrateListener(@Nullable final BitrateListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * 監視を開始する
+	 * エンコーダーの開始後に呼び出すこと
+	 * @return ビットレートを動的に変更できない(API<19)ときはfalse
+	 */
+	public boolean start() {
+		if (!MediaEncoder.supportsAdaptiveStreaming) {
+			Log.w(TAG, "start:adaptive bitrate is only available on API>=19");
+			return false;
+		}
+		synchronized (mSync) {
+			if (mHandler == null) {
+				if (DEBUG) Log.v(TAG, "start:" + mController);
+				mController.reset(mController.getBitrate());
+				mHandler = HandlerThreadHandler.createHandler(TAG);
+				mHandler.post(mMonitorTask);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 監視を終了する
+	 * エンコーダーのビットレートはそのまま
+	 */
+	public void stop() {
+		synchronized (mSync) {
+			if (mHandler != null) {
+				if (DEBUG) Log.v(TAG, "stop:" + mController);
+				mHandler.removeCallbacks(mMonitorTask);
+				mHandler.quit();
+				mHandler = null;
+			}
+		}
+	}
+
+	/**
+	 * 監視中かどうか
+	 * @return
+	 */
+	public boolean isRunning() {
+		synchronized (mSync) {
+			return mHandler != null;
+		}
+	}
+
+	/**
+	 * 定期的に混雑状況を確認してエンコーダーのビットレートを変更するためのRunnable
+	 */
+	private final Runnable mMonitorTask = new Runnable() {
+		@Override
+		public void run() {
+			final boolean changed = mController.update(SystemClock.elapsedRealtime(),
+				mSource.getQueueDepth(), mSource.getQueueCapacity(),
+				mSource.getWrittenBytes(), mSource.getDroppedFrames());
+			if (changed) {
+				final int bitrate = mController.getBitrate();
+				if (DEBUG) Log.v(TAG, "run:" + mController);
+				try {
+					mEncoder.adjustBitrate(bitrate);
+				} catch (final Exception e) {
+					// エンコーダーが既に停止しているときなど
+					Log.w(TAG, e);
+				}
+				final BitrateListener listener = mListener;
+				if (listener != null) {
+					try {
+						listener.onBitrateChanged(bitrate, mController.getThroughput());
+					} catch (final Exception e) {
+						Log.w(TAG, e);
+					}
+				}
+			}
+			synchronized (mSync) {
+				if (mHandler != null) {
+					mHandler.postDelayed(this, mController.getIntervals());
+				}
+			}
+		}
+	};
+}
@@ -0,0 +1,451 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.AudioFormat;
+import android.util.Log;
+
+import com.serenegiant.utils.SeqLock;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * IAudioSamplerのコールバックとして音声データを解析して
+ * 音量(RMS)、ピーク値、クリッピング数、窓関数付きFFTによるスペクトルを計算するためのクラス
+ * SoundCheckと違って音声データをコピーせずにコールバックスレッド上で直接ByteBufferから読み込んで計算する
+ * (別スレッドの起床待ちなし, 解析中のメモリー割り当てなし)
+ * ENCODING_PCM_8BIT, ENCODING_PCM_16BIT, ENCODING_PCM_FLOATに対応
+ * 解析結果はシーケンスロックで公開するので任意のスレッドからロックなしで#getSnapshotで取得できる
+ */
+public class AudioAnalyzer implements IAudioSampler.SoundSamplerCallback {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = AudioAnalyzer.class.getSimpleName();
+
+	/**
+	 * FFTの最小サイズ
+	 */
+	public static final int MIN_FFT_SIZE = 16;
+	/**
+	 * FFTの最大サイズ
+	 */
+	public static final int MAX_FFT_SIZE = 8192;
+
+	private static final int IX_RMS = 0;
+	private static final int IX_PEAK = 1;
+	private static final int IX_CLIPPED = 2;
+	private static final int IX_PTS = 0;
+	private static final int IX_SEQUENCE = 1;
+	private static final int IX_TOTAL_CLIPPED = 2;
+
+	/**
+	 * 解析結果保持用のホルダークラス
+	 * 使い回すことで#getSnapshot呼び出し時もメモリー割り当てなしにできる
+	 */
+	public static class Snapshot {
+		/** 解析した音声データのpresentationTimeUs */
+		public long presentationTimeUs;
+		/** 解析した音声データの数 */
+		public long sequence;
+		/** 音量(RMS), フルスケールを1とした値 */
+		public float rms;
+		/** ピーク値(絶対値の最大値), フルスケールを1とした値 */
+		public float peak;
+		/** 解析した音声データ内でクリッピングしていたサンプル数 */
+		public int clipped;
+		/** リセット後に解析した音声データでクリッピングしていたサンプル数の合計 */
+		public long totalClipped;
+		/**
+		 * 振幅スペクトル, フルスケールの正弦波が1になるように正規化した値
+		 * FFTが無効な場合は長さ0
+		 */
+		@NonNull
+		public final float[] spectrum;
+
+		/**
+		 * コンストラクタ
+		 * @param fftSize 対応するAudioAnalyzerのFFTサイズ以上にすること, FFTが無効なら0
+		 */
+		public Snapshot(final int fftSize) {
+			spectrum = new float[fftSize / 2];
+		}
+
+		/**
+		 * 音量をdBFSで取得
+		 * @return
+		 */
+		public float rmsDb() {
+			return toDb(rms);
+		}
+
+		/**
+		 * ピーク値をdBFSで取得
+		 * @return
+		 */
+		public float peakDb() {
+			return toDb(peak);
+		}
+
+		/**
+		 * SoundCheck#onCheckと同じ尺度の音量を取得
+		 * @return
+		 */
+		public int amplitude() {
+			final double amp = Math.max(rms * 32768.0, 1.0);
+			return (int)(Math.log10(amp) * 30) - 30;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+				"Snapshot{pts=%d,sequence=%d,rms=%.2fdB,peak=%.2fdB,clipped=%d,totalClipped=%d}",
+				presentationTimeUs, sequence, rmsDb(), peakDb(), clipped, totalClipped);
+		}
+
+		private static float toDb(final float v) {
+			return v > 0 ? (float)(20.0 * Math.log10(v)) : Float.NEGATIVE_INFINITY;
+		}
+	}
+
+	private final int mChannels;
+	private final int mSamplingFrequency;
+	@AudioRecordCompat.AudioFormats
+	private final int mAudioFormat;
+	private final int mFrameBytes;
+	/**
+	 * クリッピングとみなす値(フルスケールを1とした絶対値)
+	 */
+	private final float mClipLevel;
+	private final int mDecimation;
+	private final int mFftSize;
+	// FFT用の作業配列
+	@Nullable
+	private final float[] mWindow;
+	@Nullable
+	private final float[] mCos;
+	@Nullable
+	private final float[] mSin;
+	@Nullable
+	private final int[] mBitReverse;
+	@Nullable
+	private final float[] mRe;
+	@Nullable
+	private final float[] mIm;
+	/**
+	 * 窓関数の合計値の逆数*2, 振幅スペクトルの正規化用
+	 */
+	private final float mSpectrumScale;
+	// 公開用の解析結果, シーケンスロックで保護する
+	@NonNull
+	private final SeqLock mSeqLock = new SeqLock();
+	@NonNull
+	private final AtomicIntegerArray mLevels = new AtomicIntegerArray(3);
+	@NonNull
+	private final AtomicLongArray mCounts = new AtomicLongArray(3);
+	@NonNull
+	private final AtomicIntegerArray mSpectrum;
+	// 以下はコールバックスレッドのみがアクセスする
+	private int mSkipCount;
+	private long mSequence;
+	private long mTotalClipped;
+
+	/**
+	 * コンストラクタ
+	 * 指定したIAudioSamplerがコールバックへ渡す音声データの設定を使う
+	 * IAudioSampler#addCallbackでコールバックとして登録すること
+	 * @param sampler
+	 * @param fftSize FFTのサイズ, 2のべき乗, 0ならFFTを行わない
+	 * @param decimation 何個の音声データ毎に解析するか, 1なら全ての音声データを解析する
+	 * @throws IllegalArgumentException
+	 */
+	public AudioAnalyzer(@NonNull final IAudioSampler sampler,
+		final int fftSize, final int decimation) throws IllegalArgumentException {
+
+		this(sampler.getOutputChannels(), sampler.getOutputSamplingFrequency(),
+			sampler.getOutputAudioFormat(), fftSize, decimation);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param channels チャネル数
+	 * @param samplingFrequency サンプリング周波数
+	 * @param audioFormat ENCODING_PCM_8BIT, ENCODING_PCM_16BIT, ENCODING_PCM_FLOAT
+	 * @param fftSize FFTのサイズ, 2のべき乗, 0ならFFTを行わない
+	 * @param decimation 何個の音声データ毎に解析するか, 1なら全ての音声データを解析する
+	 * @throws IllegalArgumentException
+	 */
+	public AudioAnalyzer(final int channels, final int samplingFrequency,
+		@AudioRecordCompat.AudioFormats final int audioFormat,
+		final int fftSize, final int decimation) throws IllegalArgumentException {
+
+		if ((channels <= 0) || (samplingFrequency <= 0)) {
+			throw new IllegalArgumentException("invalid channels or sampling frequency");
+		}
+		if ((fftSize != 0)
+			&& ((fftSize < MIN_FFT_SIZE) || (fftSize > MAX_FFT_SIZE)
+				|| (Integer.bitCount(fftSize) != 1))) {
+			throw new IllegalArgumentException("fftSize should be 0 or power of 2 in ["
+				+ MIN_FFT_SIZE + "," + MAX_FFT_SIZE + "]," + fftSize);
+		}
+		mChannels = channels;
+		mSamplingFrequency = samplingFrequency;
+		mAudioFormat = audioFormat;
+		switch (audioFormat) {
+		case AudioFormat.ENCODING_PCM_8BIT:
+			mFrameBytes = channels;
+			mClipLevel = 127 / 128.0f;
+			break;
+		case AudioFormat.ENCODING_PCM_16BIT:
+			mFrameBytes = channels * 2;
+			mClipLevel = 32767 / 32768.0f;
+			break;
+		case AudioFormat.ENCODING_PCM_FLOAT:
+			mFrameBytes = channels * 4;
+			mClipLevel = 1.0f;
+			break;
+		default:
+			throw new IllegalArgumentException("unsupported audio format," + audioFormat);
+		}
+		mDecimation = Math.max(decimation, 1);
+		mFftSize = fftSize;
+		mSpectrum = new AtomicIntegerArray(fftSize / 2);
+		if (fftSize > 0) {
+			mWindow = new float[fftSize];
+			mCos = new float[fftSize / 2];
+			mSin = new float[fftSize / 2];
+			mBitReverse = new int[fftSize];
+			mRe = new float[fftSize];
+			mIm = new float[fftSize];
+			double sum = 0;
+			for (int i = 0; i < fftSize; i++) {
+				// Hann窓
+				final double w = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / fftSize);
+				mWindow[i] = (float)w;
+				sum += w;
+			}
+			mSpectrumScale = (float)(2.0 / sum);
+			for (int i = 0; i < fftSize / 2; i++) {
+				mCos[i] = (float)Math.cos(2 * Math.PI * i / fftSize);
+				mSin[i] = (float)-Math.sin(2 * Math.PI * i / fftSize);
+			}
+			final int bits = Integer.numberOfTrailingZeros(fftSize);
+			for (int i = 0; i < fftSize; i++) {
+				mBitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+			}
+		} else {
+			mWindow = mCos = mSin = mRe = mIm = null;
+			mBitReverse = null;
+			mSpectrumScale = 0;
+		}
+	}
+
+	/**
+	 * FFTのサイズを取得
+	 * @return FFTを行わない場合は0
+	 */
+	public int getFftSize() {
+		return mFftSize;
+	}
+
+	/**
+	 * 指定したスペクトルのインデックスに対応する周波数[Hz]を取得
+	 * @param bin
+	 * @return
+	 */
+	public float getFrequency(final int bin) {
+		return mFftSize > 0 ? bin * mSamplingFrequency / (float)mFftSize : 0.0f;
+	}
+
+	/**
+	 * 解析結果とカウンタをリセットする
+	 * コールバックと同じスレッドまたはコールバックが呼ばれていないときに呼び出すこと
+	 */
+	public void reset() {
+		mSeqLock.beginWrite();
+		mSkipCount = 0;
+		mSequence = mTotalClipped = 0;
+		for (int i = 0; i < 3; i++) {
+			mLevels.lazySet(i, 0);
+			mCounts.lazySet(i, 0);
+		}
+		for (int i = 0; i < mSpectrum.length(); i++) {
+			mSpectrum.lazySet(i, 0);
+		}
+		mSeqLock.endWrite();
+	}
+
+	/**
+	 * 最新の解析結果の一貫したスナップショットを取得
+	 * ロックせずに読み込むのでコールバックスレッドをブロックしない
+	 * @param out 値を受け取るSnapshot, nullなら新規に生成する
+	 * @return
+	 * @throws IllegalArgumentException outのスペクトル配列が足りないとき
+	 */
+	@NonNull
+	public Snapshot getSnapshot(@Nullable final Snapshot out) throws IllegalArgumentException {
+		final Snapshot result = out != null ? out : new Snapshot(mFftSize);
+		final int n = mSpectrum.length();
+		if (result.spectrum.length < n) {
+			throw new IllegalArgumentException("spectrum array of snapshot is too small");
+		}
+		int seq;
+		do {
+			seq = mSeqLock.beginRead();
+			result.rms = Float.intBitsToFloat(mLevels.get(IX_RMS));
+			result.peak = Float.intBitsToFloat(mLevels.get(IX_PEAK));
+			result.clipped = mLevels.get(IX_CLIPPED);
+			result.presentationTimeUs = mCounts.get(IX_PTS);
+			result.sequence = mCounts.get(IX_SEQUENCE);
+			result.totalClipped = mCounts.get(IX_TOTAL_CLIPPED);
+			for (int i = 0; i < n; i++) {
+				result.spectrum[i] = Float.intBitsToFloat(mSpectrum.get(i));
+			}
+		} while (mSeqLock.retry(seq));
+		return result;
+	}
+
+	@Override
+	public void onData(@NonNull final ByteBuffer buffer, final long presentationTimeUs) {
+		if (++mSkipCount < mDecimation) return;
+		mSkipCount = 0;
+		final int frames = buffer.remaining() / mFrameBytes;
+		if (frames <= 0) return;
+		final int start = buffer.position();
+		final int samples = frames * mChannels;
+		// 音量・ピーク値・クリッピング数
+		double sum = 0;
+		float peak = 0;
+		int clipped = 0;
+		for (int i = 0; i < samples; i++) {
+			final float v = sample(buffer, start, i);
+			final float abs = Math.abs(v);
+			sum += v * v;
+			if (abs > peak) {
+				peak = abs;
+			}
+			if (abs >= mClipLevel) {
+				clipped++;
+			}
+		}
+		final float rms = (float)Math.sqrt(sum / samples);
+		if (mFftSize > 0) {
+			fft(buffer, start, frames);
+		}
+		mSequence++;
+		mTotalClipped += clipped;
+		// 解析結果を公開
+		mSeqLock.beginWrite();
+		mLevels.lazySet(IX_RMS, Float.floatToRawIntBits(rms));
+		mLevels.lazySet(IX_PEAK, Float.floatToRawIntBits(peak));
+		mLevels.lazySet(IX_CLIPPED, clipped);
+		mCounts.lazySet(IX_PTS, presentationTimeUs);
+		mCounts.lazySet(IX_SEQUENCE, mSequence);
+		mCounts.lazySet(IX_TOTAL_CLIPPED, mTotalClipped);
+		if (mFftSize > 0) {
+			final float[] re = mRe, im = mIm;
+			final int n = mFftSize / 2;
+			for (int i = 0; i < n; i++) {
+				final float mag = (float)Math.sqrt(re[i] * re[i] + im[i] * im[i]) * mSpectrumScale;
+				mSpectrum.lazySet(i, Float.floatToRawIntBits(mag));
+			}
+		}
+		mSeqLock.endWrite();
+	}
+
+	@Override
+	public void onError(@NonNull final Throwable t) {
+		if (DEBUG) Log.w(TAG, t);
+	}
+
+	/**
+	 * 指定したサンプルをフルスケールを1としたfloatとして読み込む
+	 * ByteBufferの絶対位置指定で読み込むのでpositionは変化しない
+	 * @param buffer
+	 * @param start
+	 * @param ix
+	 * @return
+	 */
+	private float sample(@NonNull final ByteBuffer buffer, final int start, final int ix) {
+		switch (mAudioFormat) {
+		case AudioFormat.ENCODING_PCM_8BIT:
+			return ((buffer.get(start + ix) & 0xff) - 128) / 128.0f;
+		case AudioFormat.ENCODING_PCM_FLOAT:
+			return buffer.getFloat(start + ix * 4);
+		case AudioFormat.ENCODING_PCM_16BIT:
+		default:
+			return buffer.getShort(start + ix * 2) / 32768.0f;
+		}
+	}
+
+	/**
+	 * 音声データの末尾(最新)のFFTサイズ分のサンプルをモノラルへミックスして
+	 * 窓関数をかけてからFFTする, 足りない分は0で埋める
+	 * 結果はmRe/mImへ入る
+	 * @param buffer
+	 * @param start
+	 * @param frames
+	 */
+	private void fft(@NonNull final ByteBuffer buffer, final int start, final int frames) {
+		final int n = mFftSize;
+		final float[] re = mRe, im = mIm;
+		final int count = Math.min(frames, n);
+		final int first = frames - count;
+		final float scale = 1.0f / mChannels;
+		for (int i = 0; i < n; i++) {
+			float v = 0;
+			if (i < count) {
+				final int base = (first + i) * mChannels;
+				for (int c = 0; c < mChannels; c++) {
+					v += sample(buffer, start, base + c);
+				}
+				v *= scale;
+			}
+			// ビット反転した位置へ書き込む
+			final int j = mBitReverse[i];
+			re[j] = v * mWindow[i];
+			im[j] = 0;
+		}
+		// 基数2の時間間引きFFT
+		for (int size = 2; size <= n; size <<= 1) {
+			final int half = size >> 1;
+			final int step = n / size;
+			for (int i = 0; i < n; i += size) {
+				for (int k = 0; k < half; k++) {
+					final float wr = mCos[k * step];
+					final float wi = mSin[k * step];
+					final int a = i + k;
+					final int b = a + half;
+					final float tr = re[b] * wr - im[b] * wi;
+					final float ti = re[b] * wi + im[b] * wr;
+					re[b] = re[a] - tr;
+					im[b] = im[a] - ti;
+					re[a] += tr;
+					im[a] += ti;
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,424 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.AudioFormat;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+import androidx.annotation.NonNull;
+
+/**
+ * PCM音声データのサンプリング周波数変換(ポリフェーズフィルタ)、
+ * チャネル数変換(アップミックス/ダウンミックス)、サンプル形式変換(8ビット/16ビット/float)を行うIAudioProcessor実装
+ * 作業用配列はコンストラクタで確保するので#process呼び出し時にはメモリー割り当てをしない
+ * Android固有のAPIを使っていないのでJVM上でもテスト可能
+ * 排他制御をしていないので1つのスレッドからのみ呼び出すこと
+ */
+public class AudioConverter implements IAudioProcessor {
+	/**
+	 * フェーズ1つあたりのフィルタ係数の数(アップサンプリング時)
+	 */
+	private static final int TAPS_PER_PHASE = 16;
+	/**
+	 * フェーズ1つあたりのフィルタ係数の最大数
+	 */
+	private static final int MAX_TAPS = 64;
+	/**
+	 * フィルタ係数テーブルのフェーズ数の最大値
+	 * 変換比の分子がこれより大きい場合はフェーズを量子化する
+	 */
+	private static final int MAX_PHASES = 256;
+	/**
+	 * 入力した音声データのpresentationTimeUsが推定値とこれ以上ずれた場合は
+	 * 不連続とみなして内部状態をリセットする
+	 */
+	private static final long DISCONTINUITY_US = 100000L;
+
+	private final int mInSamplingFrequency;
+	private final int mInChannels;
+	@AudioRecordCompat.AudioFormats
+	private final int mInAudioFormat;
+	private final int mInFrameBytes;
+	private final int mOutSamplingFrequency;
+	private final int mOutChannels;
+	@AudioRecordCompat.AudioFormats
+	private final int mOutAudioFormat;
+	private final int mOutFrameBytes;
+	/**
+	 * 1回の変換処理で扱う最大入力フレーム数
+	 */
+	private final int mMaxFrames;
+	/**
+	 * サンプリング周波数変換が必要かどうか
+	 */
+	private final boolean mResample;
+	/**
+	 * 変換比(出力/入力)の分子と分母
+	 */
+	private final int mL, mM;
+	private final int mPhases;
+	private final int mTaps;
+	/**
+	 * フィルタ係数テーブル, [フェーズ * mTaps + タップ]
+	 */
+	@NonNull
+	private final float[] mCoefs;
+	/**
+	 * チャネル変換後の入力サンプル, [チャネル][フレーム]
+	 * 先頭mTaps-1フレームは前回までの入力の履歴
+	 */
+	@NonNull
+	private final float[][] mWork;
+	@NonNull
+	private final float[] mInFrame;
+	@NonNull
+	private final float[] mOutFrame;
+	private int mWorkFrames;
+	/**
+	 * 次の出力サンプルの位置, mWork先頭からの入力フレーム数*mL
+	 */
+	private long mAcc;
+	private long mAnchorPtsUs = -1;
+	private long mInFrames;
+	private long mOutFrames;
+	private long mOutputPtsUs = -1;
+
+	/**
+	 * コンストラクタ
+	 * @param inSamplingFrequency 入力サンプリング周波数
+	 * @param inChannels 入力チャネル数
+	 * @param inAudioFormat 入力のエンコード, ENCODING_PCM_8BIT, ENCODING_PCM_16BIT, ENCODING_PCM_FLOAT
+	 * @param outSamplingFrequency 出力サンプリング周波数
+	 * @param outChannels 出力チャネル数
+	 * @param outAudioFormat 出力のエンコード, ENCODING_PCM_8BIT, ENCODING_PCM_16BIT, ENCODING_PCM_FLOAT
+	 * @param maxInputBytes 1回の変換処理で扱う最大入力バイト数, これより大きい入力は分割して処理する
+	 * @throws IllegalArgumentException
+	 */
+	public AudioConverter(
+		final int inSamplingFrequency, final int inChannels,
+		@AudioRecordCompat.AudioFormats final int inAudioFormat,
+		final int outSamplingFrequency, final int outChannels,
+		@AudioRecordCompat.AudioFormats final int outAudioFormat,
+		final int maxInputBytes) throws IllegalArgumentException {
+
+		if ((inSamplingFrequency <= 0) || (outSamplingFrequency <= 0)
+			|| (inChannels <= 0) || (outChannels <= 0)) {
+			throw new IllegalArgumentException("invalid sampling frequency or channels");
+		}
+		mInSamplingFrequency = inSamplingFrequency;
+		mInChannels = inChannels;
+		mInAudioFormat = inAudioFormat;
+		mInFrameBytes = bytesPerSample(inAudioFormat) * inChannels;
+		mOutSamplingFrequency = outSamplingFrequency;
+		mOutChannels = outChannels;
+		mOutAudioFormat = outAudioFormat;
+		mOutFrameBytes = bytesPerSample(outAudioFormat) * outChannels;
+		mMaxFrames = Math.max(maxInputBytes / mInFrameBytes, 1);
+		mResample = inSamplingFrequency != outSamplingFrequency;
+		final int gcd = gcd(inSamplingFrequency, outSamplingFrequency);
+		mL = outSamplingFrequency / gcd;
+		mM = inSamplingFrequency / gcd;
+		if (mResample) {
+			// ダウンサンプリング時はカットオフ周波数が下がるのでその分タップ数を増やす
+			final int ratio = (inSamplingFrequency + outSamplingFrequency - 1) / outSamplingFrequency;
+			mTaps = Math.min(TAPS_PER_PHASE * ratio, MAX_TAPS);
+			mPhases = Math.min(mL, MAX_PHASES);
+			mCoefs = createCoefs(mPhases, mTaps,
+				0.45 * Math.min(outSamplingFrequency, inSamplingFrequency) / inSamplingFrequency);
+		} else {
+			mTaps = 0;
+			mPhases = 0;
+			mCoefs = new float[0];
+		}
+		mWork = new float[outChannels][mResample ? mTaps - 1 + mMaxFrames : 0];
+		mInFrame = new float[inChannels];
+		mOutFrame = new float[outChannels];
+		reset();
+	}
+
+	@Override
+	public int getSamplingFrequency() {
+		return mOutSamplingFrequency;
+	}
+
+	@Override
+	public int getChannels() {
+		return mOutChannels;
+	}
+
+	@AudioRecordCompat.AudioFormats
+	@Override
+	public int getAudioFormat() {
+		return mOutAudioFormat;
+	}
+
+	@Override
+	public int getMaxOutputBytes(final int inputBytes) {
+		final long frames = inputBytes / mInFrameBytes;
+		if (mResample) {
+			// 履歴として保持している未出力のサンプル分も加える
+			return (int)(((frames + mTaps) * mL + mM - 1) / mM + 1) * mOutFrameBytes;
+		} else {
+			return (int)frames * mOutFrameBytes;
+		}
+	}
+
+	@Override
+	public int process(@NonNull final ByteBuffer in, final long presentationTimeUs,
+		@NonNull final ByteBuffer out) throws IllegalArgumentException {
+
+		final int frames = in.remaining() / mInFrameBytes;
+		if (out.remaining() < getMaxOutputBytes(frames * mInFrameBytes)) {
+			throw new IllegalArgumentException("output buffer is too small");
+		}
+		if (mAnchorPtsUs >= 0) {
+			final long expected = mAnchorPtsUs
+				+ mInFrames * 1000000L / mInSamplingFrequency;
+			if (Math.abs(presentationTimeUs - expected) > DISCONTINUITY_US) {
+				// 音声データが途切れたかタイムスタンプが飛んだ
+				reset();
+			}
+		}
+		if (mAnchorPtsUs < 0) {
+			mAnchorPtsUs = presentationTimeUs;
+		}
+		mOutputPtsUs = mAnchorPtsUs + mOutFrames * 1000000L / mOutSamplingFrequency;
+		final int start = out.position();
+		int pos = in.position();
+		int remain = frames;
+		while (remain > 0) {
+			final int n = Math.min(remain, mMaxFrames);
+			for (int i = 0; i < n; i++) {
+				readFrame(in, pos);
+				pos += mInFrameBytes;
+				mix();
+				if (mResample) {
+					final int ix = mWorkFrames + i;
+					for (int c = 0; c < mOutChannels; c++) {
+						mWork[c][ix] = mOutFrame[c];
+					}
+				} else {
+					writeFrame(out);
+					mOutFrames++;
+				}
+			}
+			if (mResample) {
+				mWorkFrames += n;
+				resample(out);
+			}
+			remain -= n;
+		}
+		in.position(pos);
+		mInFrames += frames;
+		return out.position() - start;
+	}
+
+	@Override
+	public long getOutputPresentationTimeUs() {
+		return mOutputPtsUs;
+	}
+
+	@Override
+	public void reset() {
+		// 履歴は無音で初期化して最初の出力サンプルが最初の入力サンプルと同じ時刻になるようにする
+		mWorkFrames = mResample ? mTaps - 1 : 0;
+		for (final float[] work: mWork) {
+			for (int i = 0; i < mWorkFrames; i++) {
+				work[i] = 0.0f;
+			}
+		}
+		mAcc = (long)(mTaps / 2) * mL;
+		mAnchorPtsUs = -1;
+		mInFrames = mOutFrames = 0;
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "AudioConverter{%dHz,%dch,%d->%dHz,%dch,%d,taps=%d,phases=%d}",
+			mInSamplingFrequency, mInChannels, mInAudioFormat,
+			mOutSamplingFrequency, mOutChannels, mOutAudioFormat, mTaps, mPhases);
+	}
+
+	/**
+	 * mWorkに蓄積したサンプルからポリフェーズフィルタで出力サンプルを生成する
+	 * @param out
+	 */
+	private void resample(@NonNull final ByteBuffer out) {
+		for (long base = mAcc / mL; base + mTaps <= mWorkFrames; base = mAcc / mL) {
+			final int phase = (int)((mAcc % mL) * mPhases / mL);
+			final int offset = phase * mTaps;
+			for (int c = 0; c < mOutChannels; c++) {
+				final float[] work = mWork[c];
+				float sum = 0.0f;
+				for (int k = 0; k < mTaps; k++) {
+					sum += work[(int)base + k] * mCoefs[offset + k];
+				}
+				mOutFrame[c] = sum;
+			}
+			writeFrame(out);
+			mOutFrames++;
+			mAcc += mM;
+		}
+		// 使い終わったサンプルを捨てて履歴を先頭へ詰める
+		final int consumed = (int)Math.min(mAcc / mL, mWorkFrames);
+		if (consumed > 0) {
+			final int remain = mWorkFrames - consumed;
+			for (final float[] work: mWork) {
+				System.arraycopy(work, consumed, work, 0, remain);
+			}
+			mWorkFrames = remain;
+			mAcc -= (long)consumed * mL;
+		}
+	}
+
+	/**
+	 * 入力用バッファの指定位置から1フレーム分のサンプルをmInFrameへ読み込む
+	 * @param in
+	 * @param pos
+	 */
+	private void readFrame(@NonNull final ByteBuffer in, final int pos) {
+		for (int c = 0; c < mInChannels; c++) {
+			switch (mInAudioFormat) {
+			case AudioFormat.ENCODING_PCM_8BIT:
+				mInFrame[c] = ((in.get(pos + c) & 0xff) - 128) / 128.0f;
+				break;
+			case AudioFormat.ENCODING_PCM_FLOAT:
+				mInFrame[c] = in.getFloat(pos + c * 4);
+				break;
+			case AudioFormat.ENCODING_PCM_16BIT:
+			default:
+				mInFrame[c] = in.getShort(pos + c * 2) / 32768.0f;
+				break;
+			}
+		}
+	}
+
+	/**
+	 * mInFrameのチャネル数を変換してmOutFrameへ書き込む
+	 * アップミックス時は入力チャネルを繰り返して割り当て、
+	 * ダウンミックス時は出力チャネルへ割り当てられる入力チャネルを平均する
+	 */
+	private void mix() {
+		if (mInChannels == mOutChannels) {
+			System.arraycopy(mInFrame, 0, mOutFrame, 0, mInChannels);
+		} else if (mInChannels < mOutChannels) {
+			for (int c = 0; c < mOutChannels; c++) {
+				mOutFrame[c] = mInFrame[c % mInChannels];
+			}
+		} else {
+			for (int c = 0; c < mOutChannels; c++) {
+				float sum = 0.0f;
+				int n = 0;
+				for (int j = c; j < mInChannels; j += mOutChannels) {
+					sum += mInFrame[j];
+					n++;
+				}
+				mOutFrame[c] = sum / n;
+			}
+		}
+	}
+
+	/**
+	 * mOutFrameを出力用バッファへ書き込む
+	 * @param out
+	 */
+	private void writeFrame(@NonNull final ByteBuffer out) {
+		for (int c = 0; c < mOutChannels; c++) {
+			final float v = mOutFrame[c];
+			switch (mOutAudioFormat) {
+			case AudioFormat.ENCODING_PCM_8BIT:
+				out.put((byte)(clamp(Math.round(v * 128.0f), -128, 127) + 128));
+				break;
+			case AudioFormat.ENCODING_PCM_FLOAT:
+				out.putFloat(v);
+				break;
+			case AudioFormat.ENCODING_PCM_16BIT:
+			default:
+				out.putShort((short)clamp(Math.round(v * 32768.0f), -32768, 32767));
+				break;
+			}
+		}
+	}
+
+	private static int clamp(final int v, final int min, final int max) {
+		return v < min ? min : (v > max ? max : v);
+	}
+
+	/**
+	 * 対応しているエンコードの1サンプルあたりのバイト数を取得
+	 * @param format
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	private static int bytesPerSample(@AudioRecordCompat.AudioFormats final int format)
+		throws IllegalArgumentException {
+
+		switch (format) {
+		case AudioFormat.ENCODING_PCM_8BIT:
+			return 1;
+		case AudioFormat.ENCODING_PCM_16BIT:
+			return 2;
+		case AudioFormat.ENCODING_PCM_FLOAT:
+			return 4;
+		default:
+			throw new IllegalArgumentException("unsupported audio format," + format);
+		}
+	}
+
+	private static int gcd(final int a, final int b) {
+		return b == 0 ? a : gcd(b, a % b);
+	}
+
+	/**
+	 * Blackman窓をかけたsinc関数でポリフェーズフィルタの係数テーブルを生成する
+	 * 各フェーズの係数の合計は1に正規化する(直流成分のゲインを1にする)
+	 * @param phases
+	 * @param taps
+	 * @param cutoff カットオフ周波数, 入力サンプリング周波数に対する比
+	 * @return
+	 */
+	@NonNull
+	private static float[] createCoefs(final int phases, final int taps, final double cutoff) {
+		final float[] result = new float[phases * taps];
+		final int half = taps / 2;
+		for (int p = 0; p < phases; p++) {
+			final double frac = p / (double)phases;
+			double sum = 0;
+			for (int k = 0; k < taps; k++) {
+				// 出力サンプル位置からの距離[入力サンプル]
+				final double d = k - (half - 1) - frac;
+				final double x = 2 * cutoff * d;
+				final double sinc = Math.abs(x) < 1e-9 ? 1.0 : Math.sin(Math.PI * x) / (Math.PI * x);
+				final double w = Math.abs(d) < half
+					? 0.42 + 0.5 * Math.cos(Math.PI * d / half) + 0.08 * Math.cos(2 * Math.PI * d / half)
+					: 0.0;
+				final double v = sinc * w;
+				result[p * taps + k] = (float)v;
+				sum += v;
+			}
+			for (int k = 0; k < taps; k++) {
+				result[p * taps + k] /= sum;
+			}
+		}
+		return result;
+	}
+}
@@ -38,8 +38,9 @@ import androidx.annotation.Nullable;
 
 /**
  * 音声デコード用のMediaCodecラッパー
+ * AudioTrackの再生位置をIMediaClockとして提供するので映像の表示タイミングの基準に使える
  */
-public abstract class AudioDecoder extends AbstractDecoder {
+public abstract class AudioDecoder extends AbstractDecoder implements IMediaClock {
 	private static final boolean DEBUG = false;	// set false on production
 	private static final String TAG = AudioDecoder.class.getSimpleName();
 
@@ -63,6 +64,32 @@ public abstract class AudioDecoder extends AbstractDecoder {
 	@Nullable
 	protected AudioTrack mAudioTrack;
 	protected int mAudioInputBufSize;
+	private int mSampleRate;
+	private int mFrameBytes;
+	@NonNull
+	private final Object mClockSync = new Object();
+	/**
+	 * 再生位置の基準にするプレゼンテーションタイム[マイクロ秒], 負なら未設定
+	 */
+	private long mClockBasePtsUs = -1L;
+	/**
+	 * mClockBasePtsUsのデータを書き込んだ時点でAudioTrackへ書き込み済みだったフレーム数
+	 */
+	private long mClockBaseFrames;
+	/**
+	 * ループ再生で先頭へ戻る直前の再生位置の基準にしていたプレゼンテーションタイム[マイクロ秒], 負なら未設定
+	 * AudioTrackが先頭へ戻る前のデータを再生し終わるまではこちらを基準にする
+	 */
+	private long mPrevClockBasePtsUs = -1L;
+	private long mPrevClockBaseFrames;
+	/**
+	 * 最後にAudioTrackへ書き込んだデータのプレゼンテーションタイム[マイクロ秒], 負なら未設定
+	 */
+	private long mLastClockPtsUs = -1L;
+	/**
+	 * AudioTrackへ書き込んだフレーム数
+	 */
+	private long mWrittenFrames;
 
 	/**
 	 * コンストラクタ
@@ -85,6 +112,8 @@ public abstract class AudioDecoder extends AbstractDecoder {
 		mAudioInputBufSize =  min_buf_size > 0 ? min_buf_size * 4 : max_input_size;
 		if (mAudioInputBufSize > max_input_size) mAudioInputBufSize = max_input_size;
 		final int frameSizeInBytes = audioChannels * 2;
+		mSampleRate = audioSampleRate;
+		mFrameBytes = frameSizeInBytes;
 		mAudioInputBufSize = (mAudioInputBufSize / frameSizeInBytes) * frameSizeInBytes;
 		if (DEBUG) Log.v(TAG, String.format("getMinBufferSize=%d,max_input_size=%d,mAudioInputBufSize=%d",
 			min_buf_size, max_input_size, mAudioInputBufSize));
@@ -121,6 +150,86 @@ public abstract class AudioDecoder extends AbstractDecoder {
 		return codec;
 	}
 
+	/**
+	 * IMediaClockの実装
+	 * AudioTrackの再生ヘッド位置から現在再生中のデータのプレゼンテーションタイムを計算する
+	 * @return [マイクロ秒], 再生前/AudioTrackが無いときは-1
+	 */
+	@Override
+	public long getCurrentPositionUs() {
+		final AudioTrack track = mAudioTrack;
+		if ((track == null) || (mSampleRate <= 0)) {
+			return -1L;
+		}
+		final long head = track.getPlaybackHeadPosition() & 0xffffffffL;
+		synchronized (mClockSync) {
+			if ((mPrevClockBasePtsUs >= 0) && (head < mClockBaseFrames)) {
+				// ループ再生で先頭へ戻る前のデータを再生中
+				final long played = Math.max(head - mPrevClockBaseFrames, 0);
+				return mPrevClockBasePtsUs + played * 1000000L / mSampleRate;
+			}
+			mPrevClockBasePtsUs = -1L;
+			if (mClockBasePtsUs < 0) {
+				return -1L;
+			}
+			final long played = Math.max(head - mClockBaseFrames, 0);
+			return mClockBasePtsUs + played * 1000000L / mSampleRate;
+		}
+	}
+
+	/**
+	 * AudioTrackへ書き込む直前に呼び出して再生位置の基準を更新する
+	 * ループ再生でプレゼンテーションタイムが巻き戻ったときはそのデータで再生位置の基準を決め直す
+	 * @param presentationTimeUs
+	 * @param bytes
+	 */
+	protected void updateClock(final long presentationTimeUs, final int bytes) {
+		synchronized (mClockSync) {
+			if ((mClockBasePtsUs >= 0) && (presentationTimeUs < mLastClockPtsUs)) {
+				if (DEBUG) Log.v(TAG, "updateClock:rewind," + mLastClockPtsUs + "=>" + presentationTimeUs);
+				mPrevClockBasePtsUs = mClockBasePtsUs;
+				mPrevClockBaseFrames = mClockBaseFrames;
+				mClockBasePtsUs = -1L;
+			}
+			if (mClockBasePtsUs < 0) {
+				mClockBasePtsUs = presentationTimeUs;
+				mClockBaseFrames = mWrittenFrames;
+			}
+			mLastClockPtsUs = presentationTimeUs;
+			if (mFrameBytes > 0) {
+				mWrittenFrames += bytes / mFrameBytes;
+			}
+		}
+	}
+
+	@Override
+	protected void onFlush() {
+		super.onFlush();
+		// AudioTrackに残っているシーク前のデータも破棄する, flushすると再生ヘッド位置は0に戻る
+		if (mAudioTrack != null) {
+			try {
+				mAudioTrack.pause();
+				mAudioTrack.flush();
+				mAudioTrack.play();
+			} catch (final IllegalStateException e) {
+				Log.w(TAG, e);
+			}
+		}
+		synchronized (mClockSync) {
+			mWrittenFrames = 0;
+			mPrevClockBasePtsUs = -1L;
+		}
+	}
+
+	@Override
+	protected void onTimeBaseReset() {
+		super.onTimeBaseReset();
+		synchronized (mClockSync) {
+			mClockBasePtsUs = mPrevClockBasePtsUs = -1L;
+			mLastClockPtsUs = -1L;
+		}
+	}
+
 //--------------------------------------------------------------------------------
 	private static class AudioDecoderAPI16 extends AudioDecoder {
 		private static final String TAG = AudioDecoderAPI16.class.getSimpleName();
@@ -166,7 +275,7 @@ public abstract class AudioDecoder extends AbstractDecoder {
 			return new OutputTask(trackIndex) {
 				@Override
 				protected void handleOutput(@NonNull final MediaCodec decoder) {
-					while (isRunning() && !mOutputDone) {
+					while (isRunning() && !mOutputDone && !isFlushRequested()) {
 						final int decoderStatus = decoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
 						if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
 							return;
@@ -183,7 +292,8 @@ public abstract class AudioDecoder extends AbstractDecoder {
 								"unexpected result from audio decoder.dequeueOutputBuffer: " + decoderStatus);
 						} else { // decoderStatus >= 0
 							final int size = mBufferInfo.size;
-							if (size > 0) {
+							// シーク後の目的の位置より前のデータは再生せずに破棄する
+							if ((size > 0) && !isSkipFrame(mBufferInfo.presentationTimeUs)) {
 								final ByteBuffer buffer = mOutputBuffers[decoderStatus];
 								if ((mAudioOutTempBuf == null) || (mAudioOutTempBuf.length < size)) {
 									mAudioOutTempBuf = new byte[size * 3 / 2];    // 1.5倍確保する
@@ -192,6 +302,7 @@ public abstract class AudioDecoder extends AbstractDecoder {
 								buffer.get(mAudioOutTempBuf, 0, size);
 								buffer.clear();
 								if (mAudioTrack != null) {
+									updateClock(mBufferInfo.presentationTimeUs, size);
 									mAudioTrack.write(mAudioOutTempBuf, 0, size);
 								}
 								if (!onFrameAvailable(mBufferInfo.presentationTimeUs)) {
@@ -239,7 +350,7 @@ public abstract class AudioDecoder extends AbstractDecoder {
 			return new OutputTask(trackIndex) {
 				@Override
 				protected void handleOutput(@NonNull final MediaCodec decoder) {
-					while (isRunning() && !mOutputDone) {
+					while (isRunning() && !mOutputDone && !isFlushRequested()) {
 						final int decoderStatus = decoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
 						if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
 							return;
@@ -256,10 +367,12 @@ public abstract class AudioDecoder extends AbstractDecoder {
 								"unexpected result from audio decoder.dequeueOutputBuffer: " + decoderStatus);
 						} else { // decoderStatus >= 0
 							final int size = mBufferInfo.size;
-							if (size > 0) {
+							// シーク後の目的の位置より前のデータは再生せずに破棄する
+							if ((size > 0) && !isSkipFrame(mBufferInfo.presentationTimeUs)) {
 								final ByteBuffer out = decoder.getOutputBuffer(decoderStatus);	// API>=21
 								out.clear();
 								if (mAudioTrack != null) {
+									updateClock(mBufferInfo.presentationTimeUs, size);
 									mAudioTrack.write(out, size, AudioTrack.WRITE_BLOCKING);	// API>=21
 								}
 								if (!onFrameAvailable(mBufferInfo.presentationTimeUs)) {
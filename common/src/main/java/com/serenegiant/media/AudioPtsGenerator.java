@@ -0,0 +1,202 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.system.Time;
+
+import java.util.Locale;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 音声データのpresentationTimeUs生成用ヘルパークラス
+ * 読み込み時の時刻をそのまま使うと読み込みタイミングのジッターがそのままpresentationTimeUsへ乗ってしまうので
+ * 読み込んだサンプル数の累積値から計算したpresentationTimeUsを単調増加時計(Time#nanoTime)へアンカーして、
+ * PLLのように位相(オフセット)と周波数(1サンプルあたりの時間)を少しずつ補正して
+ * オーディオクロックと単調増加時計とのドリフトを吸収する
+ * 補正量を超える大きなずれ(音声データの欠落等)は不連続とみなしてアンカーし直す
+ * 生成するpresentationTimeUsは常に単調増加する
+ * 排他制御をしていないので1つのスレッド(通常は音声データの読み込みスレッド)からのみ呼び出すこと
+ */
+public class AudioPtsGenerator {
+	/**
+	 * 推定値と実測値がこれ以上ずれた場合は不連続とみなしてアンカーし直す
+	 */
+	public static final long DEFAULT_DISCONTINUITY_US = 200000L;
+	/**
+	 * 位相補正のゲイン
+	 */
+	private static final double GAIN_PHASE = 1.0 / 64;
+	/**
+	 * 周波数補正のゲイン
+	 */
+	private static final double GAIN_FREQ = 1.0 / 4096;
+	/**
+	 * 周波数補正の上限[ppm]
+	 */
+	private static final double MAX_DRIFT_PPM = 1000;
+
+	private final int mSamplingFrequency;
+	private final long mDiscontinuityUs;
+	/**
+	 * 1サンプル(1フレーム)あたりの公称時間[マイクロ秒]
+	 */
+	private final double mNominalUsPerFrame;
+	/**
+	 * 補正後の1サンプル(1フレーム)あたりの時間[マイクロ秒]
+	 */
+	private double mUsPerFrame;
+	/**
+	 * 次の音声データの推定presentationTimeUs, 負なら未初期化
+	 */
+	private double mNextPtsUs = -1;
+	private long mPrevPtsUs = -1;
+	private long mFrames;
+	private int mDiscontinuities;
+
+	/**
+	 * コンストラクタ
+	 * @param samplingFrequency サンプリング周波数
+	 */
+	public AudioPtsGenerator(final int samplingFrequency) {
+		this(samplingFrequency, DEFAULT_DISCONTINUITY_US);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param samplingFrequency サンプリング周波数
+	 * @param discontinuityUs 推定値と実測値がこれ以上ずれた場合は不連続とみなしてアンカーし直す
+	 */
+	public AudioPtsGenerator(final int samplingFrequency, final long discontinuityUs) {
+		if (samplingFrequency <= 0) {
+			throw new IllegalArgumentException("samplingFrequency should be positive");
+		}
+		mSamplingFrequency = samplingFrequency;
+		mDiscontinuityUs = discontinuityUs;
+		mNominalUsPerFrame = 1000000.0 / samplingFrequency;
+		mUsPerFrame = mNominalUsPerFrame;
+	}
+
+	/**
+	 * リセットする
+	 * 次の#nextで現在時刻へアンカーし直す
+	 * 単調増加は維持する
+	 */
+	public void reset() {
+		mUsPerFrame = mNominalUsPerFrame;
+		mNextPtsUs = -1;
+		mFrames = 0;
+	}
+
+	/**
+	 * 読み込んだ音声データのpresentationTimeUsを取得
+	 * 音声データを読み込んだ直後に呼び出すこと
+	 * @param frames 読み込んだ音声データのサンプル数(1チャネルあたりのサンプル数)
+	 * @return 音声データの先頭サンプルのpresentationTimeUs
+	 */
+	public long next(final int frames) {
+		return next(frames, Time.nanoTime());
+	}
+
+	/**
+	 * 読み込んだ音声データのpresentationTimeUsを取得
+	 * @param frames 読み込んだ音声データのサンプル数(1チャネルあたりのサンプル数)
+	 * @param nowNs 音声データを読み込んだ時刻[ナノ秒], Time#nanoTimeと同じ時間軸
+	 * @return 音声データの先頭サンプルのpresentationTimeUs
+	 */
+	public long next(final int frames, final long nowNs) {
+		// 読み込み時刻から計算した先頭サンプルの時刻(実測値)
+		final double measured = nowNs / 1000.0 - frames * mNominalUsPerFrame;
+		double pts;
+		if (mNextPtsUs < 0) {
+			pts = measured;
+		} else {
+			pts = mNextPtsUs;
+			final double error = measured - pts;
+			if (Math.abs(error) > mDiscontinuityUs) {
+				// 音声データが欠落したか時刻が飛んだのでアンカーし直す
+				mDiscontinuities++;
+				mUsPerFrame = mNominalUsPerFrame;
+				pts = measured;
+			} else {
+				// 位相補正, 1回の補正量は音声データの長さの1%までに制限する
+				final double maxStep = frames * mNominalUsPerFrame * 0.01;
+				pts += clamp(error * GAIN_PHASE, -maxStep, maxStep);
+				// 周波数補正
+				if (frames > 0) {
+					final double maxDrift = mNominalUsPerFrame * MAX_DRIFT_PPM / 1000000.0;
+					mUsPerFrame = clamp(mUsPerFrame + error * GAIN_FREQ / frames,
+						mNominalUsPerFrame - maxDrift, mNominalUsPerFrame + maxDrift);
+				}
+			}
+		}
+		long result = Math.round(pts);
+		if (result <= mPrevPtsUs) {
+			result = mPrevPtsUs + 1;
+			pts = result;
+		}
+		mPrevPtsUs = result;
+		mNextPtsUs = pts + frames * mUsPerFrame;
+		mFrames += frames;
+		return result;
+	}
+
+	/**
+	 * サンプリング周波数を取得
+	 * @return
+	 */
+	public int getSamplingFrequency() {
+		return mSamplingFrequency;
+	}
+
+	/**
+	 * 推定したオーディオクロックのドリフト量を取得
+	 * @return 単調増加時計に対して速ければ正[ppm]
+	 */
+	public double getDriftPpm() {
+		return (mUsPerFrame / mNominalUsPerFrame - 1.0) * -1000000.0;
+	}
+
+	/**
+	 * リセット後に処理したサンプル数を取得
+	 * @return
+	 */
+	public long getFrames() {
+		return mFrames;
+	}
+
+	/**
+	 * 不連続とみなしてアンカーし直した回数を取得
+	 * @return
+	 */
+	public int getDiscontinuities() {
+		return mDiscontinuities;
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "AudioPtsGenerator{%dHz,frames=%d,drift=%.1fppm,discontinuities=%d}",
+			mSamplingFrequency, mFrames, getDriftPpm(), mDiscontinuities);
+	}
+
+	private static double clamp(final double v, final double min, final double max) {
+		return v < min ? min : (v > max ? max : v);
+	}
+}
@@ -26,7 +26,6 @@ import android.media.MediaRecorder;
 import android.util.Log;
 
 import com.serenegiant.system.BuildCheck;
-import com.serenegiant.system.Time;
 import com.serenegiant.utils.ThreadUtils;
 
 import java.lang.annotation.Retention;
@@ -300,9 +299,10 @@ public class AudioRecordCompat {
 		 */
 		private volatile boolean mIsRunning;
 		/**
-		 * 前回MediaCodecへのエンコード時に使ったpresentationTimeUs
+		 * 読み込んだサンプル数からpresentationTimeUsを生成するためのヘルパー
 		 */
-		private long prevInputPTSUs = -1;
+		@NonNull
+		private final AudioPtsGenerator mPtsGenerator;
 		/**
 		 * 音声セッションID
 		 * onStart - onStop間でのみ有効
@@ -358,6 +358,7 @@ public class AudioRecordCompat {
 			mBufferSize = getAudioBufferSize(
 				channelCount, DEFAULT_AUDIO_FORMAT,
 				samplingRate, samplesPerFrame, framesPerBuffer);
+			mPtsGenerator = new AudioPtsGenerator(samplingRate);
 		}
 
 		public int getAudioSource() {
@@ -454,6 +455,8 @@ RETRY_LOOP:	while (isRunning() && (retry > 0)) {
 							int readBytes;
 							ByteBuffer buffer;
 							audioRecord.startRecording();
+							// AudioRecordを生成し直したときはアンカーし直す
+							mPtsGenerator.reset();
 							try {
 								MediaData data;
 LOOP:							while (isRunning()) {
@@ -495,7 +498,7 @@ LOOP:							while (isRunning()) {
 											// 正常に読み込めた時
 											errCount = 0;
 											numFrames++;
-											data.presentationTimeUs(getInputPTSUs())
+											data.presentationTimeUs(getInputPTSUs(readBytes / getFrameBytes()))
 												.size(readBytes);
 											buffer.position(readBytes);
 											buffer.flip();
@@ -577,7 +580,7 @@ LOOP:							while (isRunning()) {
 						buf.clear();
 						buf.position(mBufferSize);
 						buf.flip();
-						data.set(buf, mBufferSize, getInputPTSUs());
+						data.set(buf, mBufferSize, getInputPTSUs(mBufferSize / getFrameBytes()));
 						ThreadUtils.NoThrowSleep(40);
 					}
 				}
@@ -613,17 +616,21 @@ LOOP:							while (isRunning()) {
 
 		/**
 		 * 今回の書き込み用のpresentationTimeUs値を取得
+		 * 読み込んだ時刻ではなく読み込んだサンプル数の累積値から計算する
+		 * @param frames 読み込んだ音声データのサンプル数(1チャネルあたりのサンプル数)
 		 * @return
 		 */
-	    @SuppressLint("NewApi")
-		protected long getInputPTSUs() {
-			long result = Time.nanoTime() / 1000L;
-			if (result <= prevInputPTSUs) {
-				result = prevInputPTSUs + 9643;
-			}
-			prevInputPTSUs = result;
-			return result;
-	    }
+		protected long getInputPTSUs(final int frames) {
+			return mPtsGenerator.next(frames);
+		}
+
+		/**
+		 * 1サンプルx全チャネル分のバイト数を取得
+		 * @return
+		 */
+		private int getFrameBytes() {
+			return mChannelCount * getBitResolution() / 8;
+		}
 
 		/**
 		 * 音声サンプリング開始
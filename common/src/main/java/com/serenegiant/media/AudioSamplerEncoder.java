@@ -74,8 +74,9 @@ public class AudioSamplerEncoder extends AbstractAudioEncoder {
 		@NonNull final EncoderListener2 listener,
 		@Nullable IAudioSampler sampler) {
 
+		// IAudioProcessorがセットされている場合は変換後の音声データをエンコードする
 		super(recorder, listener, sampler.getAudioSource(),
-			sampler.getChannels(), sampler.getSamplingFrequency(),
+			sampler.getOutputChannels(), sampler.getOutputSamplingFrequency(),
 			DEFAULT_BIT_RATE);
 //		if (DEBUG) Log.v(TAG, "コンストラクタ:");
 		mSampler = sampler;
@@ -161,11 +162,15 @@ public class AudioSamplerEncoder extends AbstractAudioEncoder {
 		    	// 1フレームも書き込めなかった時は動画出力時にMediaMuxerがクラッシュしないように
 		    	// ダミーデータを書き込む
 		    	final ByteBuffer buf = ByteBuffer.allocateDirect(AudioRecordCompat.SAMPLES_PER_FRAME).order(ByteOrder.nativeOrder());
+				final AudioPtsGenerator ptsGenerator = new AudioPtsGenerator(mSampler.getOutputSamplingFrequency());
+				// AudioRecordCompat#getBitResolution(int)は1サンプルあたりのバイト数を返す
+				final int frames = AudioRecordCompat.SAMPLES_PER_FRAME
+					/ (mSampler.getOutputChannels() * AudioRecordCompat.getBitResolution(mSampler.getOutputAudioFormat()));
 		    	for (int i = 0; isEncoding() && (i < 5); i++) {
 		    		buf.clear();
 					buf.position(AudioRecordCompat.SAMPLES_PER_FRAME);
 					buf.flip();
-					encode(buf, getInputPTSUs());
+					encode(buf, ptsGenerator.next(frames));
 					frameAvailableSoon();
 					synchronized (this) {
 						try {
@@ -0,0 +1,437 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 実際にはファイルへ書き込まずに書き込まれたフレームの統計だけを取るIMuxer実装
+ * 実機のMediaMuxerを使わずにエンコーダー→キュー→muxの処理の負荷試験やベンチマークを行うためのもの
+ * 書き込み速度と書き込み毎の遅延を指定するとストレージへの書き込みを模擬して呼び出しスレッドを待機させる
+ * MediaFormatやMediaCodec.BufferInfoのメソッドは呼ばないので
+ * #writeSampleData(int, ByteBuffer, int, int, long, int)を使えばJVM上のユニットテストからも使える
+ */
+public class BenchmarkMuxer implements IMuxer {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = BenchmarkMuxer.class.getSimpleName();
+
+	/**
+	 * トラック毎の統計
+	 */
+	private static class TrackStats {
+		private long frames;
+		private long bytes;
+		private long keyFrames;
+		private long configFrames;
+		/**
+		 * 前のフレーム以前のプレゼンテーションタイムだったフレーム数
+		 */
+		private long ptsErrors;
+		/**
+		 * 最初のキーフレームより前に書き込まれたキーフレーム以外のフレーム数
+		 */
+		private long leadingNonKeyFrames;
+		private long firstPtsUs = -1L;
+		private long lastPtsUs = -1L;
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	private final long mWriteBytesPerSec;
+	private final long mWriteLatencyUs;
+	@NonNull
+	private final List<TrackStats> mTracks = new ArrayList<>();
+	private volatile boolean mIsStarted;
+	private boolean mReleased;
+	/**
+	 * フレームデータの読み込み先(ワーク用)
+	 */
+	@NonNull
+	private byte[] mWork = new byte[0];
+	/**
+	 * 書き込み待ちを模擬するときに次にまとめて待機する時間[ナノ秒]
+	 */
+	private long mPendingWaitNs;
+	private long mStartTimeNs;
+	private long mStopTimeNs;
+	private long mWriteTimeNs;
+	private long mMaxWriteTimeNs;
+
+	/**
+	 * コンストラクタ
+	 * 書き込み待ちは模擬しない
+	 */
+	public BenchmarkMuxer() {
+		this(0, 0);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param writeBytesPerSec 模擬する書き込み速度[バイト/秒], 0以下なら書き込み速度による待機はしない
+	 * @param writeLatencyUs 模擬する書き込み毎の遅延[マイクロ秒], 0以下なら遅延による待機はしない
+	 */
+	public BenchmarkMuxer(final long writeBytesPerSec, final long writeLatencyUs) {
+		mWriteBytesPerSec = writeBytesPerSec;
+		mWriteLatencyUs = writeLatencyUs;
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			release();
+		} finally {
+			super.finalize();
+		}
+	}
+
+	/**
+	 * トラックを追加する
+	 * MediaFormatの内容は参照しない
+	 * @param format
+	 * @return トラックインデックス
+	 * @throws IllegalStateException
+	 */
+	@Override
+	public int addTrack(@NonNull final MediaFormat format) throws IllegalStateException {
+		return addTrack();
+	}
+
+	/**
+	 * トラックを追加する
+	 * MediaFormatを生成できないローカルユニットテストなどから使う
+	 * @return トラックインデックス
+	 * @throws IllegalStateException
+	 */
+	public int addTrack() throws IllegalStateException {
+		synchronized (mSync) {
+			checkReleased();
+			if (mIsStarted) {
+				throw new IllegalStateException("already started");
+			}
+			mTracks.add(new TrackStats());
+			return mTracks.size() - 1;
+		}
+	}
+
+	@Override
+	public void start() {
+		if (DEBUG) Log.v(TAG, "start:");
+		synchronized (mSync) {
+			checkReleased();
+			if (mIsStarted) {
+				throw new IllegalStateException("already started");
+			}
+			mStartTimeNs = System.nanoTime();
+			mStopTimeNs = 0;
+			mIsStarted = true;
+		}
+	}
+
+	@Override
+	public void stop() {
+		if (DEBUG) Log.v(TAG, "stop:" + this);
+		synchronized (mSync) {
+			if (mIsStarted) {
+				mIsStarted = false;
+				mStopTimeNs = System.nanoTime();
+			}
+		}
+	}
+
+	@Override
+	public void release() {
+		stop();
+		synchronized (mSync) {
+			mReleased = true;
+		}
+	}
+
+	@Override
+	public boolean isStarted() {
+		return mIsStarted;
+	}
+
+	@Override
+	public void writeSampleData(final int trackIndex,
+		@NonNull final ByteBuffer byteBuf,
+		@NonNull final MediaCodec.BufferInfo bufferInfo) {
+
+		writeSampleData(trackIndex, byteBuf,
+			bufferInfo.offset, bufferInfo.size,
+			bufferInfo.presentationTimeUs, bufferInfo.flags);
+	}
+
+	/**
+	 * フレームを書き込む
+	 * フレームデータは読み込んで捨てる, 書き込み速度/遅延を指定したときは呼び出しスレッドを待機させる
+	 * @param trackIndex
+	 * @param byteBuf
+	 * @param offset ByteBuffer先頭からの位置
+	 * @param size
+	 * @param presentationTimeUs
+	 * @param flags MediaCodec.BufferInfo#flagsと同じ
+	 * @throws IllegalStateException 開始していない
+	 * @throws IllegalArgumentException トラックインデックスが不正
+	 */
+	public void writeSampleData(final int trackIndex,
+		@NonNull final ByteBuffer byteBuf,
+		final int offset, final int size,
+		final long presentationTimeUs, final int flags)
+			throws IllegalStateException, IllegalArgumentException {
+
+		final long startNs = System.nanoTime();
+		final long waitNs;
+		synchronized (mSync) {
+			checkReleased();
+			if (!mIsStarted) {
+				throw new IllegalStateException("not started");
+			}
+			if ((trackIndex < 0) || (trackIndex >= mTracks.size())) {
+				throw new IllegalArgumentException("trackIndex is invalid," + trackIndex);
+			}
+			// ストレージへの書き込みと同様にフレームデータを読み込む
+			if (mWork.length < size) {
+				mWork = new byte[size * 3 / 2];
+			}
+			final ByteBuffer src = byteBuf.duplicate();
+			src.clear().position(offset);
+			src.get(mWork, 0, size);
+			final TrackStats track = mTracks.get(trackIndex);
+			if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+				track.configFrames++;
+			} else {
+				if ((flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+					track.keyFrames++;
+				} else if (track.keyFrames == 0) {
+					track.leadingNonKeyFrames++;
+				}
+				if (track.firstPtsUs < 0) {
+					track.firstPtsUs = presentationTimeUs;
+				} else if (presentationTimeUs <= track.lastPtsUs) {
+					track.ptsErrors++;
+				}
+				track.lastPtsUs = presentationTimeUs;
+			}
+			track.frames++;
+			track.bytes += size;
+			// 書き込み速度/遅延による待ち時間を積算して1ミリ秒以上になったらまとめて待機する
+			if (mWriteBytesPerSec > 0) {
+				mPendingWaitNs += size * 1000000000L / mWriteBytesPerSec;
+			}
+			if (mWriteLatencyUs > 0) {
+				mPendingWaitNs += mWriteLatencyUs * 1000L;
+			}
+			if (mPendingWaitNs >= 1000000L) {
+				waitNs = mPendingWaitNs;
+				mPendingWaitNs = 0;
+			} else {
+				waitNs = 0;
+			}
+		}
+		if (waitNs > 0) {
+			try {
+				Thread.sleep(waitNs / 1000000L, (int)(waitNs % 1000000L));
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+		}
+		final long elapsedNs = System.nanoTime() - startNs;
+		synchronized (mSync) {
+			mWriteTimeNs += elapsedNs;
+			if (elapsedNs > mMaxWriteTimeNs) {
+				mMaxWriteTimeNs = elapsedNs;
+			}
+		}
+	}
+
+	/**
+	 * 追加されたトラック数を取得
+	 * @return
+	 */
+	public int getTrackCount() {
+		synchronized (mSync) {
+			return mTracks.size();
+		}
+	}
+
+	/**
+	 * 書き込まれたフレーム数(codec specific dataを含む)を取得
+	 * @param trackIndex
+	 * @return
+	 */
+	public long getFrames(final int trackIndex) {
+		synchronized (mSync) {
+			return getTrack(trackIndex).frames;
+		}
+	}
+
+	/**
+	 * 書き込まれた合計バイト数を取得
+	 * @param trackIndex
+	 * @return
+	 */
+	public long getBytes(final int trackIndex) {
+		synchronized (mSync) {
+			return getTrack(trackIndex).bytes;
+		}
+	}
+
+	/**
+	 * 書き込まれたキーフレーム数を取得
+	 * @param trackIndex
+	 * @return
+	 */
+	public long getKeyFrames(final int trackIndex) {
+		synchronized (mSync) {
+			return getTrack(trackIndex).keyFrames;
+		}
+	}
+
+	/**
+	 * 書き込まれたcodec specific dataの数を取得
+	 * @param trackIndex
+	 * @return
+	 */
+	public long getConfigFrames(final int trackIndex) {
+		synchronized (mSync) {
+			return getTrack(trackIndex).configFrames;
+		}
+	}
+
+	/**
+	 * プレゼンテーションタイムが前のフレーム以前だったフレーム数を取得
+	 * MediaMuxerであればエラーになるので0でなければいけない
+	 * @param trackIndex
+	 * @return
+	 */
+	public long getPtsErrors(final int trackIndex) {
+		synchronized (mSync) {
+			return getTrack(trackIndex).ptsErrors;
+		}
+	}
+
+	/**
+	 * 最初のキーフレームより前に書き込まれたキーフレーム以外のフレーム数を取得
+	 * 映像トラックであれば0でなければいけない
+	 * @param trackIndex
+	 * @return
+	 */
+	public long getLeadingNonKeyFrames(final int trackIndex) {
+		synchronized (mSync) {
+			return getTrack(trackIndex).leadingNonKeyFrames;
+		}
+	}
+
+	/**
+	 * 最初と最後に書き込まれたフレームのプレゼンテーションタイムの差[マイクロ秒]を取得
+	 * @param trackIndex
+	 * @return
+	 */
+	public long getDurationUs(final int trackIndex) {
+		synchronized (mSync) {
+			final TrackStats track = getTrack(trackIndex);
+			return track.firstPtsUs >= 0 ? track.lastPtsUs - track.firstPtsUs : 0;
+		}
+	}
+
+	/**
+	 * #startしてから#stopまで(#stop前なら現在まで)の経過時間[ミリ秒]を取得
+	 * @return
+	 */
+	public long getElapsedMs() {
+		synchronized (mSync) {
+			if (mStartTimeNs == 0) {
+				return 0;
+			}
+			final long endNs = mStopTimeNs != 0 ? mStopTimeNs : System.nanoTime();
+			return (endNs - mStartTimeNs) / 1000000L;
+		}
+	}
+
+	/**
+	 * #writeSampleDataの呼び出しにかかった合計時間[ミリ秒]を取得
+	 * @return
+	 */
+	public long getWriteTimeMs() {
+		synchronized (mSync) {
+			return mWriteTimeNs / 1000000L;
+		}
+	}
+
+	/**
+	 * #writeSampleDataの呼び出しにかかった最大時間[マイクロ秒]を取得
+	 * @return
+	 */
+	public long getMaxWriteTimeUs() {
+		synchronized (mSync) {
+			return mMaxWriteTimeNs / 1000L;
+		}
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder(TAG).append('{');
+		synchronized (mSync) {
+			sb.append(String.format(Locale.US, "elapsed=%dms,writeTime=%dms,maxWrite=%dus",
+				getElapsedMs(), getWriteTimeMs(), getMaxWriteTimeUs()));
+			final int n = mTracks.size();
+			for (int i = 0; i < n; i++) {
+				final TrackStats track = mTracks.get(i);
+				sb.append(String.format(Locale.US,
+					",track%d(frames=%d,bytes=%d,key=%d,config=%d,ptsErrors=%d,duration=%dus)",
+					i, track.frames, track.bytes, track.keyFrames, track.configFrames,
+					track.ptsErrors, getDurationUs(i)));
+			}
+		}
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param trackIndex
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	@NonNull
+	private TrackStats getTrack(final int trackIndex) throws IllegalArgumentException {
+		if ((trackIndex < 0) || (trackIndex >= mTracks.size())) {
+			throw new IllegalArgumentException("trackIndex is invalid," + trackIndex);
+		}
+		return mTracks.get(trackIndex);
+	}
+
+	/**
+	 * @throws IllegalStateException
+	 */
+	private void checkReleased() throws IllegalStateException {
+		if (mReleased) {
+			throw new IllegalStateException("already released");
+		}
+	}
+}
@@ -0,0 +1,374 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.util.Locale;
+
+import androidx.annotation.NonNull;
+
+/**
+ * キューの滞留量, muxerの書き込みスループット, 破棄したフレーム数から
+ * 映像エンコーダーの目標ビットレートを決めるための制御ロジック
+ * Android依存のクラスを使わないのでローカルユニットテストで擬似的な入力系列に対する挙動を確認できる
+ * (実際にMediaCodecへ反映するのはAdaptiveBitrateMonitor)
+ *
+ * 評価間隔毎に
+ * 1. 前回からフレームが破棄されていれば大きく下げる
+ * 2. キューの滞留量が上限閾値以上で減っていない, または下限閾値を超えて増えていて
+ *    スループットが目標ビットレートに届いていなければ下げる(実測スループットより高くはしない)
+ * 3. キューの滞留量が下限閾値以下の状態が一定回数続いて, かつ最後に下げてから
+ *    一定時間経過していれば少しずつ上げる
+ * 下げるときは乗算で素早く, 上げるときは加算でゆっくり変化させ(AIMD),
+ * 最後に下げてからしばらくは上げないことでビットレートが振動しないようにする
+ * 排他制御をしていないので複数のスレッドから同時に呼び出さないこと
+ */
+public class BitrateController {
+	/**
+	 * デフォルトの評価間隔[ミリ秒]
+	 */
+	public static final long DEFAULT_INTERVALS_MS = 1000L;
+	/**
+	 * デフォルトのキュー滞留量の上限閾値(キュー容量に対する割合)
+	 */
+	public static final float DEFAULT_HIGH_WATER = 0.25f;
+	/**
+	 * デフォルトのキュー滞留量の下限閾値(キュー容量に対する割合)
+	 */
+	public static final float DEFAULT_LOW_WATER = 0.05f;
+	/**
+	 * フレームが破棄されたときのデフォルトの減少率
+	 */
+	public static final float DEFAULT_DROP_FACTOR = 0.5f;
+	/**
+	 * キューが滞留しているときのデフォルトの減少率
+	 */
+	public static final float DEFAULT_DECREASE_FACTOR = 0.75f;
+	/**
+	 * デフォルトの増加量(最大ビットレートに対する割合)
+	 */
+	public static final float DEFAULT_INCREASE_STEP = 0.05f;
+	/**
+	 * 最後に下げてから上げ始めるまでのデフォルトの待機時間[ミリ秒]
+	 */
+	public static final long DEFAULT_HOLD_OFF_MS = 5000L;
+	/**
+	 * 上げる前にキューが空いている状態が続く必要があるデフォルトの評価回数
+	 */
+	public static final int DEFAULT_STABLE_COUNT = 3;
+	/**
+	 * ビットレートを下げるときに実測スループットに掛ける係数
+	 * (スループットが目標ビットレートに届いていないと判定するときの余裕分としても使う)
+	 */
+	private static final float THROUGHPUT_MARGIN = 0.9f;
+	/**
+	 * 変化量がこの割合未満ならエンコーダーへ反映しない
+	 */
+	private static final float MIN_CHANGE_RATIO = 0.03f;
+
+	private final int mMinBitrate;
+	private final int mMaxBitrate;
+	private long mIntervalsMs = DEFAULT_INTERVALS_MS;
+	private float mHighWater = DEFAULT_HIGH_WATER;
+	private float mLowWater = DEFAULT_LOW_WATER;
+	private float mDropFactor = DEFAULT_DROP_FACTOR;
+	private float mDecreaseFactor = DEFAULT_DECREASE_FACTOR;
+	private float mIncreaseStep = DEFAULT_INCREASE_STEP;
+	private long mHoldOffMs = DEFAULT_HOLD_OFF_MS;
+	private int mStableCount = DEFAULT_STABLE_COUNT;
+
+	private int mBitrate;
+	private boolean mHasSample;
+	private long mLastTimeMs;
+	private int mLastDepth;
+	private long mLastWrittenBytes;
+	private long mLastDroppedFrames;
+	private long mLastDecreaseTimeMs;
+	private int mStable;
+	private long mThroughputBps;
+	private int mDecreaseCount;
+	private int mIncreaseCount;
+
+	/**
+	 * コンストラクタ
+	 * @param minBitrate 最小ビットレート[bps]
+	 * @param maxBitrate 最大ビットレート[bps]
+	 * @param initialBitrate 初期ビットレート[bps], [minBitrate, maxBitrate]に丸める
+	 * @throws IllegalArgumentException minBitrateが0以下またはmaxBitrateより大きいとき
+	 */
+	public BitrateController(final int minBitrate, final int maxBitrate, final int initialBitrate)
+		throws IllegalArgumentException {
+
+		if ((minBitrate <= 0) || (minBitrate > maxBitrate)) {
+			throw new IllegalArgumentException("invalid bitrate range," + minBitrate + "-" + maxBitrate);
+		}
+		mMinBitrate = minBitrate;
+		mMaxBitrate = maxBitrate;
+		reset(initialBitrate);
+	}
+
+	/**
+	 * 評価間隔をセット
+	 * @param intervalsMs [ミリ秒]
+	 * @return
+	 */
+	@NonNull
+	public BitrateController setIntervals(final long intervalsMs) {
+		mIntervalsMs = Math.max(intervalsMs, 1L);
+		return this;
+	}
+
+	public long getIntervals() {
+		return mIntervalsMs;
+	}
+
+	/**
+	 * キュー滞留量の閾値をセット
+	 * @param lowWater 下限閾値, キュー容量に対する割合
+	 * @param highWater 上限閾値, キュー容量に対する割合
+	 * @return
+	 * @throws IllegalArgumentException 0 <= lowWater < highWater <= 1でないとき
+	 */
+	@NonNull
+	public BitrateController setWaterMarks(final float lowWater, final float highWater)
+		throws IllegalArgumentException {
+
+		if ((lowWater < 0.0f) || (lowWater >= highWater) || (highWater > 1.0f)) {
+			throw new IllegalArgumentException("invalid water marks," + lowWater + "," + highWater);
+		}
+		mLowWater = lowWater;
+		mHighWater = highWater;
+		return this;
+	}
+
+	/**
+	 * ビットレートを下げるときの減少率をセット
+	 * @param dropFactor フレームが破棄されたときの減少率, (0, 1)
+	 * @param decreaseFactor キューが滞留しているときの減少率, (0, 1)
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	@NonNull
+	public BitrateController setDecreaseFactors(final float dropFactor, final float decreaseFactor)
+		throws IllegalArgumentException {
+
+		if ((dropFactor <= 0.0f) || (dropFactor >= 1.0f)
+			|| (decreaseFactor <= 0.0f) || (decreaseFactor >= 1.0f)) {
+			throw new IllegalArgumentException("factors should be within (0, 1)");
+		}
+		mDropFactor = dropFactor;
+		mDecreaseFactor = decreaseFactor;
+		return this;
+	}
+
+	/**
+	 * ビットレートを上げるときの増加量をセット
+	 * @param step 最大ビットレートに対する割合, (0, 1]
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	@NonNull
+	public BitrateController setIncreaseStep(final float step)
+		throws IllegalArgumentException {
+
+		if ((step <= 0.0f) || (step > 1.0f)) {
+			throw new IllegalArgumentException("step should be within (0, 1]");
+		}
+		mIncreaseStep = step;
+		return this;
+	}
+
+	/**
+	 * ビットレートを上げ始める条件をセット
+	 * @param holdOffMs 最後に下げてから上げ始めるまでの待機時間[ミリ秒]
+	 * @param stableCount キューが空いている状態が続く必要がある評価回数
+	 * @return
+	 */
+	@NonNull
+	public BitrateController setHysteresis(final long holdOffMs, final int stableCount) {
+		mHoldOffMs = Math.max(holdOffMs, 0L);
+		mStableCount = Math.max(stableCount, 1);
+		return this;
+	}
+
+	/**
+	 * 目標ビットレートと内部状態をリセットする
+	 * 累積値の差分計算は次の#updateから始め直す
+	 * @param bitrate [bps], [最小ビットレート, 最大ビットレート]に丸める
+	 */
+	public void reset(final int bitrate) {
+		mBitrate = clamp(bitrate);
+		mHasSample = false;
+		mStable = 0;
+		mThroughputBps = 0;
+		mLastDecreaseTimeMs = Long.MIN_VALUE / 2;
+	}
+
+	/**
+	 * 現在の目標ビットレートを取得
+	 * @return [bps]
+	 */
+	public int getBitrate() {
+		return mBitrate;
+	}
+
+	public int getMinBitrate() {
+		return mMinBitrate;
+	}
+
+	public int getMaxBitrate() {
+		return mMaxBitrate;
+	}
+
+	/**
+	 * 直近の評価間隔で計測したmuxerの書き込みスループットを取得
+	 * @return [bps], 未計測なら0
+	 */
+	public long getThroughput() {
+		return mThroughputBps;
+	}
+
+	/**
+	 * ビットレートを下げた回数を取得
+	 * @return
+	 */
+	public int getDecreaseCount() {
+		return mDecreaseCount;
+	}
+
+	/**
+	 * ビットレートを上げた回数を取得
+	 * @return
+	 */
+	public int getIncreaseCount() {
+		return mIncreaseCount;
+	}
+
+	/**
+	 * 計測値を渡して目標ビットレートを更新する
+	 * 前回評価してから評価間隔が経過していなければ何もしない
+	 * @param timeMs 計測時刻[ミリ秒], 単調増加であること
+	 * @param queueDepth キューに滞留しているフレーム数
+	 * @param queueCapacity キューの容量(フレーム数), 0以下なら滞留量は判定に使わない
+	 * @param writtenBytes muxerが書き込んだ累積バイト数
+	 * @param droppedFrames 破棄した累積フレーム数
+	 * @return 目標ビットレートを変更したときはtrue
+	 */
+	public boolean update(final long timeMs,
+		final int queueDepth, final int queueCapacity,
+		final long writtenBytes, final long droppedFrames) {
+
+		if (!mHasSample) {
+			// 最初の計測値は差分計算の起点にするだけ
+			mHasSample = true;
+			mLastTimeMs = timeMs;
+			mLastDepth = queueDepth;
+			mLastWrittenBytes = writtenBytes;
+			mLastDroppedFrames = droppedFrames;
+			return false;
+		}
+		final long dt = timeMs - mLastTimeMs;
+		if (dt < mIntervalsMs) {
+			return false;
+		}
+		final long drops = droppedFrames - mLastDroppedFrames;
+		final long written = writtenBytes - mLastWrittenBytes;
+		final int depthDelta = queueDepth - mLastDepth;
+		mThroughputBps = Math.max(written, 0L) * 8000L / dt;
+		mLastTimeMs = timeMs;
+		mLastDepth = queueDepth;
+		mLastWrittenBytes = writtenBytes;
+		mLastDroppedFrames = droppedFrames;
+
+		final float fill = queueCapacity > 0 ? queueDepth / (float)queueCapacity : 0.0f;
+		// 上限閾値を超えていても減り始めていれば既に下げたビットレートの効果が出ているので下げない
+		final boolean high = (fill >= mHighWater) && (depthDelta >= 0);
+		final boolean growing = (fill > mLowWater) && (depthDelta > 0)
+			&& (mThroughputBps < mBitrate * THROUGHPUT_MARGIN);
+		final int target;
+		if ((drops > 0) || high || growing) {
+			// 混雑しているときは最小ビットレートで頭打ちになっていても待機時間を延長する
+			target = decrease(drops > 0 ? mDropFactor : mDecreaseFactor);
+			mStable = 0;
+			mLastDecreaseTimeMs = timeMs;
+		} else {
+			if (fill <= mLowWater) {
+				mStable++;
+			} else {
+				mStable = 0;
+			}
+			if ((mStable >= mStableCount)
+				&& (timeMs - mLastDecreaseTimeMs >= mHoldOffMs)) {
+				mStable = 0;
+				target = clamp(mBitrate + (int)(mMaxBitrate * mIncreaseStep));
+			} else {
+				target = mBitrate;
+			}
+		}
+		if (shouldChange(target)) {
+			if (target < mBitrate) {
+				mDecreaseCount++;
+			} else {
+				mIncreaseCount++;
+			}
+			mBitrate = target;
+			return true;
+		}
+		return false;
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return String.format(Locale.US,
+			"BitrateController{bitrate=%d,range=[%d,%d],throughput=%d,decrease=%d,increase=%d}",
+			mBitrate, mMinBitrate, mMaxBitrate, mThroughputBps, mDecreaseCount, mIncreaseCount);
+	}
+
+	/**
+	 * 減少率を掛けたビットレートを計算する
+	 * 実測スループットがそれより低ければ実測値に合わせる
+	 * @param factor
+	 * @return
+	 */
+	private int decrease(final float factor) {
+		long result = (long)(mBitrate * factor);
+		if (mThroughputBps > 0) {
+			result = Math.min(result, (long)(mThroughputBps * THROUGHPUT_MARGIN));
+		}
+		return clamp(result);
+	}
+
+	/**
+	 * 変化量が小さすぎるときはエンコーダーへ反映しない
+	 * ただし最小/最大ビットレートへ到達するときは反映する
+	 * @param target
+	 * @return
+	 */
+	private boolean shouldChange(final int target) {
+		if (target == mBitrate) {
+			return false;
+		}
+		return (target == mMinBitrate) || (target == mMaxBitrate)
+			|| (Math.abs(target - mBitrate) >= mBitrate * MIN_CHANGE_RATIO);
+	}
+
+	private int clamp(final long bitrate) {
+		return (int)Math.max(mMinBitrate, Math.min(mMaxBitrate, bitrate));
+	}
+}
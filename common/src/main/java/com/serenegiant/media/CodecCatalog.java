@@ -0,0 +1,587 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.os.Build;
+import android.util.Log;
+
+import com.serenegiant.utils.ThreadPool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+/**
+ * エンコーダーの対応mime type/カラーフォーマットの一覧(カタログ)を保持するヘルパークラス
+ * MediaCodecInfo#getCapabilitiesForTypeがすごく遅い機種があるので
+ * アプリ起動時に#prepareでバックグラウンドスレッド上で一度だけ構築して
+ * ビルドフィンガープリント毎にキャッシュディレクトリへ保存しておき次回起動時はファイルから読み込む
+ * エンコーダーの選択はmime type(+カラーフォーマット)をキーにしたインデックスからの検索になる
+ * 構築済みのカタログは変更不可で参照を差し替えるだけなので複数のスレッドから同時に呼び出しても良い
+ * #prepareを呼ばずに検索したときは呼び出したスレッド上でカタログを構築する(保存はしない)
+ * ただし映像以外(音声等)のエンコーダーの検索はカラーフォーマットの取得が不要なので
+ * カタログが未構築ならカタログを構築せずにMediaCodecListを直接検索する
+ */
+public final class CodecCatalog {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = CodecCatalog.class.getSimpleName();
+
+	/**
+	 * 保存ファイル名
+	 */
+	private static final String FILE_NAME = "codec_catalog.bin";
+	/**
+	 * 保存ファイルの識別用マジックナンバー('CCAT')
+	 */
+	private static final int MAGIC = 0x43434154;
+	/**
+	 * 保存ファイルのバージョン, 保存形式を変更したときは値を変えること
+	 */
+	private static final int VERSION = 1;
+	/**
+	 * 保存ファイルから読み込むときのエントリー数の上限, 壊れたファイルで巨大な配列を確保しないように
+	 */
+	private static final int MAX_ENTRIES = 4096;
+	/**
+	 * 保存ファイルから読み込むときのエンコーダー1つ当たりのカラーフォーマット数の上限
+	 */
+	private static final int MAX_COLOR_FORMATS = 256;
+	private static final int[] EMPTY = new int[0];
+
+	@NonNull
+	private static final Object sSync = new Object();
+	/**
+	 * 構築済みのカタログ, 未構築ならnull
+	 */
+	@Nullable
+	private static volatile Catalog sCatalog;
+	/**
+	 * コーデック名とMediaCodecInfoの対応
+	 */
+	@NonNull
+	private static final Map<String, MediaCodecInfo> sInfos = new ConcurrentHashMap<>();
+
+	private CodecCatalog() {
+		// インスタンス化をエラーにするためにデフォルトコンストラクタをprivateに
+	}
+
+	/**
+	 * バックグラウンドスレッド上でカタログを構築する
+	 * 保存ファイルのビルドフィンガープリントが一致すれば読み込み, 一致しなければ構築して保存する
+	 * アプリ起動時(Application#onCreate等)に呼び出しておくと
+	 * 録画開始時にエンコーダーを選択するときの待ち時間を減らすことができる
+	 * 構築済みなら何もしない
+	 * @param context
+	 */
+	public static void prepare(@NonNull final Context context) {
+		if (sCatalog == null) {
+			final File file = getSnapshotFile(context);
+			ThreadPool.queueEvent(new Runnable() {
+				@Override
+				public void run() {
+					prepareSync(file);
+				}
+			});
+		}
+	}
+
+	/**
+	 * 呼び出したスレッド上でカタログを構築する
+	 * 保存ファイルのビルドフィンガープリントが一致すれば読み込み, 一致しなければ構築して保存する
+	 * 構築済みなら何もしない
+	 * @param context nullなら保存ファイルを使わない
+	 */
+	@WorkerThread
+	public static void prepareSync(@Nullable final Context context) {
+		prepareSync(context != null ? getSnapshotFile(context) : null);
+	}
+
+	/**
+	 * カタログを構築済みかどうか
+	 * @return
+	 */
+	public static boolean isReady() {
+		return sCatalog != null;
+	}
+
+	/**
+	 * カタログと保存ファイルを破棄する
+	 * 次に検索したとき(または#prepareを呼んだとき)にカタログを構築し直す
+	 * @param context nullなら保存ファイルは削除しない
+	 */
+	public static void invalidate(@Nullable final Context context) {
+		synchronized (sSync) {
+			sCatalog = null;
+			sInfos.clear();
+			if (context != null) {
+				final File file = getSnapshotFile(context);
+				if (file.exists() && !file.delete()) {
+					Log.w(TAG, "failed to delete " + file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 指定したmime typeに対応するエンコーダーの一覧をMediaCodecListの順に取得する
+	 * @param mimeType
+	 * @return
+	 */
+	@NonNull
+	public static List<MediaCodecInfo> getEncoders(@NonNull final String mimeType) {
+		final List<Entry> entries = findEncoders(mimeType);
+		final List<MediaCodecInfo> result = new ArrayList<>();
+		if (entries != null) {
+			for (final Entry entry: entries) {
+				final MediaCodecInfo info = findCodecInfo(entry.name);
+				if (info != null) {
+					result.add(info);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 指定したmime typeに対応する最初のエンコーダーを取得する
+	 * 対応するものがなければnull
+	 * @param mimeType
+	 * @return
+	 */
+	@Nullable
+	public static MediaCodecInfo selectEncoder(@NonNull final String mimeType) {
+		final List<Entry> entries = findEncoders(mimeType);
+		if (entries != null) {
+			for (final Entry entry: entries) {
+				final MediaCodecInfo info = findCodecInfo(entry.name);
+				if (info != null) {
+					return info;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 指定したmime typeとカラーフォーマットに対応する映像エンコーダーの一覧をMediaCodecListの順に取得する
+	 * @param mimeType
+	 * @param colorFormat
+	 * @return
+	 */
+	@NonNull
+	public static List<MediaCodecInfo> getVideoEncoders(@NonNull final String mimeType, final int colorFormat) {
+		final List<String> names = requireCatalog().mByColorFormat.get(toKey(mimeType, colorFormat));
+		final List<MediaCodecInfo> result = new ArrayList<>();
+		if (names != null) {
+			for (final String name: names) {
+				final MediaCodecInfo info = findCodecInfo(name);
+				if (info != null) {
+					result.add(info);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 指定したmime typeとカラーフォーマットに対応する最初の映像エンコーダーを取得する
+	 * 対応するものがなければnull
+	 * @param mimeType
+	 * @param colorFormat
+	 * @return
+	 */
+	@Nullable
+	public static MediaCodecInfo selectVideoEncoder(@NonNull final String mimeType, final int colorFormat) {
+		final List<String> names = requireCatalog().mByColorFormat.get(toKey(mimeType, colorFormat));
+		if (names != null) {
+			for (final String name: names) {
+				final MediaCodecInfo info = findCodecInfo(name);
+				if (info != null) {
+					return info;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 指定したエンコーダーがサポートしているカラーフォーマットの一覧を取得する
+	 * カタログに無いコーデック(デコーダーを含む)またはmime typeの場合はnull
+	 * @param codecName
+	 * @param mimeType
+	 * @return
+	 */
+	@Nullable
+	public static int[] getColorFormats(@NonNull final String codecName, @NonNull final String mimeType) {
+		final Entry entry = requireCatalog().mByName.get(codecName + '\n' + toKey(mimeType));
+		return entry != null ? entry.colorFormats.clone() : null;
+	}
+
+	/**
+	 * 指定したエンコーダーがサポートしているカラーフォーマットの中から
+	 * MediaCodecUtils#isRecognizedVideoFormatが使用可能と判断する最初のものを取得する
+	 * 使用可能なものが無ければ0, カタログに無いコーデック(デコーダーを含む)またはmime typeの場合は負
+	 * @param codecName
+	 * @param mimeType
+	 * @return
+	 */
+	public static int selectColorFormat(@NonNull final String codecName, @NonNull final String mimeType) {
+		final Entry entry = requireCatalog().mByName.get(codecName + '\n' + toKey(mimeType));
+		if (entry == null) {
+			return -1;
+		}
+		for (final int colorFormat: entry.colorFormats) {
+			if (MediaCodecUtils.isRecognizedVideoFormat(colorFormat)) {
+				return colorFormat;
+			}
+		}
+		return 0;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 指定したmime typeに対応するエンコーダーの一覧を取得する
+	 * 映像以外でカタログが未構築のときはカタログを構築せずにMediaCodecListから直接取得する
+	 * (カタログの構築は全ての映像エンコーダーのカラーフォーマットを取得するので遅い)
+	 * @param mimeType
+	 * @return 対応するエンコーダーが無ければnull
+	 */
+	@Nullable
+	private static List<Entry> findEncoders(@NonNull final String mimeType) {
+		final String key = toKey(mimeType);
+		final Catalog catalog = sCatalog;
+		if ((catalog == null) && !key.startsWith("video/")) {
+			final List<Entry> result = scan(key);
+			return !result.isEmpty() ? result : null;
+		}
+		return (catalog != null ? catalog : requireCatalog()).mEncoders.get(key);
+	}
+
+	/**
+	 * カタログを取得する, 未構築なら呼び出したスレッド上で構築する(保存はしない)
+	 * #prepareで構築中の場合は構築が終わるまで待機する
+	 * @return
+	 */
+	@NonNull
+	private static Catalog requireCatalog() {
+		Catalog result = sCatalog;
+		if (result == null) {
+			result = prepareSync((File) null);
+		}
+		return result;
+	}
+
+	/**
+	 * カタログを読み込みまたは構築する
+	 * @param file 保存ファイル, nullなら保存ファイルを使わない
+	 * @return
+	 */
+	@NonNull
+	private static Catalog prepareSync(@Nullable final File file) {
+		synchronized (sSync) {
+			Catalog result = sCatalog;
+			if (result == null) {
+				final long start = System.currentTimeMillis();
+				final String fingerprint = getFingerprint();
+				List<Entry> entries = file != null ? load(file, fingerprint) : null;
+				if (entries == null) {
+					entries = new ArrayList<>();
+					final boolean completed = scan(entries);
+					if ((file != null) && completed) {
+						save(file, fingerprint, entries);
+					} else if (file != null) {
+						// カラーフォーマットを取得できなかったエンコーダーがあるときは
+						// 次回起動時に取得し直せるように保存しない
+						Log.w(TAG, "prepareSync:skip saving, failed to get some capabilities");
+					}
+				}
+				result = new Catalog(entries);
+				sCatalog = result;
+				if (DEBUG) Log.v(TAG, "prepareSync:" + entries.size() + " entries,"
+					+ (System.currentTimeMillis() - start) + "ms");
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * コーデック名に対応するMediaCodecInfoを取得する
+	 * @param name
+	 * @return
+	 */
+	@Nullable
+	private static MediaCodecInfo findCodecInfo(@NonNull final String name) {
+		MediaCodecInfo result = sInfos.get(name);
+		if (result == null) {
+			for (final MediaCodecInfo info: MediaCodecUtils.getCodecs()) {
+				sInfos.put(info.getName(), info);
+			}
+			result = sInfos.get(name);
+		}
+		return result;
+	}
+
+	/**
+	 * MediaCodecListから指定したmime typeに対応するエンコーダーの一覧を取得する
+	 * カラーフォーマットは取得しない
+	 * @param key mime type(小文字)
+	 * @return
+	 */
+	@NonNull
+	private static List<Entry> scan(@NonNull final String key) {
+		final List<Entry> result = new ArrayList<>();
+		for (final MediaCodecInfo info: MediaCodecUtils.getCodecs()) {
+			if (!info.isEncoder()) {	// エンコーダーでない(=デコーダー)はスキップする
+				continue;
+			}
+			for (final String type: info.getSupportedTypes()) {
+				if (key.equals(toKey(type))) {
+					sInfos.put(info.getName(), info);
+					result.add(new Entry(info.getName(), type, EMPTY));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * MediaCodecListからエンコーダーの一覧を取得する
+	 * 映像エンコーダーの場合はカラーフォーマットも取得する(ここが遅い)
+	 * @param result 取得したエンコーダーの一覧を追加する
+	 * @return 全ての映像エンコーダーのカラーフォーマットを取得できればtrue
+	 */
+	private static boolean scan(@NonNull final List<Entry> result) {
+		boolean completed = true;
+		for (final MediaCodecInfo info: MediaCodecUtils.getCodecs()) {
+			if (!info.isEncoder()) {	// エンコーダーでない(=デコーダー)はスキップする
+				continue;
+			}
+			final String name = info.getName();
+			sInfos.put(name, info);
+			for (final String type: info.getSupportedTypes()) {
+				int[] colorFormats = EMPTY;
+				if (toKey(type).startsWith("video/")) {
+					try {
+						final MediaCodecInfo.CodecCapabilities caps
+							= MediaCodecUtils.getCodecCapabilities(info, type);
+						if ((caps != null) && (caps.colorFormats != null)) {
+							colorFormats = caps.colorFormats.clone();
+						}
+					} catch (final Exception e) {
+						// 機種によってはIllegalArgumentException等が来る
+						Log.w(TAG, "failed to get capabilities," + name + "," + type, e);
+						completed = false;
+					}
+				}
+				result.add(new Entry(name, type, colorFormats));
+			}
+		}
+		return completed;
+	}
+
+	/**
+	 * 保存ファイルからカタログを読み込む
+	 * @param file
+	 * @param fingerprint
+	 * @return 保存ファイルが無い, 読み込めない, またはビルドフィンガープリントが一致しなければnull
+	 */
+	@Nullable
+	private static List<Entry> load(@NonNull final File file, @NonNull final String fingerprint) {
+		if (!file.canRead()) {
+			return null;
+		}
+		try (final DataInputStream in = new DataInputStream(
+			new BufferedInputStream(new FileInputStream(file)))) {
+
+			if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)
+				|| !fingerprint.equals(in.readUTF())) {
+				if (DEBUG) Log.v(TAG, "load:snapshot is stale");
+				return null;
+			}
+			final int n = in.readInt();
+			if ((n < 0) || (n > MAX_ENTRIES)) {
+				throw new IOException("invalid number of entries," + n);
+			}
+			final List<Entry> result = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				final String name = in.readUTF();
+				final String type = in.readUTF();
+				final int m = in.readInt();
+				if ((m < 0) || (m > MAX_COLOR_FORMATS)) {
+					throw new IOException("invalid number of color formats," + m);
+				}
+				final int[] colorFormats = m > 0 ? new int[m] : EMPTY;
+				for (int j = 0; j < m; j++) {
+					colorFormats[j] = in.readInt();
+				}
+				result.add(new Entry(name, type, colorFormats));
+			}
+			return result;
+		} catch (final IOException | RuntimeException e) {
+			Log.w(TAG, "failed to load " + file, e);
+		}
+		return null;
+	}
+
+	/**
+	 * カタログを保存ファイルへ書き込む
+	 * 書き込み途中のファイルを読み込まないように一時ファイルへ書き込んでからリネームする
+	 * @param file
+	 * @param fingerprint
+	 * @param entries
+	 */
+	private static void save(@NonNull final File file, @NonNull final String fingerprint,
+		@NonNull final List<Entry> entries) {
+
+		final File temp = new File(file.getPath() + ".tmp");
+		try {
+			try (final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)))) {
+
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeUTF(fingerprint);
+				out.writeInt(entries.size());
+				for (final Entry entry: entries) {
+					out.writeUTF(entry.name);
+					out.writeUTF(entry.type);
+					out.writeInt(entry.colorFormats.length);
+					for (final int colorFormat: entry.colorFormats) {
+						out.writeInt(colorFormat);
+					}
+				}
+			}
+			if (!temp.renameTo(file)) {
+				throw new IOException("failed to rename " + temp);
+			}
+		} catch (final IOException e) {
+			Log.w(TAG, "failed to save " + file, e);
+			//noinspection ResultOfMethodCallIgnored
+			temp.delete();
+		}
+	}
+
+	@NonNull
+	private static File getSnapshotFile(@NonNull final Context context) {
+		return new File(context.getCacheDir(), FILE_NAME);
+	}
+
+	/**
+	 * 保存ファイルが有効かどうかの判定に使う文字列
+	 * OTAアップデート等でコーデックが変わればビルドフィンガープリントも変わる
+	 * @return
+	 */
+	@NonNull
+	private static String getFingerprint() {
+		return Build.FINGERPRINT + '/' + Build.VERSION.SDK_INT;
+	}
+
+	@NonNull
+	private static String toKey(@NonNull final String mimeType) {
+		return mimeType.toLowerCase(Locale.US);
+	}
+
+	@NonNull
+	private static String toKey(@NonNull final String mimeType, final int colorFormat) {
+		return toKey(mimeType) + '#' + colorFormat;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * エンコーダー1つのmime type1つ分の情報
+	 */
+	private static class Entry {
+		@NonNull
+		private final String name;
+		@NonNull
+		private final String type;
+		@NonNull
+		private final int[] colorFormats;
+
+		private Entry(@NonNull final String name, @NonNull final String type,
+			@NonNull final int[] colorFormats) {
+
+			this.name = name;
+			this.type = type;
+			this.colorFormats = colorFormats;
+		}
+	}
+
+	/**
+	 * 構築済みのカタログ, 構築後は変更しない
+	 */
+	private static class Catalog {
+		/**
+		 * mime type(小文字) => エンコーダーの一覧(MediaCodecListの順)
+		 */
+		@NonNull
+		private final Map<String, List<Entry>> mEncoders = new HashMap<>();
+		/**
+		 * mime type(小文字)#カラーフォーマット => エンコーダー名の一覧(MediaCodecListの順)
+		 */
+		@NonNull
+		private final Map<String, List<String>> mByColorFormat = new HashMap<>();
+		/**
+		 * エンコーダー名\nmime type(小文字) => エンコーダーの情報
+		 */
+		@NonNull
+		private final Map<String, Entry> mByName = new HashMap<>();
+
+		private Catalog(@NonNull final List<Entry> entries) {
+			for (final Entry entry: entries) {
+				final String key = toKey(entry.type);
+				List<Entry> list = mEncoders.get(key);
+				if (list == null) {
+					list = new ArrayList<>();
+					mEncoders.put(key, list);
+				}
+				list.add(entry);
+				mByName.put(entry.name + '\n' + key, entry);
+				for (final int colorFormat: entry.colorFormats) {
+					final String colorKey = toKey(entry.type, colorFormat);
+					List<String> names = mByColorFormat.get(colorKey);
+					if (names == null) {
+						names = new ArrayList<>();
+						mByColorFormat.put(colorKey, names);
+					}
+					if (!names.contains(entry.name)) {
+						names.add(entry.name);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.nio.ByteBuffer;
+
+import androidx.annotation.NonNull;
+
+/**
+ * h.264/h.265のNALユニット(RBSP)をビット単位で読み込むためのヘルパークラス
+ * 固定長(u(n))と指数ゴロム符号(ue(v)/se(v))の読み込みに対応する
+ * エミュレーション防止バイト(00 00 03の03)は読み込み時に読み飛ばすのでNALユニットをコピーする必要はない
+ * 終端を超えて読み込もうとするとIllegalArgumentExceptionを投げる
+ */
+public class ExpGolombReader {
+	@NonNull
+	private final ByteBuffer mBuffer;
+	private final int mEnd;
+	/**
+	 * 次に読み込むバイトの位置
+	 */
+	private int mPos;
+	/**
+	 * 連続した0x00の数(エミュレーション防止バイト検出用)
+	 */
+	private int mZeros;
+	/**
+	 * 読み込み済みで未使用のビット
+	 */
+	private int mCache;
+	/**
+	 * mCacheの未使用ビット数
+	 */
+	private int mCacheBits;
+
+	/**
+	 * コンストラクタ
+	 * @param buffer NALユニットを含むByteBuffer, position/limitは変更しない
+	 * @param offset 読み込み開始位置(ByteBuffer先頭からの絶対位置), 通常はNALユニットヘッダーの直後
+	 * @param end 読み込み終了位置(ByteBuffer先頭からの絶対位置, この位置は含まない)
+	 */
+	public ExpGolombReader(@NonNull final ByteBuffer buffer, final int offset, final int end) {
+		mBuffer = buffer;
+		mPos = offset;
+		mEnd = Math.min(end, buffer.limit());
+	}
+
+	/**
+	 * 1ビット読み込む
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public int readBit() throws IllegalArgumentException {
+		if (mCacheBits == 0) {
+			mCache = nextByte();
+			mCacheBits = 8;
+		}
+		mCacheBits--;
+		return (mCache >>> mCacheBits) & 0x01;
+	}
+
+	/**
+	 * 1ビット読み込んでbooleanとして返す
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public boolean readFlag() throws IllegalArgumentException {
+		return readBit() != 0;
+	}
+
+	/**
+	 * 固定長(u(n))で読み込む
+	 * @param n 読み込むビット数, 0-32
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public int readBits(final int n) throws IllegalArgumentException {
+		if ((n < 0) || (n > 32)) {
+			throw new IllegalArgumentException("unexpected bit count," + n);
+		}
+		int result = 0;
+		int remain = n;
+		while (remain > 0) {
+			if (mCacheBits == 0) {
+				mCache = nextByte();
+				mCacheBits = 8;
+			}
+			final int bits = Math.min(remain, mCacheBits);
+			mCacheBits -= bits;
+			result = (result << bits) | ((mCache >>> mCacheBits) & ((1 << bits) - 1));
+			remain -= bits;
+		}
+		return result;
+	}
+
+	/**
+	 * 符号なしで32ビット読み込む
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public long readUInt32() throws IllegalArgumentException {
+		return readBits(32) & 0xffffffffL;
+	}
+
+	/**
+	 * 指定したビット数読み飛ばす
+	 * @param n
+	 * @throws IllegalArgumentException
+	 */
+	public void skipBits(final int n) throws IllegalArgumentException {
+		int remain = n;
+		while (remain > 0) {
+			final int bits = Math.min(remain, 32);
+			readBits(bits);
+			remain -= bits;
+		}
+	}
+
+	/**
+	 * 符号なし指数ゴロム符号(ue(v))を読み込む
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public int readUE() throws IllegalArgumentException {
+		int leadingZeros = 0;
+		while (readBit() == 0) {
+			leadingZeros++;
+			if (leadingZeros > 31) {
+				throw new IllegalArgumentException("invalid exp-golomb code");
+			}
+		}
+		return leadingZeros > 0
+			? (int)((1L << leadingZeros) - 1 + (readBits(leadingZeros) & 0xffffffffL))
+			: 0;
+	}
+
+	/**
+	 * 符号付き指数ゴロム符号(se(v))を読み込む
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public int readSE() throws IllegalArgumentException {
+		final int v = readUE();
+		return (v & 0x01) != 0 ? (v + 1) >>> 1 : -(v >>> 1);
+	}
+
+	/**
+	 * 読み込み可能なデータが残っているかどうか
+	 * @return
+	 */
+	public boolean hasMoreData() {
+		return (mCacheBits > 0) || (mPos < mEnd);
+	}
+
+	private int nextByte() throws IllegalArgumentException {
+		if (mPos >= mEnd) {
+			throw new IllegalArgumentException("no more data");
+		}
+		int b = mBuffer.get(mPos++) & 0xff;
+		if ((mZeros >= 2) && (b == 0x03)) {
+			// エミュレーション防止バイトなので読み飛ばす
+			mZeros = 0;
+			if (mPos >= mEnd) {
+				throw new IllegalArgumentException("no more data");
+			}
+			b = mBuffer.get(mPos++) & 0xff;
+		}
+		mZeros = (b == 0) ? mZeros + 1 : 0;
+		return b;
+	}
+}
@@ -72,16 +72,20 @@ public class FakeAudioEncoder extends AbstractFakeEncoder
 	}
 
 	@Override
-	protected MediaFormat createOutputFormat(final String mime, final byte[] csd, final int size,
+	protected MediaFormat createOutputFormat(final String mime, @NonNull final ByteBuffer csd, final int size,
 		final int ix0, final int ix1, final int ix2) {
 
 //		if (DEBUG) Log.v(TAG, "createOutputFormat:");
 		final MediaFormat outFormat;
         if (ix0 >= 0) {
             outFormat = MediaFormat.createAudioFormat(mime, sampleRate, channelCount);
-        	final ByteBuffer csd0 = ByteBuffer.allocateDirect(ix1 - ix0)
+        	final ByteBuffer src = csd.duplicate();
+        	src.clear();
+        	final int sz0 = (ix1 > ix0) ? (ix1 - ix0) : (size - ix0);
+        	src.limit(ix0 + sz0).position(ix0);
+        	final ByteBuffer csd0 = ByteBuffer.allocateDirect(sz0)
         		.order(ByteOrder.nativeOrder());
-        	csd0.put(csd, ix0, ix1 - ix0);
+        	csd0.put(src);
         	csd0.flip();
             outFormat.setByteBuffer("csd-0", csd0);
 //			if (DEBUG) BufferHelper.dump("sps", csd0, 0, csd0 != null ? csd0.capacity() : 0);
@@ -89,7 +93,8 @@ public class FakeAudioEncoder extends AbstractFakeEncoder
 				final int sz = (ix2 > ix1) ? (ix2 - ix1) : (size - ix1);
             	final ByteBuffer csd1 = ByteBuffer.allocateDirect(sz)
             		.order(ByteOrder.nativeOrder());
-            	csd1.put(csd, ix1, sz);
+            	src.limit(ix1 + sz).position(ix1);
+            	csd1.put(src);
             	csd1.flip();
                 outFormat.setByteBuffer("csd-1", csd1);
 //				if (DEBUG) BufferHelper.dump("pps", csd1, 0, csd1 != null ? csd1.capacity() : 0);
@@ -23,6 +23,8 @@ import android.media.MediaFormat;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
+import androidx.annotation.NonNull;
+
 /**
  * 別途H.264/AVCでエンコード済みの映像データを受け取ってバッファリングして引き渡すためのIVideoEncoder実装
  * webカメラがH.264エンコードに対応している場合などにデコード＆再エンコードをしないで直接録画できるようにするため
@@ -175,16 +177,25 @@ public class FakeVideoEncoder extends AbstractFakeEncoder
 	 */
 	@Override
 	protected MediaFormat createOutputFormat(final String mime,
-		final byte[] csd, final int size,
+		@NonNull final ByteBuffer csd, final int size,
 		final int ix0, final int ix1, final int ix2) {
 		
 //		if (DEBUG) Log.v(TAG, "createOutputFormat:");
+		// SPSを解析できれば解像度等はSPSの値を使う
+		final MediaFormat parsed = SpsParser.createVideoFormat(mime, csd, 0, size, mWidth, mHeight);
+		if (parsed != null) {
+			return parsed;
+		}
 		final MediaFormat outFormat;
         if (ix0 >= 0) {
             outFormat = MediaFormat.createVideoFormat(mime, mWidth, mHeight);
-        	final ByteBuffer csd0 = ByteBuffer.allocateDirect(ix1 - ix0)
+        	final ByteBuffer src = csd.duplicate();
+        	src.clear();
+        	final int sz0 = (ix1 > ix0) ? (ix1 - ix0) : (size - ix0);
+        	src.limit(ix0 + sz0).position(ix0);
+        	final ByteBuffer csd0 = ByteBuffer.allocateDirect(sz0)
         		.order(ByteOrder.nativeOrder());
-        	csd0.put(csd, ix0, ix1 - ix0);
+        	csd0.put(src);
         	csd0.flip();
             outFormat.setByteBuffer("csd-0", csd0);
 //			if (DEBUG) BufferHelper.dump("sps", csd0, 0, csd0 != null ? csd0.capacity() : 0);
@@ -192,7 +203,8 @@ public class FakeVideoEncoder extends AbstractFakeEncoder
 				final int sz = (ix2 > ix1) ? (ix2 - ix1) : (size - ix1);
             	final ByteBuffer csd1 = ByteBuffer.allocateDirect(sz)
             		.order(ByteOrder.nativeOrder());
-            	csd1.put(csd, ix1, sz);
+            	src.limit(ix1 + sz).position(ix1);
+            	csd1.put(src);
             	csd1.flip();
                 outFormat.setByteBuffer("csd-1", csd1);
 //				if (DEBUG) BufferHelper.dump("pps", csd1, 0, csd1 != null ? csd1.capacity() : 0);
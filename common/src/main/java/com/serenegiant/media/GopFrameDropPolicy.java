@@ -0,0 +1,318 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * GOP構造を考慮したIFrameDropPolicy実装
+ * キューやバッファプールに空きがないときは
+ * 1. 他のフレームから参照されない映像フレーム(h.264のnal_ref_idc=0, h.265の最大のTemporalIdのサブレイヤー非参照ピクチャー)
+ * 2. キュー内で最も古い映像フレームから次のキーフレームの直前まで(GOP単位)
+ * の順に破棄する, キュー内に次のキーフレームが無いときは次のキーフレームが来るまで新しい映像フレームも破棄する
+ * codec specific data(BUFFER_FLAG_CODEC_CONFIG), ストリーム終端と音声フレームは破棄しない
+ * (それでも空きを作れなかったときに限りキューへ追加しようとしたフレームが破棄される)
+ * 映像トラックを指定しなかったときは何も破棄しないので従来通りキュー/プールの上限で破棄される
+ */
+public class GopFrameDropPolicy implements IFrameDropPolicy {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = GopFrameDropPolicy.class.getSimpleName();
+
+	/**
+	 * トラックインデックスに関係なく全てのフレームを映像フレームとして扱う
+	 * (AbstractFakeEncoderのように単一トラックのキューで使う場合)
+	 */
+	public static final int TRACK_ANY = -1;
+
+	@NonNull
+	private final Object mSync = new Object();
+	/**
+	 * 破棄するフレーム(ワーク用)
+	 */
+	@NonNull
+	private final List<RecycleMediaData> mWork = new ArrayList<>();
+	@Nullable
+	private NalUnitScanner mScanner;
+	private int mVideoTrackIx = TRACK_ANY;
+	/**
+	 * 次のキーフレームが来るまで映像フレームを破棄するかどうか
+	 */
+	private boolean mDropUntilKeyFrame;
+	/**
+	 * h.265/HEVCのストリーム内の最大のTemporalId, SPSを受け取るまでは不明なので-1
+	 */
+	private int mMaxTemporalId = -1;
+	private long mDisposableDrops;
+	private long mGopDrops;
+	private long mOverflowDrops;
+
+	/**
+	 * コンストラクタ
+	 * 映像トラックを指定しないので#setVideoTrackを呼ぶまでは映像フレームを破棄しない
+	 */
+	public GopFrameDropPolicy() {
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param videoMime 映像のmime type
+	 * @param videoTrackIx 映像トラックのインデックスまたはTRACK_ANY
+	 */
+	public GopFrameDropPolicy(@Nullable final String videoMime, final int videoTrackIx) {
+		setVideoTrack(videoMime, videoTrackIx);
+	}
+
+	/**
+	 * 映像トラックを設定する
+	 * @param videoMime 映像のmime type, nullなら映像トラック無し
+	 * @param videoTrackIx 映像トラックのインデックスまたはTRACK_ANY
+	 */
+	public void setVideoTrack(@Nullable final String videoMime, final int videoTrackIx) {
+		synchronized (mSync) {
+			mScanner = videoMime != null ? new NalUnitScanner(videoMime) : null;
+			mVideoTrackIx = videoTrackIx;
+			mDropUntilKeyFrame = false;
+			mMaxTemporalId = -1;
+		}
+	}
+
+	@Override
+	public boolean shouldDrop(@NonNull final MediaData frame) {
+		synchronized (mSync) {
+			if ((mScanner != null) && mScanner.isHevc()
+				&& ((mVideoTrackIx == TRACK_ANY) || (frame.trackIx() == mVideoTrackIx))
+				&& ((frame.flags() & (MediaCodec.BUFFER_FLAG_CODEC_CONFIG
+					| MediaCodecUtils.BUFFER_FLAG_KEY_FRAME)) != 0)) {
+				// codec specific dataまたはキーフレームにSPSが含まれていれば最大のTemporalIdを更新する
+				updateMaxTemporalId(frame);
+			}
+			if (mDropUntilKeyFrame && isVideoFrame(frame)) {
+				if ((frame.flags() & MediaCodecUtils.BUFFER_FLAG_KEY_FRAME) != 0) {
+					mDropUntilKeyFrame = false;
+				} else {
+					mGopDrops++;
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	@Override
+	public int shed(@NonNull final Collection<RecycleMediaData> queue) {
+		synchronized (mSync) {
+			if (mScanner == null) {
+				return 0;
+			}
+			// 他のフレームから参照されない映像フレームがあれば最も古いものを破棄する
+			for (final RecycleMediaData frame: queue) {
+				if (isVideoFrame(frame)
+					&& ((frame.flags() & MediaCodecUtils.BUFFER_FLAG_KEY_FRAME) == 0)
+					&& isDisposable(frame)) {
+
+					if (queue.remove(frame)) {
+						frame.release();
+						mDisposableDrops++;
+						if (DEBUG) Log.v(TAG, "shed:disposable frame dropped");
+						return 1;
+					}
+				}
+			}
+			// 最も古い映像フレームから次のキーフレームの直前まで破棄する
+			boolean found = false;
+			boolean hasNextKeyFrame = false;
+			for (final RecycleMediaData frame: queue) {
+				if (isVideoFrame(frame)) {
+					if (found && ((frame.flags() & MediaCodecUtils.BUFFER_FLAG_KEY_FRAME) != 0)) {
+						hasNextKeyFrame = true;
+						break;
+					}
+					found = true;
+					mWork.add(frame);
+				}
+			}
+			int result = 0;
+			for (final RecycleMediaData frame: mWork) {
+				if (queue.remove(frame)) {
+					frame.release();
+					result++;
+				}
+			}
+			mWork.clear();
+			if (found && !hasNextKeyFrame) {
+				// キュー内に次のキーフレームが無いので次のキーフレームが来るまで破棄する
+				mDropUntilKeyFrame = true;
+			}
+			mGopDrops += result;
+			if (DEBUG && (result > 0)) Log.v(TAG, "shed:gop dropped," + result);
+			return result;
+		}
+	}
+
+	/**
+	 * 破棄したフレームが映像フレームまたは不明な時は
+	 * 参照先が欠けた映像フレームを書き出さないように次のキーフレームが来るまで映像フレームを破棄する
+	 * @param frame 破棄したフレーム, バッファプールから取得できなかったときなどフレームが不明な時はnull
+	 */
+	@Override
+	public void onOverflow(@Nullable final MediaData frame) {
+		synchronized (mSync) {
+			mOverflowDrops++;
+			if ((mScanner != null) && ((frame == null) || isVideoFrame(frame))) {
+				mDropUntilKeyFrame = true;
+			}
+		}
+	}
+
+	@Override
+	public void reset() {
+		synchronized (mSync) {
+			mDropUntilKeyFrame = false;
+			mMaxTemporalId = -1;
+			mWork.clear();
+		}
+	}
+
+	/**
+	 * 他のフレームから参照されない映像フレームを破棄した数を取得
+	 * @return
+	 */
+	public long getDisposableDrops() {
+		synchronized (mSync) {
+			return mDisposableDrops;
+		}
+	}
+
+	/**
+	 * GOP単位で破棄した映像フレーム数を取得
+	 * (次のキーフレームが来るまで破棄した新しい映像フレームを含む)
+	 * @return
+	 */
+	public long getGopDrops() {
+		synchronized (mSync) {
+			return mGopDrops;
+		}
+	}
+
+	/**
+	 * 空きを作れずに新しいフレームを破棄した数を取得
+	 * @return
+	 */
+	public long getOverflowDrops() {
+		synchronized (mSync) {
+			return mOverflowDrops;
+		}
+	}
+
+	/**
+	 * 破棄したフレーム数の合計を取得
+	 * @return
+	 */
+	public long getTotalDrops() {
+		synchronized (mSync) {
+			return mDisposableDrops + mGopDrops + mOverflowDrops;
+		}
+	}
+
+	/**
+	 * 破棄したフレーム数をクリアする
+	 */
+	public void resetCounters() {
+		synchronized (mSync) {
+			mDisposableDrops = mGopDrops = mOverflowDrops = 0;
+		}
+	}
+
+	/**
+	 * 破棄対象となる映像フレームかどうか
+	 * codec specific dataとストリーム終端は映像トラックでも破棄しない
+	 * @param frame
+	 * @return
+	 */
+	private boolean isVideoFrame(@NonNull final MediaData frame) {
+		return (mScanner != null)
+			&& ((mVideoTrackIx == TRACK_ANY) || (frame.trackIx() == mVideoTrackIx))
+			&& ((frame.flags() & (MediaCodec.BUFFER_FLAG_CODEC_CONFIG
+				| MediaCodec.BUFFER_FLAG_END_OF_STREAM)) == 0);
+	}
+
+	/**
+	 * フレームに含まれるh.265/HEVCのSPSから最大のTemporalIdを取得する
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param frame
+	 */
+	private void updateMaxTemporalId(@NonNull final MediaData frame) {
+		final NalUnitScanner scanner = mScanner;
+		final ByteBuffer buffer = frame.getRaw();
+		if ((scanner == null) || (buffer == null) || (frame.size() <= 0)) {
+			return;
+		}
+		scanner.reset(buffer, 0, Math.min(frame.size(), buffer.limit()));
+		try {
+			while (scanner.next()) {
+				if (scanner.isSps()) {
+					mMaxTemporalId = scanner.getMaxTemporalId();
+					if (DEBUG) Log.v(TAG, "updateMaxTemporalId:" + mMaxTemporalId);
+					break;
+				}
+			}
+		} finally {
+			scanner.clear();
+		}
+	}
+
+	/**
+	 * 他のフレームから参照されないフレームかどうか
+	 * スライスを含んでいてすべてのスライスが非参照であればtrue
+	 * 消費側と同時にアクセスする可能性があるのでByteBufferのposition/limitは変更しない
+	 * @param frame
+	 * @return
+	 */
+	private boolean isDisposable(@NonNull final MediaData frame) {
+		final NalUnitScanner scanner = mScanner;
+		final ByteBuffer buffer = frame.getRaw();
+		if ((scanner == null) || (buffer == null) || (frame.size() <= 0)) {
+			return false;
+		}
+		boolean hasSlice = false;
+		scanner.reset(buffer, 0, Math.min(frame.size(), buffer.limit()));
+		try {
+			while (scanner.next()) {
+				if (scanner.isVcl()) {
+					if (!scanner.isNonReference(mMaxTemporalId)) {
+						return false;
+					}
+					hasSlice = true;
+				}
+			}
+		} finally {
+			scanner.clear();
+		}
+		return hasSlice;
+	}
+}
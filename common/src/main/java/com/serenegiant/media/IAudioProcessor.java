@@ -0,0 +1,81 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.nio.ByteBuffer;
+
+import androidx.annotation.NonNull;
+
+/**
+ * IAudioSamplerで音声データを取得してからコールバックを呼び出すまでの間に
+ * 音声データを変換するための処理ステージのインターフェース
+ * IAudioSamplerのコールバックスレッド上で呼び出される
+ */
+public interface IAudioProcessor {
+	/**
+	 * 出力する音声データのサンプリング周波数を取得
+	 * @return
+	 */
+	public int getSamplingFrequency();
+
+	/**
+	 * 出力する音声データのチャネル数を取得
+	 * @return
+	 */
+	public int getChannels();
+
+	/**
+	 * 出力する音声データのエンコードを取得
+	 * @return
+	 */
+	@AudioRecordCompat.AudioFormats
+	public int getAudioFormat();
+
+	/**
+	 * 指定したバイト数の音声データを入力したときの最大出力バイト数を取得
+	 * #processへ渡す出力用バッファはこのサイズ以上の空きが必要
+	 * @param inputBytes
+	 * @return
+	 */
+	public int getMaxOutputBytes(final int inputBytes);
+
+	/**
+	 * 音声データを変換する
+	 * 入力用バッファのposition/limitの間のデータを変換して出力用バッファのpositionから書き込む
+	 * 入力用バッファのpositionは読み込んだ分だけ、出力用バッファのpositionは書き込んだ分だけ進める
+	 * @param in 入力用バッファ
+	 * @param presentationTimeUs 入力した音声データのpresentationTimeUs
+	 * @param out 出力用バッファ
+	 * @return 出力したバイト数
+	 * @throws IllegalArgumentException 出力用バッファの空きが足りないとき
+	 */
+	public int process(@NonNull final ByteBuffer in, final long presentationTimeUs,
+		@NonNull final ByteBuffer out) throws IllegalArgumentException;
+
+	/**
+	 * 直前の#process呼び出しで出力した音声データのpresentationTimeUsを取得
+	 * @return
+	 */
+	public long getOutputPresentationTimeUs();
+
+	/**
+	 * 内部状態(未出力のサンプル、タイムスタンプ)をリセットする
+	 */
+	public void reset();
+}
@@ -20,16 +20,23 @@ package com.serenegiant.media;
 
 import android.Manifest;
 import android.annotation.SuppressLint;
+import android.media.AudioFormat;
 import android.util.Log;
 
 import com.serenegiant.system.Time;
 
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.nio.ByteBuffer;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.TimeUnit;
 
+import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresPermission;
 
 public abstract class IAudioSampler {
@@ -76,6 +83,29 @@ public abstract class IAudioSampler {
 		public void onError(@NonNull  Throwable t);
 	}
 
+	/**
+	 * 専用スレッドで呼び出すコールバックのバックログが一杯になった時に最も古い音声データを破棄する
+	 */
+	public static final int OVERFLOW_DROP_OLDEST = 0;
+	/**
+	 * 専用スレッドで呼び出すコールバックのバックログが一杯になった時に空きができるまで待機する
+	 * (他のコールバックの呼び出しも遅延する)
+	 */
+	public static final int OVERFLOW_BLOCK = 1;
+
+	@IntDef({
+		OVERFLOW_DROP_OLDEST,
+		OVERFLOW_BLOCK,
+	})
+	@Retention(RetentionPolicy.SOURCE)
+	public @interface OverflowPolicy {}
+
+	/**
+	 * 専用スレッドで呼び出すコールバックのデフォルトのバックログの最大数
+	 * 25フレーム/秒のはずなので約1秒分
+	 */
+	public static final int DEFAULT_MAX_BACKLOG = 25;
+
 	/**
 	 * バッファリング用に生成する音声データレコードの最大生成する
 	 */
@@ -96,10 +126,23 @@ public abstract class IAudioSampler {
 	@NonNull
 	private final Set<SoundSamplerCallback> mCallbacks
 		= new CopyOnWriteArraySet<SoundSamplerCallback>();
+	/**
+	 * 専用スレッドで呼び出すコールバック
+	 */
+	@NonNull
+	private final Map<SoundSamplerCallback, CallbackLane> mLanes
+		= new ConcurrentHashMap<SoundSamplerCallback, CallbackLane>();
 	private volatile boolean mIsCapturing;
+	/**
+	 * 音声データ取得からコールバック呼び出しまでの間に音声データを変換する処理ステージ
+	 */
+	@Nullable
+	private volatile IAudioProcessor mAudioProcessor;
 
 	public IAudioSampler() {
 		mAudioQueue = new MemMediaQueue(MAX_POOL_SIZE, MAX_POOL_SIZE, MAX_QUEUE_SIZE);
+		// 音声データは破棄しないのでGopFrameDropPolicyは破棄した数の集計とバッファの回収のみ行う
+		mAudioQueue.setDropPolicy(new GopFrameDropPolicy());
 	}
 
 	/**
@@ -112,6 +155,10 @@ public abstract class IAudioSampler {
 		}
 //		mIsCapturing = false;	// 念の為に
 		mCallbacks.clear();
+		for (final CallbackLane lane: mLanes.values()) {
+			lane.release();
+		}
+		mLanes.clear();
 		if (DEBUG) Log.v(TAG, "release:finished");
 	}
 
@@ -163,6 +210,27 @@ public abstract class IAudioSampler {
 		}
 	}
 
+	/**
+	 * 専用スレッドで呼び出すコールバックを追加する
+	 * 音声データはコピーせずに参照カウント付きで共有して、
+	 * 全てのコールバックが使い終わった時点でプールへ戻す
+	 * コールバックへは読み取り専用のByteBufferが渡される
+	 * 処理に時間がかかるコールバック(ネットワーク送信等)が他のコールバックを遅延させないようにするときに使う
+	 * @param callback
+	 * @param maxBacklog 処理待ちの音声データの最大数
+	 * @param policy バックログが一杯になった時の処理, OVERFLOW_DROP_OLDESTまたはOVERFLOW_BLOCK
+	 */
+	public void addCallback(final SoundSamplerCallback callback,
+		final int maxBacklog, @OverflowPolicy final int policy) {
+
+		if ((callback != null) && !mLanes.containsKey(callback)) {
+			final CallbackLane lane = new CallbackLane(callback, maxBacklog, policy);
+			if (mLanes.put(callback, lane) == null) {
+				lane.start();
+			}
+		}
+	}
+
 	/**
 	 * コールバックを削除する
 	 * @param callback
@@ -170,7 +238,44 @@ public abstract class IAudioSampler {
 	public void removeCallback(final SoundSamplerCallback callback) {
 		if (callback != null) {
 			mCallbacks.remove(callback);
+			final CallbackLane lane = mLanes.remove(callback);
+			if (lane != null) {
+				lane.release();
+			}
+		}
+	}
+
+	/**
+	 * 専用スレッドで呼び出すコールバックでバックログが一杯になって破棄した音声データの数を取得
+	 * @param callback
+	 * @return
+	 */
+	public long getDroppedCount(final SoundSamplerCallback callback) {
+		final CallbackLane lane = callback != null ? mLanes.get(callback) : null;
+		return lane != null ? lane.mDropped : 0;
+	}
+
+	/**
+	 * 音声データ取得からコールバック呼び出しまでの間に音声データを変換する処理ステージをセットする
+	 * IAudioProcessorの入力側の設定は#getSamplingFrequency/#getChannels/#getAudioFormatと一致させること
+	 * エンコード済みの音声データ(ENCODING_AAC_LC)の場合は無視する
+	 * 音声サンプリング中に変更する場合は新しいIAudioProcessorを生成してセットすること
+	 * @param processor nullなら取得した音声データをそのままコールバックへ渡す
+	 */
+	public void setAudioProcessor(@Nullable final IAudioProcessor processor) {
+		if (processor != null) {
+			processor.reset();
 		}
+		mAudioProcessor = processor;
+	}
+
+	/**
+	 * 音声データ取得からコールバック呼び出しまでの間に音声データを変換する処理ステージを取得
+	 * @return
+	 */
+	@Nullable
+	public IAudioProcessor getAudioProcessor() {
+		return mAudioProcessor;
 	}
 
 	protected void setIsCapturing(final boolean isCapturing) {
@@ -190,7 +295,7 @@ public abstract class IAudioSampler {
 	 * @return
 	 */
 	public boolean hasCallback() {
-		return !mCallbacks.isEmpty();
+		return !mCallbacks.isEmpty() || !mLanes.isEmpty();
 	}
 
 	/**
@@ -232,6 +337,52 @@ public abstract class IAudioSampler {
 	 */
 	public abstract int getAudioSessionId();
 
+	/**
+	 * コールバックへ渡す音声データのエンコードを返す
+	 * IAudioProcessorがセットされていればその出力のエンコード、
+	 * そうでなければ#getAudioFormatと同じ
+	 * @return
+	 */
+	@AudioRecordCompat.AudioFormats
+	public int getOutputAudioFormat() {
+		final IAudioProcessor processor = getActiveProcessor();
+		return processor != null ? processor.getAudioFormat() : getAudioFormat();
+	}
+
+	/**
+	 * コールバックへ渡す音声データのチャネル数を返す
+	 * IAudioProcessorがセットされていればその出力のチャネル数、
+	 * そうでなければ#getChannelsと同じ
+	 * @return
+	 */
+	public int getOutputChannels() {
+		final IAudioProcessor processor = getActiveProcessor();
+		return processor != null ? processor.getChannels() : getChannels();
+	}
+
+	/**
+	 * コールバックへ渡す音声データのサンプリング周波数を返す
+	 * IAudioProcessorがセットされていればその出力のサンプリング周波数、
+	 * そうでなければ#getSamplingFrequencyと同じ
+	 * @return
+	 */
+	public int getOutputSamplingFrequency() {
+		final IAudioProcessor processor = getActiveProcessor();
+		return processor != null ? processor.getSamplingFrequency() : getSamplingFrequency();
+	}
+
+	/**
+	 * 有効なIAudioProcessorを取得する
+	 * エンコード済みの音声データの場合はnullを返す
+	 * @return
+	 */
+	@Nullable
+	private IAudioProcessor getActiveProcessor() {
+		final IAudioProcessor processor = mAudioProcessor;
+		return (processor != null) && (getAudioFormat() != AudioFormat.ENCODING_AAC_LC)
+			? processor : null;
+	}
+
 	/**
 	 * 音声データ１つ当たりのバイト数を返す
 	 * (AudioRecordから1度に読み込みを試みる最大バイト数)
@@ -241,6 +392,24 @@ public abstract class IAudioSampler {
 		return mDefaultBufferSize;
 	}
 
+	/**
+	 * 音声データキューのIFrameDropPolicyを取得
+	 * デフォルトはGopFrameDropPolicy
+	 * @return
+	 */
+	@Nullable
+	public IFrameDropPolicy getDropPolicy() {
+		return mAudioQueue.getDropPolicy();
+	}
+
+	/**
+	 * 音声データキューのIFrameDropPolicyをセット
+	 * @param policy
+	 */
+	public void setDropPolicy(@Nullable final IFrameDropPolicy policy) {
+		mAudioQueue.setDropPolicy(policy);
+	}
+
 	/**
 	 * キュー内のデータを全てリサイクルして空にする
 	 */
@@ -250,13 +419,17 @@ public abstract class IAudioSampler {
 
 	/**
 	 * 音声データ取得時のコールバックを呼び出す
+	 * 専用スレッドで呼び出すコールバックへは参照カウントを増やして読み取り専用のByteBufferを渡す
 	 * @param data
 	 */
-	private void callOnData(@NonNull final MediaData data) {
+	private void callOnData(@NonNull final RecycleMediaData data) {
+		final long pts = data.presentationTimeUs();
+		for (final CallbackLane lane: mLanes.values()) {
+			lane.offer(data, pts);
+		}
 		@NonNull
 		final ByteBuffer buf = data.get();
 		final int size = data.size();
-		final long pts = data.presentationTimeUs();
 		for (final SoundSamplerCallback callback: mCallbacks) {
 			try {
 				buf.clear();
@@ -330,36 +503,225 @@ public abstract class IAudioSampler {
 		return result;
     }
 
-    /**
-     * キューから音声データを取り出してコールバックを呼び出すためのスレッド
-     */
-    private final class CallbackThread extends Thread {
-    	public CallbackThread() {
-    		super("AudioSampler");
-    	}
-
-    	@Override
-    	public void run() {
-    		if (DEBUG) Log.i(TAG, "CallbackThread:start");
-    		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_AUDIO); // THREAD_PRIORITY_URGENT_AUDIO
+	/**
+	 * キューから音声データを取り出してコールバックを呼び出すためのスレッド
+	 */
+	private final class CallbackThread extends Thread {
+		public CallbackThread() {
+			super("AudioSampler");
+		}
+
+		@Override
+		public void run() {
+			if (DEBUG) Log.i(TAG, "CallbackThread:start");
+			android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_AUDIO); // THREAD_PRIORITY_URGENT_AUDIO
 			RecycleMediaData data;
-    		for (; mIsCapturing ;) {
-    			try {
+			for (; mIsCapturing ;) {
+				try {
 					data = pollMediaData(100);
 				} catch (final InterruptedException e) {
 					break;
 				}
-    			if (data != null) {
-    				callOnData(data);
-    				// 使用済みのバッファをプールに戻して再利用する
-    				data.recycle();
-    			}
-    		} // for (; mIsCapturing ;)
-    		synchronized (mCallbackSync) {
+				if (data != null) {
+					final IAudioProcessor processor = getActiveProcessor();
+					if (processor != null) {
+						data = process(processor, data);
+					}
+					if (data != null) {
+						callOnData(data);
+						// 使用済みのバッファをプールに戻して再利用する
+						// (専用スレッドで呼び出すコールバックが使用中なら使い終わった時点でプールへ戻る)
+						data.release();
+					}
+				}
+			} // for (; mIsCapturing ;)
+			synchronized (mCallbackSync) {
 				mCallbackSync.notifyAll();
 			}
-    		if (DEBUG) Log.i(TAG, "CallbackThread:finished");
-    	}
-    }
+			if (DEBUG) Log.i(TAG, "CallbackThread:finished");
+		}
+
+		/**
+		 * IAudioProcessorで音声データを変換する
+		 * 変換後の音声データはプールから取得したバッファへ書き込むのでメモリー割り当ては発生しない
+		 * (プールが空の場合を除く)
+		 * @param processor
+		 * @param data 変換前の音声データ, 変換後はプールへ戻す
+		 * @return 変換後の音声データ, 出力がない時または変換後のバッファを確保できなかった時はnull
+		 */
+		@Nullable
+		private RecycleMediaData process(
+			@NonNull final IAudioProcessor processor,
+			@NonNull final RecycleMediaData data) {
+
+			final int outBytes = processor.getMaxOutputBytes(data.size());
+			final RecycleMediaData result = obtain(outBytes);
+			if (result == null) {
+				// バッファを確保できなかったときは変換前の音声データを渡さずに破棄する
+				data.recycle();
+				return null;
+			}
+			try {
+				result.resize(outBytes);
+				final ByteBuffer out = result.getRaw();
+				out.clear();
+				final int size = processor.process(data.get(), data.presentationTimeUs(), out);
+				if (size > 0) {
+					result.size(size)
+						.presentationTimeUs(processor.getOutputPresentationTimeUs());
+					return result;
+				}
+			} catch (final Exception e) {
+				Log.w(TAG, "process:", e);
+			} finally {
+				data.recycle();
+			}
+			result.recycle();
+			return null;
+		}
+	}
+
+
+	/**
+	 * コールバックを専用スレッドで呼び出すためのクラス
+	 * 固定長のリングバッファで処理待ちの音声データを保持する
+	 */
+	private final class CallbackLane implements Runnable {
+		@NonNull
+		private final SoundSamplerCallback mCallback;
+		@OverflowPolicy
+		private final int mPolicy;
+		@NonNull
+		private final RecycleMediaData[] mData;
+		@NonNull
+		private final ByteBuffer[] mViews;
+		@NonNull
+		private final long[] mPts;
+		private int mHead, mCount;
+		private volatile boolean mIsRunning = true;
+		/**
+		 * バックログが一杯で破棄した音声データの数
+		 */
+		private volatile long mDropped;
+
+		private CallbackLane(@NonNull final SoundSamplerCallback callback,
+			final int maxBacklog, @OverflowPolicy final int policy) {
+
+			mCallback = callback;
+			mPolicy = policy;
+			final int n = Math.max(maxBacklog, 1);
+			mData = new RecycleMediaData[n];
+			mViews = new ByteBuffer[n];
+			mPts = new long[n];
+		}
+
+		private void start() {
+			new Thread(this, "AudioSamplerLane").start();
+		}
+
+		/**
+		 * 終了要求する, 処理待ちの音声データは参照カウントを減らして破棄する
+		 */
+		private void release() {
+			synchronized (this) {
+				mIsRunning = false;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * 音声データを処理待ちに追加する
+		 * コールバック用スレッドから呼び出す
+		 * @param data
+		 * @param pts
+		 */
+		private void offer(@NonNull final RecycleMediaData data, final long pts) {
+			// 呼び出し元で内部バッファのposition/limitを変更する前に読み取り専用のByteBufferを生成する
+			final ByteBuffer view = data.asReadOnlyBuffer();
+			data.retain();
+			RecycleMediaData dropped = null;
+			synchronized (this) {
+				final int capacity = mData.length;
+				while (mIsRunning && (mCount >= capacity) && (mPolicy == OVERFLOW_BLOCK)) {
+					try {
+						wait(100);
+					} catch (final InterruptedException e) {
+						break;
+					}
+				}
+				if (!mIsRunning) {
+					dropped = data;
+				} else {
+					if (mCount >= capacity) {
+						// 最も古い音声データを破棄する
+						dropped = mData[mHead];
+						mData[mHead] = null;
+						mViews[mHead] = null;
+						mHead = (mHead + 1) % capacity;
+						mCount--;
+						mDropped++;
+					}
+					final int ix = (mHead + mCount) % capacity;
+					mData[ix] = data;
+					mViews[ix] = view;
+					mPts[ix] = pts;
+					mCount++;
+					notifyAll();
+				}
+			}
+			if (dropped != null) {
+				dropped.release();
+			}
+		}
+
+		@Override
+		public void run() {
+			if (DEBUG) Log.v(TAG, "CallbackLane#run:start");
+			android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_AUDIO);
+			for ( ; ; ) {
+				final RecycleMediaData data;
+				final ByteBuffer view;
+				final long pts;
+				synchronized (this) {
+					while (mIsRunning && (mCount == 0)) {
+						try {
+							wait();
+						} catch (final InterruptedException e) {
+							mIsRunning = false;
+						}
+					}
+					if (!mIsRunning) break;
+					data = mData[mHead];
+					view = mViews[mHead];
+					pts = mPts[mHead];
+					mData[mHead] = null;
+					mViews[mHead] = null;
+					mHead = (mHead + 1) % mData.length;
+					mCount--;
+					notifyAll();
+				}
+				try {
+					mCallback.onData(view, pts);
+				} catch (final Exception e) {
+					Log.w(TAG, "CallbackLane#run:", e);
+					mLanes.remove(mCallback);
+					mIsRunning = false;
+				} finally {
+					data.release();
+				}
+			}
+			// 処理待ちの音声データを破棄する
+			synchronized (this) {
+				for (; mCount > 0; mCount--) {
+					mData[mHead].release();
+					mData[mHead] = null;
+					mViews[mHead] = null;
+					mHead = (mHead + 1) % mData.length;
+				}
+				notifyAll();
+			}
+			if (DEBUG) Log.v(TAG, "CallbackLane#run:finished");
+		}
+	}
 
 }
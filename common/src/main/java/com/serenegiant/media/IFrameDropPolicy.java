@@ -0,0 +1,65 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.util.Collection;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * MemMediaQueueのキューやバッファプールに空きがなくなったときに
+ * どのフレームを破棄するかを決めるためのインターフェース
+ * MemMediaQueueの生産側スレッドから呼び出されるので実装側で排他制御すること
+ */
+public interface IFrameDropPolicy {
+	/**
+	 * キューへ追加する前に呼び出される
+	 * @param frame 追加しようとしているフレーム
+	 * @return true: 追加せずに破棄する
+	 */
+	public boolean shouldDrop(@NonNull final MediaData frame);
+
+	/**
+	 * キューまたはバッファプールに空きがない時に呼び出される
+	 * キューから破棄するフレームを選んでCollection#removeで取り除けたものを
+	 * RecycleMediaData#releaseで解放すること
+	 * (TeeMuxerのように複数のキューで共有している場合があるので#recycleではなく
+	 * 参照カウントを減らして最後の参照が無くなったときにバッファプールへ戻す,
+	 * 取り除けなかったものは既に消費側が取り出しているので解放してはいけない)
+	 * 呼び出し元はフレームを選んでから取り除くまでの間にキューへフレームが追加されないように
+	 * キューへの追加と排他すること(消費側でリサイクルしたバッファが再取得されて
+	 * キューへ追加されると選んだフレームとは別のフレームを取り除いてしまう)
+	 * @param queue キュー, 古い順に列挙される
+	 * @return 破棄したフレーム数
+	 */
+	public int shed(@NonNull final Collection<RecycleMediaData> queue);
+
+	/**
+	 * #shedを呼んでも空きを作れずに新しいフレームを破棄したときに呼び出される
+	 * @param frame 破棄したフレーム, バッファプールから取得できなかったときなどフレームが不明な時はnull
+	 */
+	public void onOverflow(@Nullable final MediaData frame);
+
+	/**
+	 * 内部状態をリセットする
+	 * キューをクリアしたときに呼び出される
+	 */
+	public void reset();
+}
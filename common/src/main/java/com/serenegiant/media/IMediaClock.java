@@ -0,0 +1,32 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+/**
+ * 再生時の同期の基準にする再生位置を提供するためのインターフェース
+ * 映像の表示タイミングを音声の再生位置に合わせるときなどに使う
+ * 任意のスレッドから呼び出されるので実装側で排他制御すること
+ */
+public interface IMediaClock {
+	/**
+	 * 現在の再生位置(プレゼンテーションタイム)を取得
+	 * @return [マイクロ秒], 再生位置が不明なときは負
+	 */
+	public long getCurrentPositionUs();
+}
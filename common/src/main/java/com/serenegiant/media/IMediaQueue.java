@@ -52,8 +52,10 @@ public interface IMediaQueue<T extends IRecycleBuffer> extends IRecycleParent<T>
 
 	/**
 	 * キューに追加
+	 * キューに追加できなかったときは実装側でバッファをプールへ戻すので
+	 * falseが返ったときは呼び出し元でバッファへアクセスしたりリサイクルしたりしないこと
 	 * @param buffer
-	 * @return
+	 * @return true: キューに追加できた
 	 */
 	public boolean queueFrame(@NonNull final T buffer);
 	
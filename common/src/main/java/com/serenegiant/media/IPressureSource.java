@@ -0,0 +1,49 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+/**
+ * AdaptiveBitrateMonitorへエンコード済みデータの出力先の混雑状況を提供するためのインターフェース
+ * AdaptiveBitrateMonitorのスレッドから呼び出されるので実装側で排他制御すること
+ */
+public interface IPressureSource {
+	/**
+	 * 書き込み待ちでキューに滞留しているフレーム数を取得
+	 * @return
+	 */
+	public int getQueueDepth();
+
+	/**
+	 * キューに保持できる最大フレーム数を取得
+	 * @return 上限が無い/不明なら0以下
+	 */
+	public int getQueueCapacity();
+
+	/**
+	 * muxerが書き込んだ累積バイト数を取得
+	 * @return
+	 */
+	public long getWrittenBytes();
+
+	/**
+	 * 書き込めずに破棄した累積フレーム数を取得
+	 * @return
+	 */
+	public long getDroppedFrames();
+}
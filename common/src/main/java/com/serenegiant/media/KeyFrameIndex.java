@@ -0,0 +1,191 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaExtractor;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+/**
+ * 動画ファイル内のキーフレーム(同期フレーム)のプレゼンテーションタイムの一覧
+ * MediaExtractorで映像トラックのサンプルを先頭から走査して同期フレームの時刻を記録する
+ * (サンプルデータ自体は読み込まないのでコンテナのサンプルテーブルを辿るだけで済む)
+ * 1つのファイルにつき1回だけ生成して、シーク時に目的の時刻の直前のキーフレームを
+ * 二分探索で求めるために使う
+ * #buildはワーカースレッドから呼び出すこと, 走査途中でも走査済みの範囲であれば検索できる
+ */
+public class KeyFrameIndex {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = KeyFrameIndex.class.getSimpleName();
+
+	private static final int DEFAULT_CAPACITY = 256;
+
+	@NonNull
+	private final Object mSync = new Object();
+	/**
+	 * キーフレームのプレゼンテーションタイム[マイクロ秒], 昇順
+	 */
+	@NonNull
+	private long[] mTimesUs = new long[DEFAULT_CAPACITY];
+	private int mCount;
+	private volatile boolean mCompleted;
+	private volatile boolean mCanceled;
+
+	/**
+	 * コンストラクタ
+	 */
+	public KeyFrameIndex() {
+	}
+
+	/**
+	 * キーフレームの一覧を生成する
+	 * 指定したMediaExtractorの読み込み位置を変更するので再生用とは別のMediaExtractorを渡すこと
+	 * 呼び出しスレッドをブロックする
+	 * @param extractor データソースをセット済みのMediaExtractor
+	 * @param trackIndex 映像トラックのインデックス
+	 * @return 最後まで走査できればtrue, #cancelで中断したときはfalse
+	 */
+	@WorkerThread
+	public boolean build(@NonNull final MediaExtractor extractor, final int trackIndex) {
+		if (DEBUG) Log.v(TAG, "build:trackIndex=" + trackIndex);
+		final int n = extractor.getTrackCount();
+		for (int i = 0; i < n; i++) {
+			if (i == trackIndex) {
+				extractor.selectTrack(i);
+			} else {
+				extractor.unselectTrack(i);
+			}
+		}
+		extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+		do {
+			if (mCanceled) {
+				if (DEBUG) Log.v(TAG, "build:canceled," + size());
+				return false;
+			}
+			if ((extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+				final long timeUs = extractor.getSampleTime();
+				if (timeUs >= 0) {
+					add(timeUs);
+				}
+			}
+		} while (extractor.advance());
+		complete();
+		if (DEBUG) Log.v(TAG, "build:finished," + size());
+		return true;
+	}
+
+	/**
+	 * #buildを中断する
+	 */
+	public void cancel() {
+		mCanceled = true;
+	}
+
+	/**
+	 * 最後まで走査したことをセットする
+	 * #addでキーフレームを登録したときに呼び出す, 以降は登録済みの範囲外の時刻でも検索できる
+	 */
+	public void complete() {
+		mCompleted = true;
+	}
+
+	/**
+	 * 最後まで走査したかどうか
+	 * @return
+	 */
+	public boolean isCompleted() {
+		return mCompleted;
+	}
+
+	/**
+	 * 登録済みのキーフレームの数を取得
+	 * @return
+	 */
+	public int size() {
+		synchronized (mSync) {
+			return mCount;
+		}
+	}
+
+	/**
+	 * 指定した時刻以前で最も近いキーフレームの時刻を取得
+	 * 走査途中で指定した時刻がまだ走査済みの範囲に含まれていないときは
+	 * より近いキーフレームがあるかもしれないので-1を返す
+	 * @param timeUs [マイクロ秒]
+	 * @return キーフレームの時刻[マイクロ秒], 見つからないときは-1
+	 */
+	public long findPrevious(final long timeUs) {
+		synchronized (mSync) {
+			if ((mCount <= 0)
+				|| (!mCompleted && (timeUs > mTimesUs[mCount - 1]))) {
+				return -1L;
+			}
+			final int ix = search(timeUs);
+			return ix >= 0 ? mTimesUs[ix] : -1L;
+		}
+	}
+
+	/**
+	 * キーフレームの時刻を追加
+	 * #build以外(MediaExtractor以外でコンテナを解析したときなど)でキーフレーム一覧を生成するときにも使う
+	 * 通常は昇順に追加されるが念のため挿入位置を探す, 登録済みの時刻は無視する
+	 * @param timeUs [マイクロ秒]
+	 */
+	public void add(final long timeUs) {
+		synchronized (mSync) {
+			final int ix = search(timeUs);
+			if ((ix >= 0) && (mTimesUs[ix] == timeUs)) {
+				return;
+			}
+			if (mCount >= mTimesUs.length) {
+				final long[] times = new long[mTimesUs.length * 2];
+				System.arraycopy(mTimesUs, 0, times, 0, mCount);
+				mTimesUs = times;
+			}
+			final int pos = ix + 1;
+			if (pos < mCount) {
+				System.arraycopy(mTimesUs, pos, mTimesUs, pos + 1, mCount - pos);
+			}
+			mTimesUs[pos] = timeUs;
+			mCount++;
+		}
+	}
+
+	/**
+	 * 指定した時刻以前で最も近いキーフレームのインデックスを二分探索する
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param timeUs
+	 * @return 指定した時刻以前のキーフレームが無いときは-1
+	 */
+	private int search(final long timeUs) {
+		int lo = 0;
+		int hi = mCount - 1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (mTimesUs[mid] <= timeUs) {
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return hi;
+	}
+}
@@ -23,6 +23,7 @@ import android.content.Context;
 import android.media.MediaCodec;
 import android.util.Log;
 
+import com.serenegiant.math.Fraction;
 import com.serenegiant.system.StorageInfo;
 import com.serenegiant.system.StorageUtils;
 import com.serenegiant.utils.FileUtils;
@@ -43,6 +44,12 @@ import androidx.documentfile.provider.DocumentFile;
  * XXX 入力映像のフレームレートを動画ファイルのフレームレートよりも遅くすることでタイムラプス動画になる
  *     例えば動画ファイルのフレームレートを30fps(デフォルト)で、入力映像のフレームレートを5fpsにすると
  *     30÷5=6倍速になる
+ * #setTimelapseFpsで映像フレームを選択するフレームレートをセットすると
+ * 映像入力側で映像フレームを間引いてからエンコーダーへ送ることができる
+ * (間引いた映像フレームはエンコードされないのでエンコーダーの負荷・消費電力を抑えることができる)
+ * その場合は映像入力側で#selectFrameがtrueを返した映像フレームのみを
+ * #getInputSurfaceへ#getPresentationTimeNsのプレゼンテーションタイムで描画して#frameAvailableSoonを呼ぶ
+ * (glpipeline.TimelapsePipelineを使うとこの処理と間引いた映像フレームの合成を行う)
  */
 @SuppressLint("NewApi")
 public class MediaAVTimelapseRecorder extends Recorder {
@@ -66,6 +73,12 @@ public class MediaAVTimelapseRecorder extends Recorder {
 	 * 音声用エンコーダーには対応していないので映像フレーム数のみを保持する
 	 */
 	private long mFrameCounts;
+	/**
+	 * 映像入力側で映像フレームを間引くためのTimelapseFrameSelector
+	 * nullなら間引かずに受け取った全ての映像フレームをエンコードする
+	 */
+	@Nullable
+	private volatile TimelapseFrameSelector mFrameSelector;
 
 	/**
 	 * コンストラクタ
@@ -129,6 +142,77 @@ public class MediaAVTimelapseRecorder extends Recorder {
 		setMuxer(getMuxerFactory().createMuxer(context, getConfig().useMediaMuxer(), output));
 	}
 
+	/**
+	 * 映像入力側で映像フレームを間引く時の映像フレームを選択するフレームレート(実時間基準)をセット
+	 * 例えば映像入力が30fpsの時に1fpsをセットすると30フレーム毎に1フレームだけをエンコーダーへ送る
+	 * 動画ファイルのフレームレートはVideoConfig#captureFpsのまま変わらない
+	 * 録画開始前に呼び出すこと
+	 * @param fps 映像フレームを選択するフレームレート, nullまたは0以下なら映像入力側で間引かない
+	 * @throws IllegalStateException 録画開始後に呼び出した
+	 */
+	public void setTimelapseFps(@Nullable final Fraction fps) throws IllegalStateException {
+		if (getState() > STATE_PREPARED) {
+			throw new IllegalStateException("already started");
+		}
+		if ((fps != null) && (fps.asDouble() > 0)) {
+			mFrameSelector = new TimelapseFrameSelector(fps, mFrameIntervalsUs);
+		} else {
+			mFrameSelector = null;
+		}
+	}
+
+	/**
+	 * 映像入力側で映像フレームを間引くかどうか
+	 * @return
+	 */
+	public boolean isDecimationEnabled() {
+		return mFrameSelector != null;
+	}
+
+	/**
+	 * 映像入力側で映像フレームを受け取った時に呼び出してエンコーダーへ送るかどうかを取得する
+	 * 映像入力側で間引かない時は常にtrue
+	 * @param captureTimeNs 映像フレームのタイムスタンプ[ナノ秒], System#nanoTime等の単調増加するもの
+	 * @return true: エンコーダーへ送る, false: 間引く
+	 */
+	public boolean selectFrame(final long captureTimeNs) {
+		final TimelapseFrameSelector selector = mFrameSelector;
+		return (selector == null) || selector.select(captureTimeNs);
+	}
+
+	/**
+	 * 最後に#selectFrameで選択した映像フレームのエンコーダーへ渡すプレゼンテーションタイム[ナノ秒]を取得
+	 * 動画ファイルのフレーム間隔で等間隔になるので、映像入力用Surfaceへの描画時に
+	 * eglPresentationTimeANDROIDでセットするとエンコーダーのキーフレーム間隔が動画ファイルの時間軸に揃う
+	 * (動画ファイルへ書き込む際のプレゼンテーションタイムも同じ値になる)
+	 * @return 映像入力側で間引かない時またはまだ選択していなければ-1
+	 */
+	public long getPresentationTimeNs() {
+		final TimelapseFrameSelector selector = mFrameSelector;
+		final long ptsUs = selector != null ? selector.getPresentationTimeUs() : -1L;
+		return ptsUs >= 0 ? ptsUs * 1000L : -1L;
+	}
+
+	/**
+	 * 前回選択した映像フレームの次から最後に#selectFrameへ渡した映像フレームまでの映像フレーム数を取得
+	 * 間引いた映像フレームを合成する時の重み付けに使う
+	 * @return 映像入力側で間引かない時は常に1
+	 */
+	public int getIntervalFrames() {
+		final TimelapseFrameSelector selector = mFrameSelector;
+		return selector != null ? selector.getIntervalFrames() : 1;
+	}
+
+	/**
+	 * 映像入力側で間引いた映像フレーム数を取得
+	 * @return
+	 */
+	public long getDecimatedFrames() {
+		final TimelapseFrameSelector selector = mFrameSelector;
+		return selector != null
+			? selector.getCapturedFrames() - selector.getSelectedFrames() : 0L;
+	}
+
 	/**
 	 * Encoderを登録する
 	 * Encoderの下位クラスのコンストラクタから呼び出される
@@ -187,6 +271,7 @@ public class MediaAVTimelapseRecorder extends Recorder {
 		@NonNull final ByteBuffer byteBuf,
 		@NonNull final MediaCodec.BufferInfo bufferInfo) {
 		// 元のptsに関わらず受け取ったフレーム数に応じたptsで上書きする
+		// 映像入力側で間引いている時もTimelapseFrameSelectorで割り当てたptsと同じ値になる
 		bufferInfo.presentationTimeUs = getInputPTSUs(trackIndex);
 		super.writeSampleData(trackIndex, byteBuf, bufferInfo);
 	}
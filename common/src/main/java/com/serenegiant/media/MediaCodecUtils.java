@@ -23,9 +23,10 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
@@ -754,20 +755,32 @@ public final class MediaCodecUtils {
 
 //--------------------------------------------------------------------------------
     // 静的にキャッシュするようにした
-    @NonNull
-    private static final List<MediaCodecInfo> sCodecList = new ArrayList<MediaCodecInfo>();
+	// 複数のスレッドから同時にアクセスされることがあるので一度だけ変更不可のリストを生成して差し替える
+    @Nullable
+    private static volatile List<MediaCodecInfo> sCodecList;
 
 	/**
 	 * コーデックの情報を更新する
 	 */
-	private static void updateCodecs() {
-    	if (sCodecList.size() == 0) {
-	    	// コーデックの一覧を取得
-	        final int n = MediaCodecList.getCodecCount();
-	        for (int i = 0; i < n; i++) {
-	        	sCodecList.add(MediaCodecList.getCodecInfoAt(i));
-	        }
-    	}
+	@NonNull
+	private static List<MediaCodecInfo> updateCodecs() {
+		List<MediaCodecInfo> result = sCodecList;
+		if (result == null) {
+			synchronized (MediaCodecUtils.class) {
+				result = sCodecList;
+				if (result == null) {
+			    	// コーデックの一覧を取得
+			        final int n = MediaCodecList.getCodecCount();
+					final List<MediaCodecInfo> list = new ArrayList<MediaCodecInfo>(n);
+			        for (int i = 0; i < n; i++) {
+			        	list.add(MediaCodecList.getCodecInfoAt(i));
+			        }
+					result = Collections.unmodifiableList(list);
+					sCodecList = result;
+				}
+			}
+		}
+		return result;
     }
 
 	/**
@@ -775,17 +788,15 @@ public final class MediaCodecUtils {
 	 * @return
 	 */
     public static int getCodecCount() {
-    	updateCodecs();
-    	return sCodecList.size();
+    	return updateCodecs().size();
     }
 
 	/**
 	 * コーデック情報一覧を取得する
-	 * @return
+	 * @return 変更不可のリスト
 	 */
     public static List<MediaCodecInfo> getCodecs() {
-    	updateCodecs();
-    	return sCodecList;
+    	return updateCodecs();
     }
 
 	/**
@@ -794,15 +805,15 @@ public final class MediaCodecUtils {
 	 * @return
 	 */
     public static MediaCodecInfo getCodecInfoAt(final int ix) {
-    	updateCodecs();
-    	return sCodecList.get(ix);
+    	return updateCodecs().get(ix);
     }
 
 	/**
 	 * getCapabilitiesForTypeがすごく遅い機種があるので静的にキャッシュする
+	 * CodecCatalogの構築時にバックグラウンドスレッドから呼ばれることがあるのでConcurrentHashMapを使う
 	 */
-	private static final HashMap<String, HashMap<MediaCodecInfo, MediaCodecInfo.CodecCapabilities>>
-		sCapabilities = new HashMap<String, HashMap<MediaCodecInfo, MediaCodecInfo.CodecCapabilities>>();
+	private static final ConcurrentHashMap<String, ConcurrentHashMap<MediaCodecInfo, MediaCodecInfo.CodecCapabilities>>
+		sCapabilities = new ConcurrentHashMap<String, ConcurrentHashMap<MediaCodecInfo, MediaCodecInfo.CodecCapabilities>>();
 
 	/**
 	 * CodecCapabilitiesを取得
@@ -811,21 +822,27 @@ public final class MediaCodecUtils {
 	 * @return
 	 */
     public static MediaCodecInfo.CodecCapabilities getCodecCapabilities(final MediaCodecInfo codecInfo, final String mimeType) {
-		HashMap<MediaCodecInfo, MediaCodecInfo.CodecCapabilities> caps = sCapabilities.get(mimeType);
+		ConcurrentHashMap<MediaCodecInfo, MediaCodecInfo.CodecCapabilities> caps = sCapabilities.get(mimeType);
 		if (caps == null) {
-			caps = new HashMap<MediaCodecInfo, MediaCodecInfo.CodecCapabilities>();
-			sCapabilities.put(mimeType, caps);
+			final ConcurrentHashMap<MediaCodecInfo, MediaCodecInfo.CodecCapabilities> newCaps
+				= new ConcurrentHashMap<MediaCodecInfo, MediaCodecInfo.CodecCapabilities>();
+			caps = sCapabilities.putIfAbsent(mimeType, newCaps);
+			if (caps == null) {
+				caps = newCaps;
+			}
 		}
 		MediaCodecInfo.CodecCapabilities capabilities = caps.get(codecInfo);
 		if (capabilities == null) {
 	    	// XXX 通常の優先度ではSC-06DでMediaCodecInfo#getCapabilitiesForTypeが返ってこないので一時的に昇格
-			Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
+			final Thread thread = Thread.currentThread();
+			final int priority = thread.getPriority();
+			thread.setPriority(Thread.MAX_PRIORITY);
 			try {
 				capabilities = codecInfo.getCapabilitiesForType(mimeType);
 				caps.put(codecInfo, capabilities);
 			} finally {
 				// 元の優先度に戻す
-				Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
+				thread.setPriority(priority);
 			}
 		}
 		return capabilities;
@@ -839,53 +856,30 @@ public final class MediaCodecUtils {
 	 */
 	@Nullable
 	public static MediaCodecInfo selectVideoEncoder(final String mimeType) {
-		// コーデックの一覧を取得
-		final int numCodecs = getCodecCount();
-		for (int i = 0; i < numCodecs; i++) {
-			final MediaCodecInfo codecInfo = getCodecInfoAt(i);
-
-			if (!codecInfo.isEncoder()) {	// エンコーダーでない(=デコーダー)はスキップする
-				continue;
-			}
-			// エンコーダーの一覧からMIMEが一致してカラーフォーマットが使用可能なものを選択する
-/*			// こっちの方法で選択すると
-			// W/OMXCodec(20608): Failed to set standard component role 'video_encoder.avc'.
-			// って表示されて、OMX.Nvidia.mp4.encoder
-			// が選択される
-			final MediaCodecInfo.CodecCapabilities caps;
-			Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-			try {
-				caps = getCodecCapabilities(codecInfo, mimeType);
-			} finally {
-				Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
-			}
-			final int[] colorFormats = caps.colorFormats;
-			final int n = colorFormats != null ? colorFormats.length : 0;
-			int colorFormat;
-			for (int j = 0; j < n; j++) {
-				colorFormat = colorFormats[j];
-				if (isRecognizedVideoFormat(colorFormat)) {
-					mColorFormat = colorFormat;
-					return codecInfo;
-				}
-			} */
-// こっちで選択すると、xxx.h264.encoderが選択される
-			final String[] types = codecInfo.getSupportedTypes();
-			final int n = types.length;
-			int format;
-			for (int j = 0; j < n; j++) {
-				if (types[j].equalsIgnoreCase(mimeType)) {
-//                	if (DEBUG) Log.i(TAG, "codec:" + codecInfo.getName() + ",MIME=" + types[j]);
-					format = selectColorFormat(codecInfo, mimeType);
-					if (format > 0) {
-						return codecInfo;
-					}
-				}
+		// CodecCatalogのmime type毎のインデックスから
+		// MIMEが一致してカラーフォーマットが使用可能なものを選択する
+		// (MediaCodecListの順に探すのでxxx.h264.encoderが選択される)
+		for (final MediaCodecInfo codecInfo: CodecCatalog.getEncoders(mimeType)) {
+//			if (DEBUG) Log.i(TAG, "codec:" + codecInfo.getName() + ",MIME=" + mimeType);
+			if (selectColorFormat(codecInfo, mimeType) > 0) {
+				return codecInfo;
 			}
 		}
 		return null;
 	}
 
+	/**
+	 * 指定したMIMEとカラーフォーマットで使用可能なcodecの一覧の中から先頭のものを取得する
+	 * もし使用可能なのがなければnullを返す
+	 * @param mimeType
+	 * @param colorFormat
+	 * @return
+	 */
+	@Nullable
+	public static MediaCodecInfo selectVideoEncoder(final String mimeType, final int colorFormat) {
+		return CodecCatalog.selectVideoEncoder(mimeType, colorFormat);
+	}
+
 	/**
 	 * 指定したmimeに対応するビデオコーデックのエンコーダー一覧を取得する
 	 * @param mimeType
@@ -894,47 +888,9 @@ public final class MediaCodecUtils {
 	@NonNull
 	public static List<MediaCodecInfo> getVideoEncoderInfos(final String mimeType) {
 		final List<MediaCodecInfo> result = new ArrayList<>();
-		// コーデックの一覧を取得
-		final int numCodecs = getCodecCount();
-		for (int i = 0; i < numCodecs; i++) {
-			final MediaCodecInfo codecInfo = getCodecInfoAt(i);
-
-			if (!codecInfo.isEncoder()) {	// エンコーダーでない(=デコーダー)はスキップする
-				continue;
-			}
-			// エンコーダーの一覧からMIMEが一致してカラーフォーマットが使用可能なものを選択する
-/*			// こっちの方法で選択すると
-			// W/OMXCodec(20608): Failed to set standard component role 'video_encoder.avc'.
-			// って表示されて、OMX.Nvidia.mp4.encoder
-			// が選択される
-			final MediaCodecInfo.CodecCapabilities caps;
-			Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-			try {
-				caps = getCodecCapabilities(codecInfo, mimeType);
-			} finally {
-				Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
-			}
-			final int[] colorFormats = caps.colorFormats;
-			final int n = colorFormats != null ? colorFormats.length : 0;
-			int colorFormat;
-			for (int j = 0; j < n; j++) {
-				colorFormat = colorFormats[j];
-				if (isRecognizedVideoFormat(colorFormat)) {
-					result.add(codecInfo);
-				}
-			} */
-// こっちで選択すると、xxx.h264.encoderが選択される
-			final String[] types = codecInfo.getSupportedTypes();
-			final int n = types.length;
-			int format;
-			for (int j = 0; j < n; j++) {
-				if (types[j].equalsIgnoreCase(mimeType)) {
-//                	if (DEBUG) Log.i(TAG, "codec:" + codecInfo.getName() + ",MIME=" + types[j]);
-					format = selectColorFormat(codecInfo, mimeType);
-					if (format > 0) {
-						result.add(codecInfo);
-					}
-				}
+		for (final MediaCodecInfo codecInfo: CodecCatalog.getEncoders(mimeType)) {
+			if (selectColorFormat(codecInfo, mimeType) > 0) {
+				result.add(codecInfo);
 			}
 		}
 		return result;
@@ -973,6 +929,13 @@ public final class MediaCodecUtils {
 	 * 使用可能なものが無ければ0を返す
 	 */
 	public static int selectColorFormat(final MediaCodecInfo codecInfo, final String mimeType) {
+		if (codecInfo.isEncoder()) {
+			// エンコーダーならCodecCatalogから取得する
+			final int format = CodecCatalog.selectColorFormat(codecInfo.getName(), mimeType);
+			if (format >= 0) {
+				return format;
+			}
+		}
 		int result = 0;
 		final MediaCodecInfo.CodecCapabilities capabilities = getCodecCapabilities(codecInfo, mimeType);
 		final int[] colorFormats = capabilities.colorFormats;
@@ -1079,25 +1042,7 @@ public final class MediaCodecUtils {
 	@Nullable
 	public static MediaCodecInfo selectAudioEncoder(final String mimeType) {
 //    	if (DEBUG) Log.v(TAG, "selectAudioCodec:");
-
- 		MediaCodecInfo result = null;
- 		// コーデックの一覧を取得
-		final int numCodecs = getCodecCount();
-LOOP:	for (int i = 0; i < numCodecs; i++) {
-     	final MediaCodecInfo codecInfo = getCodecInfoAt(i);
-			if (!codecInfo.isEncoder()) {	// エンコーダーでない(=デコーダー)はスキップする
-				continue;
-			}
-			final String[] types = codecInfo.getSupportedTypes();
-			for (int j = 0; j < types.length; j++) {
-//				if (DEBUG) Log.i(TAG, "supportedType:" + codecInfo.getName() + ",MIME=" + types[j]);
-				if (types[j].equalsIgnoreCase(mimeType)) {
-					result = codecInfo;
-					break LOOP;
-				}
-			}
-		}
-		return result;
+		return CodecCatalog.selectEncoder(mimeType);
 	}
 
 	/**
@@ -1107,24 +1052,7 @@ LOOP:	for (int i = 0; i < numCodecs; i++) {
 	 */
 	@NonNull
 	public static List<MediaCodecInfo> getAudioEncoderInfos(final String mimeType) {
-		final List<MediaCodecInfo> result = new ArrayList<>();
-
-		// コーデックの一覧を取得
-		final int numCodecs = getCodecCount();
-LOOP:	for (int i = 0; i < numCodecs; i++) {
-			final MediaCodecInfo codecInfo = getCodecInfoAt(i);
-			if (!codecInfo.isEncoder()) {	// エンコーダーでない(=デコーダー)はスキップする
-				continue;
-			}
-			final String[] types = codecInfo.getSupportedTypes();
-			for (int j = 0; j < types.length; j++) {
-//				if (DEBUG) Log.i(TAG, "supportedType:" + codecInfo.getName() + ",MIME=" + types[j]);
-				if (types[j].equalsIgnoreCase(mimeType)) {
-					result.add(codecInfo);
-				}
-			}
-		}
-		return result;
+		return CodecCatalog.getEncoders(mimeType);
 	}
 
 //--------------------------------------------------------------------------------
@@ -1153,13 +1081,25 @@ LOOP:	for (int i = 0; i < numCodecs; i++) {
 
 	/**
 	 * codec specific dataの先頭マーカー位置を検索
-	 * BufferHelper.byteCompのシノニム
+	 * BufferHelper.findAnnexBのシノニム
 	 * @param array
 	 * @param offset
-	 * @return
+	 * @return 見つからなければ負
 	 */
 	public static int findStartMarker(@NonNull final byte[] array, final int offset) {
-		return BufferHelper.byteComp(array, offset, START_MARKER, START_MARKER.length);
+		return BufferHelper.findAnnexB(array, offset);
+	}
+
+	/**
+	 * codec specific dataの先頭マーカー位置を検索
+	 * ByteBufferの内容をコピーせずにByteBuffer上で直接検索する
+	 * BufferHelper.findAnnexBのシノニム
+	 * @param buffer
+	 * @param offset ByteBuffer先頭からの絶対位置, 負なら見つからなかったとみなす
+	 * @return 見つからなければ負
+	 */
+	public static int findStartMarker(@NonNull final ByteBuffer buffer, final int offset) {
+		return offset >= 0 ? BufferHelper.findAnnexB(buffer, offset, buffer.limit()) : -1;
 	}
 
 	/**
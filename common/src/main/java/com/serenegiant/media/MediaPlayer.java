@@ -100,6 +100,11 @@ public class MediaPlayer {
 	@Nullable
 	private VideoDecoder mVideoDecoder;
 	private int mVideoTrackIndex;
+	/**
+	 * シーク用の映像トラックのキーフレーム一覧, 再生用とは別スレッドで生成する
+	 */
+	@Nullable
+	private KeyFrameIndex mKeyFrameIndex;
 	// for audio playback
 	@Nullable
 	private AudioDecoder mAudioDecoder;
@@ -555,26 +560,21 @@ public class MediaPlayer {
 				throw new FileNotFoundException("Unable to read " + source);
 			}
 			mMetadata.setDataSource((String)source);	// API>=10
-			mExtractor.setDataSource((String)source);	// API>=16
 		} else if (source instanceof AssetFileDescriptor) {
 			final FileDescriptor fd = ((AssetFileDescriptor)source).getFileDescriptor();
 			mMetadata.setDataSource(fd);				// API>=10
-			if (BuildCheck.isAndroid7()) {
-				mExtractor.setDataSource((AssetFileDescriptor)source);	// API>=24
-			} else {
-				mExtractor.setDataSource(fd);			// API>=16
-			}
 		} else if (source instanceof FileDescriptor) {
 			mMetadata.setDataSource((FileDescriptor)source);	// API>=10
-			mExtractor.setDataSource((FileDescriptor)source);	// API>=16
 		} else {
 			// ここには来ないけど
 			throw new IllegalArgumentException("unknown source type:source=" + source);
 		}
+		setDataSource(mExtractor, source);
 		updateInfo(mMetadata);
 		if ((mOutputSurface != null) && mVideoDecoder == null) {
 			mVideoDecoder = VideoDecoder.createDecoder(mOutputSurface, mListener);
 			mVideoTrackIndex = mVideoDecoder.prepare(mExtractor);
+			startKeyFrameIndex(source, mVideoTrackIndex);
 		} else {
 			mVideoTrackIndex = -100;
 		}
@@ -584,6 +584,10 @@ public class MediaPlayer {
 		} else {
 			mAudioTrackIndex = -100;
 		}
+		if ((mVideoDecoder != null) && (mAudioDecoder != null)) {
+			// 映像の表示タイミングを音声の再生位置に合わせる
+			mVideoDecoder.setMasterClock(mAudioDecoder);
+		}
 		synchronized (mSync) {
 			mState = STATE_PREPARED;
 		}
@@ -592,6 +596,70 @@ public class MediaPlayer {
 			mVideoWidth, mVideoHeight, mDuration, mBitrate, mFrameRate, mRotation));
 	}
 
+	/**
+	 * MediaExtractorへデータソースをセットする
+	 * @param extractor
+	 * @param source String, AssetFileDescriptor, FileDescriptorのいずれか
+	 * @throws IOException
+	 */
+	private static void setDataSource(
+		@NonNull final MediaExtractor extractor,
+		@NonNull final Object source) throws IOException {
+
+		if (source instanceof String) {
+			extractor.setDataSource((String)source);	// API>=16
+		} else if (source instanceof AssetFileDescriptor) {
+			if (BuildCheck.isAndroid7()) {
+				extractor.setDataSource((AssetFileDescriptor)source);	// API>=24
+			} else {
+				extractor.setDataSource(((AssetFileDescriptor)source).getFileDescriptor());	// API>=16
+			}
+		} else if (source instanceof FileDescriptor) {
+			extractor.setDataSource((FileDescriptor)source);	// API>=16
+		} else {
+			throw new IllegalArgumentException("unknown source type:source=" + source);
+		}
+	}
+
+	/**
+	 * 再生用とは別のMediaExtractorで映像トラックを走査してキーフレーム一覧を生成する
+	 * 生成中も走査済みの範囲はシークに使える
+	 * FileDescriptor/AssetFileDescriptorの場合は再生用のMediaExtractorとファイルオフセットを
+	 * 共有してしまい別スレッドで走査すると再生中の読み込みを壊すのでファイルパスの場合のみ生成する
+	 * (キーフレーム一覧が無いときはMediaExtractorでのシークになる)
+	 * @param source
+	 * @param trackIndex
+	 */
+	@WorkerThread
+	private void startKeyFrameIndex(@NonNull final Object source, final int trackIndex) {
+		if (mKeyFrameIndex != null) {
+			mKeyFrameIndex.cancel();
+			mKeyFrameIndex = null;
+		}
+		if (!(source instanceof String)) {
+			if (DEBUG) Log.v(TAG, "startKeyFrameIndex:skip, not a file path source");
+			return;
+		}
+		final KeyFrameIndex index = new KeyFrameIndex();
+		mKeyFrameIndex = index;
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+				final MediaExtractor extractor = new MediaExtractor();
+				try {
+					setDataSource(extractor, source);
+					index.build(extractor, trackIndex);
+				} catch (final Exception e) {
+					// キーフレーム一覧が無くてもMediaExtractorでのシークはできるのでログだけ出す
+					Log.w(TAG, e);
+				} finally {
+					extractor.release();
+				}
+			}
+		}, TAG + "-KeyFrameIndex").start();
+	}
+
 	/**
 	 * 動画再生開始処理
 	 */
@@ -617,16 +685,40 @@ public class MediaPlayer {
 
 	/**
 	 * シーク処理
+	 * キーフレーム一覧から目的の位置の直前のキーフレームを求めてそこからデコードし、
+	 * 目的の位置より前のフレームは描画/再生せずに破棄する
+	 * 現在の読み込み位置が目的の位置と同じGOP内で手前にあるとき(スクラブ操作で前方へ
+	 * 少しずつシークするとき)はMediaExtractorのシークとデコーダーのflushを省略して
+	 * そのまま読み進める
 	 * @param newTimeUs
 	 */
 	@WorkerThread
 	private void handleSeek(final long newTimeUs) {
-        if (DEBUG) Log.d(TAG, "handleSeek");
+        if (DEBUG) Log.d(TAG, "handleSeek:" + newTimeUs);
 		if (newTimeUs < 0) return;
 
 		if (mExtractor != null) {
-			mExtractor.seekTo(newTimeUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-			mExtractor.advance();
+			final long keyFrameTimeUs = mKeyFrameIndex != null
+				? mKeyFrameIndex.findPrevious(newTimeUs) : -1L;
+			final long currentTimeUs = mExtractor.getSampleTime();
+			if ((keyFrameTimeUs < 0)
+				|| (currentTimeUs < keyFrameTimeUs) || (currentTimeUs > newTimeUs)) {
+				// キーフレーム一覧が未生成のときはMediaExtractorに直前の同期フレームを探させる
+				mExtractor.seekTo(keyFrameTimeUs >= 0 ? keyFrameTimeUs : newTimeUs,
+					MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+				if (mVideoDecoder != null) {
+					mVideoDecoder.flush();
+				}
+				if (mAudioDecoder != null) {
+					mAudioDecoder.flush();
+				}
+			}
+			if (mVideoDecoder != null) {
+				mVideoDecoder.setSkipUntil(newTimeUs);
+			}
+			if (mAudioDecoder != null) {
+				mAudioDecoder.setSkipUntil(newTimeUs);
+			}
 		}
         mRequestTime = -1;
 	}
@@ -646,7 +738,9 @@ public class MediaPlayer {
 				// ループ再生のチェック
 				if (mLoopEnabled) {
 					// 先頭へ戻す
-					handleSeek(0);
+					// デコーダー内に残っている末尾のフレームを破棄しないようにflushはしない
+				// (プレゼンテーションタイムの巻き戻りは各デコーダー側で検出して再生位置の基準を決め直す)
+					mExtractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
 				} else {
 					// データが無くなった時
 					if (mVideoDecoder != null) {
@@ -664,6 +758,10 @@ public class MediaPlayer {
 	@WorkerThread
 	private void handleStop() {
     	if (DEBUG) Log.v(TAG, "handleStop:");
+		if (mKeyFrameIndex != null) {
+			mKeyFrameIndex.cancel();
+			mKeyFrameIndex = null;
+		}
     	synchronized (mSync) {
     		if (mVideoDecoder != null) {
     			mVideoDecoder.release();
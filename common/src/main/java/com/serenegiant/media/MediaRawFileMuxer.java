@@ -30,6 +30,7 @@ import com.serenegiant.utils.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 
@@ -41,6 +42,8 @@ import androidx.documentfile.provider.DocumentFile;
  * Rawファイル形式でエンコードデータをファイルに書き出すためのIMuxer実装
  * 実際のファイルへの出力はMediaRawFilerWriterで行う。
  * 実際のmp4ファイルへの出力は別途PostMuxBuilderで行う。
+ * #setIncremental(true)で録画中から一時ファイルを追従してmp4ファイルを生成するので
+ * #buildでは残りのフレームを書き込むだけになる
  *
  * 映像エンコード処理と音声エンコード処理とmux処理を同時に実行すると
  * 映像and/or音声が正常に記録されない端末がいくつかあるので、
@@ -91,6 +94,22 @@ public class MediaRawFileMuxer implements IPostMuxer {
 	private MediaRawFileWriter mAudioWriter;
 	/** トラックインデックスからMediaRawFileWriterを参照するための配列 */
 	private final MediaRawFileWriter[] mMediaRawFileWriters = new MediaRawFileWriter[2];
+	/**
+	 * 録画中に一時rawファイルを追従してmp4ファイルを生成するかどうか
+	 */
+	private boolean mIncremental;
+	/**
+	 * 録画中に一時rawファイルを追従してmp4ファイルを生成するためのPostMuxBuilder
+	 */
+	@Nullable
+	private PostMuxBuilder mIncrementalBuilder;
+	@Nullable
+	private Thread mIncrementalThread;
+	/**
+	 * 追従してmp4ファイルを生成中に発生した例外
+	 */
+	@Nullable
+	private volatile IOException mIncrementalError;
 	
 	/**
 	 * コンストラクタ
@@ -152,6 +171,33 @@ public class MediaRawFileMuxer implements IPostMuxer {
 		}
 	}
 	
+	/**
+	 * 録画中に一時rawファイルを追従してmp4ファイルを生成するかどうかをセット
+	 * trueなら#startで追従処理を開始するので#buildでは残りのフレームを書き込むだけになる
+	 * (録画時間が長くても録画終了後すぐに再生可能になる)
+	 * #startよりも前に呼び出すこと
+	 * @param incremental
+	 * @throws IllegalStateException 既に開始している
+	 */
+	public void setIncremental(final boolean incremental) throws IllegalStateException {
+		synchronized (mSync) {
+			if (mIsRunning) {
+				throw new IllegalStateException("already started");
+			}
+			mIncremental = incremental;
+		}
+	}
+
+	/**
+	 * 録画中に一時rawファイルを追従してmp4ファイルを生成するかどうか
+	 * @return
+	 */
+	public boolean isIncremental() {
+		synchronized (mSync) {
+			return mIncremental;
+		}
+	}
+
 	/**
 	 * 関連するリソースを破棄する
 	 */
@@ -161,6 +207,14 @@ public class MediaRawFileMuxer implements IPostMuxer {
 			if (!mReleased) {
 				mReleased = true;
 				if (DEBUG) Log.v(TAG, "release:");
+				if (mIncrementalBuilder != null) {
+					// #buildを呼ばずに破棄されたときは追従処理を中断する
+					// 一時rawファイルの終端で追記待ちしている追従スレッドも抜けるように書き込み終了も通知する
+					mIncrementalBuilder.cancel();
+					mIncrementalBuilder.finishInput();
+					mIncrementalBuilder = null;
+					mIncrementalThread = null;
+				}
 				if (mVideoWriter != null) {
 					mVideoWriter.release();
 					mVideoWriter = null;
@@ -190,6 +244,9 @@ public class MediaRawFileMuxer implements IPostMuxer {
 				throw new IllegalStateException("no track added");
 			}
 			mIsRunning = true;
+			if (mIncremental && (mIncrementalThread == null)) {
+				startIncrementalBuild();
+			}
 		}
 	}
 	
@@ -216,7 +273,26 @@ public class MediaRawFileMuxer implements IPostMuxer {
 		final Context context = getContext();
 		final String tempDir = getTempDir();
 		if (DEBUG) Log.v(TAG, "build:tempDir=" + tempDir);
-		if (!TextUtils.isEmpty(mOutputPath)) {
+		final Thread incrementalThread;
+		synchronized (mSync) {
+			incrementalThread = mIncrementalThread;
+		}
+		if (incrementalThread != null) {
+			// 追従処理中なら一時rawファイルを閉じて残りのフレームの書き込みが終わるのを待つ
+			try {
+				finishIncrementalBuild(incrementalThread);
+			} finally {
+				delete(new File(tempDir));
+			}
+			if (!TextUtils.isEmpty(mOutputPath)) {
+				try {
+					MediaScannerConnection.scanFile(context.getApplicationContext(),
+						new String[] {mOutputPath}, null, null);
+				} catch (final Exception e) {
+					Log.w(TAG, e);
+				}
+			}
+		} else if (!TextUtils.isEmpty(mOutputPath)) {
 			try {
 				final PostMuxBuilder builder = new PostMuxBuilder(mVideoConfig.useMediaMuxer());
 				builder.buildFromRawFile(context, tempDir, mOutputPath);
@@ -373,6 +449,84 @@ public class MediaRawFileMuxer implements IPostMuxer {
 		return mWeakContext.get();
 	}
 
+	/**
+	 * 一時rawファイルを追従してmp4ファイルを生成するスレッドを開始する
+	 * mSyncをロックした状態で呼び出すこと
+	 */
+	@SuppressWarnings("deprecation")
+	private void startIncrementalBuild() {
+		if (DEBUG) Log.v(TAG, "startIncrementalBuild:");
+		final Context context = getContext();
+		final String tempDir = getTempDir();
+		final boolean hasVideo = mVideoWriter != null;
+		final boolean hasAudio = mAudioWriter != null;
+		final PostMuxBuilder builder = new PostMuxBuilder(mVideoConfig.useMediaMuxer());
+		mIncrementalError = null;
+		mIncrementalBuilder = builder;
+		mIncrementalThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (!TextUtils.isEmpty(mOutputPath)) {
+						builder.buildFromRawFileIncremental(context, tempDir, mOutputPath,
+							hasVideo, hasAudio);
+					} else if (mOutputDoc != null) {
+						builder.buildFromRawFileIncremental(context, tempDir, mOutputDoc,
+							hasVideo, hasAudio);
+					} else {
+						// ここには来ないはず
+						throw new IOException("unexpected output file");
+					}
+				} catch (final IOException e) {
+					mIncrementalError = e;
+				} catch (final Exception e) {
+					mIncrementalError = new IOException(e);
+				}
+			}
+		}, "PostMuxIncremental");
+		mIncrementalThread.start();
+	}
+
+	/**
+	 * 一時rawファイルを閉じて追従処理の終了を待機する
+	 * @param thread
+	 * @throws IOException
+	 */
+	private void finishIncrementalBuild(@NonNull final Thread thread) throws IOException {
+		if (DEBUG) Log.v(TAG, "finishIncrementalBuild:");
+		final PostMuxBuilder builder;
+		synchronized (mSync) {
+			// 一時rawファイルをフラッシュして閉じる
+			if (mVideoWriter != null) {
+				mVideoWriter.release();
+			}
+			if (mAudioWriter != null) {
+				mAudioWriter.release();
+			}
+			builder = mIncrementalBuilder;
+		}
+		if (builder != null) {
+			builder.finishInput();
+		}
+		try {
+			thread.join();
+		} catch (final InterruptedException e) {
+			if (builder != null) {
+				builder.cancel();
+			}
+			throw new InterruptedIOException();
+		}
+		synchronized (mSync) {
+			mIncrementalBuilder = null;
+			mIncrementalThread = null;
+		}
+		final IOException error = mIncrementalError;
+		if (error != null) {
+			throw error;
+		}
+		if (DEBUG) Log.v(TAG, "finishIncrementalBuild:finished");
+	}
+
 	/**
 	 * 破棄されたかどうかをチェックして破棄されていればIllegalStateExceptionを投げる
 	 * @throws IllegalStateException
@@ -96,7 +96,7 @@ public abstract class MediaReaper implements Runnable {
 	}
 
 	/**
-	 * 映像エンコーダー用MediaReaper実装(h.264/AVC)
+	 * 映像エンコーダー用MediaReaper実装(h.264/AVC, h.265/HEVC)
 	 */
 	public static class VideoReaper extends MediaReaper {
 		private static final String MIME_AVC = "video/avc";
@@ -117,23 +117,33 @@ public abstract class MediaReaper implements Runnable {
 		@WorkerThread
 		@Override
 		protected MediaFormat createOutputFormat(
-			@NonNull final byte[] csd, final int size,
+			@NonNull final ByteBuffer csd, final int size,
 			final int ix0, final int ix1, final int ix2) {
 			
 			if (DEBUG) Log.v(TAG, "VideoReaper#createOutputFormat");
+			// SPSを解析できれば解像度等はSPSの値を使う(h.265/HEVCの場合もここで判別する)
+			final MediaFormat parsed = SpsParser.createVideoFormat(null, csd, 0, size, mWidth, mHeight);
+			if (parsed != null) {
+				return parsed;
+			}
 			final MediaFormat outFormat;
 			if (ix0 >= 0) {
 				outFormat = MediaFormat.createVideoFormat(MIME_AVC, mWidth, mHeight);
-				final ByteBuffer csd0 = ByteBuffer.allocateDirect(ix1 - ix0)
+				final ByteBuffer src = csd.duplicate();
+				src.clear();
+				final int sz0 = (ix1 > ix0) ? (ix1 - ix0) : (size - ix0);
+				src.limit(ix0 + sz0).position(ix0);
+				final ByteBuffer csd0 = ByteBuffer.allocateDirect(sz0)
 					.order(ByteOrder.nativeOrder());
-				csd0.put(csd, ix0, ix1 - ix0);
+				csd0.put(src);
 				csd0.flip();
 				outFormat.setByteBuffer("csd-0", csd0);
 				if (ix1 > ix0) {
 					final int sz = (ix2 > ix1) ? (ix2 - ix1) : (size - ix1);
 					final ByteBuffer csd1 = ByteBuffer.allocateDirect(sz)
 						.order(ByteOrder.nativeOrder());
-					csd1.put(csd, ix1, sz);
+					src.limit(ix1 + sz).position(ix1);
+					csd1.put(src);
 					csd1.flip();
 					outFormat.setByteBuffer("csd-1", csd1);
 				}
@@ -166,7 +176,7 @@ public abstract class MediaReaper implements Runnable {
 		@WorkerThread
 		@Override
 		protected MediaFormat createOutputFormat(
-			@NonNull final byte[] csd, final int size,
+			@NonNull final ByteBuffer csd, final int size,
 			final int ix0, final int ix1, final int ix2) {
 
 			if (DEBUG) Log.v(TAG, "AudioReaper#createOutputFormat");
@@ -177,7 +187,10 @@ public abstract class MediaReaper implements Runnable {
 	        // audioの時はSTART_MARKが無いので全体をコピーして渡す
 	        outFormat = MediaFormat.createAudioFormat(MIME_TYPE, mSampleRate, mChannelCount);
 	        final ByteBuffer csd0 = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
-	        csd0.put(csd, 0, size);
+	        final ByteBuffer src = csd.duplicate();
+	        src.clear();
+	        src.limit(size);
+	        csd0.put(src);
 	        csd0.flip();
 	        outFormat.setByteBuffer("csd-0", csd0);
 	        return outFormat;
@@ -550,19 +563,29 @@ LOOP:	while (mIsRunning) {
 		@NonNull final ByteBuffer encodedData) {
 
 		// csd-0とcsd-1が同時に来ているはずなので分離してセットする
-		final byte[] tmp = new byte[info.size];
-		encodedData.position(0);
-		encodedData.get(tmp, info.offset, info.size);
-		encodedData.position(0);
-		final int ix0 = MediaCodecUtils.findStartMarker(tmp, 0);
-		final int ix1 = MediaCodecUtils.findStartMarker(tmp, ix0 + 2);
-		final int ix2 = MediaCodecUtils.findStartMarker(tmp, ix1 + 2);
-		return createOutputFormat(tmp, mBufferInfo.size, ix0, ix1, ix2);
+		// エンコード済みデータをコピーせずにスタートマーカーを検索する
+		final ByteBuffer csd = encodedData.duplicate();
+		csd.clear();
+		csd.position(info.offset).limit(info.offset + info.size);
+		final ByteBuffer slice = csd.slice();
+		final int ix0 = MediaCodecUtils.findStartMarker(slice, 0);
+		final int ix1 = ix0 >= 0 ? MediaCodecUtils.findStartMarker(slice, ix0 + 3) : -1;
+		final int ix2 = ix1 >= 0 ? MediaCodecUtils.findStartMarker(slice, ix1 + 3) : -1;
+		return createOutputFormat(slice, info.size, ix0, ix1, ix2);
 	}
 
+	/**
+	 * csd0, csd1から出力用のMediaFormatを生成する
+	 * @param csd codec specific data, 先頭から#sizeバイト, position/limitを変更しないこと
+	 * @param size
+	 * @param ix0 1つ目のスタートマーカーの位置, 見つからなければ負
+	 * @param ix1 2つ目のスタートマーカーの位置, 見つからなければ負
+	 * @param ix2 3つ目のスタートマーカーの位置, 見つからなければ負
+	 * @return
+	 */
 	@WorkerThread
 	protected abstract MediaFormat createOutputFormat(
-		@NonNull final byte[] csd, final int size,
+		@NonNull final ByteBuffer csd, final int size,
 		final int ix0, final int ix1, final int ix2);
 
 	/**
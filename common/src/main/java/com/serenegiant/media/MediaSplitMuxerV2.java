@@ -33,6 +33,8 @@ import com.serenegiant.system.StorageInfo;
 import com.serenegiant.system.StorageUtils;
 import com.serenegiant.system.Time;
 import com.serenegiant.utils.FileUtils;
+import com.serenegiant.utils.HandlerThreadHandler;
+import com.serenegiant.utils.ThreadPool;
 import com.serenegiant.utils.UriHelper;
 
 import java.io.File;
@@ -41,6 +43,7 @@ import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -53,8 +56,10 @@ import androidx.documentfile.provider.DocumentFile;
  * 出力ファイルサイズをセットすること
  * 出力ファイル切替時にIフレームの検出処理を行うため動画ファイル間で一部フレームが
  * スキップされてしまう可能性がある
+ * 次の出力ファイルは事前に生成し, 前の出力ファイルの終了処理は専用スレッドで行うので
+ * 出力ファイルの切り替え時に書き込みが止まることはない(終了処理の完了はSegmentListenerで通知する)
  */
-public class MediaSplitMuxerV2 implements IMuxer {
+public class MediaSplitMuxerV2 implements IMuxer, IPressureSource {
 	private static final boolean DEBUG = false; // FIXME set false on production
 	private static final String TAG = MediaSplitMuxerV2.class.getSimpleName();
 
@@ -72,6 +77,22 @@ public class MediaSplitMuxerV2 implements IMuxer {
 	private static final long DEFAULT_SPLIT_SIZE = 4000000000L;
 	private static final String EXT_MP4 = "mp4";
 
+	/**
+	 * セグメントの終了処理が完了したときのコールバックリスナー
+	 */
+	public interface SegmentListener {
+		/**
+		 * セグメントの終了処理(IMuxer#stop/#releaseと出力ファイルの後処理)が完了したときの処理
+		 * ファイナライザースレッド上で呼び出される
+		 * @param segment セグメント番号(0始まり)
+		 * @param output 出力ファイル
+		 * @param elapsedMs 終了処理に要した時間[ミリ秒]
+		 * @param success IMuxer#stopが正常終了したかどうか
+		 */
+		public void onSegmentFinalized(final int segment,
+			@NonNull final DocumentFile output, final long elapsedMs, final boolean success);
+	}
+
 	@NonNull
 	private final Object mSync = new Object();
 	@NonNull
@@ -114,6 +135,25 @@ public class MediaSplitMuxerV2 implements IMuxer {
 	private IMuxer mMuxer;
 	@Nullable
 	private MuxTask mMuxTask;
+	/**
+	 * 次のセグメントの事前生成用
+	 */
+	@NonNull
+	private final Object mPreOpenSync = new Object();
+	@Nullable
+	private Segment mPreOpened;
+	private boolean mPreOpenPending;
+	@Nullable
+	private volatile SegmentListener mSegmentListener;
+	/**
+	 * 全セグメントへ書き込んだ累積バイト数(IPressureSource用)
+	 * 書き込むのはmuxerスレッドのみ
+	 */
+	private volatile long mTotalBytesWrote;
+	/**
+	 * バッファプールから取得できなかった/キューへ追加できなかったフレーム数(IPressureSource用)
+	 */
+	private final AtomicLong mSkippedFrames = new AtomicLong();
 
 	/**
 	 * コンストラクタ
@@ -143,6 +183,11 @@ public class MediaSplitMuxerV2 implements IMuxer {
 		mMuxerFactory = factory != null ? factory : new DefaultFactory();
 		mQueue = queue != null
 			? queue : new MemMediaQueue(INI_POOL_NUM, MAX_POOL_NUM);
+		if ((mQueue instanceof MemMediaQueue)
+			&& (((MemMediaQueue) mQueue).getDropPolicy() == null)) {
+			// キュー/バッファプールに空きがなくなったときにキーフレームや音声を破棄しないようにする
+			((MemMediaQueue) mQueue).setDropPolicy(new GopFrameDropPolicy());
+		}
 		mSplitSize = splitSize <= 0 ? DEFAULT_SPLIT_SIZE : splitSize;
 		mSegmentPrefix = PREFIX_SEGMENT_NAME != null
 			? PREFIX_SEGMENT_NAME : DEFAULT_PREFIX_SEGMENT_NAME;
@@ -171,7 +216,8 @@ public class MediaSplitMuxerV2 implements IMuxer {
 		}
 		// 録画ファイルを出力できるかどうかを確認するためにセグメント0のmuxerを生成する
 		// (出力できなければIOExceptionを投げる)
-		mMuxer = createMuxer(0);
+		mCurrent = createOutputDoc(0);
+		mMuxer = createMuxer(context, mCurrent);
 	}
 
 	@Override
@@ -270,6 +316,10 @@ public class MediaSplitMuxerV2 implements IMuxer {
 				if (mime.startsWith("video/")) {
 					result = mVideoTrackIx = mMuxer.addTrack(format);
 					mMediaFormats[result] = format;
+					final IFrameDropPolicy policy = getDropPolicy();
+					if (policy instanceof GopFrameDropPolicy) {
+						((GopFrameDropPolicy) policy).setVideoTrack(mime, result);
+					}
 				} else if (mime.startsWith("audio/")) {
 					result = mAudioTrackIx = mMuxer.addTrack(format);
 					mMediaFormats[result] = format;
@@ -305,9 +355,14 @@ public class MediaSplitMuxerV2 implements IMuxer {
 			if (buf != null) {
 				buffer.clear();	// limit==positionになってる変なByteBufferが来る端末があるのでclearする
 				buf.set(trackIx, buffer, info);
-				mQueue.queueFrame(buf);
-			} else if (DEBUG) {
-				Log.w(TAG, "frame skipped, failed to get buffer from pool.");
+				if (!mQueue.queueFrame(buf)) {
+					// キューに追加できなかったときはMemMediaQueue#queueFrame内でプールへ戻しているので
+					// 他のスレッドが再取得しているかもしれないbufへはアクセスしない
+					mSkippedFrames.incrementAndGet();
+				}
+			} else {
+				mSkippedFrames.incrementAndGet();
+				if (DEBUG) Log.w(TAG, "frame skipped, failed to get buffer from pool.");
 			}
 		} else {
 			if (DEBUG) Log.w(TAG, "not ready!");
@@ -348,6 +403,67 @@ public class MediaSplitMuxerV2 implements IMuxer {
 		return mVideoConfig;
 	}
 
+	/**
+	 * セグメントの終了処理が完了したときのコールバックリスナーをセット
+	 * @param listener
+	 */
+	public void setSegmentListener(@Nullable final SegmentListener listener) {
+		mSegmentListener = listener;
+	}
+
+	/**
+	 * バッファリング用キューのIFrameDropPolicyを取得
+	 * デフォルトのキューを使っている場合はGopFrameDropPolicyなので
+	 * 破棄したフレーム数を種類毎に取得できる
+	 * @return キューがMemMediaQueueでなければnull
+	 */
+	@Nullable
+	public IFrameDropPolicy getDropPolicy() {
+		return mQueue instanceof MemMediaQueue
+			? ((MemMediaQueue) mQueue).getDropPolicy() : null;
+	}
+
+	/**
+	 * IPressureSourceの実装
+	 * @return
+	 */
+	@Override
+	public int getQueueDepth() {
+		return mQueue.count();
+	}
+
+	/**
+	 * IPressureSourceの実装
+	 * @return キューがMemMediaQueueでなければ0
+	 */
+	@Override
+	public int getQueueCapacity() {
+		return mQueue instanceof MemMediaQueue
+			? ((MemMediaQueue) mQueue).capacity() : 0;
+	}
+
+	/**
+	 * IPressureSourceの実装
+	 * @return
+	 */
+	@Override
+	public long getWrittenBytes() {
+		return mTotalBytesWrote;
+	}
+
+	/**
+	 * IPressureSourceの実装
+	 * キューのIFrameDropPolicyがGopFrameDropPolicyなら破棄したフレーム数の合計,
+	 * そうでなければバッファプールから取得できなかった/キューへ追加できなかったフレーム数
+	 * @return
+	 */
+	@Override
+	public long getDroppedFrames() {
+		final IFrameDropPolicy policy = getDropPolicy();
+		return policy instanceof GopFrameDropPolicy
+			? ((GopFrameDropPolicy) policy).getTotalDrops() : mSkippedFrames.get();
+	}
+
 	/**
 	 * 動画出力ファイルサイズを確認する最大間隔[ナノ秒]
 	 * 前回のチェックからこの値を超えるか1000フレームを超えるとファイルサイズチェックを行う
@@ -356,6 +472,9 @@ public class MediaSplitMuxerV2 implements IMuxer {
 
 	/**
 	 * 動画出力ファイルサイズをモニターして必要に応じて出力ファイルを切り替えるためのRunnable実装
+	 * 次のセグメントは切り替え前にワーカースレッドで生成しておき,
+	 * 前のセグメントの終了処理(IMuxer#stop/#release等)はファイナライザースレッドで行うので
+	 * 出力ファイルの切り替え時にキューからの取り出しが止まらない
 	 */
 	private final class MuxTask implements Runnable {
 		@Override
@@ -363,19 +482,28 @@ public class MediaSplitMuxerV2 implements IMuxer {
 			if (DEBUG) Log.v(TAG, "MuxTask#run:");
 			final Context context = getContext();
 			if (context != null) {
+				final HandlerThreadHandler finalizer
+					= HandlerThreadHandler.createHandler("SegmentFinalizer");
 				IMuxer muxer = mMuxer;
 				mMuxer = null;
+				Segment current = null;
 				try {
 					if (muxer == null) {
 						try {
-							muxer = setupMuxer(0);
+							current = openSegment(0);
 						} catch (final IOException e) {
 							Log.w(TAG, e);
+							finalizer.quit();
 							return;
 						}
+						muxer = current.muxer;
 					} else {
-						muxer.start();
+						current = new Segment(0, mCurrent, muxer);
 					}
+					muxer.start();
+					int segment = 1;
+					// 次のセグメントを先に生成しておく
+					preOpenSegment(segment);
 					final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
 					final boolean shouldCheckIFrame = mVideoTrackIx >= 0;
 					long prevCheckTime = Time.nanoTime();
@@ -385,7 +513,7 @@ public class MediaSplitMuxerV2 implements IMuxer {
 					// カウントする
 					long bytesWrote = 0;
 					boolean mRequestChangeFile = false;
-					int segment = 1, cnt = 0;
+					int cnt = 0;
 					if (DEBUG) Log.v(TAG, "MuxTask#run:muxing");
 					while (mIsRunning) {
 						// バッファキューからエンコード済みデータを取得する
@@ -406,18 +534,35 @@ public class MediaSplitMuxerV2 implements IMuxer {
 								// ファイルサイズが超えていて、音声トラックのみかIフレームが来たときに
 								// 出力ファイルを変更する
 								mRequestChangeFile = false;
+								final Segment next;
 								try {
-									muxer = restartMuxer(muxer, segment++);
-									bytesWrote = 0;
-								} catch (final IOException e) {
+									next = takePreOpenedSegment(segment);
+									next.muxer.start();
+								} catch (final Exception e) {
+									Log.w(TAG, e);
+									mQueue.recycle(buf);
 									break;
 								}
+								// 前のセグメントの終了処理はファイナライザースレッドで行う
+								final Segment prev = current;
+								finalizer.post(new Runnable() {
+									@Override
+									public void run() {
+										finalizeSegment(prev);
+									}
+								});
+								current = next;
+								muxer = next.muxer;
+								mCurrent = next.output;
+								bytesWrote = 0;
+								preOpenSegment(++segment);
 							}
 							// 出力ファイルへの書き込み処理
 							internalWriteSampleData(muxer,
 								buf.trackIx(),
 								buf.get(), info);
 							bytesWrote += Math.max(info.size, 0);
+							mTotalBytesWrote += Math.max(info.size, 0);
 							// 再利用のためにバッファを返す
 							mQueue.recycle(buf);
 						} else if (mRequestStop) {
@@ -450,14 +595,23 @@ public class MediaSplitMuxerV2 implements IMuxer {
 				} catch (final Exception e) {
 					Log.w(TAG, e);
 				}
-				if (muxer != null) {
-					try {
-						muxer.stop();
-						muxer.release();
-					} catch (final Exception e) {
-						Log.w(TAG, e);
+				// 最後のセグメントの終了処理と使わなかったセグメントの破棄
+				final Segment last = current;
+				finalizer.post(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							if (last != null) {
+								finalizeSegment(last);
+							}
+							discardPreOpenedSegment();
+						} finally {
+							// 先に追加した終了処理は全て実行済みなのでここで終了する
+							// (HandlerThreadHandler#quitSafelyはAPI>=18なので使わない)
+							finalizer.quit();
+						}
 					}
-				}
+				});
 			}
 			mIsRunning = false;
 			if (DEBUG) Log.v(TAG, "MuxTask#run:finished");
@@ -506,89 +660,217 @@ public class MediaSplitMuxerV2 implements IMuxer {
 	}
 	
 	/**
-	 * IMuxerの切り替え処理
-	 * 内部で#setupMuxerを呼び出す
-	 * @param muxer 今まで使っていたIMuxer
+	 * 次のセグメントをワーカースレッドで生成する
+	 * 生成したセグメントは#takePreOpenedSegmentで取得する
 	 * @param segment 次のセグメント番号
-	 * @return 次のファイル出力用のIMuxer
+	 */
+	private void preOpenSegment(final int segment) {
+		if (DEBUG) Log.v(TAG, "preOpenSegment:" + segment);
+		synchronized (mPreOpenSync) {
+			mPreOpenPending = true;
+			mPreOpened = null;
+		}
+		ThreadPool.queueEvent(new Runnable() {
+			@Override
+			public void run() {
+				Segment result = null;
+				try {
+					result = openSegment(segment);
+				} catch (final Exception e) {
+					Log.w(TAG, e);
+				}
+				synchronized (mPreOpenSync) {
+					mPreOpened = result;
+					mPreOpenPending = false;
+					mPreOpenSync.notifyAll();
+				}
+			}
+		});
+	}
+
+	/**
+	 * #preOpenSegmentで生成したセグメントを取得する
+	 * 生成中であれば終了を待機し, 生成できていなければここで生成する
+	 * @param segment 次のセグメント番号
+	 * @return
 	 * @throws IOException
 	 */
-	private IMuxer restartMuxer(@NonNull final IMuxer muxer, final int segment)
-		throws IOException {
+	@NonNull
+	private Segment takePreOpenedSegment(final int segment) throws IOException {
+		final Segment result;
+		synchronized (mPreOpenSync) {
+			waitPreOpenLocked();
+			result = mPreOpened;
+			mPreOpened = null;
+		}
+		if ((result != null) && (result.index == segment)) {
+			return result;
+		}
+		if (result != null) {
+			discardSegment(result);
+		}
+		if (DEBUG) Log.v(TAG, "takePreOpenedSegment:pre-open failed, open inline");
+		return openSegment(segment);
+	}
+
+	/**
+	 * #preOpenSegmentで生成したが使わなかったセグメントを破棄する
+	 */
+	private void discardPreOpenedSegment() {
+		final Segment segment;
+		synchronized (mPreOpenSync) {
+			waitPreOpenLocked();
+			segment = mPreOpened;
+			mPreOpened = null;
+		}
+		if (segment != null) {
+			discardSegment(segment);
+		}
+	}
 
-		if (DEBUG) Log.v(TAG, "restartMuxer:");
-		try {
-			muxer.stop();
-			muxer.release();
-		} catch (final Exception e) {
-			throw new IOException(e);
+	/**
+	 * #preOpenSegmentでのセグメント生成終了を待機する
+	 * mPreOpenSyncをロックした状態で呼び出すこと
+	 */
+	private void waitPreOpenLocked() {
+		while (mPreOpenPending) {
+			try {
+				mPreOpenSync.wait(100);
+			} catch (final InterruptedException e) {
+				break;
+			}
 		}
-		// 次のIMuxerに切り替える
-		return setupMuxer(segment);
 	}
-	
+
 	/**
-	 * createMuxerを呼び出してIMuxerを生成してから
-	 * addTrack, startを呼び出す
-	 * @param segment
+	 * セグメントを生成する
+	 * 出力先のDocumentFileとIMuxerを生成してaddTrackまで行う, startは呼ばない
+	 * @param segment セグメント番号
 	 * @return
 	 * @throws IOException
 	 */
-	private IMuxer setupMuxer(final int segment) throws IOException {
-		if (DEBUG) Log.v(TAG, "setupMuxer:");
-		final IMuxer result = createMuxer(segment);
+	@NonNull
+	private Segment openSegment(final int segment) throws IOException {
+		if (DEBUG) Log.v(TAG, "openSegment:" + segment);
+		final DocumentFile output = createOutputDoc(segment);
+		final IMuxer muxer = createMuxer(requireContext(), output);
 		int n = 0;
 		synchronized (mSync) {
 			if (mMediaFormats[0] != null) {
-				final int trackIx = result.addTrack(mMediaFormats[0]);
+				final int trackIx = muxer.addTrack(mMediaFormats[0]);
 				if (DEBUG) Log.v(TAG, "add track," + trackIx
 					+ ",video=" + mVideoTrackIx + ",audio=" + mAudioTrackIx);
 				n++;
 			}
 			if (mMediaFormats[1] != null) {
-				final int trackIx = result.addTrack(mMediaFormats[1]);
+				final int trackIx = muxer.addTrack(mMediaFormats[1]);
 				if (DEBUG) Log.v(TAG, "add track," + trackIx
 					+ ",video=" + mVideoTrackIx + ",audio=" + mAudioTrackIx);
 				n++;
 			}
 		}
-		if (n > 0) {
-			result.start();
-		} else {
+		if (n == 0) {
+			muxer.release();
+			output.delete();
 			throw new IOException("already released?");
 		}
-		return result;
+		return new Segment(segment, output, muxer);
 	}
-	
+
 	/**
-	 * IMuxerを生成する, addTrack, startは呼ばない
-	 * @param segment 次のセグメント番号
-	 * @return
-	 * @throws IOException
+	 * セグメントの終了処理
+	 * ファイナライザースレッド上で呼び出す
+	 * @param segment
 	 */
-	private IMuxer createMuxer(final int segment) throws IOException {
-		if (DEBUG) Log.v(TAG, "createMuxer:");
-		if (mCurrent != null) {
-			final Context context = requireContext();
-			if (BuildCheck.isAPI29()) {
-				// API>=29でMediaStoreからIS_PENDING=1で取得したuriの後処理
-				// デフォルトのIMuxerFactory実装であればMediaStoreOutputStreamで
-				// ラップしているのでここでのupdateContentUri呼び出しは冗長だけど、
-				// IMuxerFactoryを時前実装してる可能性があるので念のために呼んでおく
-				MediaStoreUtils.updateContentUri(context, mCurrent);
-			} else if (UriHelper.isFileUri(mCurrent)) {
-				final String path = UriHelper.getPath(context, mCurrent.getUri());
-				if (DEBUG) Log.v(TAG, "createMuxer:scanFile," + path);
-				try {
-					// 内部でexecutorを使ってワーカースレッド上で処理しているのでここで呼び出しても大丈夫なはず
-					MediaScannerConnection.scanFile(context, new String[] {path}, null, null);
-				} catch (final Exception e) {
-					Log.w(TAG, e);
-				}
+	private void finalizeSegment(@NonNull final Segment segment) {
+		if (DEBUG) Log.v(TAG, "finalizeSegment:" + segment.index);
+		final long startTime = Time.nanoTime();
+		boolean success = true;
+		try {
+			segment.muxer.stop();
+		} catch (final Exception e) {
+			success = false;
+			Log.w(TAG, e);
+		}
+		try {
+			segment.muxer.release();
+		} catch (final Exception e) {
+			Log.w(TAG, e);
+		}
+		finishOutputDoc(segment.output);
+		final long elapsedMs = (Time.nanoTime() - startTime) / 1000000L;
+		if (DEBUG) Log.v(TAG, "finalizeSegment:" + segment.index + ",elapsed=" + elapsedMs + "ms");
+		final SegmentListener listener = mSegmentListener;
+		if (listener != null) {
+			try {
+				listener.onSegmentFinalized(segment.index, segment.output, elapsedMs, success);
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			}
+		}
+	}
+
+	/**
+	 * 使わなかったセグメントを破棄する
+	 * @param segment
+	 */
+	private void discardSegment(@NonNull final Segment segment) {
+		if (DEBUG) Log.v(TAG, "discardSegment:" + segment.index);
+		try {
+			segment.muxer.release();
+		} catch (final Exception e) {
+			Log.w(TAG, e);
+		}
+		try {
+			segment.output.delete();
+		} catch (final Exception e) {
+			Log.w(TAG, e);
+		}
+	}
+
+	/**
+	 * 書き込みが終わった出力ファイルの後処理
+	 * @param output
+	 */
+	private void finishOutputDoc(@NonNull final DocumentFile output) {
+		final Context context = getContext();
+		if (context == null) {
+			return;
+		}
+		if (BuildCheck.isAPI29()) {
+			// API>=29でMediaStoreからIS_PENDING=1で取得したuriの後処理
+			// デフォルトのIMuxerFactory実装であればMediaStoreOutputStreamで
+			// ラップしているのでここでのupdateContentUri呼び出しは冗長だけど、
+			// IMuxerFactoryを時前実装してる可能性があるので念のために呼んでおく
+			MediaStoreUtils.updateContentUri(context, output);
+		} else if (UriHelper.isFileUri(output)) {
+			final String path = UriHelper.getPath(context, output.getUri());
+			if (DEBUG) Log.v(TAG, "finishOutputDoc:scanFile," + path);
+			try {
+				// 内部でexecutorを使ってワーカースレッド上で処理しているのでここで呼び出しても大丈夫なはず
+				MediaScannerConnection.scanFile(context, new String[] {path}, null, null);
+			} catch (final Exception e) {
+				Log.w(TAG, e);
 			}
 		}
-		mCurrent = createOutputDoc(segment);
-		return createMuxer(requireContext(), mCurrent);
+	}
+
+	/**
+	 * セグメント(出力ファイル毎のDocumentFileとIMuxer)を保持するためのホルダークラス
+	 */
+	private static final class Segment {
+		private final int index;
+		@NonNull
+		private final DocumentFile output;
+		@NonNull
+		private final IMuxer muxer;
+
+		private Segment(final int index,
+			@NonNull final DocumentFile output, @NonNull final IMuxer muxer) {
+			this.index = index;
+			this.output = output;
+			this.muxer = muxer;
+		}
 	}
 
 //--------------------------------------------------------------------------------
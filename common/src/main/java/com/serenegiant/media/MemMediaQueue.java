@@ -40,6 +40,24 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 	private final IRecycleBuffer.Factory<RecycleMediaData> mFactory;
 	@NonNull
 	private final Pool<RecycleMediaData> mPool;
+	/**
+	 * キュー/バッファプールに空きがないときに破棄するフレームを決めるためのIFrameDropPolicy
+	 */
+	@Nullable
+	private volatile IFrameDropPolicy mDropPolicy;
+	/**
+	 * キューへの追加とIFrameDropPolicy#shedの排他制御用
+	 * IFrameDropPolicy#shedで破棄するフレームを選んでから取り除くまでの間に
+	 * 消費側でリサイクルされたバッファが再取得されてキューへ追加されると
+	 * 新しいフレームを取り除いてしまうのでキューへの追加はこのロックを保持した状態で行う
+	 * (消費側の取り出しは排他しない)
+	 */
+	@NonNull
+	private final Object mQueueSync = new Object();
+	/**
+	 * キューに保持できる最大フレーム数(キューとバッファプールの上限の小さい方)
+	 */
+	private final int mCapacity;
 	
 	/**
 	 * MemMediaQueue用のデフォルトファクトリークラス
@@ -106,6 +124,7 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 		@Nullable final IRecycleBuffer.Factory<RecycleMediaData> factory) {
 
 		mQueue = new LinkedBlockingQueue<RecycleMediaData>(maxQueueSz);
+		mCapacity = Math.min(maxQueueSz, maxNumInPool);
 		mFactory = factory != null ? factory : new DefaultFactory();
 		mPool = new Pool<RecycleMediaData>(initNum, maxNumInPool) {
 			@NonNull
@@ -118,6 +137,24 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 		};
 	}
 
+	/**
+	 * キュー/バッファプールに空きがないときに破棄するフレームを決めるためのIFrameDropPolicyをセット
+	 * nullなら従来通り空きがないときは新しいフレームを追加できない
+	 * @param policy
+	 */
+	public void setDropPolicy(@Nullable final IFrameDropPolicy policy) {
+		mDropPolicy = policy;
+	}
+
+	/**
+	 * IFrameDropPolicyを取得
+	 * @return
+	 */
+	@Nullable
+	public IFrameDropPolicy getDropPolicy() {
+		return mDropPolicy;
+	}
+
 	@Override
 	public void init(@Nullable final Object... args) {
 		clear();
@@ -128,6 +165,10 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 	public void clear() {
 		mQueue.clear();
 		mPool.clear();
+		final IFrameDropPolicy policy = mDropPolicy;
+		if (policy != null) {
+			policy.reset();
+		}
 	}
 
 	@Override
@@ -142,13 +183,27 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 
 	/**
 	 * プールからデータ保持用オブジェクトを取得する
+	 * IFrameDropPolicyがセットされていてプールが空の時はキュー内のフレームを破棄してから再度取得を試みる
 	 * @param args
 	 * @return
 	 */
 	@Nullable
 	@Override
 	public RecycleMediaData obtain(@Nullable final Object... args) {
-		final RecycleMediaData result = mPool.obtain(args);
+		RecycleMediaData result = mPool.obtain(args);
+		final IFrameDropPolicy policy = mDropPolicy;
+		if ((result == null) && (policy != null)) {
+			final int shed;
+			synchronized (mQueueSync) {
+				shed = policy.shed(mQueue);
+			}
+			if (shed > 0) {
+				result = mPool.obtain(args);
+			}
+			if (result == null) {
+				policy.onOverflow(null);
+			}
+		}
 		if (result != null) {
 			result.setRecycled(false);
 		}
@@ -157,13 +212,45 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 
 	/**
 	 * キューにデータを追加する
+	 * キューに追加できなかったときはIFrameDropPolicyの有無にかかわらずプールへ戻すので
+	 * falseが返ったときは呼び出し元で引数のバッファへアクセスしたりリサイクルしたりしてはいけない
+	 * IFrameDropPolicyがセットされている時は
+	 * ・IFrameDropPolicyが破棄すると判断したフレーム
+	 * ・キュー内のフレームを破棄しても空きを作れなかったときのフレーム
+	 * もキューに追加せずにプールへ戻す
 	 * @param buffer
-	 * @return true: 正常にキューに追加できた
+	 * @return true: 正常にキューに追加できた, false: キューに追加できずにプールへ戻した
 	 */
 	@Override
 	public boolean queueFrame(@NonNull final RecycleMediaData buffer) {
 		buffer.setRecycled(false);
-		return mQueue.offer(buffer);
+		final IFrameDropPolicy policy = mDropPolicy;
+		if (policy == null) {
+			final boolean result;
+			synchronized (mQueueSync) {
+				result = mQueue.offer(buffer);
+			}
+			if (!result) {
+				recycle(buffer);
+			}
+			return result;
+		}
+		if (policy.shouldDrop(buffer)) {
+			recycle(buffer);
+			return false;
+		}
+		boolean result;
+		synchronized (mQueueSync) {
+			result = mQueue.offer(buffer);
+			if (!result && (policy.shed(mQueue) > 0)) {
+				result = mQueue.offer(buffer);
+			}
+		}
+		if (!result) {
+			policy.onOverflow(buffer);
+			recycle(buffer);
+		}
+		return result;
 	}
 	
 	@Override
@@ -190,6 +277,15 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 	public int count() {
 		return mQueue.size();
 	}
+
+	/**
+	 * キューに保持できる最大フレーム数を取得
+	 * (キューの最大サイズとバッファプールの最大数の小さい方)
+	 * @return
+	 */
+	public int capacity() {
+		return mCapacity;
+	}
 	
 	@Override
 	public boolean recycle(@NonNull final RecycleMediaData buffer) {
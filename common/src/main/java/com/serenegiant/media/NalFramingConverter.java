@@ -0,0 +1,528 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * h.264/h.265映像データのAnnexB形式(スタートマーカー区切り)と
+ * AVCC/HVCC形式(NALユニット長のプレフィックス付き)とを相互変換するためのヘルパークラス
+ * codec specific dataからavcC/hvcC(AVCDecoderConfigurationRecord/HEVCDecoderConfigurationRecord)を生成する
+ * 変換後のフレームデータは内部で保持するバッファへ書き込むので
+ * バッファサイズが足りなくなった時以外はフレーム毎のメモリー割り当ては発生しない
+ * 排他制御をしていないので1つのスレッドからのみ呼び出すこと
+ */
+public class NalFramingConverter {
+	/**
+	 * AnnexB形式(スタートマーカー区切り), MediaCodecの出力と同じ
+	 */
+	public static final int FRAMING_ANNEX_B = 0;
+	/**
+	 * AVCC/HVCC形式(NALユニット長のプレフィックス付き), mp4等のコンテナ内での形式
+	 */
+	public static final int FRAMING_LENGTH_PREFIXED = 1;
+
+	@IntDef({
+		FRAMING_ANNEX_B,
+		FRAMING_LENGTH_PREFIXED,
+	})
+	@Retention(RetentionPolicy.SOURCE)
+	public @interface Framing {}
+
+	/**
+	 * AVCC/HVCC形式へ変換する時のNALユニット長のバイト数
+	 */
+	public static final int DEFAULT_LENGTH_SIZE = 4;
+	private static final byte[] START_MARK = { 0, 0, 0, 1 };
+
+	/**
+	 * codec specific dataがavcC/hvcC(configurationVersion=1で始まる)かどうか
+	 * AnnexB形式のcodec specific dataはスタートマーカー(0x00)で始まる
+	 * @param csd
+	 * @return
+	 */
+	public static boolean isConfigRecord(@Nullable final ByteBuffer csd) {
+		return (csd != null) && (csd.remaining() > 0) && (csd.get(csd.position()) == 1);
+	}
+
+	/**
+	 * AnnexB形式のcodec specific data(csd-0, csd-1)からavcC(AVCDecoderConfigurationRecord)を生成する
+	 * High系プロファイル(profile_idc=100/110/122/144)の場合はSPSを解析して
+	 * chroma_format/ビット深度の拡張フィールドを付加する(解析できなければ4:2:0/8ビット)
+	 * @param csd0 SPS(PPSを含んでいてもよい)
+	 * @param csd1 PPS, nullable
+	 * @return
+	 * @throws IllegalArgumentException SPSまたはPPSが見つからなかった
+	 */
+	@NonNull
+	public static ByteBuffer createAvcC(@NonNull final ByteBuffer csd0, @Nullable final ByteBuffer csd1)
+		throws IllegalArgumentException {
+
+		final List<ByteBuffer> sps = new ArrayList<>();
+		final List<ByteBuffer> pps = new ArrayList<>();
+		final NalUnitScanner scanner = new NalUnitScanner(false);
+		collect(scanner, csd0, sps, pps, null);
+		if (csd1 != null) {
+			collect(scanner, csd1, sps, pps, null);
+		}
+		if (sps.isEmpty() || pps.isEmpty()) {
+			throw new IllegalArgumentException("SPS/PPS not found");
+		}
+		final ByteBuffer s = sps.get(0);
+		if (s.remaining() < 4) {
+			throw new IllegalArgumentException("SPS is too short");
+		}
+		final int profileIdc = s.get(s.position() + 1) & 0xff;
+		final boolean hasExt = (profileIdc == 100) || (profileIdc == 110)
+			|| (profileIdc == 122) || (profileIdc == 144);
+		final SpsParser.SpsInfo info = new SpsParser.SpsInfo();
+		if (hasExt) {
+			try {
+				SpsParser.parseAvcSps(s, s.position(), s.limit(), info);
+			} catch (final IllegalArgumentException e) {
+				// 解析できなければデフォルト値(4:2:0/8ビット)を使う
+			}
+		}
+		final ByteBuffer result = ByteBuffer.allocateDirect(
+			7 + size(sps) + size(pps) + (hasExt ? 4 : 0))
+			.order(ByteOrder.BIG_ENDIAN);
+		result.put((byte)1);							// configurationVersion
+		result.put((byte)profileIdc);					// AVCProfileIndication
+		result.put(s.get(s.position() + 2));			// profile_compatibility
+		result.put(s.get(s.position() + 3));			// AVCLevelIndication
+		result.put((byte)(0xfc | (DEFAULT_LENGTH_SIZE - 1)));	// lengthSizeMinusOne
+		result.put((byte)(0xe0 | sps.size()));			// numOfSequenceParameterSets
+		putNalUnits(result, sps);
+		result.put((byte)pps.size());					// numOfPictureParameterSets
+		putNalUnits(result, pps);
+		if (hasExt) {
+			result.put((byte)(0xfc | (info.chromaFormatIdc & 0x03)));	// chroma_format
+			result.put((byte)(0xf8 | ((info.bitDepthLuma - 8) & 0x07)));	// bit_depth_luma_minus8
+			result.put((byte)(0xf8 | ((info.bitDepthChroma - 8) & 0x07)));	// bit_depth_chroma_minus8
+			result.put((byte)0);						// numOfSequenceParameterSetExt
+		}
+		result.flip();
+		return result;
+	}
+
+	/**
+	 * AnnexB形式のcodec specific data(通常はcsd-0にVPS/SPS/PPSが全て入っている)から
+	 * hvcC(HEVCDecoderConfigurationRecord)を生成する
+	 * chroma_format_idcとビット深度はSPSを解析して取得する(解析できなければ4:2:0/8ビット)
+	 * @param csd0 VPS/SPS/PPS
+	 * @param csd1 nullable
+	 * @return
+	 * @throws IllegalArgumentException VPS/SPS/PPSが見つからなかった
+	 */
+	@NonNull
+	public static ByteBuffer createHvcC(@NonNull final ByteBuffer csd0, @Nullable final ByteBuffer csd1)
+		throws IllegalArgumentException {
+
+		final List<ByteBuffer> vps = new ArrayList<>();
+		final List<ByteBuffer> sps = new ArrayList<>();
+		final List<ByteBuffer> pps = new ArrayList<>();
+		final NalUnitScanner scanner = new NalUnitScanner(true);
+		collect(scanner, csd0, sps, pps, vps);
+		if (csd1 != null) {
+			collect(scanner, csd1, sps, pps, vps);
+		}
+		if (vps.isEmpty() || sps.isEmpty() || pps.isEmpty()) {
+			throw new IllegalArgumentException("VPS/SPS/PPS not found");
+		}
+		// SPSのNALユニットヘッダー(2バイト)直後からprofile_tier_levelのgeneral部分までを
+		// エミュレーション防止バイトを取り除いて読み込む
+		final byte[] rbsp = new byte[13];
+		if (unescape(sps.get(0), 2, rbsp) < rbsp.length) {
+			throw new IllegalArgumentException("SPS is too short");
+		}
+		final int maxSubLayersMinus1 = (rbsp[0] >>> 1) & 0x07;
+		final int temporalIdNested = rbsp[0] & 0x01;
+		final SpsParser.SpsInfo info = new SpsParser.SpsInfo();
+		try {
+			final ByteBuffer s = sps.get(0);
+			SpsParser.parseHevcSps(s, s.position(), s.limit(), info);
+		} catch (final IllegalArgumentException e) {
+			// 解析できなければデフォルト値(4:2:0/8ビット)を使う
+		}
+		final ByteBuffer result = ByteBuffer.allocateDirect(
+			23 + 3 * 3 + size(vps) + size(sps) + size(pps))
+			.order(ByteOrder.BIG_ENDIAN);
+		result.put((byte)1);				// configurationVersion
+		// general_profile_space, general_tier_flag, general_profile_idc,
+		// general_profile_compatibility_flags, general_constraint_indicator_flags,
+		// general_level_idcはprofile_tier_levelと同じ並び
+		result.put(rbsp, 1, 12);
+		result.putShort((short)0xf000);		// min_spatial_segmentation_idc
+		result.put((byte)0xfc);				// parallelismType
+		result.put((byte)(0xfc | (info.chromaFormatIdc & 0x03)));	// chromaFormat
+		result.put((byte)(0xf8 | ((info.bitDepthLuma - 8) & 0x07)));	// bitDepthLumaMinus8
+		result.put((byte)(0xf8 | ((info.bitDepthChroma - 8) & 0x07)));	// bitDepthChromaMinus8
+		result.putShort((short)0);			// avgFrameRate
+		result.put((byte)(((maxSubLayersMinus1 + 1) << 3)
+			| (temporalIdNested << 2) | (DEFAULT_LENGTH_SIZE - 1)));
+		result.put((byte)3);				// numOfArrays
+		putNalArray(result, NalUnitScanner.HEVC_NAL_VPS, vps);
+		putNalArray(result, NalUnitScanner.HEVC_NAL_SPS, sps);
+		putNalArray(result, NalUnitScanner.HEVC_NAL_PPS, pps);
+		result.flip();
+		return result;
+	}
+
+	/**
+	 * avcC/hvcCからAnnexB形式のcodec specific dataを生成する
+	 * h.264/AVCの場合は[csd-0(SPS), csd-1(PPS)], h.265/HEVCの場合は[csd-0(VPS/SPS/PPS)]を返す
+	 * @param isHevc
+	 * @param record
+	 * @return
+	 * @throws IllegalArgumentException avcC/hvcCとして解析できなかった
+	 */
+	@NonNull
+	public static ByteBuffer[] toAnnexBCsd(final boolean isHevc, @NonNull final ByteBuffer record)
+		throws IllegalArgumentException {
+
+		final ByteBuffer src = record.duplicate().order(ByteOrder.BIG_ENDIAN);
+		try {
+			if (isHevc) {
+				src.position(src.position() + 22);
+				final int numArrays = src.get() & 0xff;
+				final List<ByteBuffer> nals = new ArrayList<>();
+				for (int i = 0; i < numArrays; i++) {
+					src.get();	// array_completeness, NAL_unit_type
+					readNalUnits(src, src.getShort() & 0xffff, nals);
+				}
+				return new ByteBuffer[] { toAnnexB(nals) };
+			} else {
+				src.position(src.position() + 5);
+				final List<ByteBuffer> sps = new ArrayList<>();
+				final List<ByteBuffer> pps = new ArrayList<>();
+				readNalUnits(src, src.get() & 0x1f, sps);
+				readNalUnits(src, src.get() & 0xff, pps);
+				return new ByteBuffer[] { toAnnexB(sps), toAnnexB(pps) };
+			}
+		} catch (final RuntimeException e) {
+			throw new IllegalArgumentException("unexpected config record", e);
+		}
+	}
+
+	/**
+	 * avcC/hvcCからNALユニット長のバイト数を取得する
+	 * @param isHevc
+	 * @param record
+	 * @return
+	 */
+	public static int getLengthSize(final boolean isHevc, @NonNull final ByteBuffer record) {
+		final int ix = record.position() + (isHevc ? 21 : 4);
+		return ix < record.limit() ? (record.get(ix) & 0x03) + 1 : DEFAULT_LENGTH_SIZE;
+	}
+
+//--------------------------------------------------------------------------------
+	@Framing
+	private final int mFraming;
+	private final int mLengthSize;
+	@NonNull
+	private final NalUnitScanner mScanner;
+	@Nullable
+	private ByteBuffer mOutput;
+
+	/**
+	 * コンストラクタ
+	 * @param isHevc
+	 * @param framing 変換後の形式
+	 * @param lengthSize AVCC/HVCC形式のNALユニット長のバイト数(1, 2, 4),
+	 * 						AnnexB形式へ変換する時は変換前, AVCC/HVCC形式へ変換する時は変換後
+	 */
+	public NalFramingConverter(final boolean isHevc,
+		@Framing final int framing, final int lengthSize) {
+
+		if ((lengthSize != 1) && (lengthSize != 2) && (lengthSize != 4)) {
+			throw new IllegalArgumentException("unexpected length size," + lengthSize);
+		}
+		mFraming = framing;
+		mLengthSize = lengthSize;
+		mScanner = new NalUnitScanner(isHevc);
+	}
+
+	/**
+	 * 変換後の形式を取得
+	 * @return
+	 */
+	@Framing
+	public int getFraming() {
+		return mFraming;
+	}
+
+	/**
+	 * 1フレーム分の映像データを変換する
+	 * 返り値のByteBufferは次の#convert呼び出しまで有効
+	 * 引数のByteBufferのposition/limitは変更しない
+	 * @param src
+	 * @param offset
+	 * @param size
+	 * @return 変換後のデータ(position=0, limit=変換後のサイズ),
+	 * 			AnnexB形式からの変換時にスタートマーカーが見つからなければnull
+	 * @throws IllegalArgumentException AVCC/HVCC形式のNALユニット長が不正,
+	 * 			またはAVCC/HVCC形式へ変換する時にNALユニット長が指定したバイト数に収まらない
+	 */
+	@Nullable
+	public ByteBuffer convert(@NonNull final ByteBuffer src, final int offset, final int size)
+		throws IllegalArgumentException {
+
+		return mFraming == FRAMING_LENGTH_PREFIXED
+			? toLengthPrefixed(src, offset, size)
+			: toAnnexB(src, offset, size);
+	}
+
+	/**
+	 * AnnexB形式からAVCC/HVCC形式へ変換する
+	 * @param src
+	 * @param offset
+	 * @param size
+	 * @return
+	 * @throws IllegalArgumentException NALユニット長が指定したバイト数に収まらない
+	 */
+	@Nullable
+	private ByteBuffer toLengthPrefixed(@NonNull final ByteBuffer src, final int offset, final int size)
+		throws IllegalArgumentException {
+
+		final NalUnitScanner scanner = mScanner.reset(src, offset, size);
+		if (!scanner.next()) {
+			scanner.clear();
+			return null;
+		}
+		// NALユニットは最低でもスタートマーカー3バイト+1バイトなので増加量はsize/4以下
+		final ByteBuffer dst = obtainOutput(size + size / 4 + mLengthSize);
+		final int pos = src.position();
+		final int limit = src.limit();
+		try {
+			do {
+				final int payload = scanner.getPayloadOffset();
+				final int end = scanner.getEnd();
+				putLength(dst, end - payload);
+				src.limit(end).position(payload);
+				dst.put(src);
+				src.limit(limit);
+			} while (scanner.next());
+		} finally {
+			src.limit(limit).position(pos);
+			scanner.clear();
+		}
+		dst.flip();
+		return dst;
+	}
+
+	/**
+	 * AVCC/HVCC形式からAnnexB形式へ変換する
+	 * @param src
+	 * @param offset
+	 * @param size
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	@NonNull
+	private ByteBuffer toAnnexB(@NonNull final ByteBuffer src, final int offset, final int size)
+		throws IllegalArgumentException {
+
+		// NALユニット長1バイトあたり(4-mLengthSize)/(mLengthSize+1)以下しか増えない
+		final ByteBuffer dst = obtainOutput(
+			size + (size / (mLengthSize + 1)) * (4 - mLengthSize) + 4);
+		final int pos = src.position();
+		final int limit = src.limit();
+		final int end = offset + size;
+		try {
+			int ix = offset;
+			while (ix + mLengthSize <= end) {
+				int len = 0;
+				for (int i = 0; i < mLengthSize; i++) {
+					len = (len << 8) | (src.get(ix + i) & 0xff);
+				}
+				ix += mLengthSize;
+				if ((len < 0) || (ix + len > end)) {
+					throw new IllegalArgumentException("unexpected nal unit length," + len);
+				}
+				dst.put(START_MARK);
+				src.limit(ix + len).position(ix);
+				dst.put(src);
+				src.limit(limit);
+				ix += len;
+			}
+		} finally {
+			src.limit(limit).position(pos);
+		}
+		dst.flip();
+		return dst;
+	}
+
+	/**
+	 * 出力用のバッファを取得する, 容量が足りなければ割り当て直す
+	 * @param capacity
+	 * @return
+	 */
+	@NonNull
+	private ByteBuffer obtainOutput(final int capacity) {
+		ByteBuffer result = mOutput;
+		if ((result == null) || (result.capacity() < capacity)) {
+			// 頻繁に割り当て直さなくて済むように少し大きめに確保する
+			result = mOutput = ByteBuffer.allocateDirect(capacity + capacity / 2)
+				.order(ByteOrder.BIG_ENDIAN);
+		}
+		result.clear();
+		return result;
+	}
+
+	/**
+	 * NALユニット長を書き込む
+	 * @param dst
+	 * @param len
+	 * @throws IllegalArgumentException NALユニット長がmLengthSizeバイトに収まらない
+	 */
+	private void putLength(@NonNull final ByteBuffer dst, final int len)
+		throws IllegalArgumentException {
+
+		if ((mLengthSize < 4) && (len >>> (mLengthSize * 8) != 0)) {
+			throw new IllegalArgumentException("nal unit length " + len
+				+ " does not fit in " + mLengthSize + " bytes");
+		}
+		switch (mLengthSize) {
+		case 1:
+			dst.put((byte)len);
+			break;
+		case 2:
+			dst.putShort((short)len);
+			break;
+		default:
+			dst.putInt(len);
+			break;
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * AnnexB形式のcodec specific dataからVPS/SPS/PPSを取り出す
+	 * 返り値のByteBufferは引数のByteBufferと中身を共有する
+	 * @param scanner
+	 * @param csd
+	 * @param sps
+	 * @param pps
+	 * @param vps h.265/HEVCの時のみ
+	 */
+	private static void collect(@NonNull final NalUnitScanner scanner,
+		@NonNull final ByteBuffer csd,
+		@NonNull final List<ByteBuffer> sps, @NonNull final List<ByteBuffer> pps,
+		@Nullable final List<ByteBuffer> vps) {
+
+		scanner.reset(csd);
+		while (scanner.next()) {
+			final List<ByteBuffer> list;
+			if (scanner.isSps()) {
+				list = sps;
+			} else if (scanner.isPps()) {
+				list = pps;
+			} else if (scanner.isVps() && (vps != null)) {
+				list = vps;
+			} else {
+				continue;
+			}
+			final ByteBuffer nal = csd.duplicate();
+			nal.limit(scanner.getEnd()).position(scanner.getPayloadOffset());
+			list.add(nal.slice());
+		}
+		scanner.clear();
+	}
+
+	/**
+	 * NALユニットのエミュレーション防止バイト(00 00 03の03)を取り除いてbyte配列へ読み込む
+	 * @param nal
+	 * @param offset NALユニット先頭からのオフセット
+	 * @param dst
+	 * @return 読み込んだバイト数
+	 */
+	private static int unescape(@NonNull final ByteBuffer nal, final int offset, @NonNull final byte[] dst) {
+		final int n = nal.limit();
+		int zeros = 0;
+		int ix = 0;
+		for (int i = nal.position() + offset; (i < n) && (ix < dst.length); i++) {
+			final byte b = nal.get(i);
+			if ((zeros >= 2) && (b == 0x03)) {
+				zeros = 0;
+				continue;
+			}
+			zeros = (b == 0) ? zeros + 1 : 0;
+			dst[ix++] = b;
+		}
+		return ix;
+	}
+
+	private static int size(@NonNull final List<ByteBuffer> nals) {
+		int result = 0;
+		for (final ByteBuffer nal: nals) {
+			result += 2 + nal.remaining();
+		}
+		return result;
+	}
+
+	private static void putNalUnits(@NonNull final ByteBuffer dst, @NonNull final List<ByteBuffer> nals) {
+		for (final ByteBuffer nal: nals) {
+			dst.putShort((short)nal.remaining());
+			dst.put(nal.duplicate());
+		}
+	}
+
+	private static void putNalArray(@NonNull final ByteBuffer dst,
+		final int type, @NonNull final List<ByteBuffer> nals) {
+
+		dst.put((byte)(0x80 | type));	// array_completeness=1
+		dst.putShort((short)nals.size());
+		putNalUnits(dst, nals);
+	}
+
+	private static void readNalUnits(@NonNull final ByteBuffer src,
+		final int num, @NonNull final List<ByteBuffer> nals) {
+
+		for (int i = 0; i < num; i++) {
+			final int len = src.getShort() & 0xffff;
+			final ByteBuffer nal = src.duplicate();
+			nal.limit(src.position() + len);
+			nals.add(nal.slice());
+			src.position(src.position() + len);
+		}
+	}
+
+	@NonNull
+	private static ByteBuffer toAnnexB(@NonNull final List<ByteBuffer> nals) {
+		int sz = 0;
+		for (final ByteBuffer nal: nals) {
+			sz += START_MARK.length + nal.remaining();
+		}
+		final ByteBuffer result = ByteBuffer.allocateDirect(sz).order(ByteOrder.nativeOrder());
+		for (final ByteBuffer nal: nals) {
+			result.put(START_MARK).put(nal.duplicate());
+		}
+		result.flip();
+		return result;
+	}
+}
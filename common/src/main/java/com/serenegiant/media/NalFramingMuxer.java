@@ -0,0 +1,204 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.serenegiant.system.BuildCheck;
+
+import java.nio.ByteBuffer;
+
+import androidx.annotation.NonNull;
+
+/**
+ * h.264/h.265映像トラックのフレームデータをAnnexB形式とAVCC/HVCC形式の間で変換してから
+ * 移譲先のIMuxerへ書き込むIMuxerデコレーター
+ * AVCC/HVCC形式へ変換する場合はcsd-0をavcC/hvcCに置き換えたMediaFormatでトラックを追加する
+ * AnnexB形式へ変換する場合はavcC/hvcCからAnnexB形式のcsd-0/csd-1を生成してトラックを追加する
+ * 映像以外のトラックと変換が不要なトラックはそのまま移譲先へ引き渡す
+ */
+public class NalFramingMuxer implements IMuxer {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = NalFramingMuxer.class.getSimpleName();
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final IMuxer mParent;
+	@NalFramingConverter.Framing
+	private final int mFraming;
+	/**
+	 * トラックインデックス毎の変換処理
+	 */
+	@NonNull
+	private final SparseArray<NalFramingConverter> mConverters = new SparseArray<>();
+	/**
+	 * 変換後のフレーム情報(ワーク用)
+	 */
+	@NonNull
+	private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+	/**
+	 * コンストラクタ
+	 * @param parent 移譲先のIMuxer
+	 * @param framing 移譲先へ引き渡すときの形式
+	 */
+	public NalFramingMuxer(@NonNull final IMuxer parent,
+		@NalFramingConverter.Framing final int framing) {
+
+		mParent = parent;
+		mFraming = framing;
+	}
+
+	/**
+	 * 移譲先のIMuxerを取得
+	 * @return
+	 */
+	@NonNull
+	public IMuxer getParent() {
+		return mParent;
+	}
+
+	/**
+	 * トラックを追加する
+	 * h.264/h.265の映像トラックで変換が必要な場合はcodec specific dataを変換後の形式にして移譲先へ追加する
+	 * @param format
+	 * @return
+	 * @throws IllegalArgumentException codec specific dataを解析できなかった
+	 */
+	@Override
+	public int addTrack(@NonNull final MediaFormat format) throws IllegalArgumentException {
+		if (DEBUG) Log.v(TAG, "addTrack:" + format);
+		final String mime = format.containsKey(MediaFormat.KEY_MIME)
+			? format.getString(MediaFormat.KEY_MIME) : null;
+		final boolean isHevc = NalUnitScanner.isHevc(mime);
+		if (!isHevc && !MediaCodecUtils.MIME_VIDEO_AVC.equalsIgnoreCase(mime)) {
+			return mParent.addTrack(format);
+		}
+		final ByteBuffer csd0 = format.containsKey("csd-0") ? format.getByteBuffer("csd-0") : null;
+		final ByteBuffer csd1 = format.containsKey("csd-1") ? format.getByteBuffer("csd-1") : null;
+		// csd-0がavcC/hvcCなら入力はAVCC/HVCC形式, そうでなければ(MediaCodecの出力と同じ)AnnexB形式とみなす
+		final boolean isLengthPrefixed = NalFramingConverter.isConfigRecord(csd0);
+		final boolean needConvert = isLengthPrefixed
+			!= (mFraming == NalFramingConverter.FRAMING_LENGTH_PREFIXED);
+		if (!needConvert || (csd0 == null)) {
+			return mParent.addTrack(format);
+		}
+		final MediaFormat outFormat = MediaCodecUtils.duplicate(format);
+		final NalFramingConverter converter;
+		if (isLengthPrefixed) {
+			// avcC/hvcC → AnnexB
+			final ByteBuffer[] csd = NalFramingConverter.toAnnexBCsd(isHevc, csd0);
+			outFormat.setByteBuffer("csd-0", csd[0]);
+			if (csd.length > 1) {
+				outFormat.setByteBuffer("csd-1", csd[1]);
+			}
+			converter = new NalFramingConverter(isHevc, mFraming,
+				NalFramingConverter.getLengthSize(isHevc, csd0));
+		} else {
+			// AnnexB → avcC/hvcC
+			outFormat.setByteBuffer("csd-0", isHevc
+				? NalFramingConverter.createHvcC(csd0, csd1)
+				: NalFramingConverter.createAvcC(csd0, csd1));
+			removeKey(outFormat, "csd-1");
+			converter = new NalFramingConverter(isHevc, mFraming,
+				NalFramingConverter.DEFAULT_LENGTH_SIZE);
+		}
+		final int result = mParent.addTrack(outFormat);
+		if (result >= 0) {
+			synchronized (mSync) {
+				mConverters.put(result, converter);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * フレームデータを書き込む
+	 * 変換が必要なトラックは変換してから移譲先へ引き渡す
+	 * 変換が必要なトラックでスタートマーカーが見つからなかったフレームは
+	 * 形式の異なるフレームが混在しないように書き込まずに破棄する
+	 * @param trackIndex
+	 * @param byteBuf
+	 * @param bufferInfo
+	 * @throws IllegalArgumentException フレームデータを変換できなかった
+	 */
+	@Override
+	public void writeSampleData(final int trackIndex,
+		@NonNull final ByteBuffer byteBuf,
+		@NonNull final MediaCodec.BufferInfo bufferInfo) throws IllegalArgumentException {
+
+		synchronized (mSync) {
+			final NalFramingConverter converter = mConverters.get(trackIndex);
+			if ((converter == null) || (bufferInfo.size <= 0)) {
+				mParent.writeSampleData(trackIndex, byteBuf, bufferInfo);
+				return;
+			}
+			final ByteBuffer converted
+				= converter.convert(byteBuf, bufferInfo.offset, bufferInfo.size);
+			if (converted != null) {
+				mInfo.set(0, converted.remaining(), bufferInfo.presentationTimeUs, bufferInfo.flags);
+				mParent.writeSampleData(trackIndex, converted, mInfo);
+			} else {
+				Log.w(TAG, "writeSampleData:start mark not found, drop frame,track="
+					+ trackIndex + ",pts=" + bufferInfo.presentationTimeUs);
+			}
+		}
+	}
+
+	@Override
+	public void start() {
+		mParent.start();
+	}
+
+	@Override
+	public void stop() {
+		mParent.stop();
+	}
+
+	@Override
+	public void release() {
+		mParent.release();
+		synchronized (mSync) {
+			mConverters.clear();
+		}
+	}
+
+	@Override
+	public boolean isStarted() {
+		return mParent.isStarted();
+	}
+
+	/**
+	 * MediaFormat#removeKeyはAPI>=29なのでそれ未満の場合は何もしない
+	 * (avcC/hvcCを受け取る側は通常csd-1を参照しない)
+	 * @param format
+	 * @param key
+	 */
+	@SuppressLint("NewApi")
+	private static void removeKey(@NonNull final MediaFormat format, @NonNull final String key) {
+		if (BuildCheck.isAPI29() && format.containsKey(key)) {
+			format.removeKey(key);
+		}
+	}
+}
@@ -0,0 +1,331 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.BufferHelper;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * AnnexB形式(スタートマーカー区切り)のh.264/h.265映像データからNALユニットを順に切り出すためのヘルパークラス
+ * ByteBuffer(ダイレクトバッファでも可)上で直接スタートマーカーを検索するので映像データのコピーはしない
+ * 1つのインスタンスを使い回せばフレーム毎のメモリー割り当ても発生しない
+ * 排他制御をしていないので複数のスレッドから同時に呼び出さないこと
+ *
+ * NalUnitScanner scanner = new NalUnitScanner(false);
+ * scanner.reset(buffer);
+ * while (scanner.next()) {
+ *     if (scanner.getType() == NalUnitScanner.AVC_NAL_SPS) {
+ *         // buffer[scanner.getPayloadOffset(), scanner.getEnd())がSPS
+ *     }
+ * }
+ */
+public class NalUnitScanner {
+	public static final String MIME_VIDEO_HEVC = "video/hevc";
+
+	// h.264/AVCのNALユニットタイプ
+	public static final int AVC_NAL_SLICE = 1;
+	public static final int AVC_NAL_IDR = 5;
+	public static final int AVC_NAL_SEI = 6;
+	public static final int AVC_NAL_SPS = 7;
+	public static final int AVC_NAL_PPS = 8;
+	public static final int AVC_NAL_AUD = 9;
+	// h.265/HEVCのNALユニットタイプ
+	/**
+	 * h.265/HEVCのサブレイヤー非参照ピクチャーになり得るNALユニットタイプの最大値(RSV_VCL_N14)
+	 */
+	public static final int HEVC_NAL_MAX_SUB_LAYER_NON_REF = 14;
+	public static final int HEVC_NAL_BLA_W_LP = 16;
+	public static final int HEVC_NAL_IDR_W_RADL = 19;
+	public static final int HEVC_NAL_IDR_N_LP = 20;
+	public static final int HEVC_NAL_CRA = 21;
+	/**
+	 * h.265/HEVCのVCL NALユニットタイプの最大値(RSV_IRAP_VCL23)
+	 */
+	public static final int HEVC_NAL_MAX_VCL = 23;
+	public static final int HEVC_NAL_VPS = 32;
+	public static final int HEVC_NAL_SPS = 33;
+	public static final int HEVC_NAL_PPS = 34;
+	public static final int HEVC_NAL_AUD = 35;
+	public static final int HEVC_NAL_PREFIX_SEI = 39;
+
+	/**
+	 * 指定したmime typeがh.265/HEVCかどうか
+	 * @param mime
+	 * @return
+	 */
+	public static boolean isHevc(@Nullable final String mime) {
+		return MIME_VIDEO_HEVC.equalsIgnoreCase(mime);
+	}
+
+	private final boolean mIsHevc;
+	@Nullable
+	private ByteBuffer mBuffer;
+	private int mLimit;
+	/**
+	 * 次のNALユニットのスタートマーカーの位置, 無ければ負
+	 */
+	private int mNextStart = -1;
+	private int mStart = -1;
+	private int mPayload = -1;
+	private int mEnd = -1;
+	private int mType = -1;
+
+	/**
+	 * コンストラクタ
+	 * @param isHevc true: h.265/HEVC, false: h.264/AVC
+	 */
+	public NalUnitScanner(final boolean isHevc) {
+		mIsHevc = isHevc;
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param mime 映像のmime type
+	 */
+	public NalUnitScanner(@Nullable final String mime) {
+		this(isHevc(mime));
+	}
+
+	/**
+	 * ByteBufferのpositionからlimitまでを走査するようにリセットする
+	 * ByteBufferのposition/limitは変更しない
+	 * @param buffer
+	 * @return
+	 */
+	@NonNull
+	public NalUnitScanner reset(@NonNull final ByteBuffer buffer) {
+		return reset(buffer, buffer.position(), buffer.remaining());
+	}
+
+	/**
+	 * ByteBufferの指定した範囲を走査するようにリセットする
+	 * ByteBufferのposition/limitは変更しない
+	 * @param buffer
+	 * @param offset ByteBuffer先頭からの絶対位置
+	 * @param size
+	 * @return
+	 */
+	@NonNull
+	public NalUnitScanner reset(@NonNull final ByteBuffer buffer, final int offset, final int size) {
+		mBuffer = buffer;
+		mLimit = offset + size;
+		mStart = mPayload = mEnd = mType = -1;
+		mNextStart = BufferHelper.findAnnexB(buffer, offset, mLimit);
+		return this;
+	}
+
+	/**
+	 * 走査対象のByteBufferへの参照を解放する
+	 */
+	public void clear() {
+		mBuffer = null;
+		mNextStart = mStart = mPayload = mEnd = mType = -1;
+	}
+
+	/**
+	 * 次のNALユニットへ進む
+	 * @return 次のNALユニットが無ければfalse
+	 */
+	public boolean next() {
+		final ByteBuffer buffer = mBuffer;
+		if ((buffer == null) || (mNextStart < 0)) {
+			mStart = mPayload = mEnd = mType = -1;
+			return false;
+		}
+		mStart = mNextStart;
+		mPayload = mStart + BufferHelper.getAnnexBStartMarkLength(buffer, mStart);
+		mNextStart = BufferHelper.findAnnexB(buffer, mPayload, mLimit);
+		mEnd = mNextStart >= 0 ? mNextStart : mLimit;
+		final int header = buffer.get(mPayload) & 0xff;
+		mType = mIsHevc ? (header >>> 1) & 0x3f : header & 0x1f;
+		return true;
+	}
+
+	/**
+	 * h.265/HEVCとして走査するかどうか
+	 * @return
+	 */
+	public boolean isHevc() {
+		return mIsHevc;
+	}
+
+	/**
+	 * 現在のNALユニットのスタートマーカーの位置(ByteBuffer先頭からの絶対位置)
+	 * @return
+	 */
+	public int getStart() {
+		return mStart;
+	}
+
+	/**
+	 * 現在のNALユニットのNALユニットヘッダーの位置(ByteBuffer先頭からの絶対位置)
+	 * @return
+	 */
+	public int getPayloadOffset() {
+		return mPayload;
+	}
+
+	/**
+	 * 現在のNALユニットの終端位置(ByteBuffer先頭からの絶対位置, この位置は含まない)
+	 * 次のNALユニットのスタートマーカーの位置または走査範囲の終端
+	 * @return
+	 */
+	public int getEnd() {
+		return mEnd;
+	}
+
+	/**
+	 * 現在のNALユニットのスタートマーカーを除いたサイズ
+	 * @return
+	 */
+	public int getPayloadSize() {
+		return mEnd - mPayload;
+	}
+
+	/**
+	 * 現在のNALユニットのNALユニットタイプ
+	 * @return
+	 */
+	public int getType() {
+		return mType;
+	}
+
+	/**
+	 * 現在のNALユニットがVPS/SPS/PPSのいずれかかどうか
+	 * @return
+	 */
+	public boolean isParameterSet() {
+		return mIsHevc
+			? (mType >= HEVC_NAL_VPS) && (mType <= HEVC_NAL_PPS)
+			: (mType == AVC_NAL_SPS) || (mType == AVC_NAL_PPS);
+	}
+
+	/**
+	 * 現在のNALユニットがVPSかどうか(h.265/HEVCのみ)
+	 * @return
+	 */
+	public boolean isVps() {
+		return mIsHevc && (mType == HEVC_NAL_VPS);
+	}
+
+	/**
+	 * 現在のNALユニットがSPSかどうか
+	 * @return
+	 */
+	public boolean isSps() {
+		return mType == (mIsHevc ? HEVC_NAL_SPS : AVC_NAL_SPS);
+	}
+
+	/**
+	 * 現在のNALユニットがPPSかどうか
+	 * @return
+	 */
+	public boolean isPps() {
+		return mType == (mIsHevc ? HEVC_NAL_PPS : AVC_NAL_PPS);
+	}
+
+	/**
+	 * 現在のNALユニットがIDR(h.265/HEVCの場合はBLA/CRAを含むIRAP)かどうか
+	 * @return
+	 */
+	public boolean isKeyFrame() {
+		return mIsHevc
+			? (mType >= HEVC_NAL_BLA_W_LP) && (mType <= HEVC_NAL_CRA)
+			: mType == AVC_NAL_IDR;
+	}
+
+	/**
+	 * 現在のNALユニットがVCL NALユニット(スライスデータ)かどうか
+	 * @return
+	 */
+	public boolean isVcl() {
+		return mIsHevc
+			? (mType >= 0) && (mType <= HEVC_NAL_MAX_VCL)
+			: (mType >= AVC_NAL_SLICE) && (mType <= AVC_NAL_IDR);
+	}
+
+	/**
+	 * 現在のNALユニットのTemporalIdを取得
+	 * h.264/AVCの場合は常に0
+	 * @return
+	 */
+	public int getTemporalId() {
+		if (!mIsHevc || (mPayload < 0) || (mPayload + 1 >= mEnd)) {
+			return 0;
+		}
+		// nuh_temporal_id_plus1はNALユニットヘッダー2バイト目の下位3ビット
+		return Math.max((mBuffer.get(mPayload + 1) & 0x07) - 1, 0);
+	}
+
+	/**
+	 * 現在のNALユニットがh.265/HEVCのSPSのときにストリーム内の最大のTemporalId
+	 * (sps_max_sub_layers_minus1)を取得
+	 * @return SPSでなければ-1
+	 */
+	public int getMaxTemporalId() {
+		if (!mIsHevc || (mType != HEVC_NAL_SPS) || (mPayload + 2 >= mEnd)) {
+			return -1;
+		}
+		// NALユニットヘッダーの次の1バイトが
+		// sps_video_parameter_set_id(4ビット), sps_max_sub_layers_minus1(3ビット), sps_temporal_id_nesting_flag(1ビット)
+		return (mBuffer.get(mPayload + 2) >>> 1) & 0x07;
+	}
+
+	/**
+	 * 現在のNALユニットが他のフレームから参照されないスライスかどうか
+	 * h.264/AVCの場合はnal_ref_idcが0のスライス
+	 * h.265/HEVCの場合は最大のTemporalIdが不明なので常にfalse, #isNonReference(int)を使うこと
+	 * @return
+	 */
+	public boolean isNonReference() {
+		return isNonReference(-1);
+	}
+
+	/**
+	 * 現在のNALユニットが他のフレームから参照されないスライスかどうか
+	 * h.264/AVCの場合はnal_ref_idcが0のスライス,
+	 * h.265/HEVCの場合は最大のTemporalIdのサブレイヤー非参照ピクチャー(TRAIL_N/TSA_N/STSA_N/RADL_N/RASL_N等)
+	 * (サブレイヤー非参照ピクチャーは同じTemporalIdのピクチャーからは参照されないが
+	 * より大きいTemporalIdのピクチャーからは参照されるかもしれない)
+	 * @param maxTemporalId h.265/HEVCのストリーム内の最大のTemporalId(#getMaxTemporalId), 負なら不明
+	 * @return
+	 */
+	public boolean isNonReference(final int maxTemporalId) {
+		if (!isVcl()) {
+			return false;
+		}
+		return mIsHevc
+			? (maxTemporalId >= 0)
+				&& (mType <= HEVC_NAL_MAX_SUB_LAYER_NON_REF) && ((mType & 0x01) == 0)
+				&& (getTemporalId() >= maxTemporalId)
+			: ((mBuffer.get(mPayload) >>> 5) & 0x03) == 0;
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "NalUnitScanner{%s,type=%d,start=%d,payload=%d,end=%d}",
+			mIsHevc ? "hevc" : "avc", mType, mStart, mPayload, mEnd);
+	}
+}
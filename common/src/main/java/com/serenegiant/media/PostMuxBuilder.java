@@ -30,6 +30,8 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 
@@ -52,7 +54,22 @@ class PostMuxBuilder extends PostMuxCommon {
 	
 	private static final long MSEC30US = 1000000 / 30;
 
+	/**
+	 * 追従読み込み時に一時ファイルの終端に達したときの待機時間[ミリ秒]
+	 */
+	private static final long TAIL_POLL_INTERVAL_MS = 20;
+
 	private volatile boolean mIsRunning;
+	/**
+	 * #cancelが呼ばれたかどうか
+	 * 追従読み込みを別スレッドで開始する前に#cancelが呼ばれても取りこぼさないように
+	 * mIsRunningとは別に保持する
+	 */
+	private volatile boolean mCancelled;
+	/**
+	 * 追従読み込み時に一時ファイルへの書き込みが終了したかどうか
+	 */
+	private volatile boolean mInputFinished;
 
 	@NonNull
 	private final IMuxer.IMuxerFactory mMuxerFactory;
@@ -77,8 +94,18 @@ class PostMuxBuilder extends PostMuxCommon {
 	}
 	
 	public void cancel() {
+		mCancelled = true;
 		mIsRunning = false;
 	}
+
+	/**
+	 * #buildFromRawFileIncrementalで追従読み込みしている一時ファイルへの書き込みが終了したことを通知する
+	 * 一時ファイルのフラッシュ/クローズ後に呼び出すこと
+	 * 一時ファイルの終端まで処理すると#buildFromRawFileIncrementalが返る
+	 */
+	public void finishInput() {
+		mInputFinished = true;
+	}
 	
 	/**
 	 * 一時ファイルからmp4ファイルを生成する。
@@ -164,6 +191,267 @@ class PostMuxBuilder extends PostMuxCommon {
 		if (DEBUG) Log.v(TAG, "buildFromRawFile:finished");
 	}
 	
+	/**
+	 * 書き込み中の一時ファイルを追従して読み込みながらmp4ファイルを生成する(tail-and-mux)
+	 * 映像と音声のフレームはpresentationTimeUs順にインターリーブして書き込む
+	 * 一時ファイルの終端に達すると追記されるのを待機するので録画中に呼び出しておけば
+	 * 録画終了後(#finishInput呼び出し後)は残りのフレームを書き込むだけで済む
+	 * #finishInputまたは#cancelを呼ぶまで返らないのでUIスレッドでは呼び出さないこと
+	 * @param tempDirPath
+	 * @param outputPath
+	 * @param hasVideo 映像の一時ファイルを読み込むかどうか
+	 * @param hasAudio 音声の一時ファイルを読み込むかどうか
+	 * @throws IOException
+	 */
+	@Deprecated
+	public void buildFromRawFileIncremental(@NonNull final Context context,
+		@NonNull final String tempDirPath,
+		@NonNull final String outputPath,
+		final boolean hasVideo, final boolean hasAudio) throws IOException {
+
+		if (DEBUG) Log.v(TAG, "buildFromRawFileIncremental:");
+		if (hasVideo || hasAudio) {
+			@SuppressLint("InlinedApi")
+			final IMuxer muxer = new MediaMuxerWrapper(outputPath,
+				MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+			try {
+				internalBuildIncremental(muxer, tempDirPath, hasVideo, hasAudio);
+			} finally {
+				mIsRunning = false;
+				muxer.release();
+			}
+		}
+		if (DEBUG) Log.v(TAG, "buildFromRawFileIncremental:finished");
+	}
+
+	/**
+	 * 書き込み中の一時ファイルを追従して読み込みながらmp4ファイルを生成する(tail-and-mux)
+	 * 映像と音声のフレームはpresentationTimeUs順にインターリーブして書き込む
+	 * 一時ファイルの終端に達すると追記されるのを待機するので録画中に呼び出しておけば
+	 * 録画終了後(#finishInput呼び出し後)は残りのフレームを書き込むだけで済む
+	 * #finishInputまたは#cancelを呼ぶまで返らないのでUIスレッドでは呼び出さないこと
+	 * @param tempDirPath
+	 * @param output
+	 * @param hasVideo 映像の一時ファイルを読み込むかどうか
+	 * @param hasAudio 音声の一時ファイルを読み込むかどうか
+	 * @throws IOException
+	 */
+	@SuppressLint("NewApi")
+	public void buildFromRawFileIncremental(@NonNull final Context context,
+		@NonNull final String tempDirPath,
+		@NonNull final DocumentFile output,
+		final boolean hasVideo, final boolean hasAudio) throws IOException {
+
+		if (DEBUG) Log.v(TAG, "buildFromRawFileIncremental:");
+		if (hasVideo || hasAudio) {
+			final IMuxer muxer = mMuxerFactory.createMuxer(context, mUseMediaMuxer, output);
+			if (muxer == null) {
+				throw new IOException("Failed to create muxer");
+			}
+			try {
+				internalBuildIncremental(muxer, tempDirPath, hasVideo, hasAudio);
+			} finally {
+				mIsRunning = false;
+				muxer.release();
+			}
+		}
+		if (DEBUG) Log.v(TAG, "buildFromRawFileIncremental:finished");
+	}
+
+	/**
+	 * #buildFromRawFileIncrementalの実体
+	 * @param muxer
+	 * @param tempDirPath
+	 * @param hasVideo
+	 * @param hasAudio
+	 * @throws IOException
+	 */
+	private void internalBuildIncremental(@NonNull final IMuxer muxer,
+		@NonNull final String tempDirPath,
+		final boolean hasVideo, final boolean hasAudio) throws IOException {
+
+		if (DEBUG) Log.v(TAG, "internalBuildIncremental:");
+		if (mCancelled) {
+			if (DEBUG) Log.v(TAG, "internalBuildIncremental:already cancelled");
+			return;
+		}
+		mIsRunning = true;
+		final File tempDir = new File(tempDirPath);
+		final TrackReader video = hasVideo
+			? new TrackReader(new File(tempDir, VIDEO_NAME)) : null;
+		final TrackReader audio = hasAudio
+			? new TrackReader(new File(tempDir, AUDIO_NAME)) : null;
+		try {
+			// 一時ファイルの先頭のMediaFormatが書き込まれるまで待機してからトラックを追加する
+			if ((video != null) && video.readFormat()) {
+				video.track = muxer.addTrack(video.format);
+			}
+			if ((audio != null) && audio.readFormat()) {
+				audio.track = muxer.addTrack(audio.format);
+			}
+			if (((video == null) || (video.track < 0))
+				&& ((audio == null) || (audio.track < 0))) {
+				return;
+			}
+			if (DEBUG) Log.v(TAG, "internalBuildIncremental:start muxing");
+			muxer.start();
+			for ( ; mIsRunning && !mCancelled ; ) {
+				// 映像と音声それぞれ1フレームずつ先読みしてpresentationTimeUsが小さい方から書き込む
+				final boolean hasVideoFrame = (video != null) && video.prepare();
+				final boolean hasAudioFrame = (audio != null) && audio.prepare();
+				final TrackReader reader;
+				if (hasVideoFrame && hasAudioFrame) {
+					reader = video.info.presentationTimeUs <= audio.info.presentationTimeUs
+						? video : audio;
+				} else if (hasVideoFrame) {
+					reader = video;
+				} else if (hasAudioFrame) {
+					reader = audio;
+				} else {
+					break;
+				}
+				muxer.writeSampleData(reader.track, reader.buffer, reader.info);
+				reader.consume();
+			}
+			muxer.stop();
+		} finally {
+			if (video != null) {
+				video.close();
+			}
+			if (audio != null) {
+				audio.close();
+			}
+		}
+		if (DEBUG) Log.v(TAG, "internalBuildIncremental:finished");
+	}
+
+	/**
+	 * 追従読み込みで一時ファイルから1フレームずつ先読みするためのヘルパークラス
+	 */
+	private final class TrackReader {
+		@NonNull
+		private final DataInputStream in;
+		@NonNull
+		private final MediaFrameHeader header = new MediaFrameHeader();
+		@NonNull
+		private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+		@NonNull
+		private final byte[] readBuf = new byte[64 * 1024];
+		@Nullable
+		private MediaFormat format;
+		@Nullable
+		private ByteBuffer buffer;
+		private int track = -1;
+		private boolean pending;
+		private int sequence;
+		private long timeOffset = -1;
+		private long presentationTimeUs = -MSEC30US;
+
+		private TrackReader(@NonNull final File file) throws IOException {
+			in = new DataInputStream(
+				new BufferedInputStream(new TailInputStream(new FileInputStream(file))));
+		}
+
+		/**
+		 * 一時ファイルの先頭からMediaFormatを読み込む
+		 * @return
+		 */
+		private boolean readFormat() {
+			format = PostMuxCommon.readFormat(in);
+			return format != null;
+		}
+
+		/**
+		 * 次のフレームを先読みする
+		 * @return false: 終端に達した
+		 */
+		private boolean prepare() {
+			if (pending) {
+				return true;
+			}
+			if (track < 0) {
+				return false;
+			}
+			try {
+				buffer = readStream(in, header, buffer, readBuf);
+				header.asBufferInfo(info);
+				if (sequence != header.sequence) {
+					sequence = header.sequence;
+					timeOffset = presentationTimeUs - info.presentationTimeUs + MSEC30US;
+				}
+				info.presentationTimeUs += timeOffset;
+				pending = true;
+			} catch (final IOException | IllegalArgumentException e) {
+				if (DEBUG) Log.d(TAG, "TrackReader#prepare:end of stream," + header, e);
+				track = -1;	// end
+			}
+			return pending;
+		}
+
+		/**
+		 * 先読みしたフレームを書き込んだ後の処理
+		 */
+		private void consume() {
+			presentationTimeUs = info.presentationTimeUs;
+			pending = false;
+		}
+
+		private void close() {
+			try {
+				in.close();
+			} catch (final IOException e) {
+				if (DEBUG) Log.w(TAG, e);
+			}
+		}
+	}
+
+	/**
+	 * 書き込み中のファイルを追従して読み込むためのInputStream
+	 * ファイルの終端に達すると#finishInputまたは#cancelが呼ばれるまで追記されるのを待機する
+	 */
+	private final class TailInputStream extends InputStream {
+		@NonNull
+		private final InputStream mIn;
+
+		private TailInputStream(@NonNull final InputStream in) {
+			mIn = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) > 0 ? b[0] & 0xff : -1;
+		}
+
+		@Override
+		public int read(@NonNull final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			for ( ; ; ) {
+				// 書き込み終了フラグは読み込み前に確認しないと最後に追記されたデータを取りこぼす
+				final boolean finished = mInputFinished;
+				final int result = mIn.read(b, off, len);
+				if (result > 0) {
+					return result;
+				}
+				if (finished || !mIsRunning || mCancelled) {
+					return -1;
+				}
+				try {
+					Thread.sleep(TAIL_POLL_INTERVAL_MS);
+				} catch (final InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			mIn.close();
+		}
+	}
+
 	/**
 	 * #buildの実態
 	 * @param muxer
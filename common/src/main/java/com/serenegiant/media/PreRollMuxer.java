@@ -0,0 +1,672 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.serenegiant.utils.Pool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * エンコード済みの映像/音声フレームを常にメモリー上のリングバッファへ保持しておき
+ * #triggerを呼んだ時点の一定時間前(プリロール)からの映像/音声を任意のIMuxerへ書き出すためのIMuxer実装
+ * (いわゆるインスタントリプレイ/ドライブレコーダー的な録画用)
+ * エンコーダーを2重に動かさなくてもトリガーより前の映像を保存できる
+ * リングバッファはフレーム数とバイト数の上限を持ち, 上限を超えるかプリロール時間より古くなると
+ * 先頭のGOP(キーフレームから次のキーフレームの直前まで)単位で破棄するので
+ * 書き出しは常にキーフレームから始まり, 使用するメモリー量も予測可能
+ * #triggerで書き出しを開始した後は#stopOutputを呼ぶまで新しいフレームをそのまま書き出し先へ書き込む
+ * リングバッファ内のフレームの書き出しや書き出し先の#stop/#releaseはロックの外で行うので
+ * その間もエンコーダーのスレッドからの#writeSampleDataをブロックしない
+ */
+public class PreRollMuxer implements IMuxer {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = PreRollMuxer.class.getSimpleName();
+
+	/**
+	 * デフォルトのプリロール時間[マイクロ秒]
+	 */
+	public static final long DEFAULT_PRE_ROLL_US = 10 * 1000000L;
+	/**
+	 * デフォルトの最大保持フレーム数
+	 */
+	public static final int DEFAULT_MAX_FRAMES = 2000;
+	/**
+	 * デフォルトの最大保持バイト数
+	 */
+	public static final int DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+	/**
+	 * #triggerでリングバッファ内のフレームを書き出した後に追加されたフレームを
+	 * ロックの外で追いかけて書き出す最大回数, 超えたときは残りをロックしたまま書き出す
+	 */
+	private static final int MAX_CATCH_UP = 8;
+
+	@NonNull
+	private final Object mSync = new Object();
+	private final long mPreRollUs;
+	private final int mMaxFrames;
+	private final long mMaxBytes;
+	@NonNull
+	private final Pool<Frame> mPool;
+	/**
+	 * リングバッファ
+	 */
+	@NonNull
+	private final ArrayDeque<Frame> mRing = new ArrayDeque<>();
+	/**
+	 * トラック毎のMediaFormat
+	 */
+	@NonNull
+	private final List<MediaFormat> mFormats = new ArrayList<>();
+	/**
+	 * トラック毎に映像トラックかどうか
+	 */
+	@NonNull
+	private final List<Boolean> mIsVideo = new ArrayList<>();
+	private boolean mHasVideo;
+	private long mBytes;
+	/**
+	 * リングバッファ内の同期フレーム(映像トラックがあれば映像のキーフレーム, なければ全フレーム)の数
+	 */
+	private int mSyncFrames;
+	private long mLastPtsUs;
+	/**
+	 * 最後にリングバッファへ追加したフレームの通し番号
+	 */
+	private long mLastSeq;
+	private boolean mIsStarted;
+	private boolean mReleased;
+	/**
+	 * 書き出し先, #triggerから#stopOutputまでの間はnullではない
+	 */
+	@Nullable
+	private OutputWriter mOutput;
+	/**
+	 * 書き出し先へ新しいフレームを#writeSampleDataから直接書き込むかどうか
+	 * #triggerでリングバッファ内のフレームを書き出している間はfalse
+	 */
+	private boolean mLive;
+	/**
+	 * #triggerでリングバッファ内のフレームを書き出している間に#stopOutputが呼ばれたかどうか
+	 * 書き出し先の#stop/#releaseは#triggerを実行しているスレッドで行う
+	 */
+	private boolean mStopRequested;
+
+	/**
+	 * コンストラクタ
+	 * プリロール時間はDEFAULT_PRE_ROLL_US,
+	 * 最大保持フレーム数はDEFAULT_MAX_FRAMES, 最大保持バイト数はDEFAULT_MAX_BYTES
+	 */
+	public PreRollMuxer() {
+		this(DEFAULT_PRE_ROLL_US, DEFAULT_MAX_FRAMES, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param preRollUs プリロール時間[マイクロ秒], 少なくともこの時間分は保持する(上限を超えない限り)
+	 * @param maxFrames 最大保持フレーム数
+	 * @param maxBytes 最大保持バイト数
+	 */
+	public PreRollMuxer(final long preRollUs, final int maxFrames, final long maxBytes) {
+		if ((preRollUs <= 0) || (maxFrames <= 0) || (maxBytes <= 0)) {
+			throw new IllegalArgumentException("preRollUs/maxFrames/maxBytes should be positive");
+		}
+		mPreRollUs = preRollUs;
+		mMaxFrames = maxFrames;
+		mMaxBytes = maxBytes;
+		// #triggerで書き出し中のフレームはリングバッファから破棄されてもプールへ戻らないので
+		// 最大生成数は最大保持フレーム数の2倍にする
+		mPool = new Pool<Frame>(0, maxFrames, maxFrames * 2) {
+			@NonNull
+			@Override
+			protected Frame createObject(@Nullable final Object... args) {
+				return new Frame(mRecycleParent);
+			}
+		};
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			release();
+		} finally {
+			super.finalize();
+		}
+	}
+
+	/**
+	 * トラックを追加する
+	 * #triggerの時に書き出し先へ同じMediaFormatでトラックを追加する
+	 * @param format
+	 * @return
+	 */
+	@Override
+	public int addTrack(@NonNull final MediaFormat format) {
+		if (DEBUG) Log.v(TAG, "addTrack:" + format);
+		synchronized (mSync) {
+			checkReleased();
+			if (mIsStarted) {
+				throw new IllegalStateException("already started");
+			}
+			final String mime = format.containsKey(MediaFormat.KEY_MIME)
+				? format.getString(MediaFormat.KEY_MIME) : null;
+			final boolean isVideo = (mime != null) && mime.startsWith("video/");
+			mFormats.add(format);
+			mIsVideo.add(isVideo);
+			mHasVideo |= isVideo;
+			return mFormats.size() - 1;
+		}
+	}
+
+	/**
+	 * リングバッファへの保持を開始する
+	 */
+	@Override
+	public void start() {
+		if (DEBUG) Log.v(TAG, "start:");
+		synchronized (mSync) {
+			checkReleased();
+			if (mIsStarted) {
+				throw new IllegalStateException("already started");
+			}
+			mIsStarted = true;
+		}
+	}
+
+	/**
+	 * リングバッファへの保持を終了する
+	 * 書き出し中であれば書き出しも終了する
+	 */
+	@Override
+	public void stop() {
+		if (DEBUG) Log.v(TAG, "stop:");
+		final OutputWriter output;
+		synchronized (mSync) {
+			mIsStarted = false;
+			output = detachOutputLocked();
+			clearRing();
+		}
+		releaseOutput(output);
+	}
+
+	@Override
+	public void release() {
+		final OutputWriter output;
+		synchronized (mSync) {
+			if (mReleased) {
+				return;
+			}
+			if (DEBUG) Log.v(TAG, "release:");
+			mIsStarted = false;
+			mReleased = true;
+			output = detachOutputLocked();
+			clearRing();
+			mPool.clear();
+		}
+		releaseOutput(output);
+	}
+
+	@Override
+	public boolean isStarted() {
+		synchronized (mSync) {
+			return !mReleased && mIsStarted;
+		}
+	}
+
+	/**
+	 * フレームデータをリングバッファへ追加する
+	 * 書き出し中であれば書き出し先へも書き込む
+	 * BUFFER_FLAG_CODEC_CONFIGのフレームは保持しない(codec specific dataはMediaFormatで引き渡すため)
+	 * @param trackIndex
+	 * @param byteBuf
+	 * @param bufferInfo
+	 */
+	@Override
+	public void writeSampleData(final int trackIndex,
+		@NonNull final ByteBuffer byteBuf,
+		@NonNull final MediaCodec.BufferInfo bufferInfo) {
+
+		synchronized (mSync) {
+			checkReleased();
+			if ((trackIndex < 0) || (trackIndex >= mFormats.size())) {
+				throw new IllegalArgumentException("trackIndex is invalid");
+			}
+			if (!mIsStarted || (bufferInfo.size <= 0)
+				|| ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0)) {
+				return;
+			}
+			if (mLive && (mOutput != null)) {
+				mOutput.write(trackIndex, byteBuf, bufferInfo);
+			}
+			// 上限を超えないように先頭のGOPから破棄する
+			while (!mRing.isEmpty()
+				&& ((mRing.size() >= mMaxFrames) || (mBytes + bufferInfo.size > mMaxBytes))) {
+				evictHead();
+			}
+			final Frame data = mPool.obtain();
+			if (data == null) {
+				Log.w(TAG, "writeSampleData:pool is exhausted, frame dropped");
+				return;
+			}
+			data.setRecycled(false);
+			data.set(trackIndex, byteBuf, bufferInfo);
+			final boolean isSync = isSyncFrame(data);
+			if (mRing.isEmpty() && mHasVideo && !isSync) {
+				// リングバッファの先頭は常にキーフレームにする
+				data.recycle();
+				return;
+			}
+			data.seq = ++mLastSeq;
+			mRing.addLast(data);
+			mBytes += data.size();
+			if (isSync) {
+				mSyncFrames++;
+			}
+			mLastPtsUs = Math.max(mLastPtsUs, bufferInfo.presentationTimeUs);
+			// プリロール時間を満たす範囲で古いGOPを破棄する
+			while ((mSyncFrames >= 2) && (mLastPtsUs - getSecondSyncPtsUs() >= mPreRollUs)) {
+				evictHead();
+			}
+		}
+	}
+
+	/**
+	 * リングバッファ内のフレームを書き出し先へ書き出して以降のフレームも書き出すようにする
+	 * 書き出し先へトラックを追加して開始した後にキーフレームから書き出す
+	 * リングバッファ内のフレームはロックした状態で参照カウントを増やして取り出してから
+	 * ロックの外で書き出すので書き出し中も#writeSampleDataはブロックしない
+	 * 書き出し中に追加されたフレームは通し番号で追いかけて書き出してから直接書き込むように切り替える
+	 * リングバッファ内のフレーム数によっては時間がかかるのでUIスレッドでは呼び出さないこと
+	 * @param output 書き出し先のIMuxer, 未開始であること
+	 * @return 書き出したフレーム数
+	 * @throws IllegalStateException 未開始または書き出し中
+	 */
+	public int trigger(@NonNull final IMuxer output) throws IllegalStateException {
+		if (DEBUG) Log.v(TAG, "trigger:");
+		final List<MediaFormat> formats;
+		final List<Frame> frames = new ArrayList<>();
+		final OutputWriter writer;
+		long lastSeq;
+		synchronized (mSync) {
+			checkReleased();
+			if (!mIsStarted) {
+				throw new IllegalStateException("not started");
+			}
+			if (mOutput != null) {
+				throw new IllegalStateException("already triggered");
+			}
+			formats = new ArrayList<>(mFormats);
+			lastSeq = retainFramesLocked(-1L, frames);
+			writer = new OutputWriter(output, formats.size());
+			mOutput = writer;
+			mLive = mStopRequested = false;
+		}
+		boolean completed = false;
+		try {
+			final int n = formats.size();
+			for (int i = 0; i < n; i++) {
+				writer.mTracks[i] = output.addTrack(formats.get(i));
+			}
+			output.start();
+			for (int i = 0; ; i++) {
+				writer.write(frames);
+				synchronized (mSync) {
+					if (mStopRequested || (mOutput != writer)) {
+						// 書き出し中に#stopOutput/#stop/#releaseが呼ばれた
+						break;
+					}
+					final long seq = lastSeq;
+					lastSeq = retainFramesLocked(seq, frames);
+					if (!frames.isEmpty() && (frames.get(0).seq != seq + 1)) {
+						// 書き出し中にリングバッファから破棄されて書き出せなかったフレームがある
+						Log.w(TAG, "trigger:frames were evicted while flushing");
+						writer.resync();
+					}
+					if (frames.isEmpty() || (i >= MAX_CATCH_UP)) {
+						// 追いついたので以降は#writeSampleDataから直接書き込む
+						writer.write(frames);
+						mLive = true;
+						completed = true;
+						break;
+					}
+				}
+			}
+		} finally {
+			if (!completed) {
+				final OutputWriter detached;
+				synchronized (mSync) {
+					releaseFrames(frames);
+					if (mOutput == writer) {
+						mOutput = null;
+						mLive = false;
+					}
+					detached = mStopRequested ? writer : null;
+					mStopRequested = false;
+				}
+				releaseOutput(detached);
+			}
+		}
+		if (DEBUG) Log.v(TAG, "trigger:flushed " + writer.mFrames + " frames");
+		return writer.mFrames;
+	}
+
+	/**
+	 * 書き出しを終了する
+	 * 書き出し先のIMuxerは#stop/#releaseを呼んで破棄する
+	 * #triggerでリングバッファ内のフレームを書き出し中であれば#triggerの書き出し終了時に破棄する
+	 * リングバッファへの保持は継続するので再度#triggerを呼ぶことができる
+	 */
+	public void stopOutput() {
+		if (DEBUG) Log.v(TAG, "stopOutput:");
+		final OutputWriter output;
+		synchronized (mSync) {
+			output = detachOutputLocked();
+		}
+		releaseOutput(output);
+	}
+
+	/**
+	 * 書き出し中かどうか
+	 * @return
+	 */
+	public boolean isTriggered() {
+		synchronized (mSync) {
+			return mOutput != null;
+		}
+	}
+
+	/**
+	 * リングバッファ内のフレーム数を取得
+	 * @return
+	 */
+	public int getBufferedFrames() {
+		synchronized (mSync) {
+			return mRing.size();
+		}
+	}
+
+	/**
+	 * リングバッファ内のデータのバイト数を取得
+	 * @return
+	 */
+	public long getBufferedBytes() {
+		synchronized (mSync) {
+			return mBytes;
+		}
+	}
+
+	/**
+	 * リングバッファ内のデータの時間[マイクロ秒]を取得
+	 * @return
+	 */
+	public long getBufferedDurationUs() {
+		synchronized (mSync) {
+			final RecycleMediaData head = mRing.peekFirst();
+			return head != null ? mLastPtsUs - head.presentationTimeUs() : 0;
+		}
+	}
+
+	private final IRecycleParent<RecycleMediaData> mRecycleParent
+		= new IRecycleParent<RecycleMediaData>() {
+		@Override
+		public boolean recycle(@NonNull final RecycleMediaData buffer) {
+			if (!buffer.isRecycled()) {
+				buffer.setRecycled(true);
+				return mPool.recycle((Frame)buffer);
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * 破棄されたかどうかをチェックして破棄されていればIllegalStateExceptionを投げる
+	 * @throws IllegalStateException
+	 */
+	private void checkReleased() throws IllegalStateException {
+		if (mReleased) {
+			throw new IllegalStateException("already released");
+		}
+	}
+
+	/**
+	 * 同期フレーム(ここから書き出しを開始できるフレーム)かどうか
+	 * 映像トラックがあれば映像のキーフレーム, 映像トラックがなければ全てのフレーム
+	 * @param data
+	 * @return
+	 */
+	private boolean isSyncFrame(@NonNull final MediaData data) {
+		if (mHasVideo) {
+			return mIsVideo.get(data.trackIx())
+				&& ((data.flags() & MediaCodecUtils.BUFFER_FLAG_KEY_FRAME) != 0);
+		}
+		return true;
+	}
+
+	/**
+	 * リングバッファ内の2つ目の同期フレームのpresentationTimeUsを取得
+	 * mSyncFrames >= 2の時に呼ぶこと
+	 * @return
+	 */
+	private long getSecondSyncPtsUs() {
+		final Iterator<Frame> it = mRing.iterator();
+		if (it.hasNext()) {
+			it.next();
+		}
+		while (it.hasNext()) {
+			final RecycleMediaData data = it.next();
+			if (isSyncFrame(data)) {
+				return data.presentationTimeUs();
+			}
+		}
+		return mLastPtsUs;
+	}
+
+	/**
+	 * 先頭のGOPを破棄する
+	 * 先頭フレームを破棄した後, 次の同期フレームの直前まで破棄する
+	 * #triggerで書き出し中のフレームは参照カウントを増やしているので書き出しが終わるまでプールへ戻らない
+	 */
+	private void evictHead() {
+		Frame data = mRing.pollFirst();
+		while (data != null) {
+			mBytes -= data.size();
+			if (isSyncFrame(data)) {
+				mSyncFrames--;
+			}
+			data.release();
+			final Frame next = mRing.peekFirst();
+			if ((next == null) || isSyncFrame(next)) {
+				break;
+			}
+			data = mRing.pollFirst();
+		}
+	}
+
+	private void clearRing() {
+		for (final Frame data: mRing) {
+			data.release();
+		}
+		mRing.clear();
+		mBytes = 0;
+		mSyncFrames = 0;
+		mLastPtsUs = 0;
+	}
+
+	/**
+	 * 指定した通し番号より後のフレームを同期フレームから参照カウントを増やして取り出す
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param afterSeq 負ならリングバッファ内の全てのフレーム
+	 * @param out 取り出したフレームを追加する, 呼び出し前の内容はクリアする
+	 * @return 最後にリングバッファへ追加したフレームの通し番号
+	 */
+	private long retainFramesLocked(final long afterSeq, @NonNull final List<Frame> out) {
+		out.clear();
+		for (final Frame data: mRing) {
+			if (data.seq > afterSeq) {
+				out.add((Frame)data.retain());
+			}
+		}
+		return mLastSeq;
+	}
+
+	/**
+	 * #retainFramesLockedで取り出したフレームの参照カウントを減らす
+	 * @param frames
+	 */
+	private static void releaseFrames(@NonNull final List<Frame> frames) {
+		for (final Frame data: frames) {
+			data.release();
+		}
+		frames.clear();
+	}
+
+	/**
+	 * 書き出し先を切り離す
+	 * #triggerでリングバッファ内のフレームを書き出し中であれば#triggerを実行しているスレッドで破棄する
+	 * mSyncをロックした状態で呼び出すこと
+	 * @return 呼び出し元で破棄する書き出し先
+	 */
+	@Nullable
+	private OutputWriter detachOutputLocked() {
+		final OutputWriter output = mOutput;
+		if ((output != null) && !mLive) {
+			mStopRequested = true;
+			return null;
+		}
+		mOutput = null;
+		mLive = false;
+		return output;
+	}
+
+	/**
+	 * 書き出し先を#stop/#releaseで破棄する
+	 * 書き込み中のエンコーダースレッドをブロックしないようにmSyncをロックせずに呼び出すこと
+	 * @param output
+	 */
+	private static void releaseOutput(@Nullable final OutputWriter output) {
+		if (output != null) {
+			try {
+				output.mMuxer.stop();
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			}
+			try {
+				output.mMuxer.release();
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			}
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * リングバッファ内で保持するフレーム
+	 */
+	private static class Frame extends RecycleMediaData {
+		/**
+		 * リングバッファへ追加した順の通し番号
+		 */
+		private long seq;
+
+		private Frame(@NonNull final IRecycleParent<RecycleMediaData> parent) {
+			super(parent);
+		}
+	}
+
+	/**
+	 * 書き出し先へキーフレームから書き出すためのヘルパークラス
+	 */
+	private final class OutputWriter {
+		@NonNull
+		private final IMuxer mMuxer;
+		/**
+		 * トラックインデックスから書き出し先のトラックインデックスへの変換テーブル
+		 */
+		@NonNull
+		private final int[] mTracks;
+		@NonNull
+		private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+		/**
+		 * 書き出しを開始したキーフレームのpresentationTimeUs, 負なら未開始
+		 */
+		private long mStartPtsUs = -1;
+		private int mFrames;
+
+		private OutputWriter(@NonNull final IMuxer muxer, final int numTracks) {
+			mMuxer = muxer;
+			mTracks = new int[numTracks];
+		}
+
+		/**
+		 * 次の同期フレームから書き出しをやり直す
+		 */
+		private void resync() {
+			mStartPtsUs = -1;
+		}
+
+		/**
+		 * フレームを書き出して参照カウントを減らす
+		 * @param frames #retainFramesLockedで取り出したフレーム
+		 */
+		private void write(@NonNull final List<Frame> frames) {
+			try {
+				for (final Frame data: frames) {
+					data.get(mInfo);
+					write(data.trackIx(), data.get(), mInfo);
+				}
+			} finally {
+				releaseFrames(frames);
+			}
+		}
+
+		private void write(final int trackIndex,
+			@NonNull final ByteBuffer byteBuf,
+			@NonNull final MediaCodec.BufferInfo bufferInfo) {
+
+			if (mStartPtsUs < 0) {
+				// キーフレームが来るまでは書き出さない
+				if (!mHasVideo || (mIsVideo.get(trackIndex)
+					&& ((bufferInfo.flags & MediaCodecUtils.BUFFER_FLAG_KEY_FRAME) != 0))) {
+					mStartPtsUs = bufferInfo.presentationTimeUs;
+				} else {
+					return;
+				}
+			} else if (bufferInfo.presentationTimeUs < mStartPtsUs) {
+				// キーフレームより前の音声は書き出さない
+				return;
+			}
+			try {
+				mMuxer.writeSampleData(mTracks[trackIndex], byteBuf, bufferInfo);
+				mFrames++;
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			}
+		}
+	}
+}
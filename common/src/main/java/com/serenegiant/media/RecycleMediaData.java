@@ -19,7 +19,9 @@ package com.serenegiant.media;
 */
 
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
@@ -32,6 +34,12 @@ public class RecycleMediaData extends MediaData implements IRecycleBuffer {
 	private final WeakReference<IRecycleParent<RecycleMediaData>> mWeakParent;
 
 	private volatile boolean mIsRecycled = false;
+	/**
+	 * 参照カウント, プールから取得した時点で1
+	 * #releaseで0になった時にプールへ戻す
+	 */
+	@NonNull
+	private final AtomicInteger mRefCount = new AtomicInteger(1);
 
 	/**
 	 * コンストラクタ
@@ -104,7 +112,62 @@ public class RecycleMediaData extends MediaData implements IRecycleBuffer {
 		return mIsRecycled;
 	}
 
+	/**
+	 * 参照カウントを増やす
+	 * 複数の読み込み側でこのオブジェクトを共有する場合に読み込み側毎に呼び出して
+	 * 使い終わったら#releaseを呼び出すこと
+	 * @return
+	 * @throws IllegalStateException すでにリサイクルされているとき
+	 */
+	@NonNull
+	public RecycleMediaData retain() throws IllegalStateException {
+		// 参照カウントが0になった後に増やしてしまわないように1以上の時だけ増やす
+		for ( ; ; ) {
+			final int n = mRefCount.get();
+			if (isRecycled() || (n <= 0)) {
+				throw new IllegalStateException("already recycled");
+			}
+			if (mRefCount.compareAndSet(n, n + 1)) {
+				return this;
+			}
+		}
+	}
+
+	/**
+	 * 参照カウントを減らして0になればプールへ戻す
+	 * #recycleと違って他の読み込み側が参照している間はプールへ戻さない
+	 */
+	public void release() {
+		if (mRefCount.decrementAndGet() == 0) {
+			recycle();
+		}
+	}
+
+	/**
+	 * 現在の参照カウントを取得
+	 * @return
+	 */
+	public int refCount() {
+		return mRefCount.get();
+	}
+
+	/**
+	 * 保持しているデータを参照する読み取り専用のByteBufferを生成する
+	 * 内部バッファとは独立したposition/limitを持つので複数のスレッドから同時に読み込むことができる
+	 * 内部バッファのposition/limitを変更するので他のスレッドが#get等を呼ぶ前に生成すること
+	 * @return
+	 */
+	@NonNull
+	public ByteBuffer asReadOnlyBuffer() {
+		final ByteBuffer buf = get();
+		return buf.asReadOnlyBuffer().order(buf.order());
+	}
+
 	/*package*/ void setRecycled(final boolean recycled) {
 		mIsRecycled = recycled;
+		if (!recycled) {
+			// プールから取得したかキューへ追加したので参照カウントを初期化する
+			mRefCount.set(1);
+		}
 	}
 }
@@ -0,0 +1,449 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import com.serenegiant.utils.BufferHelper;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+
+/**
+ * RtpPacketizerで分割したRTPパケットからh.264/AACのフレームデータを復元するためのヘルパークラス
+ * h.264はSingle NAL unit/STAP-A/FU-Aパケットからアクセスユニット単位でAnnexB形式のフレームデータを復元する
+ * AACはRFC3640(AAC-hbrモード)のAUヘッダーを解析してADTSヘッダー無しのフレームデータを復元する
+ * パケットはシーケンス番号順に渡すこと(RtpJitterBuffer等で並べ替えてから渡す)
+ * シーケンス番号が飛んだときは復元途中のフレームを破棄し, h.264の場合は次のキーフレームまで破棄する
+ * 排他制御をしていないので複数のスレッドから同時に呼び出さないこと
+ */
+public class RtpDepacketizer {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = RtpDepacketizer.class.getSimpleName();
+
+	/**
+	 * キーフレームを示すフラグ
+	 * MediaCodec.BUFFER_FLAG_KEY_FRAMEはAPI>=21なので同じ値のBUFFER_FLAG_SYNC_FRAMEを使う
+	 */
+	@SuppressWarnings("deprecation")
+	private static final int FLAG_KEY_FRAME = MediaCodec.BUFFER_FLAG_SYNC_FRAME;
+	private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * 復元したフレームデータを受け取るためのインターフェース
+	 */
+	public interface FrameListener {
+		/**
+		 * フレームデータを復元したときに呼び出される
+		 * 引き渡したByteBufferは次のフレームの復元時に再利用するので
+		 * 呼び出し後も保持する場合はコピーすること
+		 * @param frame position=0, limit=フレームデータのサイズ
+		 * @param presentationTimeUs 最初に受信したパケットを0とした時刻[マイクロ秒]
+		 * @param flags BUFFER_FLAG_CODEC_CONFIG(h.264のSPS/PPS)またはBUFFER_FLAG_KEY_FRAME
+		 */
+		public void onFrame(@NonNull final ByteBuffer frame,
+			final long presentationTimeUs, final int flags);
+	}
+
+	/**
+	 * h.264用のRtpDepacketizerを生成する
+	 * @return
+	 */
+	@NonNull
+	public static RtpDepacketizer newAvc() {
+		return new RtpDepacketizer(true, RtpPacketizer.CLOCK_RATE_VIDEO);
+	}
+
+	/**
+	 * AAC用のRtpDepacketizerを生成する
+	 * @param sampleRate サンプリングレート, RTPタイムスタンプのクロックレート
+	 * @return
+	 */
+	@NonNull
+	public static RtpDepacketizer newAac(final int sampleRate) {
+		return new RtpDepacketizer(false, sampleRate);
+	}
+
+	private final boolean mIsVideo;
+	private final int mClockRate;
+	/**
+	 * 復元中のフレームデータ
+	 */
+	@NonNull
+	private ByteBuffer mFrame = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+	@NonNull
+	private final NalUnitScanner mScanner = new NalUnitScanner(false);
+	/**
+	 * SPS/PPS通知用のワークバッファ
+	 */
+	@NonNull
+	private ByteBuffer mConfig = ByteBuffer.allocate(256);
+	/**
+	 * 最後に通知したSPS/PPS
+	 */
+	@NonNull
+	private byte[] mLastConfig = new byte[0];
+	private boolean mHasFirst;
+	private int mLastSequence;
+	private int mLastTimestamp;
+	/**
+	 * 最初のパケットからのRTPタイムスタンプの経過(32ビットの折り返しを展開したもの)
+	 */
+	private long mElapsed;
+	/**
+	 * 復元中のフレームのRTPタイムスタンプ
+	 */
+	private int mFrameTimestamp;
+	private long mFramePts;
+	private boolean mHasFrame;
+	/**
+	 * 復元中のフレームが欠けているかどうか
+	 */
+	private boolean mCorrupted;
+	/**
+	 * FU-Aパケットの途中かどうか
+	 */
+	private boolean mInFragment;
+	/**
+	 * h.264でパケットが欠けた後, 次のキーフレームを待っているかどうか
+	 */
+	private boolean mWaitKeyFrame = true;
+	/**
+	 * AACでAUが複数のパケットに分割されている時の残りのサイズ
+	 */
+	private int mAuRemain;
+	private long mDroppedFrames;
+	private long mLostPackets;
+
+	/**
+	 * コンストラクタ
+	 * @param isVideo
+	 * @param clockRate
+	 */
+	private RtpDepacketizer(final boolean isVideo, final int clockRate) {
+		if (clockRate <= 0) {
+			throw new IllegalArgumentException("invalid clock rate," + clockRate);
+		}
+		mIsVideo = isVideo;
+		mClockRate = clockRate;
+	}
+
+	/**
+	 * 状態をリセットする
+	 * h.264の場合は次のキーフレームまで破棄する
+	 */
+	public void reset() {
+		mHasFirst = false;
+		mElapsed = 0;
+		resetFrame();
+		mWaitKeyFrame = true;
+		mLastConfig = new byte[0];
+	}
+
+	/**
+	 * 欠けていて破棄したフレーム数を取得
+	 * @return
+	 */
+	public long getDroppedFrames() {
+		return mDroppedFrames;
+	}
+
+	/**
+	 * シーケンス番号が飛んでいて欠けていると判断したパケット数を取得
+	 * @return
+	 */
+	public long getLostPackets() {
+		return mLostPackets;
+	}
+
+	/**
+	 * RTPパケットを追加する
+	 * @param packet positionからlimitまでがRTPパケット, position/limitは変更しない
+	 * @param listener
+	 * @return RTPパケットとして解析できなかったときはfalse
+	 */
+	public boolean push(@NonNull final ByteBuffer packet, @NonNull final FrameListener listener) {
+		final int offset = packet.position();
+		final int size = packet.remaining();
+		if ((size < RtpPacketizer.RTP_HEADER_SIZE)
+			|| (((packet.get(offset) & 0xff) >>> 6) != RtpPacketizer.RTP_VERSION)) {
+			return false;
+		}
+		final int b0 = packet.get(offset) & 0xff;
+		final int b1 = packet.get(offset + 1) & 0xff;
+		final boolean marker = (b1 & 0x80) != 0;
+		final int sequence = packet.getShort(offset + 2) & 0xffff;
+		final int timestamp = packet.getInt(offset + 4);
+		int start = offset + RtpPacketizer.RTP_HEADER_SIZE + (b0 & 0x0f) * 4;	// CSRC
+		int end = offset + size;
+		if ((b0 & 0x20) != 0) {
+			// パディング
+			end -= packet.get(end - 1) & 0xff;
+		}
+		if ((b0 & 0x10) != 0) {
+			// 拡張ヘッダー
+			if (start + 4 > end) return false;
+			start += 4 + (packet.getShort(start + 2) & 0xffff) * 4;
+		}
+		if (start >= end) {
+			return false;
+		}
+		if (!mHasFirst) {
+			mHasFirst = true;
+			mLastTimestamp = timestamp;
+		} else {
+			final int gap = (sequence - mLastSequence - 1) & 0xffff;
+			if ((gap != 0) && (gap < 0x8000)) {
+				// パケットが欠けている
+				if (DEBUG) Log.v(TAG, "push:lost " + gap + " packets");
+				mLostPackets += gap;
+				mCorrupted |= mHasFrame;
+				mInFragment = false;
+				mAuRemain = 0;
+				if (mIsVideo) {
+					mWaitKeyFrame = true;
+				}
+			}
+			mElapsed += timestamp - mLastTimestamp;
+			mLastTimestamp = timestamp;
+		}
+		mLastSequence = sequence;
+		if (mHasFrame && (timestamp != mFrameTimestamp)) {
+			// マーカービットのパケットが欠けたときは前のフレームをここで終了する
+			flushFrame(listener);
+		}
+		if (!mHasFrame) {
+			mHasFrame = true;
+			mFrameTimestamp = timestamp;
+			mFramePts = mElapsed * 1000000L / mClockRate;
+			mFrame.clear();
+		}
+		if (mIsVideo) {
+			pushAvc(packet, start, end);
+		} else {
+			pushAac(packet, start, end, listener);
+		}
+		if (marker && mHasFrame) {
+			flushFrame(listener);
+		}
+		return true;
+	}
+
+	/**
+	 * h.264のRTPペイロードを復元中のフレームへ追加する
+	 * @param packet
+	 * @param start
+	 * @param end
+	 */
+	private void pushAvc(@NonNull final ByteBuffer packet, final int start, final int end) {
+		final int nalHeader = packet.get(start) & 0xff;
+		final int type = nalHeader & 0x1f;
+		if (type == RtpPacketizer.NAL_FU_A) {
+			if (start + 2 > end) {
+				mCorrupted = true;
+				return;
+			}
+			final int fuHeader = packet.get(start + 1) & 0xff;
+			if ((fuHeader & 0x80) != 0) {
+				// 先頭のフラグメントならNALユニットヘッダーを復元する
+				putStartMark();
+				ensure(1);
+				mFrame.put((byte)((nalHeader & 0xe0) | (fuHeader & 0x1f)));
+				mInFragment = true;
+			} else if (!mInFragment) {
+				// 先頭のフラグメントが欠けている
+				mCorrupted = true;
+				return;
+			}
+			put(packet, start + 2, end - start - 2);
+			if ((fuHeader & 0x40) != 0) {
+				mInFragment = false;
+			}
+		} else if (type == RtpPacketizer.NAL_STAP_A) {
+			int pos = start + 1;
+			while (pos + 2 <= end) {
+				final int n = packet.getShort(pos) & 0xffff;
+				pos += 2;
+				if ((n == 0) || (pos + n > end)) break;
+				putStartMark();
+				put(packet, pos, n);
+				pos += n;
+			}
+		} else if ((type > 0) && (type < RtpPacketizer.NAL_STAP_A)) {
+			// Single NAL unitパケット(1-23)
+			putStartMark();
+			put(packet, start, end - start);
+		}
+	}
+
+	/**
+	 * AACのRTPペイロードからフレームデータを復元する
+	 * 1つのパケットに複数のAUが入っている場合は1AUずつ通知する
+	 * @param packet
+	 * @param start
+	 * @param end
+	 * @param listener
+	 */
+	private void pushAac(@NonNull final ByteBuffer packet, final int start, final int end,
+		@NonNull final FrameListener listener) {
+
+		if (start + 2 > end) {
+			mCorrupted = true;
+			return;
+		}
+		final int headersBits = packet.getShort(start) & 0xffff;
+		final int numAu = headersBits / (RtpPacketizer.AAC_AU_HEADER_SIZE * 8);
+		int pos = start + 2 + (headersBits + 7) / 8;
+		if ((numAu <= 0) || (pos > end)) {
+			mCorrupted = true;
+			return;
+		}
+		if (mAuRemain > 0) {
+			// 分割されたAUの続き
+			final int n = Math.min(mAuRemain, end - pos);
+			put(packet, pos, n);
+			mAuRemain -= n;
+			return;
+		}
+		for (int i = 0; i < numAu; i++) {
+			final int auSize = (packet.getShort(start + 2 + i * RtpPacketizer.AAC_AU_HEADER_SIZE) & 0xffff) >>> 3;
+			if (i > 0) {
+				// 1つのパケットに複数のAUが入っているときは前のAUを通知してから次のAUを復元する
+				flushFrame(listener);
+				mHasFrame = true;
+				mFramePts += RtpPacketizer.AAC_SAMPLES_PER_FRAME * 1000000L / mClockRate;
+				mFrame.clear();
+			}
+			final int n = Math.min(auSize, end - pos);
+			put(packet, pos, n);
+			pos += n;
+			if (n < auSize) {
+				// 残りは次のパケット
+				mAuRemain = auSize - n;
+				break;
+			}
+		}
+	}
+
+	/**
+	 * 復元したフレームを通知する
+	 * @param listener
+	 */
+	private void flushFrame(@NonNull final FrameListener listener) {
+		final boolean corrupted = mCorrupted || mInFragment || (mAuRemain > 0);
+		final int size = mFrame.position();
+		resetFrame();
+		if (size <= 0) {
+			return;
+		}
+		if (corrupted) {
+			if (DEBUG) Log.v(TAG, "flushFrame:drop corrupted frame");
+			mDroppedFrames++;
+			return;
+		}
+		mFrame.flip();
+		if (mIsVideo) {
+			final boolean isKeyFrame = checkKeyFrame(mFrame, listener);
+			if (mWaitKeyFrame && !isKeyFrame) {
+				mDroppedFrames++;
+				return;
+			}
+			mWaitKeyFrame = false;
+			listener.onFrame(mFrame, mFramePts, isKeyFrame ? FLAG_KEY_FRAME : 0);
+		} else {
+			listener.onFrame(mFrame, mFramePts, 0);
+		}
+	}
+
+	/**
+	 * キーフレームかどうかを確認する
+	 * SPS/PPSが含まれていて前回と異なればBUFFER_FLAG_CODEC_CONFIGで通知する
+	 * @param frame
+	 * @param listener
+	 * @return
+	 */
+	private boolean checkKeyFrame(@NonNull final ByteBuffer frame,
+		@NonNull final FrameListener listener) {
+
+		boolean result = false;
+		mConfig.clear();
+		final NalUnitScanner scanner = mScanner;
+		scanner.reset(frame);
+		while (scanner.next()) {
+			if (scanner.getType() == NalUnitScanner.AVC_NAL_IDR) {
+				result = true;
+			} else if (scanner.isParameterSet()) {
+				final int n = scanner.getEnd() - scanner.getStart();
+				if (mConfig.remaining() < n) {
+					final ByteBuffer config = ByteBuffer.allocate(mConfig.position() + n + 256);
+					mConfig.flip();
+					config.put(mConfig);
+					mConfig = config;
+				}
+				final ByteBuffer dup = frame.duplicate();
+				dup.limit(scanner.getEnd()).position(scanner.getStart());
+				mConfig.put(dup);
+			}
+		}
+		if (result && (mConfig.position() > 0)) {
+			final byte[] config = Arrays.copyOf(mConfig.array(), mConfig.position());
+			if (!Arrays.equals(config, mLastConfig)) {
+				mLastConfig = config;
+				mConfig.flip();
+				listener.onFrame(mConfig, mFramePts, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+			}
+		}
+		return result;
+	}
+
+	private void resetFrame() {
+		mHasFrame = mCorrupted = mInFragment = false;
+		mAuRemain = 0;
+	}
+
+	private void putStartMark() {
+		ensure(BufferHelper.ANNEXB_START_MARK.length);
+		mFrame.put(BufferHelper.ANNEXB_START_MARK);
+	}
+
+	private void put(@NonNull final ByteBuffer packet, final int offset, final int size) {
+		if (size <= 0) return;
+		ensure(size);
+		final ByteBuffer dup = packet.duplicate();
+		dup.limit(offset + size).position(offset);
+		mFrame.put(dup);
+	}
+
+	/**
+	 * 復元中のフレームデータのバッファの空きが足りなければ拡張する
+	 * @param size
+	 */
+	private void ensure(final int size) {
+		if (mFrame.remaining() < size) {
+			final ByteBuffer frame = ByteBuffer.allocate(
+				Math.max(mFrame.capacity() * 2, mFrame.position() + size));
+			mFrame.flip();
+			frame.put(mFrame);
+			mFrame = frame;
+		}
+	}
+}
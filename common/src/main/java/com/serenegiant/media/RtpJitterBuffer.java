@@ -0,0 +1,280 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 受信したRTPパケットをシーケンス番号順に並べ替えるためのジッターバッファ
+ * 次のシーケンス番号のパケットが届いていればすぐに取り出せる
+ * 届いていない場合は後続のパケットが届いてから指定した遅延時間が経過するまで待って
+ * それでも届かなければ欠けたとみなして後続のパケットを取り出す
+ * 遅延時間を長くするとネットワークの揺らぎによる順序の入れ替わりに強くなるが
+ * パケットが欠けたときの遅延が大きくなる
+ * 1つのRTPストリーム(SSRC)毎に1つ生成すること
+ * 排他制御をしていないので複数のスレッドから同時に呼び出さないこと
+ */
+public class RtpJitterBuffer {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = RtpJitterBuffer.class.getSimpleName();
+
+	/**
+	 * デフォルトの遅延時間[ミリ秒]
+	 */
+	public static final int DEFAULT_DELAY_MS = 50;
+	/**
+	 * デフォルトの保持できる最大パケット数
+	 */
+	public static final int DEFAULT_CAPACITY = 512;
+
+	/**
+	 * 保持しているパケット
+	 */
+	private static class Entry {
+		@NonNull
+		private byte[] data;
+		private int size;
+		private long arrivalMs;
+
+		private Entry(final int size) {
+			data = new byte[size];
+		}
+	}
+
+	private final int mDelayMs;
+	/**
+	 * シーケンス番号の下位ビットをインデックスとしてパケットを保持する配列
+	 * 要素数は2のべき乗
+	 */
+	@NonNull
+	private final Entry[] mSlots;
+	private final int mMask;
+	@NonNull
+	private final ArrayDeque<Entry> mFreeEntries = new ArrayDeque<>();
+	/**
+	 * 前回#pollで返したパケット, 次の#poll呼び出し時に再利用できるようにする
+	 */
+	@Nullable
+	private Entry mPolled;
+	private boolean mHasFirst;
+	/**
+	 * 次に取り出すパケットのシーケンス番号(16ビットの折り返しを展開したもの)
+	 */
+	private long mNext;
+	/**
+	 * 保持しているパケット数
+	 */
+	private int mCount;
+	private long mLostPackets;
+	private long mLatePackets;
+
+	/**
+	 * コンストラクタ
+	 * 遅延時間はDEFAULT_DELAY_MS, 最大パケット数はDEFAULT_CAPACITY
+	 */
+	public RtpJitterBuffer() {
+		this(DEFAULT_DELAY_MS, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param delayMs パケットが欠けたときに後続のパケットを待つ最大時間[ミリ秒]
+	 * @param capacity 保持できる最大パケット数, 2のべき乗に切り上げる
+	 */
+	public RtpJitterBuffer(final int delayMs, final int capacity) {
+		if ((capacity <= 0) || (capacity > 0x8000)) {
+			throw new IllegalArgumentException("invalid capacity," + capacity);
+		}
+		mDelayMs = Math.max(delayMs, 0);
+		int n = 1;
+		while (n < capacity) {
+			n <<= 1;
+		}
+		mSlots = new Entry[n];
+		mMask = n - 1;
+	}
+
+	public int getDelayMs() {
+		return mDelayMs;
+	}
+
+	/**
+	 * 保持しているパケット数を取得
+	 * @return
+	 */
+	public int count() {
+		return mCount;
+	}
+
+	/**
+	 * 欠けたとみなして読み飛ばしたパケット数を取得
+	 * @return
+	 */
+	public long getLostPackets() {
+		return mLostPackets;
+	}
+
+	/**
+	 * 遅延時間を過ぎてから届いた(または重複した)ために破棄したパケット数を取得
+	 * @return
+	 */
+	public long getLatePackets() {
+		return mLatePackets;
+	}
+
+	/**
+	 * 保持しているパケットを全て破棄して初期状態に戻す
+	 */
+	public void clear() {
+		for (int i = 0; i < mSlots.length; i++) {
+			if (mSlots[i] != null) {
+				mFreeEntries.add(mSlots[i]);
+				mSlots[i] = null;
+			}
+		}
+		mCount = 0;
+		mHasFirst = false;
+	}
+
+	/**
+	 * RTPパケットを追加する
+	 * パケットの内容はコピーするので呼び出し後にpacketを再利用してもよい
+	 * @param packet positionからlimitまでがRTPパケット, position/limitは変更しない
+	 * @param nowMs 現在時刻[ミリ秒]
+	 * @return 追加できなかった(遅れて届いた, 重複した, RTPパケットではない)ときはfalse
+	 */
+	public boolean offer(@NonNull final ByteBuffer packet, final long nowMs) {
+		final int size = packet.remaining();
+		if (size < RtpPacketizer.RTP_HEADER_SIZE) {
+			return false;
+		}
+		final int sequence = packet.getShort(packet.position() + 2) & 0xffff;
+		if (!mHasFirst) {
+			mHasFirst = true;
+			mNext = sequence;
+		}
+		// 次に取り出すシーケンス番号に最も近い値に展開する
+		final long ext = mNext + (short)(sequence - (int)mNext);
+		if (ext < mNext) {
+			mLatePackets++;
+			return false;
+		}
+		if (ext >= mNext + mSlots.length) {
+			// 保持できる範囲を超えたので古いパケットを読み飛ばす
+			skipTo(ext - mSlots.length + 1);
+		}
+		final int ix = (int)(ext & mMask);
+		if (mSlots[ix] != null) {
+			mLatePackets++;
+			return false;
+		}
+		Entry entry = mFreeEntries.pollFirst();
+		if ((entry == null) || (entry.data.length < size)) {
+			entry = new Entry(Math.max(size, RtpPacketizer.DEFAULT_MTU));
+		}
+		packet.duplicate().get(entry.data, 0, size);
+		entry.size = size;
+		entry.arrivalMs = nowMs;
+		mSlots[ix] = entry;
+		mCount++;
+		return true;
+	}
+
+	/**
+	 * 次のパケットを取り出す
+	 * 返したByteBufferは次の#poll呼び出しまで有効
+	 * @param nowMs 現在時刻[ミリ秒]
+	 * @return 取り出せるパケットが無ければnull
+	 */
+	@Nullable
+	public ByteBuffer poll(final long nowMs) {
+		if (mPolled != null) {
+			mFreeEntries.add(mPolled);
+			mPolled = null;
+		}
+		if (mCount <= 0) {
+			return null;
+		}
+		Entry entry = mSlots[(int)(mNext & mMask)];
+		if (entry == null) {
+			// 次のパケットが届いていないので遅延時間が経過したパケットがあれば欠けたとみなす
+			final long next = findNext();
+			final Entry first = mSlots[(int)(next & mMask)];
+			if (nowMs - first.arrivalMs < mDelayMs) {
+				return null;
+			}
+			skipTo(next);
+			entry = first;
+		}
+		mSlots[(int)(mNext & mMask)] = null;
+		mNext++;
+		mCount--;
+		mPolled = entry;
+		return ByteBuffer.wrap(entry.data, 0, entry.size);
+	}
+
+	/**
+	 * 次に#pollでパケットを取り出せるようになるまでの時間を取得
+	 * @param nowMs 現在時刻[ミリ秒]
+	 * @return 保持しているパケットが無ければ-1
+	 */
+	public long getWaitTimeMs(final long nowMs) {
+		if (mCount <= 0) {
+			return -1;
+		}
+		if (mSlots[(int)(mNext & mMask)] != null) {
+			return 0;
+		}
+		final Entry first = mSlots[(int)(findNext() & mMask)];
+		return Math.max(first.arrivalMs + mDelayMs - nowMs, 0);
+	}
+
+	/**
+	 * 保持しているパケットの内で最もシーケンス番号が小さいものを探す
+	 * mCount > 0のときのみ呼び出すこと
+	 * @return
+	 */
+	private long findNext() {
+		long ext = mNext;
+		while (mSlots[(int)(ext & mMask)] == null) {
+			ext++;
+		}
+		return ext;
+	}
+
+	/**
+	 * 指定したシーケンス番号まで読み飛ばす
+	 * @param ext
+	 */
+	private void skipTo(final long ext) {
+		for ( ; mNext < ext; mNext++) {
+			final int ix = (int)(mNext & mMask);
+			if (mSlots[ix] != null) {
+				mFreeEntries.add(mSlots[ix]);
+				mSlots[ix] = null;
+				mCount--;
+			}
+			mLostPackets++;
+		}
+	}
+}
@@ -0,0 +1,575 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.serenegiant.net.SocketChannelDataLink;
+import com.serenegiant.net.UdpSocket;
+import com.serenegiant.utils.Pool;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * エンコード済みのh.264/AACのフレームデータをRTPパケットにしてネットワークへ送信するIMuxer実装
+ * 外部のサーバーを使わずにローカルネットワーク上の相手(RtpReceiver)へ低遅延でライブ映像を送るためのもの
+ * (RTSP/SDPによるセッション管理は行わないので, ペイロードタイプとAACのcsd-0は別途受信側へ伝えること)
+ * パケットは送信用スレッドからトークンバケットでペーシングしながら送信するので
+ * キーフレーム等の大きなフレームでも一度に大量のパケットを送出しない
+ * 送信待ちのパケットが上限を超えるときはフレーム単位で破棄し, 映像は次のキーフレームまで破棄する
+ * IPressureSourceを実装しているのでAdaptiveBitrateMonitorでエンコーダーのビットレートを調整できる
+ *
+ * final UdpSocket socket = new UdpSocket(port);
+ * final RtpMuxer muxer = new RtpMuxer(RtpMuxer.newUdpSender(socket, new InetSocketAddress(addr, port)));
+ */
+public class RtpMuxer implements IMuxer, IPressureSource {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = RtpMuxer.class.getSimpleName();
+
+	/**
+	 * トラックのペイロードタイプはPAYLOAD_TYPE_BASE + トラックインデックスにする
+	 */
+	public static final int PAYLOAD_TYPE_BASE = 96;
+	/**
+	 * デフォルトのペーシングレート[bps]
+	 */
+	public static final int DEFAULT_PACING_BITRATE = 20000000;
+	/**
+	 * デフォルトの送信待ちパケット数の上限
+	 */
+	public static final int DEFAULT_MAX_QUEUED_PACKETS = 1024;
+	/**
+	 * ペーシングせずに連続して送信できるパケット数
+	 */
+	private static final int BURST_PACKETS = 4;
+	/**
+	 * #stopで送信待ちのパケットの送信を待つ最大時間[ミリ秒]
+	 */
+	private static final long STOP_TIMEOUT_MS = 1000;
+
+	/**
+	 * RTPパケットを実際に送信するためのインターフェース
+	 * RtpMuxerの送信用スレッドから呼び出される
+	 */
+	public interface PacketSender {
+		/**
+		 * RTPパケットを送信する
+		 * @param packet position=0, limit=パケットサイズ, 呼び出し後に再利用するので保持する場合はコピーすること
+		 * @return 送信できなかったときはfalse
+		 * @throws IOException
+		 */
+		public boolean send(@NonNull final ByteBuffer packet) throws IOException;
+	}
+
+	/**
+	 * UdpSocketで指定したアドレスへ送信するPacketSenderを生成する
+	 * 送信バッファに空きが無いときはパケットを破棄する
+	 * @param socket
+	 * @param target 送信先のアドレス(受信側のRtpReceiverがバインドしているアドレスとポート)
+	 * @return
+	 */
+	@NonNull
+	public static PacketSender newUdpSender(
+		@NonNull final UdpSocket socket, @NonNull final SocketAddress target) {
+
+		return new PacketSender() {
+			@Override
+			public boolean send(@NonNull final ByteBuffer packet) throws IOException {
+				return socket.send(packet, target) > 0;
+			}
+		};
+	}
+
+	/**
+	 * SocketChannelDataLinkのクライアントで送信するPacketSenderを生成する
+	 * TCPなのでパケットは欠けないが, 輻輳時は送信待ちのパケットが溜まってフレームを破棄するようになる
+	 * @param client
+	 * @return
+	 */
+	@NonNull
+	public static PacketSender newDataLinkSender(@NonNull final SocketChannelDataLink.Client client) {
+		return new PacketSender() {
+			@Override
+			public boolean send(@NonNull final ByteBuffer packet) throws IOException {
+				// SocketChannelDataLinkは別スレッドで送信するのでコピーしてから引き渡す
+				final ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+				copy.put(packet).flip();
+				client.send(copy);
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * 送信待ちのパケット
+	 */
+	private static class Packet {
+		@NonNull
+		private final byte[] data;
+		private int size;
+
+		private Packet(final int size) {
+			data = new byte[size];
+		}
+	}
+
+	/**
+	 * トラック毎の情報
+	 */
+	private static class Track {
+		@NonNull
+		private final RtpPacketizer packetizer;
+		/**
+		 * フレームを破棄したので次のキーフレームを待っているかどうか
+		 */
+		private boolean waitKeyFrame;
+
+		private Track(@NonNull final RtpPacketizer packetizer) {
+			this.packetizer = packetizer;
+		}
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final PacketSender mSender;
+	private final int mMtu;
+	private final int mMaxQueuedPackets;
+	@NonNull
+	private final List<Track> mTracks = new ArrayList<>();
+	@NonNull
+	private final Pool<Packet> mPool;
+	/**
+	 * 送信待ちのパケット, mSyncで排他制御する
+	 */
+	@NonNull
+	private final ArrayDeque<Packet> mQueue = new ArrayDeque<>();
+	@NonNull
+	private final Random mRandom = new Random();
+	private volatile int mPacingBitrate = DEFAULT_PACING_BITRATE;
+	@Nullable
+	private Thread mSenderThread;
+	private volatile boolean mIsRunning;
+	private volatile boolean mCancel;
+	private boolean mReleased;
+	private volatile long mBytesSent;
+	private volatile long mPacketsSent;
+	private volatile long mDroppedPackets;
+	private volatile long mDroppedFrames;
+
+	/**
+	 * コンストラクタ
+	 * MTUはRtpPacketizer.DEFAULT_MTU, 送信待ちパケット数の上限はDEFAULT_MAX_QUEUED_PACKETS
+	 * @param sender
+	 */
+	public RtpMuxer(@NonNull final PacketSender sender) {
+		this(sender, RtpPacketizer.DEFAULT_MTU, DEFAULT_MAX_QUEUED_PACKETS);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param sender
+	 * @param mtu RTPヘッダーを含むパケットの最大サイズ
+	 * @param maxQueuedPackets 送信待ちパケット数の上限
+	 */
+	public RtpMuxer(@NonNull final PacketSender sender,
+		final int mtu, final int maxQueuedPackets) {
+
+		if (maxQueuedPackets <= 0) {
+			throw new IllegalArgumentException("maxQueuedPackets should be positive");
+		}
+		mSender = sender;
+		mMtu = mtu;
+		mMaxQueuedPackets = maxQueuedPackets;
+		mPool = new Pool<Packet>(0, maxQueuedPackets) {
+			@NonNull
+			@Override
+			protected Packet createObject(@Nullable final Object... args) {
+				return new Packet(mMtu);
+			}
+		};
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			release();
+		} finally {
+			super.finalize();
+		}
+	}
+
+	/**
+	 * ペーシングレートをセット
+	 * エンコーダーのビットレートより十分大きな値にすること
+	 * @param bitrate [bps], 0以下ならペーシングしない
+	 */
+	public void setPacingBitrate(final int bitrate) {
+		mPacingBitrate = bitrate;
+	}
+
+	/**
+	 * ペーシングレートを取得
+	 * @return
+	 */
+	public int getPacingBitrate() {
+		return mPacingBitrate;
+	}
+
+	/**
+	 * 指定したトラックのRTPペイロードタイプを取得
+	 * @param trackIx
+	 * @return
+	 */
+	public int getPayloadType(final int trackIx) {
+		synchronized (mSync) {
+			return mTracks.get(trackIx).packetizer.getPayloadType();
+		}
+	}
+
+	/**
+	 * 送信したパケット数を取得
+	 * @return
+	 */
+	public long getPacketsSent() {
+		return mPacketsSent;
+	}
+
+	/**
+	 * 送信できずに破棄したパケット数を取得
+	 * @return
+	 */
+	public long getDroppedPackets() {
+		return mDroppedPackets;
+	}
+
+	/**
+	 * トラックを追加する
+	 * h.264(video/avc)とAAC(audio/mp4a-latm)のみ対応
+	 * @param format
+	 * @return
+	 * @throws IllegalArgumentException 対応していないmime typeのとき
+	 * @throws IllegalStateException 開始済みまたは破棄済みのとき
+	 */
+	@Override
+	public int addTrack(@NonNull final MediaFormat format)
+		throws IllegalArgumentException, IllegalStateException {
+
+		if (DEBUG) Log.v(TAG, "addTrack:" + format);
+		synchronized (mSync) {
+			checkReleased();
+			if (mIsRunning) {
+				throw new IllegalStateException("already started");
+			}
+			final String mime = format.containsKey(MediaFormat.KEY_MIME)
+				? format.getString(MediaFormat.KEY_MIME) : null;
+			final int trackIx = mTracks.size();
+			final int payloadType = PAYLOAD_TYPE_BASE + trackIx;
+			final RtpPacketizer packetizer;
+			if (MediaCodecUtils.MIME_VIDEO_AVC.equalsIgnoreCase(mime)) {
+				packetizer = RtpPacketizer.newAvc(payloadType, mRandom.nextInt(), mMtu);
+				packetizer.setParameterSets(
+					format.containsKey("csd-0") ? format.getByteBuffer("csd-0") : null,
+					format.containsKey("csd-1") ? format.getByteBuffer("csd-1") : null);
+			} else if (MediaCodecUtils.MIME_AUDIO_AAC.equalsIgnoreCase(mime)) {
+				packetizer = RtpPacketizer.newAac(payloadType, mRandom.nextInt(),
+					format.getInteger(MediaFormat.KEY_SAMPLE_RATE), mMtu);
+			} else {
+				throw new IllegalArgumentException("unsupported mime type," + mime);
+			}
+			mTracks.add(new Track(packetizer));
+			return trackIx;
+		}
+	}
+
+	/**
+	 * 送信を開始する
+	 */
+	@Override
+	public void start() {
+		if (DEBUG) Log.v(TAG, "start:");
+		synchronized (mSync) {
+			checkReleased();
+			if (mIsRunning) {
+				throw new IllegalStateException("already started");
+			}
+			for (final Track track: mTracks) {
+				// 受信側がデコードを開始できるようにキーフレームから送る
+				track.waitKeyFrame = track.packetizer.isVideo();
+			}
+			mIsRunning = true;
+			mCancel = false;
+			mSenderThread = new Thread(mSenderTask, TAG);
+			mSenderThread.start();
+		}
+	}
+
+	/**
+	 * 送信を終了する
+	 * 送信待ちのパケットはSTOP_TIMEOUT_MSまで送信を待ってから破棄する
+	 */
+	@Override
+	public void stop() {
+		if (DEBUG) Log.v(TAG, "stop:");
+		final Thread thread;
+		synchronized (mSync) {
+			mIsRunning = false;
+			thread = mSenderThread;
+			mSenderThread = null;
+			mSync.notifyAll();
+		}
+		if (thread != null) {
+			try {
+				thread.join(STOP_TIMEOUT_MS);
+				if (thread.isAlive()) {
+					mCancel = true;
+					thread.interrupt();
+					thread.join(STOP_TIMEOUT_MS);
+				}
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * 関係するリソースを破棄する
+	 * PacketSenderが使っているUdpSocketやSocketChannelDataLinkは破棄しないので
+	 * 呼び出し元で破棄すること
+	 */
+	@Override
+	public void release() {
+		synchronized (mSync) {
+			if (mReleased) {
+				return;
+			}
+		}
+		if (DEBUG) Log.v(TAG, "release:");
+		stop();
+		synchronized (mSync) {
+			mReleased = true;
+			mQueue.clear();
+			mTracks.clear();
+			mPool.clear();
+		}
+	}
+
+	@Override
+	public boolean isStarted() {
+		return mIsRunning;
+	}
+
+	/**
+	 * フレームデータをRTPパケットに分割して送信待ちキューへ追加する
+	 * 送信待ちパケット数の上限を超える場合はフレームを破棄する
+	 * @param trackIndex
+	 * @param byteBuf
+	 * @param bufferInfo
+	 */
+	@Override
+	public void writeSampleData(final int trackIndex,
+		@NonNull final ByteBuffer byteBuf,
+		@NonNull final MediaCodec.BufferInfo bufferInfo) {
+
+		synchronized (mSync) {
+			checkReleased();
+			if ((trackIndex < 0) || (trackIndex >= mTracks.size())) {
+				throw new IllegalArgumentException("trackIndex is invalid");
+			}
+			if (!mIsRunning || (bufferInfo.size <= 0)) {
+				return;
+			}
+			final Track track = mTracks.get(trackIndex);
+			final boolean isVideo = track.packetizer.isVideo();
+			final boolean isConfig = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+			final boolean isKeyFrame = (bufferInfo.flags & MediaCodecUtils.BUFFER_FLAG_KEY_FRAME) != 0;
+			if (!isConfig) {
+				if (isVideo && track.waitKeyFrame && !isKeyFrame) {
+					mDroppedFrames++;
+					return;
+				}
+				if (mQueue.size() + track.packetizer.estimatePackets(bufferInfo.size) > mMaxQueuedPackets) {
+					// 途中までしか送らないと受信側で復元できないのでフレーム単位で破棄する
+					if (DEBUG) Log.v(TAG, "writeSampleData:queue is full, frame dropped");
+					mDroppedFrames++;
+					track.waitKeyFrame = isVideo;
+					return;
+				}
+			}
+			try {
+				track.packetizer.packetize(byteBuf, bufferInfo.offset, bufferInfo.size,
+					bufferInfo.presentationTimeUs, bufferInfo.flags, mPacketSink);
+				if (isVideo && isKeyFrame) {
+					track.waitKeyFrame = false;
+				}
+			} catch (final IOException e) {
+				// mPacketSinkはIOExceptionを投げないのでここには来ない
+				Log.w(TAG, e);
+			}
+			mSync.notifyAll();
+		}
+	}
+
+//--------------------------------------------------------------------------------
+// IPressureSourceの実装
+	/**
+	 * 送信待ちのパケット数を取得
+	 * @return
+	 */
+	@Override
+	public int getQueueDepth() {
+		synchronized (mSync) {
+			return mQueue.size();
+		}
+	}
+
+	/**
+	 * 送信待ちパケット数の上限を取得
+	 * @return
+	 */
+	@Override
+	public int getQueueCapacity() {
+		return mMaxQueuedPackets;
+	}
+
+	/**
+	 * 送信したRTPパケットの累積バイト数を取得
+	 * @return
+	 */
+	@Override
+	public long getWrittenBytes() {
+		return mBytesSent;
+	}
+
+	/**
+	 * 送信待ちパケット数の上限を超えたために破棄したフレーム数を取得
+	 * @return
+	 */
+	@Override
+	public long getDroppedFrames() {
+		return mDroppedFrames;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 破棄されたかどうかをチェックして破棄されていればIllegalStateExceptionを投げる
+	 * @throws IllegalStateException
+	 */
+	private void checkReleased() throws IllegalStateException {
+		if (mReleased) {
+			throw new IllegalStateException("already released");
+		}
+	}
+
+	/**
+	 * RtpPacketizerが生成したパケットを送信待ちキューへ追加するためのPacketSink
+	 * mSyncをロックした状態で呼び出される
+	 */
+	private final RtpPacketizer.PacketSink mPacketSink = new RtpPacketizer.PacketSink() {
+		@Override
+		public void onPacket(@NonNull final ByteBuffer packet) {
+			Packet p = mPool.obtain();
+			if ((p == null) || (p.data.length < packet.remaining())) {
+				// 送信待ちパケット数は事前に確認しているので通常はここには来ない
+				p = new Packet(Math.max(mMtu, packet.remaining()));
+			}
+			p.size = packet.remaining();
+			packet.get(p.data, 0, p.size);
+			mQueue.addLast(p);
+		}
+	};
+
+	/**
+	 * 送信待ちのパケットをペーシングしながら送信するためのRunnable
+	 */
+	private final Runnable mSenderTask = new Runnable() {
+		@Override
+		public void run() {
+			if (DEBUG) Log.v(TAG, "SenderTask#run:");
+			final double burst = mMtu * BURST_PACKETS;
+			double tokens = burst;
+			long last = System.nanoTime();
+			for ( ; !mCancel ; ) {
+				final Packet packet;
+				synchronized (mSync) {
+					while (mIsRunning && mQueue.isEmpty()) {
+						try {
+							mSync.wait();
+						} catch (final InterruptedException e) {
+							break;
+						}
+					}
+					packet = mQueue.pollFirst();
+				}
+				if (packet == null) break;
+				try {
+					final int bitrate = mPacingBitrate;
+					if (bitrate > 0) {
+						// トークンバケット, トークンが足りなければ溜まるまで待つ
+						long now = System.nanoTime();
+						tokens = Math.min(tokens + (now - last) * (bitrate / 8e9), burst);
+						last = now;
+						if (tokens < packet.size) {
+							final long waitNs = (long)((packet.size - tokens) * 8e9 / bitrate);
+							Thread.sleep(waitNs / 1000000L, (int)(waitNs % 1000000L));
+							now = System.nanoTime();
+							tokens = Math.min(tokens + (now - last) * (bitrate / 8e9), burst);
+							last = now;
+						}
+						tokens -= packet.size;
+					}
+					if (mSender.send(ByteBuffer.wrap(packet.data, 0, packet.size))) {
+						mBytesSent += packet.size;
+						mPacketsSent++;
+					} else {
+						mDroppedPackets++;
+					}
+				} catch (final InterruptedException e) {
+					mDroppedPackets++;
+					break;
+				} catch (final Exception e) {
+					if (DEBUG) Log.w(TAG, e);
+					mDroppedPackets++;
+				} finally {
+					mPool.recycle(packet);
+				}
+			}
+			synchronized (mSync) {
+				// 送信できなかったパケットを破棄する
+				mDroppedPackets += mQueue.size();
+				for (final Packet packet: mQueue) {
+					mPool.recycle(packet);
+				}
+				mQueue.clear();
+			}
+			if (DEBUG) Log.v(TAG, "SenderTask#run:finished");
+		}
+	};
+}
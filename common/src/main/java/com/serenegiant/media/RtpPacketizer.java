@@ -0,0 +1,443 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * エンコード済みのh.264/AACのフレームデータをRTPパケットへ分割するためのヘルパークラス
+ * h.264はRFC6184のSingle NAL unitパケットとFU-Aパケット(MTUを超えるNALユニットのみ)を生成する
+ * AACはRFC3640(mpeg4-generic, AAC-hbrモード)のAUヘッダーを付けて1パケットに1フレームを入れ,
+ * MTUを超える場合は複数のパケットへ分割する
+ * h.264はAnnexB形式(MediaCodecの出力と同じ)のフレームデータを渡すこと
+ * 排他制御をしていないので複数のスレッドから同時に呼び出さないこと
+ */
+public class RtpPacketizer {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = RtpPacketizer.class.getSimpleName();
+
+	/**
+	 * デフォルトのMTU(RTPヘッダーを含むUDPペイロードの最大サイズ)
+	 * IPフラグメンテーションが起こらないように一般的なイーサネットのMTUより小さくする
+	 */
+	public static final int DEFAULT_MTU = 1400;
+	/**
+	 * RTPヘッダーのサイズ(CSRCと拡張ヘッダーは使わない)
+	 */
+	public static final int RTP_HEADER_SIZE = 12;
+	/**
+	 * 映像のRTPタイムスタンプのクロックレート
+	 */
+	public static final int CLOCK_RATE_VIDEO = 90000;
+	/**
+	 * AACの1フレームあたりのサンプル数
+	 */
+	public static final int AAC_SAMPLES_PER_FRAME = 1024;
+
+	/*package*/ static final int RTP_VERSION = 2;
+	/*package*/ static final int NAL_STAP_A = 24;
+	/*package*/ static final int NAL_FU_A = 28;
+	/**
+	 * AAC-hbrモードのAUヘッダーのサイズ(AU-size 13ビット + AU-Index 3ビット)
+	 */
+	/*package*/ static final int AAC_AU_HEADER_SIZE = 2;
+	/**
+	 * MTUの最小値, これより小さいとFU-Aで分割できない
+	 */
+	private static final int MIN_MTU = RTP_HEADER_SIZE + 16;
+
+	/**
+	 * 生成したRTPパケットを受け取るためのインターフェース
+	 */
+	public interface PacketSink {
+		/**
+		 * RTPパケットを生成したときに呼び出される
+		 * 引き渡したByteBufferは次のパケット生成時に再利用するので
+		 * 呼び出し後も保持する場合はコピーすること
+		 * @param packet position=0, limit=パケットサイズ
+		 * @throws IOException
+		 */
+		public void onPacket(@NonNull final ByteBuffer packet) throws IOException;
+	}
+
+	/**
+	 * h.264用のRtpPacketizerを生成する
+	 * @param payloadType RTPペイロードタイプ, 通常は動的ペイロードタイプ(96-127)
+	 * @param ssrc
+	 * @param mtu
+	 * @return
+	 */
+	@NonNull
+	public static RtpPacketizer newAvc(final int payloadType, final int ssrc, final int mtu) {
+		return new RtpPacketizer(true, payloadType, ssrc, CLOCK_RATE_VIDEO, mtu);
+	}
+
+	/**
+	 * AAC用のRtpPacketizerを生成する
+	 * @param payloadType RTPペイロードタイプ, 通常は動的ペイロードタイプ(96-127)
+	 * @param ssrc
+	 * @param sampleRate サンプリングレート, RTPタイムスタンプのクロックレートになる
+	 * @param mtu
+	 * @return
+	 */
+	@NonNull
+	public static RtpPacketizer newAac(final int payloadType, final int ssrc,
+		final int sampleRate, final int mtu) {
+
+		return new RtpPacketizer(false, payloadType, ssrc, sampleRate, mtu);
+	}
+
+	private final boolean mIsVideo;
+	private final int mPayloadType;
+	private final int mSsrc;
+	private final int mClockRate;
+	private final int mMtu;
+	/**
+	 * パケット生成用のワークバッファ
+	 */
+	@NonNull
+	private final ByteBuffer mPacket;
+	@Nullable
+	private final NalUnitScanner mScanner;
+	/**
+	 * キーフレームの前に送るSPS/PPS(AnnexB形式)
+	 */
+	@Nullable
+	private byte[] mParameterSets;
+	private int mSequence;
+	private final int mTimestampOffset;
+
+	/**
+	 * コンストラクタ
+	 * @param isVideo
+	 * @param payloadType
+	 * @param ssrc
+	 * @param clockRate
+	 * @param mtu
+	 * @throws IllegalArgumentException
+	 */
+	private RtpPacketizer(final boolean isVideo,
+		final int payloadType, final int ssrc, final int clockRate, final int mtu)
+			throws IllegalArgumentException {
+
+		if ((payloadType < 0) || (payloadType > 127)) {
+			throw new IllegalArgumentException("invalid payload type," + payloadType);
+		}
+		if (clockRate <= 0) {
+			throw new IllegalArgumentException("invalid clock rate," + clockRate);
+		}
+		if (mtu < MIN_MTU) {
+			throw new IllegalArgumentException("mtu is too small," + mtu);
+		}
+		mIsVideo = isVideo;
+		mPayloadType = payloadType;
+		mSsrc = ssrc;
+		mClockRate = clockRate;
+		mMtu = mtu;
+		mPacket = ByteBuffer.allocate(mtu);
+		mScanner = isVideo ? new NalUnitScanner(false) : null;
+		// RFC3550に従ってシーケンス番号とタイムスタンプの初期値はランダムにする
+		final Random random = new Random();
+		mSequence = random.nextInt(0x10000);
+		mTimestampOffset = random.nextInt();
+	}
+
+	public boolean isVideo() {
+		return mIsVideo;
+	}
+
+	public int getPayloadType() {
+		return mPayloadType;
+	}
+
+	public int getSsrc() {
+		return mSsrc;
+	}
+
+	public int getClockRate() {
+		return mClockRate;
+	}
+
+	public int getMtu() {
+		return mMtu;
+	}
+
+	/**
+	 * 次に生成するパケットのシーケンス番号を取得
+	 * @return
+	 */
+	public int getSequence() {
+		return mSequence;
+	}
+
+	/**
+	 * 指定したサイズのフレームデータを分割したときのパケット数の上限を取得
+	 * キーフレームの前に送るSPS/PPSの分も含む
+	 * @param size
+	 * @return
+	 */
+	public int estimatePackets(final int size) {
+		final int payload = mMtu - RTP_HEADER_SIZE - 2;
+		final int n = (size + payload - 1) / payload + 1;
+		return mIsVideo ? n + 2 : n;
+	}
+
+	/**
+	 * キーフレームの前に送るSPS/PPSをセットする(h.264のみ)
+	 * MediaFormatのcsd-0/csd-1(AnnexB形式)をそのまま渡せばよい
+	 * BUFFER_FLAG_CODEC_CONFIGのフレームを#packetizeへ渡した場合も更新される
+	 * @param csd0
+	 * @param csd1
+	 */
+	public void setParameterSets(@Nullable final ByteBuffer csd0, @Nullable final ByteBuffer csd1) {
+		if (!mIsVideo) return;
+		final int n0 = csd0 != null ? csd0.remaining() : 0;
+		final int n1 = csd1 != null ? csd1.remaining() : 0;
+		if (n0 + n1 > 0) {
+			final byte[] sets = new byte[n0 + n1];
+			if (n0 > 0) {
+				csd0.duplicate().get(sets, 0, n0);
+			}
+			if (n1 > 0) {
+				csd1.duplicate().get(sets, n0, n1);
+			}
+			mParameterSets = sets;
+		} else {
+			mParameterSets = null;
+		}
+	}
+
+	/**
+	 * フレームデータをRTPパケットへ分割する
+	 * @param buffer フレームデータ, position/limitは変更しない
+	 * @param offset
+	 * @param size
+	 * @param presentationTimeUs
+	 * @param flags MediaCodec.BufferInfo#flags
+	 * @param sink
+	 * @return 生成したパケット数
+	 * @throws IOException PacketSinkからIOExceptionが投げられた
+	 */
+	public int packetize(@NonNull final ByteBuffer buffer,
+		final int offset, final int size,
+		final long presentationTimeUs, final int flags,
+		@NonNull final PacketSink sink) throws IOException {
+
+		if (size <= 0) {
+			return 0;
+		}
+		final ByteBuffer src = buffer.duplicate();
+		src.clear();
+		final int timestamp = (int)(mTimestampOffset + presentationTimeUs * mClockRate / 1000000L);
+		if (mIsVideo) {
+			if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+				// SPS/PPSは次のキーフレームの前に送る
+				src.limit(offset + size).position(offset);
+				setParameterSets(src, null);
+				return 0;
+			}
+			return packetizeAvc(src, offset, size, timestamp, sink);
+		} else {
+			if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+				// AudioSpecificConfigはRTPでは送らない(受信側へは別途MediaFormat等で渡すこと)
+				return 0;
+			}
+			return packetizeAac(src, offset, size, timestamp, sink);
+		}
+	}
+
+	/**
+	 * h.264のフレームデータをRTPパケットへ分割する
+	 * @param src
+	 * @param offset
+	 * @param size
+	 * @param timestamp
+	 * @param sink
+	 * @return
+	 * @throws IOException
+	 */
+	private int packetizeAvc(@NonNull final ByteBuffer src,
+		final int offset, final int size, final int timestamp,
+		@NonNull final PacketSink sink) throws IOException {
+
+		final NalUnitScanner scanner = mScanner;
+		// 最後のNALユニットにマーカービットを立てるので先にNALユニットの数を数える
+		int numNals = 0;
+		boolean hasIdr = false, hasSps = false;
+		scanner.reset(src, offset, size);
+		while (scanner.next()) {
+			final int type = scanner.getType();
+			if ((type == NalUnitScanner.AVC_NAL_AUD) || (scanner.getPayloadSize() <= 0)) continue;
+			numNals++;
+			hasIdr |= type == NalUnitScanner.AVC_NAL_IDR;
+			hasSps |= type == NalUnitScanner.AVC_NAL_SPS;
+		}
+		if (numNals == 0) {
+			return 0;
+		}
+		int result = 0;
+		if (hasIdr && !hasSps && (mParameterSets != null)) {
+			// 途中から受信を開始した場合でもデコードできるようにキーフレームの前にSPS/PPSを送る
+			final ByteBuffer sets = ByteBuffer.wrap(mParameterSets);
+			scanner.reset(sets);
+			while (scanner.next()) {
+				if (scanner.isParameterSet() && (scanner.getPayloadSize() > 0)) {
+					result += packetizeNal(sets, scanner.getPayloadOffset(), scanner.getPayloadSize(),
+						timestamp, false, sink);
+				}
+			}
+		}
+		scanner.reset(src, offset, size);
+		int ix = 0;
+		while (scanner.next()) {
+			if ((scanner.getType() == NalUnitScanner.AVC_NAL_AUD) || (scanner.getPayloadSize() <= 0)) continue;
+			ix++;
+			result += packetizeNal(src, scanner.getPayloadOffset(), scanner.getPayloadSize(),
+				timestamp, ix == numNals, sink);
+		}
+		if (DEBUG) Log.v(TAG, "packetizeAvc:nals=" + numNals + ",packets=" + result);
+		return result;
+	}
+
+	/**
+	 * 1つのNALユニットをRTPパケットへ分割する
+	 * MTUに収まればSingle NAL unitパケット, 収まらなければFU-Aパケットにする
+	 * @param src
+	 * @param offset NALユニットヘッダーの位置
+	 * @param size NALユニットヘッダーを含むNALユニットのサイズ
+	 * @param timestamp
+	 * @param last アクセスユニットの最後のNALユニットかどうか
+	 * @param sink
+	 * @return
+	 * @throws IOException
+	 */
+	private int packetizeNal(@NonNull final ByteBuffer src,
+		final int offset, final int size, final int timestamp, final boolean last,
+		@NonNull final PacketSink sink) throws IOException {
+
+		final int maxPayload = mMtu - RTP_HEADER_SIZE;
+		if (size <= maxPayload) {
+			putHeader(last, timestamp);
+			put(src, offset, size);
+			flush(sink);
+			return 1;
+		}
+		final int nalHeader = src.get(offset) & 0xff;
+		final int fuIndicator = (nalHeader & 0xe0) | NAL_FU_A;
+		final int type = nalHeader & 0x1f;
+		final int maxFragment = maxPayload - 2;
+		int pos = offset + 1;	// NALユニットヘッダーはFUヘッダーから復元するので送らない
+		final int end = offset + size;
+		int result = 0;
+		while (pos < end) {
+			final int n = Math.min(maxFragment, end - pos);
+			final boolean start = pos == offset + 1;
+			final boolean stop = pos + n >= end;
+			putHeader(last && stop, timestamp);
+			mPacket.put((byte)fuIndicator);
+			mPacket.put((byte)((start ? 0x80 : 0) | (stop ? 0x40 : 0) | type));
+			put(src, pos, n);
+			flush(sink);
+			pos += n;
+			result++;
+		}
+		return result;
+	}
+
+	/**
+	 * AACのフレームデータをRTPパケットへ分割する
+	 * ADTSヘッダーが付いていれば取り除く
+	 * @param src
+	 * @param offset
+	 * @param size
+	 * @param timestamp
+	 * @param sink
+	 * @return
+	 * @throws IOException
+	 */
+	private int packetizeAac(@NonNull final ByteBuffer src,
+		final int offset, final int size, final int timestamp,
+		@NonNull final PacketSink sink) throws IOException {
+
+		int start = offset;
+		int auSize = size;
+		if ((size > 7) && ((src.get(offset) & 0xff) == 0xff)
+			&& ((src.get(offset + 1) & 0xf0) == 0xf0)) {
+			// ADTSヘッダー, protection_absent=0ならCRCの2バイトが続く
+			final int headerSize = (src.get(offset + 1) & 0x01) != 0 ? 7 : 9;
+			start += headerSize;
+			auSize -= headerSize;
+		}
+		if ((auSize <= 0) || (auSize >= 0x2000)) {
+			// AU-sizeは13ビットなので8191バイトまで
+			return 0;
+		}
+		final int maxFragment = mMtu - RTP_HEADER_SIZE - 2 - AAC_AU_HEADER_SIZE;
+		final int end = start + auSize;
+		int pos = start;
+		int result = 0;
+		while (pos < end) {
+			final int n = Math.min(maxFragment, end - pos);
+			final boolean stop = pos + n >= end;
+			putHeader(stop, timestamp);
+			// AU-headers-length(ビット数), AUヘッダー(分割した場合もAU全体のサイズを入れる)
+			mPacket.putShort((short)(AAC_AU_HEADER_SIZE * 8));
+			mPacket.putShort((short)(auSize << 3));
+			put(src, pos, n);
+			flush(sink);
+			pos += n;
+			result++;
+		}
+		return result;
+	}
+
+	/**
+	 * RTPヘッダーを書き込む
+	 * @param marker
+	 * @param timestamp
+	 */
+	private void putHeader(final boolean marker, final int timestamp) {
+		mPacket.clear();
+		mPacket.put((byte)(RTP_VERSION << 6));
+		mPacket.put((byte)((marker ? 0x80 : 0) | mPayloadType));
+		mPacket.putShort((short)mSequence);
+		mPacket.putInt(timestamp);
+		mPacket.putInt(mSsrc);
+		mSequence = (mSequence + 1) & 0xffff;
+	}
+
+	private void put(@NonNull final ByteBuffer src, final int offset, final int size) {
+		final ByteBuffer dup = src.duplicate();
+		dup.limit(offset + size).position(offset);
+		mPacket.put(dup);
+	}
+
+	private void flush(@NonNull final PacketSink sink) throws IOException {
+		mPacket.flip();
+		sink.onPacket(mPacket);
+	}
+}
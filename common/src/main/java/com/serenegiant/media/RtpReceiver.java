@@ -0,0 +1,553 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.serenegiant.net.AbstractChannelDataLink;
+import com.serenegiant.net.UdpSocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * RtpMuxerが送信したRTPパケットを受信してh.264/AACのフレームデータを復元するためのクラス
+ * UdpSocketから受信する場合は#start(UdpSocket),
+ * SocketChannelDataLinkから受信する場合は#getDataLinkCallbackで取得したCallbackを
+ * SocketChannelDataLinkへ追加してから#start()を呼ぶ
+ * ペイロードタイプ毎にRtpJitterBufferで並べ替えてからRtpDepacketizerでフレームデータを復元して
+ * 受信用スレッド上でListener#onFrameを呼び出す
+ */
+public class RtpReceiver {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = RtpReceiver.class.getSimpleName();
+
+	/**
+	 * 受信待ちの最大時間[ミリ秒]
+	 */
+	private static final long MAX_WAIT_MS = 100;
+	/**
+	 * UDPで受信できる最大サイズ
+	 */
+	private static final int MAX_DATAGRAM_SIZE = 65536;
+
+	/**
+	 * 復元したフレームデータを受け取るためのインターフェース
+	 */
+	public interface Listener {
+		/**
+		 * フレームデータを復元したときに受信用スレッド上で呼び出される
+		 * 引き渡したByteBufferは呼び出し後に再利用するので保持する場合はコピーすること
+		 * @param payloadType #addTrackで指定したペイロードタイプ
+		 * @param frame position=0, limit=フレームデータのサイズ
+		 * @param presentationTimeUs 最初に受信したパケットを0とした時刻[マイクロ秒]
+		 * @param flags BUFFER_FLAG_CODEC_CONFIG(h.264のSPS/PPS)またはBUFFER_FLAG_KEY_FRAME
+		 */
+		public void onFrame(final int payloadType, @NonNull final ByteBuffer frame,
+			final long presentationTimeUs, final int flags);
+	}
+
+	/**
+	 * ペイロードタイプ毎の受信状態
+	 */
+	private static class Stream implements RtpDepacketizer.FrameListener {
+		private final int payloadType;
+		@NonNull
+		private final RtpJitterBuffer jitterBuffer;
+		@NonNull
+		private final RtpDepacketizer depacketizer;
+		@NonNull
+		private final Listener listener;
+		private boolean hasSsrc;
+		private int ssrc;
+		/**
+		 * RtpDepacketizerのリセット要求, RtpDepacketizerは受信用スレッド上でのみ操作する
+		 */
+		private boolean requestReset;
+
+		private Stream(final int payloadType,
+			@NonNull final RtpJitterBuffer jitterBuffer,
+			@NonNull final RtpDepacketizer depacketizer,
+			@NonNull final Listener listener) {
+
+			this.payloadType = payloadType;
+			this.jitterBuffer = jitterBuffer;
+			this.depacketizer = depacketizer;
+			this.listener = listener;
+		}
+
+		@Override
+		public void onFrame(@NonNull final ByteBuffer frame,
+			final long presentationTimeUs, final int flags) {
+
+			listener.onFrame(payloadType, frame, presentationTimeUs, flags);
+		}
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final Listener mListener;
+	private final int mDelayMs;
+	/**
+	 * ペイロードタイプをインデックスとする受信状態の配列
+	 */
+	@NonNull
+	private final Stream[] mStreams = new Stream[128];
+	@NonNull
+	private final List<Stream> mStreamList = new ArrayList<>();
+	@Nullable
+	private Thread mReceiverThread;
+	@Nullable
+	private Selector mSelector;
+	private volatile boolean mIsRunning;
+	private boolean mReleased;
+	private volatile long mUnknownPackets;
+
+	/**
+	 * コンストラクタ
+	 * ジッターバッファの遅延時間はRtpJitterBuffer.DEFAULT_DELAY_MS
+	 * @param listener
+	 */
+	public RtpReceiver(@NonNull final Listener listener) {
+		this(listener, RtpJitterBuffer.DEFAULT_DELAY_MS);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param listener
+	 * @param delayMs ジッターバッファの遅延時間(パケットが欠けたときに後続のパケットを待つ最大時間)[ミリ秒]
+	 */
+	public RtpReceiver(@NonNull final Listener listener, final int delayMs) {
+		mListener = listener;
+		mDelayMs = delayMs;
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			release();
+		} finally {
+			super.finalize();
+		}
+	}
+
+	/**
+	 * 受信するトラックを追加する
+	 * @param payloadType RtpMuxer#getPayloadTypeで取得したペイロードタイプ
+	 * @param mime video/avcまたはaudio/mp4a-latm
+	 * @param sampleRate AACのサンプリングレート, h.264の場合は無視する
+	 * @throws IllegalArgumentException
+	 * @throws IllegalStateException 開始済みまたは破棄済みのとき
+	 */
+	public void addTrack(final int payloadType, @NonNull final String mime, final int sampleRate)
+		throws IllegalArgumentException, IllegalStateException {
+
+		synchronized (mSync) {
+			checkReleased();
+			if (mIsRunning) {
+				throw new IllegalStateException("already started");
+			}
+			if ((payloadType < 0) || (payloadType >= mStreams.length)) {
+				throw new IllegalArgumentException("invalid payload type," + payloadType);
+			}
+			final RtpDepacketizer depacketizer;
+			if (MediaCodecUtils.MIME_VIDEO_AVC.equalsIgnoreCase(mime)) {
+				depacketizer = RtpDepacketizer.newAvc();
+			} else if (MediaCodecUtils.MIME_AUDIO_AAC.equalsIgnoreCase(mime)) {
+				depacketizer = RtpDepacketizer.newAac(sampleRate);
+			} else {
+				throw new IllegalArgumentException("unsupported mime type," + mime);
+			}
+			final Stream stream = new Stream(payloadType,
+				new RtpJitterBuffer(mDelayMs, RtpJitterBuffer.DEFAULT_CAPACITY),
+				depacketizer, mListener);
+			if (mStreams[payloadType] != null) {
+				mStreamList.remove(mStreams[payloadType]);
+			}
+			mStreams[payloadType] = stream;
+			mStreamList.add(stream);
+		}
+	}
+
+	/**
+	 * 指定したUdpSocketからの受信を開始する
+	 * UdpSocketの破棄は呼び出し元で行うこと
+	 * @param socket
+	 * @throws IOException
+	 * @throws IllegalStateException
+	 */
+	public void start(@NonNull final UdpSocket socket) throws IOException, IllegalStateException {
+		final Selector selector = Selector.open();
+		try {
+			socket.channel().register(selector, SelectionKey.OP_READ);
+			internalStart(socket, selector);
+		} catch (final IOException | RuntimeException e) {
+			selector.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * 受信を開始する
+	 * RTPパケットは#offerまたは#getDataLinkCallbackで取得したCallback経由で渡すこと
+	 * @throws IllegalStateException
+	 */
+	public void start() throws IllegalStateException {
+		internalStart(null, null);
+	}
+
+	/**
+	 * 受信を終了する
+	 */
+	public void stop() {
+		if (DEBUG) Log.v(TAG, "stop:");
+		final Thread thread;
+		synchronized (mSync) {
+			mIsRunning = false;
+			thread = mReceiverThread;
+			mReceiverThread = null;
+			if (mSelector != null) {
+				mSelector.wakeup();
+			}
+			mSync.notifyAll();
+		}
+		if ((thread != null) && (thread != Thread.currentThread())) {
+			try {
+				thread.join();
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * 関係するリソースを破棄する
+	 */
+	public void release() {
+		stop();
+		synchronized (mSync) {
+			mReleased = true;
+			for (int i = 0; i < mStreams.length; i++) {
+				mStreams[i] = null;
+			}
+			mStreamList.clear();
+		}
+	}
+
+	public boolean isRunning() {
+		return mIsRunning;
+	}
+
+	/**
+	 * 指定したペイロードタイプで欠けていたパケット数を取得
+	 * @param payloadType
+	 * @return
+	 */
+	public long getLostPackets(final int payloadType) {
+		synchronized (mSync) {
+			final Stream stream = getStream(payloadType);
+			return stream.jitterBuffer.getLostPackets();
+		}
+	}
+
+	/**
+	 * 指定したペイロードタイプで欠けていたために破棄したフレーム数を取得
+	 * @param payloadType
+	 * @return
+	 */
+	public long getDroppedFrames(final int payloadType) {
+		synchronized (mSync) {
+			final Stream stream = getStream(payloadType);
+			return stream.depacketizer.getDroppedFrames();
+		}
+	}
+
+	/**
+	 * #addTrackで追加していないペイロードタイプのために破棄したパケット数を取得
+	 * @return
+	 */
+	public long getUnknownPackets() {
+		return mUnknownPackets;
+	}
+
+	/**
+	 * RTPパケットを追加する
+	 * 任意のスレッドから呼び出すことができる
+	 * @param packet positionからlimitまでがRTPパケット, 内容はコピーするので呼び出し後に再利用してもよい
+	 */
+	public void offer(@NonNull final ByteBuffer packet) {
+		synchronized (mSync) {
+			if (mIsRunning && internalOffer(packet, SystemClock.elapsedRealtime())) {
+				if (mSelector != null) {
+					mSelector.wakeup();
+				}
+				mSync.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * SocketChannelDataLinkから受信するためのCallbackを取得
+	 * SocketChannelDataLink#start/#connectToで追加すること
+	 * @return
+	 */
+	@NonNull
+	public AbstractChannelDataLink.Callback getDataLinkCallback() {
+		return mCallback;
+	}
+
+	private final AbstractChannelDataLink.Callback mCallback
+		= new AbstractChannelDataLink.Callback() {
+		@Override
+		public void onConnect(final AbstractChannelDataLink.AbstractClient client) {
+			if (DEBUG) Log.v(TAG, "onConnect:");
+		}
+
+		@Override
+		public void onDisconnect() {
+			if (DEBUG) Log.v(TAG, "onDisconnect:");
+		}
+
+		@Override
+		public void onReceive(final AbstractChannelDataLink.AbstractClient client,
+			@Nullable final Object msg) {
+
+			if (msg instanceof ByteBuffer) {
+				offer((ByteBuffer) msg);
+			}
+		}
+
+		@Override
+		public void onError(final AbstractChannelDataLink.AbstractClient client, final Exception e) {
+			Log.w(TAG, e);
+		}
+	};
+
+	/**
+	 * 破棄されたかどうかをチェックして破棄されていればIllegalStateExceptionを投げる
+	 * @throws IllegalStateException
+	 */
+	private void checkReleased() throws IllegalStateException {
+		if (mReleased) {
+			throw new IllegalStateException("already released");
+		}
+	}
+
+	@NonNull
+	private Stream getStream(final int payloadType) throws IllegalArgumentException {
+		final Stream stream = (payloadType >= 0) && (payloadType < mStreams.length)
+			? mStreams[payloadType] : null;
+		if (stream == null) {
+			throw new IllegalArgumentException("unknown payload type," + payloadType);
+		}
+		return stream;
+	}
+
+	private void internalStart(@Nullable final UdpSocket socket, @Nullable final Selector selector)
+		throws IllegalStateException {
+
+		if (DEBUG) Log.v(TAG, "internalStart:");
+		synchronized (mSync) {
+			checkReleased();
+			if (mIsRunning) {
+				throw new IllegalStateException("already started");
+			}
+			for (final Stream stream: mStreamList) {
+				stream.jitterBuffer.clear();
+				stream.depacketizer.reset();
+				stream.hasSsrc = stream.requestReset = false;
+			}
+			mIsRunning = true;
+			mSelector = selector;
+			mReceiverThread = new Thread(new ReceiverTask(socket, selector), TAG);
+			mReceiverThread.start();
+		}
+	}
+
+	/**
+	 * 受信したRTPパケットをペイロードタイプ毎のジッターバッファへ追加する
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param packet
+	 * @param nowMs
+	 * @return
+	 */
+	private boolean internalOffer(@NonNull final ByteBuffer packet, final long nowMs) {
+		if (packet.remaining() < RtpPacketizer.RTP_HEADER_SIZE) {
+			return false;
+		}
+		final int pos = packet.position();
+		final Stream stream = mStreams[packet.get(pos + 1) & 0x7f];
+		if (stream == null) {
+			mUnknownPackets++;
+			return false;
+		}
+		final int ssrc = packet.getInt(pos + 8);
+		if (stream.hasSsrc && (stream.ssrc != ssrc)) {
+			// 送信側が再開したのでシーケンス番号とタイムスタンプを初期化する
+			if (DEBUG) Log.v(TAG, "internalOffer:ssrc changed");
+			stream.jitterBuffer.clear();
+			stream.requestReset = true;
+		}
+		stream.hasSsrc = true;
+		stream.ssrc = ssrc;
+		return stream.jitterBuffer.offer(packet, nowMs);
+	}
+
+	/**
+	 * 受信用スレッドの実行部
+	 */
+	private class ReceiverTask implements Runnable {
+		@Nullable
+		private final UdpSocket mSocket;
+		@Nullable
+		private final Selector mTaskSelector;
+		@NonNull
+		private final ByteBuffer mBuffer;
+		@NonNull
+		private final List<Stream> mWork = new ArrayList<>();
+
+		private ReceiverTask(@Nullable final UdpSocket socket, @Nullable final Selector selector) {
+			mSocket = socket;
+			mTaskSelector = selector;
+			mBuffer = ByteBuffer.allocate(socket != null ? MAX_DATAGRAM_SIZE : 0);
+		}
+
+		@Override
+		public void run() {
+			if (DEBUG) Log.v(TAG, "ReceiverTask#run:");
+			try {
+				for ( ; mIsRunning ; ) {
+					final long waitMs = getWaitTimeMs();
+					if (mTaskSelector != null) {
+						if (waitMs > 0) {
+							mTaskSelector.select(waitMs);
+						} else {
+							mTaskSelector.selectNow();
+						}
+						mTaskSelector.selectedKeys().clear();
+						receive();
+					} else if (waitMs > 0) {
+						synchronized (mSync) {
+							if (mIsRunning) {
+								mSync.wait(waitMs);
+							}
+						}
+					}
+					output();
+				}
+			} catch (final InterruptedException e) {
+				// ignore
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			} finally {
+				mIsRunning = false;
+				if (mTaskSelector != null) {
+					try {
+						mTaskSelector.close();
+					} catch (final IOException e) {
+						// ignore
+					}
+				}
+				synchronized (mSync) {
+					if (mSelector == mTaskSelector) {
+						mSelector = null;
+					}
+				}
+			}
+			if (DEBUG) Log.v(TAG, "ReceiverTask#run:finished");
+		}
+
+		/**
+		 * UdpSocketから受信できるだけ受信する
+		 * @throws IOException
+		 */
+		private void receive() throws IOException {
+			final UdpSocket socket = mSocket;
+			if (socket == null) return;
+			for ( ; mIsRunning ; ) {
+				mBuffer.clear();
+				if (socket.receive(mBuffer) < 0) {
+					break;
+				}
+				mBuffer.flip();
+				synchronized (mSync) {
+					internalOffer(mBuffer, SystemClock.elapsedRealtime());
+				}
+			}
+		}
+
+		/**
+		 * 次にジッターバッファからパケットを取り出せるようになるまでの時間を取得
+		 * @return
+		 */
+		private long getWaitTimeMs() {
+			long result = MAX_WAIT_MS;
+			synchronized (mSync) {
+				final long now = SystemClock.elapsedRealtime();
+				for (final Stream stream: mStreamList) {
+					final long wait = stream.jitterBuffer.getWaitTimeMs(now);
+					if ((wait >= 0) && (wait < result)) {
+						result = wait;
+					}
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * ジッターバッファから取り出せるパケットを全て取り出してフレームデータを復元する
+		 */
+		private void output() {
+			synchronized (mSync) {
+				mWork.clear();
+				mWork.addAll(mStreamList);
+			}
+			for (final Stream stream: mWork) {
+				for ( ; ; ) {
+					final ByteBuffer packet;
+					final boolean reset;
+					synchronized (mSync) {
+						packet = stream.jitterBuffer.poll(SystemClock.elapsedRealtime());
+						reset = stream.requestReset;
+						stream.requestReset = false;
+					}
+					if (reset) {
+						stream.depacketizer.reset();
+					}
+					if (packet == null) break;
+					// 取り出したパケットは次に#pollを呼ぶまで有効なのでロックを外してから復元する
+					try {
+						stream.depacketizer.push(packet, stream);
+					} catch (final Exception e) {
+						Log.w(TAG, e);
+					}
+				}
+			}
+		}
+	}
+}
@@ -26,6 +26,7 @@ import androidx.annotation.Nullable;
 
 /**
  * 音量取得のためのヘルパークラス
+ * 16ビットPCM以外の音声データやスペクトルが必要な場合はAudioAnalyzerを使うこと
  */
 public class SoundCheck {
 
@@ -0,0 +1,814 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * h.264/AVCのSPS, h.265/HEVCのVPS/SPSを解析して
+ * 解像度, クロッピング, プロファイル/レベル, VUIのフレームレート/色情報を取得するためのヘルパークラス
+ * 解析結果からMediaFormatを生成できるのでコーデックを通さなくても正確なMediaFormatを得ることができる
+ */
+public class SpsParser {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = SpsParser.class.getSimpleName();
+
+	/**
+	 * 解析結果保持用のクラス
+	 * 値が見つからなかった項目は0(色情報は-1)
+	 */
+	public static class SpsInfo {
+		public boolean isHevc;
+		/**
+		 * profile_idc(h.264)/general_profile_idc(h.265)
+		 */
+		public int profileIdc;
+		/**
+		 * h.264のconstraint_set0-5フラグ
+		 */
+		public int constraintFlags;
+		/**
+		 * level_idc(h.264)/general_level_idc(h.265)
+		 */
+		public int levelIdc;
+		/**
+		 * h.265のgeneral_tier_flag
+		 */
+		public boolean highTier;
+		public int chromaFormatIdc = 1;
+		public int bitDepthLuma = 8;
+		public int bitDepthChroma = 8;
+		/**
+		 * クロッピング前の幅/高さ
+		 */
+		public int codedWidth, codedHeight;
+		/**
+		 * クロッピング量[ピクセル]
+		 */
+		public int cropLeft, cropRight, cropTop, cropBottom;
+		/**
+		 * クロッピング後の幅/高さ(表示サイズ)
+		 */
+		public int width, height;
+		/**
+		 * サンプルアスペクト比, 未指定なら0
+		 */
+		public int sarWidth, sarHeight;
+		/**
+		 * VUIのタイミング情報から計算したフレームレート, 未指定なら0
+		 */
+		public float frameRate;
+		/**
+		 * VUIの色情報, 未指定なら-1
+		 */
+		public int colourPrimaries = -1, transferCharacteristics = -1, matrixCoefficients = -1;
+		public boolean fullRange;
+		public boolean hasVideoSignalType;
+
+		/**
+		 * MediaCodecInfo.CodecProfileLevelのプロファイル定数を取得
+		 * @return 対応する定数が無ければ0
+		 */
+		@SuppressLint("InlinedApi")
+		public int getProfile() {
+			if (isHevc) {
+				switch (profileIdc) {
+				case 1:	return MediaCodecInfo.CodecProfileLevel.HEVCProfileMain;
+				case 2:
+					return transferCharacteristics == 16
+						? MediaCodecInfo.CodecProfileLevel.HEVCProfileMain10HDR10
+						: MediaCodecInfo.CodecProfileLevel.HEVCProfileMain10;
+				case 3:	return MediaCodecInfo.CodecProfileLevel.HEVCProfileMainStill;
+				default:	return 0;
+				}
+			} else {
+				switch (profileIdc) {
+				case 66:
+					return (constraintFlags & 0x40) != 0	// constraint_set1_flag
+						? MediaCodecInfo.CodecProfileLevel.AVCProfileConstrainedBaseline
+						: MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline;
+				case 77:	return MediaCodecInfo.CodecProfileLevel.AVCProfileMain;
+				case 88:	return MediaCodecInfo.CodecProfileLevel.AVCProfileExtended;
+				case 100:
+					return (constraintFlags & 0x0c) == 0x0c	// constraint_set4/5_flag
+						? MediaCodecInfo.CodecProfileLevel.AVCProfileConstrainedHigh
+						: MediaCodecInfo.CodecProfileLevel.AVCProfileHigh;
+				case 110:	return MediaCodecInfo.CodecProfileLevel.AVCProfileHigh10;
+				case 122:	return MediaCodecInfo.CodecProfileLevel.AVCProfileHigh422;
+				case 244:	return MediaCodecInfo.CodecProfileLevel.AVCProfileHigh444;
+				default:	return 0;
+				}
+			}
+		}
+
+		/**
+		 * MediaCodecInfo.CodecProfileLevelのレベル定数を取得
+		 * @return 対応する定数が無ければ0
+		 */
+		@SuppressLint("InlinedApi")
+		public int getLevel() {
+			if (isHevc) {
+				final int level;
+				switch (levelIdc) {
+				case 30:	level = MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel1; break;
+				case 60:	level = MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel2; break;
+				case 63:	level = MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel21; break;
+				case 90:	level = MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel3; break;
+				case 93:	level = MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel31; break;
+				case 120:	level = MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel4; break;
+				case 123:	level = MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel41; break;
+				case 150:	level = MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel5; break;
+				case 153:	level = MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel51; break;
+				case 156:	level = MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel52; break;
+				case 180:	level = MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel6; break;
+				case 183:	level = MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel61; break;
+				case 186:	level = MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel62; break;
+				default:	return 0;
+				}
+				// HighTierの定数は同じレベルのMainTierの定数の2倍
+				return highTier ? level << 1 : level;
+			} else {
+				switch (levelIdc) {
+				case 9:		return MediaCodecInfo.CodecProfileLevel.AVCLevel1b;
+				case 10:	return MediaCodecInfo.CodecProfileLevel.AVCLevel1;
+				case 11:
+					// Baseline/Main/Extendedでconstraint_set3_flagがセットされていればLevel1b
+					return ((profileIdc == 66) || (profileIdc == 77) || (profileIdc == 88))
+						&& ((constraintFlags & 0x10) != 0)
+						? MediaCodecInfo.CodecProfileLevel.AVCLevel1b
+						: MediaCodecInfo.CodecProfileLevel.AVCLevel11;
+				case 12:	return MediaCodecInfo.CodecProfileLevel.AVCLevel12;
+				case 13:	return MediaCodecInfo.CodecProfileLevel.AVCLevel13;
+				case 20:	return MediaCodecInfo.CodecProfileLevel.AVCLevel2;
+				case 21:	return MediaCodecInfo.CodecProfileLevel.AVCLevel21;
+				case 22:	return MediaCodecInfo.CodecProfileLevel.AVCLevel22;
+				case 30:	return MediaCodecInfo.CodecProfileLevel.AVCLevel3;
+				case 31:	return MediaCodecInfo.CodecProfileLevel.AVCLevel31;
+				case 32:	return MediaCodecInfo.CodecProfileLevel.AVCLevel32;
+				case 40:	return MediaCodecInfo.CodecProfileLevel.AVCLevel4;
+				case 41:	return MediaCodecInfo.CodecProfileLevel.AVCLevel41;
+				case 42:	return MediaCodecInfo.CodecProfileLevel.AVCLevel42;
+				case 50:	return MediaCodecInfo.CodecProfileLevel.AVCLevel5;
+				case 51:	return MediaCodecInfo.CodecProfileLevel.AVCLevel51;
+				case 52:	return MediaCodecInfo.CodecProfileLevel.AVCLevel52;
+				case 60:	return MediaCodecInfo.CodecProfileLevel.AVCLevel6;
+				case 61:	return MediaCodecInfo.CodecProfileLevel.AVCLevel61;
+				case 62:	return MediaCodecInfo.CodecProfileLevel.AVCLevel62;
+				default:	return 0;
+				}
+			}
+		}
+
+		/**
+		 * MediaFormatのCOLOR_STANDARD_XXX定数を取得
+		 * @return 対応する定数が無ければ-1
+		 */
+		@SuppressLint("InlinedApi")
+		public int getColorStandard() {
+			switch (colourPrimaries) {
+			case 1:		return MediaFormat.COLOR_STANDARD_BT709;
+			case 5:		return MediaFormat.COLOR_STANDARD_BT601_PAL;
+			case 6:
+			case 7:		return MediaFormat.COLOR_STANDARD_BT601_NTSC;
+			case 9:		return MediaFormat.COLOR_STANDARD_BT2020;
+			default:	return -1;
+			}
+		}
+
+		/**
+		 * MediaFormatのCOLOR_TRANSFER_XXX定数を取得
+		 * @return 対応する定数が無ければ-1
+		 */
+		@SuppressLint("InlinedApi")
+		public int getColorTransfer() {
+			switch (transferCharacteristics) {
+			case 1:
+			case 6:
+			case 14:
+			case 15:	return MediaFormat.COLOR_TRANSFER_SDR_VIDEO;
+			case 8:		return MediaFormat.COLOR_TRANSFER_LINEAR;
+			case 16:	return MediaFormat.COLOR_TRANSFER_ST2084;
+			case 18:	return MediaFormat.COLOR_TRANSFER_HLG;
+			default:	return -1;
+			}
+		}
+
+		/**
+		 * 解析結果をMediaFormatへセットする
+		 * @param format
+		 */
+		@SuppressLint("InlinedApi")
+		public void apply(@NonNull final MediaFormat format) {
+			if ((width > 0) && (height > 0)) {
+				format.setInteger(MediaFormat.KEY_WIDTH, width);
+				format.setInteger(MediaFormat.KEY_HEIGHT, height);
+			}
+			if (cropLeft + cropRight + cropTop + cropBottom > 0) {
+				format.setInteger(MediaFormat.KEY_CROP_LEFT, cropLeft);
+				format.setInteger(MediaFormat.KEY_CROP_TOP, cropTop);
+				format.setInteger(MediaFormat.KEY_CROP_RIGHT, codedWidth - cropRight - 1);
+				format.setInteger(MediaFormat.KEY_CROP_BOTTOM, codedHeight - cropBottom - 1);
+			}
+			final int profile = getProfile();
+			final int level = getLevel();
+			if (profile != 0) {
+				format.setInteger(MediaFormat.KEY_PROFILE, profile);
+				if (level != 0) {
+					format.setInteger(MediaFormat.KEY_LEVEL, level);
+				}
+			}
+			if (frameRate > 0) {
+				format.setInteger(MediaFormat.KEY_FRAME_RATE, Math.round(frameRate));
+			}
+			if (hasVideoSignalType) {
+				format.setInteger(MediaFormat.KEY_COLOR_RANGE,
+					fullRange ? MediaFormat.COLOR_RANGE_FULL : MediaFormat.COLOR_RANGE_LIMITED);
+			}
+			final int standard = getColorStandard();
+			if (standard >= 0) {
+				format.setInteger(MediaFormat.KEY_COLOR_STANDARD, standard);
+			}
+			final int transfer = getColorTransfer();
+			if (transfer >= 0) {
+				format.setInteger(MediaFormat.KEY_COLOR_TRANSFER, transfer);
+			}
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+				"SpsInfo{%s,profile=%d,level=%d,%dx%d(coded %dx%d),chroma=%d,bitDepth=%d/%d,fps=%.3f,color=%d/%d/%d,fullRange=%b}",
+				isHevc ? "hevc" : "avc", profileIdc, levelIdc, width, height, codedWidth, codedHeight,
+				chromaFormatIdc, bitDepthLuma, bitDepthChroma, frameRate,
+				colourPrimaries, transferCharacteristics, matrixCoefficients, fullRange);
+		}
+	}
+
+	private SpsParser() {
+		// インスタンス化をエラーにするためにデフォルトコンストラクタをprivateに
+	}
+
+	/**
+	 * AnnexB形式のcodec specific data(csd-0, csd-1)からSPS(h.265の場合はVPSも)を探して解析する
+	 * @param isHevc
+	 * @param csd0
+	 * @param csd1 nullable
+	 * @return SPSが見つからないか解析できなければnull
+	 */
+	@Nullable
+	public static SpsInfo parse(final boolean isHevc,
+		@NonNull final ByteBuffer csd0, @Nullable final ByteBuffer csd1) {
+
+		final SpsInfo result = new SpsInfo();
+		final boolean found = parse(isHevc, csd0, csd0.position(), csd0.remaining(), result)
+			|| ((csd1 != null) && parse(isHevc, csd1, csd1.position(), csd1.remaining(), result));
+		return found ? result : null;
+	}
+
+	/**
+	 * AnnexB形式のデータの指定した範囲からSPS(h.265の場合はVPSも)を探して解析する
+	 * @param isHevc
+	 * @param buffer
+	 * @param offset ByteBuffer先頭からの絶対位置
+	 * @param size
+	 * @param info 解析結果
+	 * @return SPSを解析できればtrue
+	 */
+	public static boolean parse(final boolean isHevc,
+		@NonNull final ByteBuffer buffer, final int offset, final int size,
+		@NonNull final SpsInfo info) {
+
+		final NalUnitScanner scanner = new NalUnitScanner(isHevc).reset(buffer, offset, size);
+		boolean result = false;
+		float vpsFrameRate = 0;
+		while (scanner.next()) {
+			try {
+				if (isHevc && scanner.isVps()) {
+					vpsFrameRate = parseHevcVpsFrameRate(buffer, scanner.getPayloadOffset(), scanner.getEnd());
+				} else if (!result && scanner.isSps()) {
+					if (isHevc) {
+						parseHevcSps(buffer, scanner.getPayloadOffset(), scanner.getEnd(), info);
+					} else {
+						parseAvcSps(buffer, scanner.getPayloadOffset(), scanner.getEnd(), info);
+					}
+					result = true;
+				}
+			} catch (final IllegalArgumentException e) {
+				if (DEBUG) Log.w(TAG, e);
+			}
+		}
+		scanner.clear();
+		if (result && (info.frameRate <= 0) && (vpsFrameRate > 0)) {
+			info.frameRate = vpsFrameRate;
+		}
+		return result;
+	}
+
+	/**
+	 * AnnexB形式のcodec specific dataからMediaFormatを生成する
+	 * @param mime
+	 * @param csd0
+	 * @param csd1 nullable
+	 * @return SPSが見つからないか解析できなければnull
+	 */
+	@Nullable
+	public static MediaFormat createVideoFormat(@NonNull final String mime,
+		@NonNull final ByteBuffer csd0, @Nullable final ByteBuffer csd1) {
+
+		final SpsInfo info = parse(NalUnitScanner.isHevc(mime), csd0, csd1);
+		if ((info != null) && (info.width > 0) && (info.height > 0)) {
+			final MediaFormat result = MediaFormat.createVideoFormat(mime, info.width, info.height);
+			info.apply(result);
+			result.setByteBuffer("csd-0", csd0);
+			if (csd1 != null) {
+				result.setByteBuffer("csd-1", csd1);
+			}
+			return result;
+		}
+		return null;
+	}
+
+	/**
+	 * AnnexB形式のcodec specific dataがh.265/HEVCのものかどうかを先頭のNALユニットヘッダーから推定する
+	 * h.264のSPS/PPS(0x67/0x68等)とh.265のVPS/SPS/PPS(0x40/0x42/0x44)はNALユニットヘッダーが重ならない
+	 * @param buffer
+	 * @param offset ByteBuffer先頭からの絶対位置
+	 * @param size
+	 * @return
+	 */
+	public static boolean isHevcCsd(@NonNull final ByteBuffer buffer, final int offset, final int size) {
+		final NalUnitScanner scanner = new NalUnitScanner(false).reset(buffer, offset, size);
+		boolean result = false;
+		if (scanner.next() && !scanner.isParameterSet()) {
+			final int type = (buffer.get(scanner.getPayloadOffset()) >>> 1) & 0x3f;
+			result = (type >= NalUnitScanner.HEVC_NAL_VPS) && (type <= NalUnitScanner.HEVC_NAL_PPS);
+		}
+		scanner.clear();
+		return result;
+	}
+
+	/**
+	 * AnnexB形式のデータの指定した範囲からVPS/SPS/PPSを取り出してMediaFormatを生成する
+	 * h.264/AVCの場合はSPSをcsd-0, PPSをcsd-1へ, h.265/HEVCの場合はVPS/SPS/PPSをまとめてcsd-0へセットする
+	 * SPSを解析できれば解像度等はSPSの値を使う
+	 * @param mime video/avcまたはvideo/hevc, nullなら#isHevcCsdで推定する
+	 * @param buffer
+	 * @param offset ByteBuffer先頭からの絶対位置
+	 * @param size
+	 * @param width SPSを解析できなかった時の幅
+	 * @param height SPSを解析できなかった時の高さ
+	 * @return SPS/PPSが見つからなければnull
+	 */
+	@Nullable
+	public static MediaFormat createVideoFormat(@Nullable final String mime,
+		@NonNull final ByteBuffer buffer, final int offset, final int size,
+		final int width, final int height) {
+
+		final boolean isHevc = mime != null
+			? NalUnitScanner.isHevc(mime) : isHevcCsd(buffer, offset, size);
+		final NalUnitScanner scanner = new NalUnitScanner(isHevc).reset(buffer, offset, size);
+		int csd0Size = 0, csd1Size = 0;
+		while (scanner.next()) {
+			if (scanner.isParameterSet()) {
+				final int sz = scanner.getEnd() - scanner.getStart();
+				if (!isHevc && scanner.isPps()) {
+					csd1Size += sz;
+				} else {
+					csd0Size += sz;
+				}
+			}
+		}
+		if ((csd0Size == 0) || (!isHevc && (csd1Size == 0))) {
+			scanner.clear();
+			return null;
+		}
+		final ByteBuffer csd0 = ByteBuffer.allocateDirect(csd0Size).order(ByteOrder.nativeOrder());
+		final ByteBuffer csd1 = isHevc ? null
+			: ByteBuffer.allocateDirect(csd1Size).order(ByteOrder.nativeOrder());
+		final ByteBuffer src = buffer.duplicate();
+		scanner.reset(buffer, offset, size);
+		while (scanner.next()) {
+			if (scanner.isParameterSet()) {
+				src.limit(scanner.getEnd()).position(scanner.getStart());
+				if ((csd1 != null) && scanner.isPps()) {
+					csd1.put(src);
+				} else {
+					csd0.put(src);
+				}
+				src.limit(src.capacity());
+			}
+		}
+		scanner.clear();
+		csd0.flip();
+		if (csd1 != null) {
+			csd1.flip();
+		}
+		final MediaFormat result = MediaFormat.createVideoFormat(
+			isHevc ? NalUnitScanner.MIME_VIDEO_HEVC : MediaCodecUtils.MIME_VIDEO_AVC, width, height);
+		final SpsInfo info = parse(isHevc, csd0, csd1);
+		if (info != null) {
+			info.apply(result);
+		}
+		result.setByteBuffer("csd-0", csd0);
+		if (csd1 != null) {
+			result.setByteBuffer("csd-1", csd1);
+		}
+		return result;
+	}
+
+	/**
+	 * h.264/AVCのSPSを解析する
+	 * @param buffer
+	 * @param offset NALユニットヘッダーの位置(ByteBuffer先頭からの絶対位置)
+	 * @param end NALユニットの終端位置(ByteBuffer先頭からの絶対位置, この位置は含まない)
+	 * @param info 解析結果
+	 * @throws IllegalArgumentException 解析できなかった
+	 */
+	public static void parseAvcSps(@NonNull final ByteBuffer buffer,
+		final int offset, final int end, @NonNull final SpsInfo info)
+			throws IllegalArgumentException {
+
+		// NALユニットヘッダー(1バイト)を読み飛ばす
+		final ExpGolombReader reader = new ExpGolombReader(buffer, offset + 1, end);
+		info.isHevc = false;
+		info.profileIdc = reader.readBits(8);
+		info.constraintFlags = reader.readBits(8);
+		info.levelIdc = reader.readBits(8);
+		reader.readUE();	// seq_parameter_set_id
+		boolean separateColourPlane = false;
+		info.chromaFormatIdc = 1;
+		info.bitDepthLuma = info.bitDepthChroma = 8;
+		switch (info.profileIdc) {
+		case 100: case 110: case 122: case 244: case 44:
+		case 83: case 86: case 118: case 128: case 138:
+		case 139: case 134: case 135:
+			info.chromaFormatIdc = reader.readUE();
+			if (info.chromaFormatIdc == 3) {
+				separateColourPlane = reader.readFlag();
+			}
+			info.bitDepthLuma = reader.readUE() + 8;
+			info.bitDepthChroma = reader.readUE() + 8;
+			reader.readBit();	// qpprime_y_zero_transform_bypass_flag
+			if (reader.readFlag()) {	// seq_scaling_matrix_present_flag
+				final int n = info.chromaFormatIdc != 3 ? 8 : 12;
+				for (int i = 0; i < n; i++) {
+					if (reader.readFlag()) {	// seq_scaling_list_present_flag
+						skipAvcScalingList(reader, i < 6 ? 16 : 64);
+					}
+				}
+			}
+			break;
+		default:
+			break;
+		}
+		reader.readUE();	// log2_max_frame_num_minus4
+		final int picOrderCntType = reader.readUE();
+		if (picOrderCntType == 0) {
+			reader.readUE();	// log2_max_pic_order_cnt_lsb_minus4
+		} else if (picOrderCntType == 1) {
+			reader.readBit();	// delta_pic_order_always_zero_flag
+			reader.readSE();	// offset_for_non_ref_pic
+			reader.readSE();	// offset_for_top_to_bottom_field
+			final int n = reader.readUE();
+			for (int i = 0; i < n; i++) {
+				reader.readSE();	// offset_for_ref_frame
+			}
+		}
+		reader.readUE();	// max_num_ref_frames
+		reader.readBit();	// gaps_in_frame_num_value_allowed_flag
+		final int widthInMbs = reader.readUE() + 1;
+		final int heightInMapUnits = reader.readUE() + 1;
+		final boolean frameMbsOnly = reader.readFlag();
+		if (!frameMbsOnly) {
+			reader.readBit();	// mb_adaptive_frame_field_flag
+		}
+		reader.readBit();	// direct_8x8_inference_flag
+		info.codedWidth = widthInMbs * 16;
+		info.codedHeight = (frameMbsOnly ? 1 : 2) * heightInMapUnits * 16;
+		info.cropLeft = info.cropRight = info.cropTop = info.cropBottom = 0;
+		if (reader.readFlag()) {	// frame_cropping_flag
+			final int chromaArrayType = separateColourPlane ? 0 : info.chromaFormatIdc;
+			final int cropUnitX, cropUnitY;
+			if (chromaArrayType == 0) {
+				cropUnitX = 1;
+				cropUnitY = frameMbsOnly ? 1 : 2;
+			} else {
+				final int subWidthC = chromaArrayType == 3 ? 1 : 2;
+				final int subHeightC = chromaArrayType == 1 ? 2 : 1;
+				cropUnitX = subWidthC;
+				cropUnitY = subHeightC * (frameMbsOnly ? 1 : 2);
+			}
+			info.cropLeft = reader.readUE() * cropUnitX;
+			info.cropRight = reader.readUE() * cropUnitX;
+			info.cropTop = reader.readUE() * cropUnitY;
+			info.cropBottom = reader.readUE() * cropUnitY;
+		}
+		info.width = info.codedWidth - info.cropLeft - info.cropRight;
+		info.height = info.codedHeight - info.cropTop - info.cropBottom;
+		if (reader.readFlag()) {	// vui_parameters_present_flag
+			if (parseVuiCommon(reader, info)) {	// chroma_loc_info_present_flag
+				reader.readUE();	// chroma_sample_loc_type_top_field
+				reader.readUE();	// chroma_sample_loc_type_bottom_field
+			}
+			if (reader.readFlag()) {	// timing_info_present_flag
+				final long numUnitsInTick = reader.readUInt32();
+				final long timeScale = reader.readUInt32();
+				if (numUnitsInTick > 0) {
+					// h.264はフィールド単位なので2で割る
+					info.frameRate = (float)(timeScale / (2.0 * numUnitsInTick));
+				}
+			}
+		}
+	}
+
+	/**
+	 * h.265/HEVCのSPSを解析する
+	 * @param buffer
+	 * @param offset NALユニットヘッダーの位置(ByteBuffer先頭からの絶対位置)
+	 * @param end NALユニットの終端位置(ByteBuffer先頭からの絶対位置, この位置は含まない)
+	 * @param info 解析結果
+	 * @throws IllegalArgumentException 解析できなかった
+	 */
+	public static void parseHevcSps(@NonNull final ByteBuffer buffer,
+		final int offset, final int end, @NonNull final SpsInfo info)
+			throws IllegalArgumentException {
+
+		// NALユニットヘッダー(2バイト)を読み飛ばす
+		final ExpGolombReader reader = new ExpGolombReader(buffer, offset + 2, end);
+		info.isHevc = true;
+		reader.readBits(4);	// sps_video_parameter_set_id
+		final int maxSubLayersMinus1 = reader.readBits(3);
+		reader.readBit();	// sps_temporal_id_nesting_flag
+		parseHevcProfileTierLevel(reader, maxSubLayersMinus1, info);
+		reader.readUE();	// sps_seq_parameter_set_id
+		info.chromaFormatIdc = reader.readUE();
+		if (info.chromaFormatIdc == 3) {
+			reader.readBit();	// separate_colour_plane_flag
+		}
+		info.codedWidth = reader.readUE();
+		info.codedHeight = reader.readUE();
+		info.cropLeft = info.cropRight = info.cropTop = info.cropBottom = 0;
+		if (reader.readFlag()) {	// conformance_window_flag
+			final int subWidthC = (info.chromaFormatIdc == 1) || (info.chromaFormatIdc == 2) ? 2 : 1;
+			final int subHeightC = info.chromaFormatIdc == 1 ? 2 : 1;
+			info.cropLeft = reader.readUE() * subWidthC;
+			info.cropRight = reader.readUE() * subWidthC;
+			info.cropTop = reader.readUE() * subHeightC;
+			info.cropBottom = reader.readUE() * subHeightC;
+		}
+		info.width = info.codedWidth - info.cropLeft - info.cropRight;
+		info.height = info.codedHeight - info.cropTop - info.cropBottom;
+		info.bitDepthLuma = reader.readUE() + 8;
+		info.bitDepthChroma = reader.readUE() + 8;
+		final int log2MaxPocLsb = reader.readUE() + 4;
+		final boolean subLayerOrderingInfoPresent = reader.readFlag();
+		for (int i = subLayerOrderingInfoPresent ? 0 : maxSubLayersMinus1; i <= maxSubLayersMinus1; i++) {
+			reader.readUE();	// sps_max_dec_pic_buffering_minus1
+			reader.readUE();	// sps_max_num_reorder_pics
+			reader.readUE();	// sps_max_latency_increase_plus1
+		}
+		reader.readUE();	// log2_min_luma_coding_block_size_minus3
+		reader.readUE();	// log2_diff_max_min_luma_coding_block_size
+		reader.readUE();	// log2_min_luma_transform_block_size_minus2
+		reader.readUE();	// log2_diff_max_min_luma_transform_block_size
+		reader.readUE();	// max_transform_hierarchy_depth_inter
+		reader.readUE();	// max_transform_hierarchy_depth_intra
+		if (reader.readFlag()) {	// scaling_list_enabled_flag
+			if (reader.readFlag()) {	// sps_scaling_list_data_present_flag
+				skipHevcScalingListData(reader);
+			}
+		}
+		reader.readBit();	// amp_enabled_flag
+		reader.readBit();	// sample_adaptive_offset_enabled_flag
+		if (reader.readFlag()) {	// pcm_enabled_flag
+			reader.readBits(4);	// pcm_sample_bit_depth_luma_minus1
+			reader.readBits(4);	// pcm_sample_bit_depth_chroma_minus1
+			reader.readUE();	// log2_min_pcm_luma_coding_block_size_minus3
+			reader.readUE();	// log2_diff_max_min_pcm_luma_coding_block_size
+			reader.readBit();	// pcm_loop_filter_disabled_flag
+		}
+		skipHevcShortTermRefPicSets(reader);
+		if (reader.readFlag()) {	// long_term_ref_pics_present_flag
+			final int n = reader.readUE();
+			for (int i = 0; i < n; i++) {
+				reader.skipBits(log2MaxPocLsb);	// lt_ref_pic_poc_lsb_sps
+				reader.readBit();	// used_by_curr_pic_lt_sps_flag
+			}
+		}
+		reader.readBit();	// sps_temporal_mvp_enabled_flag
+		reader.readBit();	// strong_intra_smoothing_enabled_flag
+		if (reader.readFlag()) {	// vui_parameters_present_flag
+			if (parseVuiCommon(reader, info)) {	// chroma_loc_info_present_flag
+				reader.readUE();	// chroma_sample_loc_type_top_field
+				reader.readUE();	// chroma_sample_loc_type_bottom_field
+			}
+			reader.readBit();	// neutral_chroma_indication_flag
+			reader.readBit();	// field_seq_flag
+			reader.readBit();	// frame_field_info_present_flag
+			if (reader.readFlag()) {	// default_display_window_flag
+				reader.readUE();
+				reader.readUE();
+				reader.readUE();
+				reader.readUE();
+			}
+			if (reader.readFlag()) {	// vui_timing_info_present_flag
+				final long numUnitsInTick = reader.readUInt32();
+				final long timeScale = reader.readUInt32();
+				if (numUnitsInTick > 0) {
+					info.frameRate = (float)(timeScale / (double)numUnitsInTick);
+				}
+			}
+		}
+	}
+
+	/**
+	 * h.265/HEVCのVPSのタイミング情報からフレームレートを取得する
+	 * @param buffer
+	 * @param offset NALユニットヘッダーの位置(ByteBuffer先頭からの絶対位置)
+	 * @param end NALユニットの終端位置(ByteBuffer先頭からの絶対位置, この位置は含まない)
+	 * @return タイミング情報が無ければ0
+	 * @throws IllegalArgumentException 解析できなかった
+	 */
+	public static float parseHevcVpsFrameRate(@NonNull final ByteBuffer buffer,
+		final int offset, final int end) throws IllegalArgumentException {
+
+		final ExpGolombReader reader = new ExpGolombReader(buffer, offset + 2, end);
+		reader.readBits(4);	// vps_video_parameter_set_id
+		reader.readBits(2);	// vps_base_layer_internal_flag, vps_base_layer_available_flag
+		reader.readBits(6);	// vps_max_layers_minus1
+		final int maxSubLayersMinus1 = reader.readBits(3);
+		reader.readBit();	// vps_temporal_id_nesting_flag
+		reader.readBits(16);	// vps_reserved_0xffff_16bits
+		parseHevcProfileTierLevel(reader, maxSubLayersMinus1, new SpsInfo());
+		final boolean subLayerOrderingInfoPresent = reader.readFlag();
+		for (int i = subLayerOrderingInfoPresent ? 0 : maxSubLayersMinus1; i <= maxSubLayersMinus1; i++) {
+			reader.readUE();
+			reader.readUE();
+			reader.readUE();
+		}
+		final int maxLayerId = reader.readBits(6);
+		final int numLayerSetsMinus1 = reader.readUE();
+		for (int i = 1; i <= numLayerSetsMinus1; i++) {
+			reader.skipBits(maxLayerId + 1);	// layer_id_included_flag
+		}
+		if (reader.readFlag()) {	// vps_timing_info_present_flag
+			final long numUnitsInTick = reader.readUInt32();
+			final long timeScale = reader.readUInt32();
+			if (numUnitsInTick > 0) {
+				return (float)(timeScale / (double)numUnitsInTick);
+			}
+		}
+		return 0;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * h.264/h.265で共通のVUIの先頭部分(aspect_ratio_info〜chroma_loc_info_present_flag)を解析する
+	 * @param reader
+	 * @param info
+	 * @return chroma_loc_info_present_flag
+	 */
+	private static boolean parseVuiCommon(@NonNull final ExpGolombReader reader,
+		@NonNull final SpsInfo info) {
+
+		if (reader.readFlag()) {	// aspect_ratio_info_present_flag
+			final int aspectRatioIdc = reader.readBits(8);
+			if (aspectRatioIdc == 255) {	// Extended_SAR
+				info.sarWidth = reader.readBits(16);
+				info.sarHeight = reader.readBits(16);
+			} else if (aspectRatioIdc == 1) {
+				info.sarWidth = info.sarHeight = 1;
+			}
+		}
+		if (reader.readFlag()) {	// overscan_info_present_flag
+			reader.readBit();	// overscan_appropriate_flag
+		}
+		if (reader.readFlag()) {	// video_signal_type_present_flag
+			info.hasVideoSignalType = true;
+			reader.readBits(3);	// video_format
+			info.fullRange = reader.readFlag();
+			if (reader.readFlag()) {	// colour_description_present_flag
+				info.colourPrimaries = reader.readBits(8);
+				info.transferCharacteristics = reader.readBits(8);
+				info.matrixCoefficients = reader.readBits(8);
+			}
+		}
+		return reader.readFlag();	// chroma_loc_info_present_flag
+	}
+
+	private static void skipAvcScalingList(@NonNull final ExpGolombReader reader, final int size) {
+		int lastScale = 8;
+		int nextScale = 8;
+		for (int j = 0; j < size; j++) {
+			if (nextScale != 0) {
+				nextScale = (lastScale + reader.readSE() + 256) % 256;
+			}
+			lastScale = (nextScale == 0) ? lastScale : nextScale;
+		}
+	}
+
+	private static void parseHevcProfileTierLevel(@NonNull final ExpGolombReader reader,
+		final int maxSubLayersMinus1, @NonNull final SpsInfo info) {
+
+		reader.readBits(2);	// general_profile_space
+		info.highTier = reader.readFlag();
+		info.profileIdc = reader.readBits(5);
+		reader.skipBits(32);	// general_profile_compatibility_flag
+		reader.skipBits(48);	// general_progressive_source_flag〜general_inbld_flag/reserved
+		info.levelIdc = reader.readBits(8);
+		final boolean[] profilePresent = new boolean[maxSubLayersMinus1];
+		final boolean[] levelPresent = new boolean[maxSubLayersMinus1];
+		for (int i = 0; i < maxSubLayersMinus1; i++) {
+			profilePresent[i] = reader.readFlag();
+			levelPresent[i] = reader.readFlag();
+		}
+		if (maxSubLayersMinus1 > 0) {
+			reader.skipBits(2 * (8 - maxSubLayersMinus1));	// reserved_zero_2bits
+		}
+		for (int i = 0; i < maxSubLayersMinus1; i++) {
+			if (profilePresent[i]) {
+				reader.skipBits(88);
+			}
+			if (levelPresent[i]) {
+				reader.skipBits(8);
+			}
+		}
+	}
+
+	private static void skipHevcScalingListData(@NonNull final ExpGolombReader reader) {
+		for (int sizeId = 0; sizeId < 4; sizeId++) {
+			for (int matrixId = 0; matrixId < 6; matrixId += (sizeId == 3) ? 3 : 1) {
+				if (!reader.readFlag()) {	// scaling_list_pred_mode_flag
+					reader.readUE();	// scaling_list_pred_matrix_id_delta
+				} else {
+					final int coefNum = Math.min(64, 1 << (4 + (sizeId << 1)));
+					if (sizeId > 1) {
+						reader.readSE();	// scaling_list_dc_coef_minus8
+					}
+					for (int i = 0; i < coefNum; i++) {
+						reader.readSE();	// scaling_list_delta_coef
+					}
+				}
+			}
+		}
+	}
+
+	private static void skipHevcShortTermRefPicSets(@NonNull final ExpGolombReader reader) {
+		final int numSets = reader.readUE();	// num_short_term_ref_pic_sets
+		if (numSets > 64) {
+			throw new IllegalArgumentException("unexpected num_short_term_ref_pic_sets," + numSets);
+		}
+		final int[] numDeltaPocs = new int[numSets];
+		for (int idx = 0; idx < numSets; idx++) {
+			final boolean interRefPicSetPrediction = (idx != 0) && reader.readFlag();
+			if (interRefPicSetPrediction) {
+				reader.readBit();	// delta_rps_sign
+				reader.readUE();	// abs_delta_rps_minus1
+				int n = 0;
+				for (int j = 0; j <= numDeltaPocs[idx - 1]; j++) {
+					final boolean usedByCurrPic = reader.readFlag();
+					final boolean useDelta = usedByCurrPic || reader.readFlag();
+					if (useDelta) {
+						n++;
+					}
+				}
+				numDeltaPocs[idx] = n;
+			} else {
+				final int numNegative = reader.readUE();
+				final int numPositive = reader.readUE();
+				for (int i = 0; i < numNegative + numPositive; i++) {
+					reader.readUE();	// delta_poc_s0/s1_minus1
+					reader.readBit();	// used_by_curr_pic_s0/s1_flag
+				}
+				numDeltaPocs[idx] = numNegative + numPositive;
+			}
+		}
+	}
+}
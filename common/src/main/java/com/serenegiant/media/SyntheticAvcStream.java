@@ -0,0 +1,453 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+
+import com.serenegiant.utils.BufferHelper;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 実機のMediaCodecを使わずにh.264/AVCエンコーダーの出力を模擬するためのフレーム生成クラス
+ * 最初にSPS/PPSを含むcodec specific data(BUFFER_FLAG_CODEC_CONFIG)を生成し、その後は
+ * 指定したキーフレーム間隔でIDRフレームとPフレームをAnnex-B形式で生成する
+ * フレームサイズはビットレートとフレームレートから計算したGOP単位の予算を
+ * IDRフレームとPフレームのサイズ比で配分して乱数で揺らぎを加える(シードが同じなら同じ結果になる)
+ * スライスデータの中身は意味のないデータだがスタートコードと紛らわしいバイト列は含まないので
+ * NalUnitScannerやSpsParser, GopFrameDropPolicyでは実際のエンコーダー出力と同様に扱える
+ * Androidの実機に依存しないのでJVM上のユニットテストからも使える
+ * 排他制御をしていないので複数のスレッドから同時に呼び出さないこと
+ */
+public class SyntheticAvcStream {
+	/**
+	 * IDRフレームのサイズがPフレームの何倍かのデフォルト値
+	 */
+	public static final float DEFAULT_KEY_FRAME_RATIO = 6.0f;
+	/**
+	 * フレームサイズの揺らぎのデフォルト値(±20%)
+	 */
+	public static final float DEFAULT_JITTER = 0.2f;
+	/**
+	 * 生成するフレームの最小サイズ(スタートコードとNALユニットヘッダーを含む)
+	 */
+	private static final int MIN_FRAME_SIZE = 16;
+	/**
+	 * スライスデータのコピー元にする乱数データのサイズ
+	 */
+	private static final int NOISE_SIZE = 256 * 1024;
+
+	private static final int NAL_SLICE = 1;
+	private static final int NAL_IDR = 5;
+	private static final int NAL_SPS = 7;
+	private static final int NAL_PPS = 8;
+
+	private final int mWidth, mHeight;
+	private final int mBitrate;
+	private final int mFrameRate;
+	/**
+	 * キーフレーム間隔[フレーム], 0なら全てキーフレーム, 負なら最初のフレームのみ
+	 */
+	private final int mGopFrames;
+	@NonNull
+	private final Random mRandom;
+	@NonNull
+	private final byte[] mNoise = new byte[NOISE_SIZE];
+	@NonNull
+	private final byte[] mSps;
+	@NonNull
+	private final byte[] mPps;
+	private float mKeyFrameRatio = DEFAULT_KEY_FRAME_RATIO;
+	private float mJitter = DEFAULT_JITTER;
+	private boolean mNonReferenceFrames;
+	@NonNull
+	private ByteBuffer mBuffer;
+	private boolean mConfigGenerated;
+	private long mFrameCount;
+	private long mPresentationTimeUs;
+	private int mFlags;
+	private long mTotalBytes;
+
+	/**
+	 * コンストラクタ
+	 * @param width 映像の幅, 奇数なら切り捨てて偶数にする
+	 * @param height 映像の高さ, 奇数なら切り捨てて偶数にする
+	 * @param bitrate ビットレート[bps]
+	 * @param frameRate フレームレート[fps]
+	 * @param iFrameInterval キーフレーム間隔[秒], MediaFormat#KEY_I_FRAME_INTERVALと同様に
+	 * 			0なら全てキーフレーム, 負なら最初のフレームのみキーフレーム
+	 * @param seed 乱数のシード
+	 * @throws IllegalArgumentException
+	 */
+	public SyntheticAvcStream(
+		final int width, final int height,
+		final int bitrate, final int frameRate, final float iFrameInterval,
+		final long seed) throws IllegalArgumentException {
+
+		if ((width < 2) || (height < 2) || (bitrate <= 0) || (frameRate <= 0)) {
+			throw new IllegalArgumentException(
+				String.format("invalid parameter,size(%dx%d),bitrate=%d,frameRate=%d",
+					width, height, bitrate, frameRate));
+		}
+		mWidth = width & ~1;
+		mHeight = height & ~1;
+		mBitrate = bitrate;
+		mFrameRate = frameRate;
+		if (iFrameInterval < 0) {
+			mGopFrames = -1;
+		} else if (iFrameInterval == 0) {
+			mGopFrames = 0;
+		} else {
+			mGopFrames = Math.max(Math.round(iFrameInterval * frameRate), 1);
+		}
+		mRandom = new Random(seed);
+		// スライスデータ用の乱数データ, スタートコードと紛らわしくならないように0を含まないようにする
+		mRandom.nextBytes(mNoise);
+		for (int i = 0; i < NOISE_SIZE; i++) {
+			if (mNoise[i] == 0) {
+				mNoise[i] = (byte)(i | 0x80);
+			}
+		}
+		mSps = createSps(mWidth, mHeight);
+		mPps = createPps();
+		mBuffer = ByteBuffer.allocate(Math.max(estimateFrameSize(true) * 2, 1024))
+			.order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * IDRフレームのサイズがPフレームの何倍かをセット
+	 * @param ratio 1以上
+	 * @return
+	 */
+	public SyntheticAvcStream setKeyFrameRatio(final float ratio) {
+		mKeyFrameRatio = Math.max(ratio, 1.0f);
+		return this;
+	}
+
+	/**
+	 * フレームサイズの揺らぎをセット
+	 * @param jitter 0以上1未満, 0.2なら±20%
+	 * @return
+	 */
+	public SyntheticAvcStream setJitter(final float jitter) {
+		mJitter = Math.min(Math.max(jitter, 0.0f), 0.99f);
+		return this;
+	}
+
+	/**
+	 * Pフレームを1枚おきに他のフレームから参照されないフレーム(nal_ref_idc=0)にするかどうか
+	 * 時間方向の階層符号化をするエンコーダーの出力を模擬する
+	 * @param enable
+	 * @return
+	 */
+	public SyntheticAvcStream setNonReferenceFrames(final boolean enable) {
+		mNonReferenceFrames = enable;
+		return this;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	public int getBitrate() {
+		return mBitrate;
+	}
+
+	public int getFrameRate() {
+		return mFrameRate;
+	}
+
+	/**
+	 * SPS(スタートコード付き)を取得
+	 * @return
+	 */
+	@NonNull
+	public byte[] getSps() {
+		return mSps.clone();
+	}
+
+	/**
+	 * PPS(スタートコード付き)を取得
+	 * @return
+	 */
+	@NonNull
+	public byte[] getPps() {
+		return mPps.clone();
+	}
+
+	/**
+	 * 次のフレームを生成する
+	 * 最初の呼び出しではSPS/PPSを含むcodec specific dataを返す
+	 * @return 生成したフレーム, positionからlimitまでがフレームデータ,
+	 * 			内部のバッファを返すので次に#nextを呼ぶまでに使い終えること
+	 */
+	@NonNull
+	public ByteBuffer next() {
+		if (!mConfigGenerated) {
+			mConfigGenerated = true;
+			mBuffer.clear();
+			mBuffer.put(mSps).put(mPps).flip();
+			mPresentationTimeUs = 0;
+			mFlags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+		} else {
+			final boolean isKeyFrame = isKeyFrame(mFrameCount);
+			final int size = nextFrameSize(isKeyFrame);
+			if (mBuffer.capacity() < size) {
+				mBuffer = ByteBuffer.allocate(size * 3 / 2).order(ByteOrder.nativeOrder());
+			}
+			final int nalRefIdc;
+			if (isKeyFrame) {
+				nalRefIdc = 3;
+			} else if (mNonReferenceFrames && ((gopPosition(mFrameCount) & 1) == 0)) {
+				nalRefIdc = 0;
+			} else {
+				nalRefIdc = 2;
+			}
+			mBuffer.clear();
+			mBuffer.put(BufferHelper.ANNEXB_START_MARK);
+			mBuffer.put((byte)((nalRefIdc << 5) | (isKeyFrame ? NAL_IDR : NAL_SLICE)));
+			// スライスデータは乱数データの任意の位置からコピーする
+			int remain = size - mBuffer.position();
+			int offset = mRandom.nextInt(NOISE_SIZE);
+			while (remain > 0) {
+				final int n = Math.min(remain, NOISE_SIZE - offset);
+				mBuffer.put(mNoise, offset, n);
+				remain -= n;
+				offset = 0;
+			}
+			mBuffer.flip();
+			mPresentationTimeUs = mFrameCount * 1000000L / mFrameRate;
+			mFlags = isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+			mFrameCount++;
+		}
+		mTotalBytes += mBuffer.remaining();
+		return mBuffer;
+	}
+
+	/**
+	 * 最後に#nextで生成したフレームのプレゼンテーションタイム[マイクロ秒]を取得
+	 * 最初のフレームを0とする
+	 * @return
+	 */
+	public long getPresentationTimeUs() {
+		return mPresentationTimeUs;
+	}
+
+	/**
+	 * 最後に#nextで生成したフレームのフラグ(MediaCodec.BufferInfo#flagsと同じ)を取得
+	 * @return
+	 */
+	public int getFlags() {
+		return mFlags;
+	}
+
+	/**
+	 * これまでに生成した映像フレーム数(codec specific dataを除く)を取得
+	 * @return
+	 */
+	public long getFrameCount() {
+		return mFrameCount;
+	}
+
+	/**
+	 * これまでに生成した合計バイト数を取得
+	 * @return
+	 */
+	public long getTotalBytes() {
+		return mTotalBytes;
+	}
+
+	/**
+	 * 指定したフレームがキーフレームかどうか
+	 * @param frameNumber
+	 * @return
+	 */
+	private boolean isKeyFrame(final long frameNumber) {
+		return (mGopFrames == 0) || (frameNumber == 0)
+			|| ((mGopFrames > 0) && (frameNumber % mGopFrames == 0));
+	}
+
+	/**
+	 * 指定したフレームの直前のキーフレームからの位置を取得
+	 * @param frameNumber
+	 * @return
+	 */
+	private long gopPosition(final long frameNumber) {
+		return mGopFrames > 0 ? frameNumber % mGopFrames : frameNumber;
+	}
+
+	/**
+	 * 揺らぎを加える前のフレームサイズを計算
+	 * GOP単位の予算をIDRフレーム:Pフレーム=mKeyFrameRatio:1で配分する
+	 * @param isKeyFrame
+	 * @return
+	 */
+	private int estimateFrameSize(final boolean isKeyFrame) {
+		final double avgBytes = mBitrate / 8.0 / mFrameRate;
+		if (mGopFrames == 0) {
+			return (int)avgBytes;
+		}
+		// キーフレームが最初だけのときは1秒毎のGOPとみなして配分する
+		final int gopFrames = mGopFrames > 0 ? mGopFrames : mFrameRate;
+		final double pBytes = avgBytes * gopFrames / (mKeyFrameRatio + gopFrames - 1);
+		return (int)(isKeyFrame ? pBytes * mKeyFrameRatio : pBytes);
+	}
+
+	/**
+	 * 揺らぎを加えたフレームサイズを計算
+	 * @param isKeyFrame
+	 * @return
+	 */
+	private int nextFrameSize(final boolean isKeyFrame) {
+		final double scale = 1.0 + mJitter * (2.0 * mRandom.nextDouble() - 1.0);
+		return Math.max((int)(estimateFrameSize(isKeyFrame) * scale), MIN_FRAME_SIZE);
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * Baselineプロファイルのスタートコード付きSPSを生成する
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	private static byte[] createSps(final int width, final int height) {
+		final int widthInMbs = (width + 15) / 16;
+		final int heightInMbs = (height + 15) / 16;
+		final int pixels = widthInMbs * heightInMbs * 256;
+		final BitWriter writer = new BitWriter();
+		writer.writeBits(8, 66);	// profile_idc = Baseline
+		writer.writeBits(8, 0xc0);	// constraint_set0_flag, constraint_set1_flag
+		writer.writeBits(8, pixels <= 1280 * 720 ? 31 : (pixels <= 2048 * 1088 ? 40 : 51));	// level_idc
+		writer.writeUE(0);			// seq_parameter_set_id
+		writer.writeUE(0);			// log2_max_frame_num_minus4
+		writer.writeUE(2);			// pic_order_cnt_type
+		writer.writeUE(1);			// max_num_ref_frames
+		writer.writeBits(1, 0);		// gaps_in_frame_num_value_allowed_flag
+		writer.writeUE(widthInMbs - 1);		// pic_width_in_mbs_minus1
+		writer.writeUE(heightInMbs - 1);	// pic_height_in_map_units_minus1
+		writer.writeBits(1, 1);		// frame_mbs_only_flag
+		writer.writeBits(1, 1);		// direct_8x8_inference_flag
+		final int cropRight = (widthInMbs * 16 - width) / 2;
+		final int cropBottom = (heightInMbs * 16 - height) / 2;
+		if ((cropRight > 0) || (cropBottom > 0)) {
+			writer.writeBits(1, 1);	// frame_cropping_flag
+			writer.writeUE(0);
+			writer.writeUE(cropRight);
+			writer.writeUE(0);
+			writer.writeUE(cropBottom);
+		} else {
+			writer.writeBits(1, 0);
+		}
+		writer.writeBits(1, 0);		// vui_parameters_present_flag
+		return writer.toNalUnit((3 << 5) | NAL_SPS);
+	}
+
+	/**
+	 * スタートコード付きPPSを生成する
+	 * @return
+	 */
+	private static byte[] createPps() {
+		final BitWriter writer = new BitWriter();
+		writer.writeUE(0);			// pic_parameter_set_id
+		writer.writeUE(0);			// seq_parameter_set_id
+		writer.writeBits(1, 0);		// entropy_coding_mode_flag
+		writer.writeBits(1, 0);		// bottom_field_pic_order_in_frame_present_flag
+		writer.writeUE(0);			// num_slice_groups_minus1
+		writer.writeUE(0);			// num_ref_idx_l0_default_active_minus1
+		writer.writeUE(0);			// num_ref_idx_l1_default_active_minus1
+		writer.writeBits(1, 0);		// weighted_pred_flag
+		writer.writeBits(2, 0);		// weighted_bipred_idc
+		writer.writeUE(0);			// pic_init_qp_minus26 (se(0) == ue(0))
+		writer.writeUE(0);			// pic_init_qs_minus26
+		writer.writeUE(0);			// chroma_qp_index_offset
+		writer.writeBits(1, 1);		// deblocking_filter_control_present_flag
+		writer.writeBits(1, 0);		// constrained_intra_pred_flag
+		writer.writeBits(1, 0);		// redundant_pic_cnt_present_flag
+		return writer.toNalUnit((3 << 5) | NAL_PPS);
+	}
+
+	/**
+	 * SPS/PPS生成用のビット単位の書き込みヘルパー
+	 */
+	private static class BitWriter {
+		private final ByteBuffer mRbsp = ByteBuffer.allocate(64);
+		private int mCurrent;
+		private int mBits;
+
+		private void writeBits(final int n, final int value) {
+			for (int i = n - 1; i >= 0; i--) {
+				mCurrent = (mCurrent << 1) | ((value >>> i) & 1);
+				if (++mBits == 8) {
+					mRbsp.put((byte)mCurrent);
+					mCurrent = mBits = 0;
+				}
+			}
+		}
+
+		/**
+		 * 符号なし指数ゴロム符号で書き込む
+		 * @param value
+		 */
+		private void writeUE(final int value) {
+			final int v = value + 1;
+			final int len = 32 - Integer.numberOfLeadingZeros(v);
+			writeBits(len - 1, 0);
+			writeBits(len, v);
+		}
+
+		/**
+		 * rbsp_trailing_bitsを付加してエミュレーション防止バイトを挿入した
+		 * スタートコード付きのNALユニットを生成する
+		 * @param nalHeader
+		 * @return
+		 */
+		private byte[] toNalUnit(final int nalHeader) {
+			writeBits(1, 1);	// rbsp_stop_one_bit
+			while (mBits != 0) {
+				writeBits(1, 0);	// rbsp_alignment_zero_bit
+			}
+			mRbsp.flip();
+			final ByteBuffer out = ByteBuffer.allocate(mRbsp.remaining() * 3 / 2 + 8);
+			out.put(BufferHelper.ANNEXB_START_MARK);
+			out.put((byte)nalHeader);
+			int zeros = 0;
+			while (mRbsp.hasRemaining()) {
+				final byte b = mRbsp.get();
+				if ((zeros >= 2) && ((b & 0xff) <= 3)) {
+					out.put((byte)0x03);	// emulation_prevention_three_byte
+					zeros = 0;
+				}
+				out.put(b);
+				zeros = (b == 0) ? zeros + 1 : 0;
+			}
+			out.flip();
+			final byte[] result = new byte[out.remaining()];
+			out.get(result);
+			return result;
+		}
+	}
+}
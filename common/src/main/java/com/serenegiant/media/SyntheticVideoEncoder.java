@@ -0,0 +1,242 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 実機のMediaCodecを使わずにSyntheticAvcStreamで生成したh.264/AVCのフレームを
+ * 指定したフレームレートでキューへ追加するIVideoEncoder実装
+ * 実際のエンコーダーと同様にIRecorderへ追加して使うので、ハードウエアエンコーダーの性能に
+ * 左右されずにIRecorder/IMuxer以降のキュー→mux処理の負荷試験やベンチマークを行うことができる
+ * (BenchmarkMuxerと組み合わせればストレージへの書き込みも模擬できる)
+ * 映像サイズ, ビットレート, フレームレート, キーフレーム間隔は#startより前に
+ * #setVideoSize, #setVideoConfigで指定する
+ */
+public class SyntheticVideoEncoder extends FakeVideoEncoder {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = SyntheticVideoEncoder.class.getSimpleName();
+
+	public static final int DEFAULT_WIDTH = 1280;
+	public static final int DEFAULT_HEIGHT = 720;
+	public static final int DEFAULT_BITRATE = 4000000;
+	public static final int DEFAULT_FRAME_RATE = 30;
+	public static final int DEFAULT_I_FRAME_INTERVAL = 1;
+	/**
+	 * キューへ追加できなかったときに再試行するまでの待機時間[ミリ秒]
+	 */
+	private static final long RETRY_WAIT_MS = 2;
+	/**
+	 * キューへ追加できなかったキーフレーム以外のフレームを非リアルタイム時に再試行する最大回数
+	 * (IFrameDropPolicyが次のキーフレームまで破棄すると判断したフレームは何度試しても追加できないので)
+	 */
+	private static final int MAX_RETRIES = 10;
+
+	@NonNull
+	private final Object mProducerSync = new Object();
+	private int mBitRate = DEFAULT_BITRATE;
+	private int mFrameRate = DEFAULT_FRAME_RATE;
+	private int mIFrameInterval = DEFAULT_I_FRAME_INTERVAL;
+	private long mSeed;
+	private volatile boolean mRealtime = true;
+	private volatile boolean mProducing;
+	private volatile long mProducedFrames;
+	private volatile long mRejectedFrames;
+
+	/**
+	 * コンストラクタ
+	 * @param recorder
+	 * @param listener
+	 */
+	public SyntheticVideoEncoder(
+		@NonNull final IRecorder recorder,
+		@NonNull final EncoderListener2 listener) {
+
+		this(recorder, listener, DEFAULT_MAX_POOL_SZ, DEFAULT_MAX_QUEUE_SZ);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param recorder
+	 * @param listener
+	 * @param maxPoolSz
+	 * @param maxQueueSz
+	 */
+	public SyntheticVideoEncoder(
+		@NonNull final IRecorder recorder,
+		@NonNull final EncoderListener2 listener,
+		final int maxPoolSz, final int maxQueueSz) {
+
+		super(MediaCodecUtils.MIME_VIDEO_AVC, recorder, listener,
+			DEFAULT_FRAME_SZ, maxPoolSz, maxQueueSz);
+		mWidth = DEFAULT_WIDTH;
+		mHeight = DEFAULT_HEIGHT;
+	}
+
+	/**
+	 * ビットレート, フレームレート, キーフレーム間隔をセット
+	 * @param bitRate [bps], 0以下ならDEFAULT_BITRATE
+	 * @param frameRate [fps], 0以下ならDEFAULT_FRAME_RATE
+	 * @param iFrameIntervals [秒], MediaFormat#KEY_I_FRAME_INTERVALと同様に0なら全てキーフレーム,
+	 * 			負なら最初のフレームのみキーフレーム
+	 */
+	@Override
+	public void setVideoConfig(final int bitRate, final int frameRate, final int iFrameIntervals) {
+		mBitRate = bitRate > 0 ? bitRate : DEFAULT_BITRATE;
+		mFrameRate = frameRate > 0 ? frameRate : DEFAULT_FRAME_RATE;
+		mIFrameInterval = iFrameIntervals;
+	}
+
+	/**
+	 * フレームレートに合わせてフレームを生成するかどうかをセット
+	 * falseならキューへ追加できるだけ速くフレームを生成する(スループットの計測用)
+	 * キューへ追加できなかったフレームはtrueなら破棄し, falseなら少し待って同じフレームを再試行する
+	 * codec specific dataとキーフレームはどちらの場合もキューへ追加できるまで再試行する
+	 * デフォルトはtrue
+	 * @param realtime
+	 */
+	public void setRealtime(final boolean realtime) {
+		mRealtime = realtime;
+	}
+
+	/**
+	 * フレームサイズの揺らぎの乱数のシードをセット
+	 * @param seed
+	 */
+	public void setSeed(final long seed) {
+		mSeed = seed;
+	}
+
+	/**
+	 * キューへ追加できたフレーム数(codec specific dataを含む)を取得
+	 * @return
+	 */
+	public long getProducedFrames() {
+		return mProducedFrames;
+	}
+
+	/**
+	 * キュー/バッファプールに空きがなくてキューへ追加できなかった回数(再試行を含む)を取得
+	 * @return
+	 */
+	public long getRejectedFrames() {
+		return mRejectedFrames;
+	}
+
+	@Override
+	public void start() {
+		super.start();
+		synchronized (mProducerSync) {
+			if (isEncoding() && !mProducing) {
+				mProducing = true;
+				mProducedFrames = mRejectedFrames = 0;
+				new Thread(mProducerTask, TAG).start();
+			}
+		}
+	}
+
+	@Override
+	public void stop() {
+		stopProducer();
+		super.stop();
+	}
+
+	@Override
+	public synchronized void release() {
+		stopProducer();
+		super.release();
+	}
+
+	private void stopProducer() {
+		synchronized (mProducerSync) {
+			mProducing = false;
+			mProducerSync.notifyAll();
+		}
+	}
+
+	/**
+	 * フレーム生成スレッドの実行部
+	 */
+	private final Runnable mProducerTask = new Runnable() {
+		@Override
+		public void run() {
+			if (DEBUG) Log.v(TAG, "ProducerTask:start");
+			final SyntheticAvcStream stream = new SyntheticAvcStream(
+				mWidth, mHeight, mBitRate, mFrameRate, mIFrameInterval, mSeed);
+			final long startNs = System.nanoTime();
+			final long basePtsUs = startNs / 1000L;
+			while (mProducing && isEncoding()) {
+				final ByteBuffer frame = stream.next();
+				final long ptsUs = stream.getPresentationTimeUs();
+				if (mRealtime) {
+					// フレームレートに合わせて待機する
+					synchronized (mProducerSync) {
+						for (long t = startNs + ptsUs * 1000L - System.nanoTime();
+							mProducing && (t > 0); t = startNs + ptsUs * 1000L - System.nanoTime()) {
+
+							try {
+								mProducerSync.wait(t / 1000000L, (int)(t % 1000000L));
+							} catch (final InterruptedException e) {
+								mProducing = false;
+							}
+						}
+					}
+					if (!mProducing) break;
+				}
+				// キューへ追加するとframeのpositionが進むので再試行できるように先にサイズを取得しておく
+				final int size = frame.remaining();
+				final int flags = stream.getFlags();
+				// codec specific dataとキーフレームは破棄すると以降のフレームを書き出せなくなるので必ず再試行する
+				final boolean required = (flags
+					& (MediaCodec.BUFFER_FLAG_CODEC_CONFIG | MediaCodecUtils.BUFFER_FLAG_KEY_FRAME)) != 0;
+				try {
+					for (int retry = 0; mProducing; retry++) {
+						if (queueFrame(frame, 0, size, basePtsUs + ptsUs, flags)) {
+							mProducedFrames++;
+							break;
+						}
+						mRejectedFrames++;
+						if (!required && (mRealtime || (retry >= MAX_RETRIES))) {
+							// 実際のエンコーダーと同様に破棄する
+							break;
+						}
+						// キューが一杯なので少し待ってから同じフレームを再試行する
+						synchronized (mProducerSync) {
+							if (mProducing) {
+								mProducerSync.wait(RETRY_WAIT_MS);
+							}
+						}
+					}
+				} catch (final IllegalStateException e) {
+					// エンコード終了
+					break;
+				} catch (final InterruptedException e) {
+					break;
+				}
+			}
+			if (DEBUG) Log.v(TAG, "ProducerTask:finished,produced=" + mProducedFrames
+				+ ",rejected=" + mRejectedFrames);
+		}
+	};
+}
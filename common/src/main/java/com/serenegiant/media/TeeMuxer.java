@@ -0,0 +1,600 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.serenegiant.utils.Pool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 1つのエンコーダーからのエンコード済みフレームを複数のIMuxer(シンク)へ分配するためのIMuxer実装
+ * (MediaSplitMuxerV2でローカルへ録画しながら同じフレームを配信用のIMuxerへも渡す等)
+ * フレームデータは#writeSampleDataで一度だけバッファプールのRecycleMediaDataへコピーして
+ * 参照カウントで全シンクから共有し, 各シンクはそれぞれの読み取り専用ByteBufferで読み込む
+ * シンク毎に上限付きのキュー, 専用スレッド, IFrameDropPolicyを持つので
+ * 書き込みが遅いシンクがあっても他のシンクやエンコーダーは待たされない
+ * (キューが一杯になったシンクではIFrameDropPolicyに従ってそのシンクのフレームだけを破棄する)
+ * シンクは#startより前に#addSinkで追加すること,
+ * シンクのstart/stopは各シンクの専用スレッドで呼び出し, releaseは#releaseで呼び出す
+ */
+public class TeeMuxer implements IMuxer {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = TeeMuxer.class.getSimpleName();
+
+	/**
+	 * デフォルトのバッファプールの最大数
+	 */
+	public static final int DEFAULT_MAX_POOL_NUM = 1000;
+	/**
+	 * デフォルトのシンク毎のキューの最大フレーム数
+	 */
+	public static final int DEFAULT_MAX_QUEUE_SIZE = 300;
+	/**
+	 * #stopでシンクのキューに残っているフレームの書き込みを待つ最大時間[ミリ秒]
+	 * これを超えた時は残りのフレームを破棄する
+	 */
+	private static final long STOP_TIMEOUT_MS = 3000;
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final Pool<RecycleMediaData> mPool;
+	@NonNull
+	private final List<SinkLane> mLanes = new ArrayList<>();
+	/**
+	 * トラック毎のMediaFormat
+	 */
+	@NonNull
+	private final List<MediaFormat> mFormats = new ArrayList<>();
+	private volatile boolean mIsStarted;
+	private boolean mReleased;
+
+	/**
+	 * コンストラクタ
+	 * バッファプールの最大数はDEFAULT_MAX_POOL_NUM
+	 */
+	public TeeMuxer() {
+		this(DEFAULT_MAX_POOL_NUM);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param maxPoolNum バッファプールの最大数, 全シンクのキューで共有する
+	 */
+	public TeeMuxer(final int maxPoolNum) {
+		if (maxPoolNum <= 0) {
+			throw new IllegalArgumentException("maxPoolNum should be positive");
+		}
+		mPool = new Pool<RecycleMediaData>(0, maxPoolNum) {
+			@NonNull
+			@Override
+			protected RecycleMediaData createObject(@Nullable final Object... args) {
+				return new RecycleMediaData(mRecycleParent);
+			}
+		};
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			release();
+		} finally {
+			super.finalize();
+		}
+	}
+
+	/**
+	 * シンクを追加する
+	 * キューの最大フレーム数はDEFAULT_MAX_QUEUE_SIZE, IFrameDropPolicyはGopFrameDropPolicy
+	 * @param sink
+	 * @return シンクのインデックス
+	 * @throws IllegalStateException
+	 */
+	public int addSink(@NonNull final IMuxer sink) throws IllegalStateException {
+		return addSink(sink, DEFAULT_MAX_QUEUE_SIZE, null);
+	}
+
+	/**
+	 * シンクを追加する
+	 * 既に追加されているトラックはシンクへも追加する
+	 * @param sink
+	 * @param maxQueueSize シンクのキューの最大フレーム数
+	 * @param policy キューが一杯になったときに破棄するフレームを決めるIFrameDropPolicy,
+	 * 				nullならGopFrameDropPolicyを使う(映像トラックは#addTrackで設定する)
+	 * @return シンクのインデックス
+	 * @throws IllegalStateException 開始済みまたは破棄済みのとき
+	 */
+	public int addSink(@NonNull final IMuxer sink,
+		final int maxQueueSize, @Nullable final IFrameDropPolicy policy)
+			throws IllegalStateException {
+
+		synchronized (mSync) {
+			checkReleased();
+			if (mIsStarted) {
+				throw new IllegalStateException("already started");
+			}
+			final SinkLane lane = new SinkLane(mLanes.size(), sink, maxQueueSize, policy);
+			for (final MediaFormat format: mFormats) {
+				lane.addTrack(format);
+			}
+			mLanes.add(lane);
+			return lane.mIndex;
+		}
+	}
+
+	/**
+	 * シンクの数を取得
+	 * @return
+	 */
+	public int getSinkCount() {
+		synchronized (mSync) {
+			return mLanes.size();
+		}
+	}
+
+	/**
+	 * 指定したシンクのキューに溜まっているフレーム数を取得
+	 * @param sinkIx
+	 * @return
+	 */
+	public int getQueuedFrames(final int sinkIx) {
+		return getLane(sinkIx).count();
+	}
+
+	/**
+	 * 指定したシンクで破棄したフレーム数を取得
+	 * @param sinkIx
+	 * @return
+	 */
+	public long getDroppedFrames(final int sinkIx) {
+		return getLane(sinkIx).mDropped;
+	}
+
+	/**
+	 * 指定したシンクのIFrameDropPolicyを取得
+	 * @param sinkIx
+	 * @return
+	 */
+	@NonNull
+	public IFrameDropPolicy getDropPolicy(final int sinkIx) {
+		return getLane(sinkIx).mPolicy;
+	}
+
+	/**
+	 * 指定したシンクがエラーで停止したかどうか
+	 * エラーで停止したシンクへはそれ以降フレームを渡さない(他のシンクはそのまま継続する)
+	 * @param sinkIx
+	 * @return
+	 */
+	public boolean isSinkFailed(final int sinkIx) {
+		return getLane(sinkIx).mFailed;
+	}
+
+	/**
+	 * トラックを追加する
+	 * 追加済みの全てのシンクへも同じMediaFormatでトラックを追加する
+	 * @param format
+	 * @return
+	 */
+	@Override
+	public int addTrack(@NonNull final MediaFormat format) {
+		if (DEBUG) Log.v(TAG, "addTrack:" + format);
+		synchronized (mSync) {
+			checkReleased();
+			if (mIsStarted) {
+				throw new IllegalStateException("already started");
+			}
+			for (final SinkLane lane: mLanes) {
+				lane.addTrack(format);
+			}
+			mFormats.add(format);
+			return mFormats.size() - 1;
+		}
+	}
+
+	/**
+	 * 分配を開始する
+	 * 各シンクは専用スレッド上で開始する
+	 */
+	@Override
+	public void start() {
+		if (DEBUG) Log.v(TAG, "start:");
+		synchronized (mSync) {
+			checkReleased();
+			if (mIsStarted) {
+				throw new IllegalStateException("already started");
+			}
+			for (final SinkLane lane: mLanes) {
+				lane.start();
+			}
+			mIsStarted = true;
+		}
+	}
+
+	/**
+	 * 分配を終了する
+	 * 各シンクのキューに残っているフレームを書き込んでからシンクを停止する
+	 * STOP_TIMEOUT_MS以内に書き込めなかったシンクは残りのフレームを破棄する
+	 */
+	@Override
+	public void stop() {
+		if (DEBUG) Log.v(TAG, "stop:");
+		final List<SinkLane> lanes;
+		synchronized (mSync) {
+			if (!mIsStarted) {
+				return;
+			}
+			mIsStarted = false;
+			lanes = new ArrayList<>(mLanes);
+		}
+		for (final SinkLane lane: lanes) {
+			lane.requestStop(false);
+		}
+		final long end = System.currentTimeMillis() + STOP_TIMEOUT_MS;
+		for (final SinkLane lane: lanes) {
+			lane.join(Math.max(end - System.currentTimeMillis(), 1L));
+		}
+	}
+
+	/**
+	 * 関係するリソースを破棄する
+	 * 全てのシンクのIMuxer#releaseも呼び出す
+	 */
+	@Override
+	public void release() {
+		synchronized (mSync) {
+			if (mReleased) {
+				return;
+			}
+		}
+		if (DEBUG) Log.v(TAG, "release:");
+		stop();
+		synchronized (mSync) {
+			mReleased = true;
+			for (final SinkLane lane: mLanes) {
+				lane.release();
+			}
+			mLanes.clear();
+			mPool.clear();
+		}
+	}
+
+	@Override
+	public boolean isStarted() {
+		return mIsStarted;
+	}
+
+	/**
+	 * フレームデータをバッファプールのRecycleMediaDataへコピーして全てのシンクのキューへ追加する
+	 * シンクの書き込みは待たない
+	 * @param trackIndex
+	 * @param byteBuf
+	 * @param bufferInfo
+	 */
+	@Override
+	public void writeSampleData(final int trackIndex,
+		@NonNull final ByteBuffer byteBuf,
+		@NonNull final MediaCodec.BufferInfo bufferInfo) {
+
+		final SinkLane[] lanes;
+		synchronized (mSync) {
+			checkReleased();
+			if ((trackIndex < 0) || (trackIndex >= mFormats.size())) {
+				throw new IllegalArgumentException("trackIndex is invalid");
+			}
+			if (!mIsStarted || mLanes.isEmpty()) {
+				return;
+			}
+			lanes = mLanes.toArray(new SinkLane[0]);
+		}
+		final RecycleMediaData data = mPool.obtain();
+		if (data == null) {
+			if (DEBUG) Log.w(TAG, "writeSampleData:pool is exhausted, frame dropped");
+			for (final SinkLane lane: lanes) {
+				lane.onOverflow(null);
+			}
+			return;
+		}
+		// プールから取得した時点で参照カウントは1(ここで保持する分)
+		data.setRecycled(false);
+		data.set(trackIndex, byteBuf, bufferInfo);
+		for (final SinkLane lane: lanes) {
+			lane.offer(data.retain());
+		}
+		data.release();
+	}
+
+	private final IRecycleParent<RecycleMediaData> mRecycleParent
+		= new IRecycleParent<RecycleMediaData>() {
+		@Override
+		public boolean recycle(@NonNull final RecycleMediaData buffer) {
+			if (!buffer.isRecycled()) {
+				buffer.setRecycled(true);
+				return mPool.recycle(buffer);
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * 破棄されたかどうかをチェックして破棄されていればIllegalStateExceptionを投げる
+	 * @throws IllegalStateException
+	 */
+	private void checkReleased() throws IllegalStateException {
+		if (mReleased) {
+			throw new IllegalStateException("already released");
+		}
+	}
+
+	@NonNull
+	private SinkLane getLane(final int sinkIx) throws IndexOutOfBoundsException {
+		synchronized (mSync) {
+			return mLanes.get(sinkIx);
+		}
+	}
+
+	/**
+	 * シンク毎のキューと書き込み用スレッド
+	 */
+	private static final class SinkLane implements Runnable {
+		private final int mIndex;
+		@NonNull
+		private final IMuxer mSink;
+		private final int mMaxQueueSize;
+		@NonNull
+		private final IFrameDropPolicy mPolicy;
+		/**
+		 * IFrameDropPolicyを指定されずにGopFrameDropPolicyを生成したかどうか
+		 * (生成した場合は映像トラックを#addTrackで設定する)
+		 */
+		private final boolean mOwnPolicy;
+		/**
+		 * 書き込み待ちのフレーム, このオブジェクトで排他制御する
+		 */
+		@NonNull
+		private final ArrayDeque<RecycleMediaData> mQueue = new ArrayDeque<>();
+		/**
+		 * TeeMuxerのトラックインデックスからシンクのトラックインデックスへの変換テーブル
+		 */
+		@NonNull
+		private final List<Integer> mTracks = new ArrayList<>();
+		@NonNull
+		private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+		@Nullable
+		private Thread mThread;
+		private boolean mIsRunning;
+		private boolean mRequestStop;
+		private boolean mCancel;
+		private boolean mReleaseOnExit;
+		private volatile boolean mFailed;
+		private volatile long mDropped;
+
+		private SinkLane(final int index, @NonNull final IMuxer sink,
+			final int maxQueueSize, @Nullable final IFrameDropPolicy policy) {
+
+			mIndex = index;
+			mSink = sink;
+			mMaxQueueSize = Math.max(maxQueueSize, 1);
+			mOwnPolicy = policy == null;
+			mPolicy = policy != null ? policy : new GopFrameDropPolicy();
+		}
+
+		private void addTrack(@NonNull final MediaFormat format) {
+			mTracks.add(mSink.addTrack(format));
+			final String mime = format.containsKey(MediaFormat.KEY_MIME)
+				? format.getString(MediaFormat.KEY_MIME) : null;
+			if (mOwnPolicy && (mime != null) && mime.startsWith("video/")) {
+				((GopFrameDropPolicy) mPolicy).setVideoTrack(mime, mTracks.size() - 1);
+			}
+		}
+
+		private synchronized void start() {
+			mIsRunning = true;
+			mThread = new Thread(this, TAG + "#" + mIndex);
+			mThread.start();
+		}
+
+		/**
+		 * 終了要求する
+		 * @param cancel true: キューに残っているフレームを破棄する, false: 書き込んでから終了する
+		 */
+		private synchronized void requestStop(final boolean cancel) {
+			mRequestStop = true;
+			mCancel |= cancel;
+			notifyAll();
+		}
+
+		/**
+		 * スレッドの終了を待機する, 時間内に終了しなければ残りのフレームを破棄するように要求する
+		 * @param timeoutMs
+		 */
+		private void join(final long timeoutMs) {
+			final Thread thread;
+			synchronized (this) {
+				thread = mThread;
+			}
+			if (thread != null) {
+				try {
+					thread.join(timeoutMs);
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+				if (thread.isAlive()) {
+					Log.w(TAG, "sink" + mIndex + " did not finish in time, discard queued frames");
+					requestStop(true);
+				}
+			}
+		}
+
+		/**
+		 * シンクを破棄する
+		 * 書き込み用スレッドが実行中ならスレッド終了時に破棄する
+		 */
+		private void release() {
+			final boolean releaseNow;
+			synchronized (this) {
+				mRequestStop = mCancel = true;
+				releaseNow = !mIsRunning;
+				mReleaseOnExit = !releaseNow;
+				notifyAll();
+			}
+			if (releaseNow) {
+				releaseQueue();
+				releaseSink();
+			}
+		}
+
+		private synchronized int count() {
+			return mQueue.size();
+		}
+
+		/**
+		 * フレームをキューへ追加する
+		 * 参照カウントを増やしたフレームを渡すこと, キューへ追加できなかったときはここで解放する
+		 * @param data
+		 */
+		private void offer(@NonNull final RecycleMediaData data) {
+			synchronized (this) {
+				if (mIsRunning && !mRequestStop && !mFailed) {
+					if (mPolicy.shouldDrop(data)) {
+						mDropped++;
+					} else {
+						if (mQueue.size() >= mMaxQueueSize) {
+							mDropped += mPolicy.shed(mQueue);
+						}
+						if (mQueue.size() < mMaxQueueSize) {
+							mQueue.addLast(data);
+							notifyAll();
+							return;
+						}
+						mPolicy.onOverflow(data);
+						mDropped++;
+					}
+				}
+			}
+			data.release();
+		}
+
+		/**
+		 * バッファプールからフレームを取得できなかったときの処理
+		 * @param data
+		 */
+		private synchronized void onOverflow(@Nullable final MediaData data) {
+			if (mIsRunning && !mFailed) {
+				mPolicy.onOverflow(data);
+				mDropped++;
+			}
+		}
+
+		@Override
+		public void run() {
+			if (DEBUG) Log.v(TAG, "SinkLane#run:start," + mIndex);
+			boolean started = false;
+			try {
+				mSink.start();
+				started = true;
+				for ( ; ; ) {
+					final RecycleMediaData data;
+					synchronized (this) {
+						while (!mCancel && !mRequestStop && mQueue.isEmpty()) {
+							try {
+								wait();
+							} catch (final InterruptedException e) {
+								mCancel = true;
+							}
+						}
+						if (mCancel || mQueue.isEmpty()) break;
+						data = mQueue.pollFirst();
+					}
+					try {
+						write(data);
+					} finally {
+						data.release();
+					}
+				}
+			} catch (final Exception e) {
+				Log.w(TAG, "sink" + mIndex + " failed", e);
+				mFailed = true;
+			}
+			// 書き込まなかったフレームを解放する
+			releaseQueue();
+			if (started) {
+				try {
+					mSink.stop();
+				} catch (final Exception e) {
+					Log.w(TAG, e);
+				}
+			}
+			final boolean releaseSink;
+			synchronized (this) {
+				mIsRunning = false;
+				releaseSink = mReleaseOnExit;
+				mPolicy.reset();
+			}
+			if (releaseSink) {
+				releaseSink();
+			}
+			if (DEBUG) Log.v(TAG, "SinkLane#run:finished," + mIndex);
+		}
+
+		/**
+		 * シンクへフレームを書き込む
+		 * 内部バッファのposition/limitを変更しないように読み取り専用のByteBufferを経由する
+		 * @param data
+		 */
+		private void write(@NonNull final RecycleMediaData data) {
+			final ByteBuffer raw = data.getRaw();
+			if ((raw == null) || (data.size() <= 0)) {
+				return;
+			}
+			final ByteBuffer view = raw.asReadOnlyBuffer();
+			view.clear();
+			view.limit(data.size());
+			data.get(mInfo);
+			mSink.writeSampleData(mTracks.get(data.trackIx()), view, mInfo);
+		}
+
+		private void releaseQueue() {
+			synchronized (this) {
+				for (final RecycleMediaData data: mQueue) {
+					data.release();
+				}
+				mQueue.clear();
+			}
+		}
+
+		private void releaseSink() {
+			try {
+				mSink.release();
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.math.Fraction;
+
+import androidx.annotation.NonNull;
+
+/**
+ * タイムラプス録画時にエンコーダーへ送る映像フレームを間引くためのヘルパークラス
+ * 映像入力のタイムスタンプ(実時間)に対して指定したフレームレートの間隔で映像フレームを選択し、
+ * 選択した映像フレームには出力動画のフレーム間隔で等間隔に並べ直したプレゼンテーションタイムを割り当てる
+ * エンコーダーへの入力時点で出力動画の時間軸に揃えたプレゼンテーションタイムを渡すことで
+ * エンコーダーのキーフレーム間隔(GOP)やビットレート制御が出力動画のフレーム数基準で働くようになる
+ *
+ * 例えば30fpsの映像入力から1fpsで選択して30fpsの動画ファイルに書き出すと30倍速のタイムラプス動画になる
+ */
+public class TimelapseFrameSelector {
+	/**
+	 * 映像入力のフレーム間隔の移動平均を計算する時の係数の逆数
+	 */
+	private static final int CAPTURE_INTERVAL_AVERAGE = 8;
+
+	@NonNull
+	private final Object mSync = new Object();
+	/**
+	 * 映像フレームを選択する間隔[ナノ秒]
+	 */
+	private final long mSelectIntervalsNs;
+	/**
+	 * 出力動画のフレーム間隔[マイクロ秒]
+	 */
+	private final long mOutputIntervalsUs;
+	/**
+	 * 次に映像フレームを選択する時刻[ナノ秒], 負なら未開始
+	 */
+	private long mNextSelectNs = -1;
+	/**
+	 * 前回受け取った映像フレームのタイムスタンプ[ナノ秒], 負なら未開始
+	 */
+	private long mPrevCaptureNs = -1;
+	/**
+	 * 映像入力のフレーム間隔の移動平均[ナノ秒], 0なら未計測
+	 */
+	private long mCaptureIntervalsNs;
+	/**
+	 * 受け取った映像フレーム数
+	 */
+	private long mCapturedFrames;
+	/**
+	 * 選択した映像フレーム数
+	 */
+	private long mSelectedFrames;
+	/**
+	 * 現在の選択間隔内で受け取った映像フレーム数(最後に受け取った映像フレームを含む)
+	 */
+	private int mIntervalFrames;
+	private boolean mLastSelected;
+	/**
+	 * 最後に選択した映像フレームの出力動画上のプレゼンテーションタイム[マイクロ秒]
+	 */
+	private long mPresentationTimeUs = -1;
+
+	/**
+	 * コンストラクタ
+	 * @param selectFps 映像入力から映像フレームを選択するフレームレート(実時間基準), 正数
+	 * @param outputIntervalsUs 出力動画のフレーム間隔[マイクロ秒], 正数
+	 * @throws IllegalArgumentException
+	 */
+	public TimelapseFrameSelector(
+		@NonNull final Fraction selectFps,
+		final long outputIntervalsUs) throws IllegalArgumentException {
+
+		if ((selectFps.numerator() <= 0) || (selectFps.denominator() <= 0)) {
+			throw new IllegalArgumentException("selectFps should be positive," + selectFps);
+		}
+		if (outputIntervalsUs <= 0) {
+			throw new IllegalArgumentException("outputIntervalsUs should be positive," + outputIntervalsUs);
+		}
+		mSelectIntervalsNs = 1000000000L * selectFps.denominator() / selectFps.numerator();
+		mOutputIntervalsUs = outputIntervalsUs;
+	}
+
+	/**
+	 * 状態をリセットする
+	 * 次に受け取った映像フレームを必ず選択し、出力動画のプレゼンテーションタイムは0から振り直す
+	 */
+	public void reset() {
+		synchronized (mSync) {
+			mNextSelectNs = mPrevCaptureNs = -1;
+			mCaptureIntervalsNs = 0;
+			mCapturedFrames = mSelectedFrames = 0;
+			mIntervalFrames = 0;
+			mLastSelected = false;
+			mPresentationTimeUs = -1;
+		}
+	}
+
+	/**
+	 * 映像フレームを受け取った時に呼び出してエンコーダーへ送るかどうかを取得する
+	 * 選択間隔の格子上の時刻に最も早く到達した映像フレームを選択するので
+	 * 映像入力のタイミングが揺らいでも平均の選択間隔は指定したフレームレートに一致する
+	 * 選択間隔以上映像入力が途切れた時は途切れていた間の映像フレームを補わずに選択の基準時刻を振り直す
+	 * @param captureTimeNs 映像フレームのタイムスタンプ[ナノ秒], 単調増加であること
+	 * @return true: エンコーダーへ送る, false: 間引く
+	 */
+	public boolean select(final long captureTimeNs) {
+		synchronized (mSync) {
+			mCapturedFrames++;
+			if (mLastSelected) {
+				mIntervalFrames = 0;
+			}
+			mIntervalFrames++;
+			if (mPrevCaptureNs >= 0) {
+				final long intervalsNs = captureTimeNs - mPrevCaptureNs;
+				if (intervalsNs > 0) {
+					mCaptureIntervalsNs = mCaptureIntervalsNs > 0
+						? mCaptureIntervalsNs + (intervalsNs - mCaptureIntervalsNs) / CAPTURE_INTERVAL_AVERAGE
+						: intervalsNs;
+				}
+			}
+			mPrevCaptureNs = captureTimeNs;
+			if (mNextSelectNs < 0) {
+				mNextSelectNs = captureTimeNs;
+			}
+			// 映像入力のフレーム間隔の半分までは選択時刻より早くても選択する
+			final long toleranceNs = Math.min(mCaptureIntervalsNs, mSelectIntervalsNs) / 2;
+			mLastSelected = captureTimeNs - mNextSelectNs >= -toleranceNs;
+			if (mLastSelected) {
+				mPresentationTimeUs = mSelectedFrames * mOutputIntervalsUs;
+				mSelectedFrames++;
+				mNextSelectNs += mSelectIntervalsNs;
+				if (captureTimeNs - mNextSelectNs >= -toleranceNs) {
+					// 映像入力が途切れていた時は選択の基準時刻を振り直す
+					mNextSelectNs = captureTimeNs + mSelectIntervalsNs;
+				}
+			}
+			return mLastSelected;
+		}
+	}
+
+	/**
+	 * 最後に選択した映像フレームの出力動画上のプレゼンテーションタイム[マイクロ秒]を取得
+	 * 選択した映像フレームの順に出力動画のフレーム間隔で等間隔になる
+	 * @return まだ選択していなければ-1
+	 */
+	public long getPresentationTimeUs() {
+		synchronized (mSync) {
+			return mPresentationTimeUs;
+		}
+	}
+
+	/**
+	 * 現在の選択間隔内で受け取った映像フレーム数を取得
+	 * 最後に#selectへ渡した映像フレームを含む, #selectがtrueを返した直後は
+	 * 前回選択した映像フレームの次から今回選択した映像フレームまでの数になる
+	 * 間引いた映像フレームを合成する際の重み付けに使う
+	 * @return
+	 */
+	public int getIntervalFrames() {
+		synchronized (mSync) {
+			return mIntervalFrames;
+		}
+	}
+
+	/**
+	 * 受け取った映像フレーム数を取得
+	 * @return
+	 */
+	public long getCapturedFrames() {
+		synchronized (mSync) {
+			return mCapturedFrames;
+		}
+	}
+
+	/**
+	 * 選択した映像フレーム数を取得
+	 * @return
+	 */
+	public long getSelectedFrames() {
+		synchronized (mSync) {
+			return mSelectedFrames;
+		}
+	}
+
+	/**
+	 * 映像フレームを選択する間隔[ナノ秒]を取得
+	 * @return
+	 */
+	public long getSelectIntervalsNs() {
+		return mSelectIntervalsNs;
+	}
+
+	/**
+	 * 出力動画のフレーム間隔[マイクロ秒]を取得
+	 * @return
+	 */
+	public long getOutputIntervalsUs() {
+		return mOutputIntervalsUs;
+	}
+}
@@ -352,6 +352,28 @@ public class VideoConfig implements Parcelable, Cloneable {
 		return calcBitrate(width, height, frameRate, bpp);
 	}
 
+	/**
+	 * BPP_MINでのエンコード時のFPSにおけるビットレートを計算[bps]
+	 * ビットレートを動的に変更する時の下限値
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public int getMinBitrate(final int width, final int height) {
+		return calcBitrate(width, height, captureFps(), BPP_MIN);
+	}
+
+	/**
+	 * BPP_MAXでのエンコード時のFPSにおけるビットレートを計算[bps]
+	 * ビットレートを動的に変更する時の上限値
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public int getMaxBitrate(final int width, final int height) {
+		return calcBitrate(width, height, captureFps(), BPP_MAX);
+	}
+
 	/**
 	 * BPPを計算
 	 * @param width
@@ -30,6 +30,7 @@ import com.serenegiant.system.BuildCheck;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -37,12 +38,49 @@ import androidx.annotation.RequiresApi;
 
 /**
  * 動画のデコード用MediaCodecのラッパークラス
+ * 出力スレッドはデコード済みの出力バッファを描画せずにキューへ追加するだけで表示タイミングを待たない
+ * 描画用スレッドがキューからプレゼンテーションタイムに合わせて出力バッファを取り出してSurfaceへ描画する
+ * キューの目標フレーム数はデコード間隔のばらつきから適応的に決め、開始/シーク直後やキューが空に
+ * なったときは目標フレーム数に達するまでプリバッファしてから描画を開始する
+ * #setMasterClockで音声の再生位置等を指定するとそれに合わせて描画する(間に合わないフレームは破棄する)
  */
 @RequiresApi(Build.VERSION_CODES.JELLY_BEAN)
 public abstract class VideoDecoder extends AbstractDecoder {
 	private static final boolean DEBUG = false;	// set false on production
 	private static final String TAG = VideoDecoder.class.getSimpleName();
 
+	/**
+	 * キューに保持する出力バッファの最小フレーム数
+	 */
+	public static final int MIN_QUEUED_FRAMES = 2;
+	/**
+	 * キューに保持する出力バッファのデフォルトの最大フレーム数
+	 * MediaCodecの出力バッファ数には限りがあるので多くしすぎるとデコーダーが止まってしまう
+	 */
+	public static final int DEFAULT_MAX_QUEUED_FRAMES = 8;
+	/**
+	 * フレーム間隔が不明なときのデフォルト値[マイクロ秒]
+	 */
+	private static final long DEFAULT_FRAME_INTERVAL_US = 33333L;
+	/**
+	 * 表示予定時刻をこれ以上過ぎたフレームは描画せずに破棄する[マイクロ秒]
+	 * フレーム間隔の2倍の方が長ければそちらを使う
+	 */
+	private static final long LATE_THRESHOLD_US = 40000L;
+	/**
+	 * プリバッファ中にこの時間以上新しいフレームが届かなければ
+	 * (デコーダーの出力バッファが足りない等)その時点でキューにあるフレームで描画を開始する[マイクロ秒]
+	 */
+	private static final long PREBUFFER_TIMEOUT_US = 100000L;
+	/**
+	 * デコード間隔の平均と分散の指数移動平均の係数
+	 */
+	private static final double STAT_ALPHA = 1.0 / 16;
+	/**
+	 * 描画用スレッドが表示タイミングを再確認する最大間隔[ミリ秒]
+	 */
+	private static final long MAX_WAIT_MS = 10L;
+
 	/**
 	 * インスタンス生成用のヘルパーメソッド
 	 * @param outputSurface
@@ -61,8 +99,61 @@ public abstract class VideoDecoder extends AbstractDecoder {
 		}
 	}
 
+	/**
+	 * キューに保持するデコード済みフレーム(出力バッファ)の情報
+	 */
+	private static class Frame {
+		private int index;
+		private long presentationTimeUs;
+		private boolean hasData;
+		private boolean eos;
+		/**
+		 * #onFrameAvailableがtrueを返したとき(表示タイミングの調整が不要なとき)はtrue
+		 */
+		private boolean immediate;
+		private boolean checked;
+	}
+
 //--------------------------------------------------------------------------------
 	private final Surface mOutputSurface;
+	@NonNull
+	private final Object mFrameSync = new Object();
+	/**
+	 * 描画待ちのフレーム, mFrameSyncで保護
+	 */
+	@NonNull
+	private final ArrayDeque<Frame> mFrames = new ArrayDeque<>();
+	@NonNull
+	private final ArrayDeque<Frame> mFramePool = new ArrayDeque<>();
+	private int mMaxQueuedFrames = DEFAULT_MAX_QUEUED_FRAMES;
+	@Nullable
+	private volatile IMediaClock mMasterClock;
+	// 以下はmFrameSyncで保護
+	private boolean mPreBuffering = true;
+	private int mTargetQueuedFrames = MIN_QUEUED_FRAMES;
+	/**
+	 * 最後にキューへ追加した時刻[ナノ秒], 負なら未設定
+	 */
+	private long mLastQueuedNs = -1L;
+	private long mLastPtsUs = -1L;
+	private long mFrameIntervalUs = DEFAULT_FRAME_INTERVAL_US;
+	private double mIntervalMeanUs;
+	private double mIntervalVarUs;
+	/**
+	 * マスタークロックが無いときに表示タイミングの基準にするプレゼンテーションタイムとシステム時刻
+	 */
+	private long mBasePtsUs = -1L;
+	private long mBaseSysTimeNs;
+	/**
+	 * 最後に描画または破棄したフレームのプレゼンテーションタイム[マイクロ秒], 負なら未設定
+	 */
+	private long mLastRenderPtsUs = -1L;
+	/**
+	 * ループ再生でプレゼンテーションタイムが巻き戻ったときの巻き戻る前のプレゼンテーションタイム[マイクロ秒]
+	 * マスタークロックが巻き戻るまではシステム時刻を基準にする, 負なら巻き戻り待ちではない
+	 */
+	private long mRewindPtsUs = -1L;
+	private long mDroppedFrames;
 
 	/**
 	 * コンストラクタ
@@ -77,6 +168,97 @@ public abstract class VideoDecoder extends AbstractDecoder {
 		mOutputSurface = outputSurface;
 	}
 
+	/**
+	 * キューに保持する出力バッファの最大フレーム数をセット
+	 * #startより前に呼び出すこと
+	 * @param maxQueuedFrames MIN_QUEUED_FRAMES未満ならMIN_QUEUED_FRAMESにする
+	 */
+	public void setMaxQueuedFrames(final int maxQueuedFrames) {
+		synchronized (mFrameSync) {
+			mMaxQueuedFrames = Math.max(maxQueuedFrames, MIN_QUEUED_FRAMES);
+		}
+	}
+
+	/**
+	 * 表示タイミングの基準にするクロックをセット
+	 * nullまたはクロックの再生位置が不明なときはシステム時刻を基準にする
+	 * @param clock
+	 */
+	public void setMasterClock(@Nullable final IMediaClock clock) {
+		mMasterClock = clock;
+	}
+
+	/**
+	 * 描画待ちでキューに保持しているフレーム数を取得
+	 * @return
+	 */
+	public int getQueuedFrames() {
+		synchronized (mFrameSync) {
+			return mFrames.size();
+		}
+	}
+
+	/**
+	 * デコード間隔のばらつきから決めたキューの目標フレーム数を取得
+	 * @return
+	 */
+	public int getTargetQueuedFrames() {
+		synchronized (mFrameSync) {
+			return mTargetQueuedFrames;
+		}
+	}
+
+	/**
+	 * 表示予定時刻に間に合わずに描画せずに破棄したフレーム数を取得
+	 * @return
+	 */
+	public long getDroppedFrames() {
+		synchronized (mFrameSync) {
+			return mDroppedFrames;
+		}
+	}
+
+	@Override
+	public void start() {
+		synchronized (mFrameSync) {
+			recycleFrames();
+			resetTimeBase();
+		}
+		super.start();
+		if (isRunning() && (mDecoder != null)) {
+			new Thread(mRenderTask, TAG + "-render-" + this.hashCode()).start();
+		}
+	}
+
+	@Override
+	public void stop() {
+		super.stop();
+		synchronized (mFrameSync) {
+			mFrameSync.notifyAll();
+		}
+	}
+
+	@Override
+	protected void onFlush() {
+		super.onFlush();
+		// flush後は出力バッファのインデックスが無効になるのでreleaseOutputBufferを呼ばずに破棄する
+		synchronized (mFrameSync) {
+			recycleFrames();
+			mFrameSync.notifyAll();
+		}
+	}
+
+	@Override
+	protected void onTimeBaseReset() {
+		super.onTimeBaseReset();
+		synchronized (mFrameSync) {
+			// flushせずにシークしたときにキューに残っている目的の位置より前のフレームは描画せずに破棄する
+			releaseFrames();
+			resetTimeBase();
+			mFrameSync.notifyAll();
+		}
+	}
+
 	@Override
 	protected void internalPrepare(final int trackIndex, @NonNull final MediaFormat format) {
 	}
@@ -98,6 +280,304 @@ public abstract class VideoDecoder extends AbstractDecoder {
 		return codec;
 	}
 
+	@Override
+	protected OutputTask createOutputTask(final int trackIndex) {
+		return new FrameOutputTask(trackIndex);
+	}
+
+	/**
+	 * 出力バッファをSurfaceへ描画する
+	 * @param decoder
+	 * @param index
+	 * @param renderTimeNs 描画予定のシステム時刻[ナノ秒]
+	 */
+	protected abstract void renderFrame(
+		@NonNull final MediaCodec decoder,
+		final int index, final long renderTimeNs);
+
+	/**
+	 * 描画予定時刻のどれだけ前に#renderFrameを呼び出すか[マイクロ秒]
+	 * @return
+	 */
+	protected abstract long getRenderLeadUs();
+
+	/**
+	 * キューのフレームを全て破棄する
+	 * mFrameSyncをロックした状態で呼び出すこと
+	 */
+	private void recycleFrames() {
+		for (final Frame frame: mFrames) {
+			mFramePool.addLast(frame);
+		}
+		mFrames.clear();
+	}
+
+	/**
+	 * キューのフレームの出力バッファを描画せずに解放して破棄する
+	 * mFrameSyncをロックした状態で呼び出すこと
+	 */
+	private void releaseFrames() {
+		final MediaCodec decoder = mDecoder;
+		if (decoder != null) {
+			for (final Frame frame: mFrames) {
+				try {
+					decoder.releaseOutputBuffer(frame.index, false);
+				} catch (final Exception e) {
+					// ignore
+				}
+			}
+		}
+		recycleFrames();
+	}
+
+	/**
+	 * プリバッファからやり直して表示タイミングの基準を次に描画するフレームで決め直す
+	 * mFrameSyncをロックした状態で呼び出すこと
+	 */
+	private void resetTimeBase() {
+		mPreBuffering = true;
+		mBasePtsUs = -1L;
+		mLastQueuedNs = -1L;
+		mLastPtsUs = -1L;
+		mLastRenderPtsUs = -1L;
+		mRewindPtsUs = -1L;
+	}
+
+	/**
+	 * デコード間隔の平均と分散を更新してキューの目標フレーム数を決める
+	 * mFrameSyncをロックした状態で呼び出すこと
+	 * @param presentationTimeUs
+	 * @param arrivalNs 出力バッファを受け取った時刻[ナノ秒]
+	 */
+	private void updateStatistics(final long presentationTimeUs, final long arrivalNs) {
+		if (mLastQueuedNs > 0) {
+			// キューの空き待ちの時間を含まないように前回キューへ追加した時刻からの間隔を使う
+			final double interval = (arrivalNs - mLastQueuedNs) / 1000.0;
+			final double diff = interval - mIntervalMeanUs;
+			mIntervalMeanUs += diff * STAT_ALPHA;
+			mIntervalVarUs = (1.0 - STAT_ALPHA) * (mIntervalVarUs + STAT_ALPHA * diff * diff);
+		}
+		if ((mLastPtsUs >= 0) && (presentationTimeUs > mLastPtsUs)) {
+			mFrameIntervalUs = (mFrameIntervalUs * 7 + (presentationTimeUs - mLastPtsUs)) / 8;
+		}
+		mLastPtsUs = presentationTimeUs;
+		// 平均+3σのデコード間隔をフレーム間隔何個分でカバーできるか
+		final double worstUs = mIntervalMeanUs + 3.0 * Math.sqrt(mIntervalVarUs);
+		final int frames = (int)Math.ceil(worstUs / Math.max(mFrameIntervalUs, 1L));
+		mTargetQueuedFrames = Math.min(Math.max(frames, MIN_QUEUED_FRAMES), mMaxQueuedFrames);
+	}
+
+	/**
+	 * 表示タイミングの基準にする現在の再生位置を取得
+	 * mFrameSyncをロックした状態で呼び出すこと
+	 * @param frame 次に描画するフレーム, 基準が未設定ならこのフレームを今描画するように基準を決める
+	 * @param nowNs
+	 * @return [マイクロ秒]
+	 */
+	private long getClockUs(@NonNull final Frame frame, final long nowNs) {
+		if (frame.hasData && (mLastRenderPtsUs >= 0) && (frame.presentationTimeUs < mLastRenderPtsUs)) {
+			// ループ再生で先頭へ戻ったのでこのフレームで基準を決め直す
+			if (DEBUG) Log.v(TAG, "getClockUs:rewind," + mLastRenderPtsUs + "=>" + frame.presentationTimeUs);
+			mRewindPtsUs = mLastRenderPtsUs;
+			mBasePtsUs = -1L;
+			mLastRenderPtsUs = -1L;
+		}
+		final IMediaClock clock = mMasterClock;
+		final long masterUs = clock != null ? clock.getCurrentPositionUs() : -1L;
+		if (masterUs >= 0) {
+			if ((mRewindPtsUs < 0)
+				|| (masterUs < (frame.presentationTimeUs + mRewindPtsUs) / 2)) {
+				// マスタークロックも巻き戻った
+				mRewindPtsUs = -1L;
+				return masterUs;
+			}
+			// マスタークロックがまだ巻き戻る前の位置なので巻き戻るまではシステム時刻を基準にする
+		}
+		if (mBasePtsUs < 0) {
+			mBasePtsUs = frame.presentationTimeUs;
+			mBaseSysTimeNs = nowNs;
+		}
+		return mBasePtsUs + (nowNs - mBaseSysTimeNs) / 1000L;
+	}
+
+	/**
+	 * デコード済みの出力バッファをキューへ追加する出力スレッドの実行部
+	 */
+	private class FrameOutputTask extends OutputTask {
+		private FrameOutputTask(final int trackIndex) {
+			super(trackIndex);
+		}
+
+		@Override
+		protected void handleOutput(@NonNull final MediaCodec decoder) {
+			while (isRunning() && !mOutputDone && !isFlushRequested()) {
+				final int decoderStatus = decoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+				if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+					return;
+				} else if (decoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+					// XXX 映像の場合はSurfaceへ出力するようにしているので出力バッファの取得は不要
+					if (DEBUG) Log.d(TAG, "INFO_OUTPUT_BUFFERS_CHANGED:");
+				} else if (decoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+					if (DEBUG) Log.d(TAG, "INFO_OUTPUT_FORMAT_CHANGED:" + decoder.getOutputFormat());
+				} else if (decoderStatus < 0) {
+					throw new RuntimeException(
+						"unexpected result from video decoder.dequeueOutputBuffer: " + decoderStatus);
+				} else { // decoderStatus >= 0
+					final boolean eos = (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+					// シーク後の目的の位置より前のフレームは描画せずに破棄する
+					final boolean hasData = (mBufferInfo.size > 0)
+						&& !isSkipFrame(mBufferInfo.presentationTimeUs);
+					if ((!hasData && !eos)
+						|| !queueFrame(decoderStatus, mBufferInfo.presentationTimeUs, hasData, eos)) {
+						decoder.releaseOutputBuffer(decoderStatus, false);
+					}
+					if (eos) {
+						if (DEBUG) Log.d(TAG, "video:output EOS");
+						synchronized (mSync) {
+							mOutputDone = true;
+							mSync.notifyAll();
+						}
+					}
+				}
+			}	// end of while
+		}
+
+		/**
+		 * 出力バッファをキューへ追加する
+		 * キューが一杯のときは空きができるまで待つが表示タイミングは待たない
+		 * @param index
+		 * @param presentationTimeUs
+		 * @param hasData
+		 * @param eos
+		 * @return キューへ追加できなかったときはfalse, 呼び出し元で出力バッファを解放すること
+		 */
+		private boolean queueFrame(
+			final int index, final long presentationTimeUs,
+			final boolean hasData, final boolean eos) {
+
+			final long arrivalNs = System.nanoTime();
+			synchronized (mFrameSync) {
+				while (isRunning() && !isFlushRequested() && (mFrames.size() >= mMaxQueuedFrames)) {
+					try {
+						mFrameSync.wait(MAX_WAIT_MS);
+					} catch (final InterruptedException e) {
+						break;
+					}
+				}
+				if (!isRunning() || isFlushRequested() || (mFrames.size() >= mMaxQueuedFrames)) {
+					return false;
+				}
+				if (hasData) {
+					updateStatistics(presentationTimeUs, arrivalNs);
+				}
+				Frame frame = mFramePool.pollFirst();
+				if (frame == null) {
+					frame = new Frame();
+				}
+				frame.index = index;
+				frame.presentationTimeUs = presentationTimeUs;
+				frame.hasData = hasData;
+				frame.eos = eos;
+				frame.immediate = frame.checked = false;
+				mFrames.addLast(frame);
+				mLastQueuedNs = System.nanoTime();
+				if (mPreBuffering && (eos || (mFrames.size() >= mTargetQueuedFrames))) {
+					mPreBuffering = false;
+				}
+				mFrameSync.notifyAll();
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * キューからプレゼンテーションタイムに合わせて出力バッファを取り出して描画するスレッドの実行部
+	 */
+	private final Runnable mRenderTask = new Runnable() {
+		@Override
+		public void run() {
+			if (DEBUG) Log.v(TAG, "RenderTask:start");
+			android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_DISPLAY);
+			while (isRunning()) {
+				try {
+					renderNext();
+				} catch (final InterruptedException e) {
+					break;
+				}
+			}
+			synchronized (mFrameSync) {
+				releaseFrames();
+				mFrameSync.notifyAll();
+			}
+			if (DEBUG) Log.v(TAG, "RenderTask:finished");
+		}
+
+		/**
+		 * キューの先頭のフレームが表示タイミングになっていれば描画する
+		 * 表示タイミングになっていなければ最大MAX_WAIT_MSだけ待って戻る
+		 * @throws InterruptedException
+		 */
+		private void renderNext() throws InterruptedException {
+			final MediaCodec decoder = mDecoder;
+			synchronized (mFrameSync) {
+				final Frame frame = mFrames.peekFirst();
+				final long nowNs = System.nanoTime();
+				if (frame == null) {
+					if (!mPreBuffering && !mOutputDone) {
+						// キューが空になったのでプリバッファからやり直す
+						if (DEBUG) Log.v(TAG, "renderNext:underrun");
+						resetTimeBase();
+					}
+					mFrameSync.wait(MAX_WAIT_MS);
+					return;
+				}
+				if (mPreBuffering) {
+					if ((mLastQueuedNs > 0) && ((nowNs - mLastQueuedNs) / 1000L > PREBUFFER_TIMEOUT_US)) {
+						// デコーダーがこれ以上出力バッファを出せないのでキューにあるフレームで描画を開始する
+						if (DEBUG) Log.v(TAG, "renderNext:pre-buffer timeout," + mFrames.size());
+						mPreBuffering = false;
+					} else {
+						mFrameSync.wait(MAX_WAIT_MS);
+						return;
+					}
+				}
+				if (!frame.checked) {
+					frame.checked = true;
+					frame.immediate = frame.hasData && onFrameAvailable(frame.presentationTimeUs);
+				}
+				final long clockUs = getClockUs(frame, nowNs);
+				final long aheadUs = frame.presentationTimeUs - clockUs;
+				if (!frame.immediate && frame.hasData && (aheadUs - getRenderLeadUs() > 1000L)) {
+					mFrameSync.wait(Math.min((aheadUs - getRenderLeadUs()) / 1000L, MAX_WAIT_MS));
+					return;
+				}
+				mFrames.pollFirst();
+				if (frame.hasData) {
+					mLastRenderPtsUs = frame.presentationTimeUs;
+				}
+				if (decoder != null) {
+					try {
+						if (!frame.hasData) {
+							decoder.releaseOutputBuffer(frame.index, false);
+						} else if (!frame.immediate
+							&& (-aheadUs > Math.max(LATE_THRESHOLD_US, mFrameIntervalUs * 2))) {
+							// 表示予定時刻を大きく過ぎているので描画せずに破棄する
+							decoder.releaseOutputBuffer(frame.index, false);
+							mDroppedFrames++;
+						} else {
+							renderFrame(decoder, frame.index,
+								nowNs + Math.max(aheadUs, 0L) * 1000L);
+						}
+					} catch (final IllegalStateException e) {
+						Log.w(TAG, e);
+					}
+				}
+				mFramePool.addLast(frame);
+				mFrameSync.notifyAll();
+			}
+		}
+	};
+
 //--------------------------------------------------------------------------------
 	private static class VideoDecoderAPI16 extends VideoDecoder {
 		private static final String TAG = VideoDecoderAPI16.class.getSimpleName();
@@ -135,47 +615,29 @@ public abstract class VideoDecoder extends AbstractDecoder {
 		}
 
 		@Override
-		protected OutputTask createOutputTask(final int trackIndex) {
-			return new OutputTask(trackIndex) {
-				@Override
-				protected void handleOutput(@NonNull final MediaCodec decoder) {
-					while (isRunning() && !mOutputDone) {
-						final int decoderStatus = decoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-						if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-							return;
-						} else if (decoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-							// XXX 映像の場合はSurfaceへ出力するようにしているので出力バッファの取得は不要
-							if (DEBUG) Log.d(TAG, "INFO_OUTPUT_BUFFERS_CHANGED:");
-						} else if (decoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-							if (DEBUG) Log.d(TAG, "INFO_OUTPUT_FORMAT_CHANGED:" + decoder.getOutputFormat());
-						} else if (decoderStatus < 0) {
-							throw new RuntimeException(
-								"unexpected result from video decoder.dequeueOutputBuffer: " + decoderStatus);
-						} else { // decoderStatus >= 0
-							boolean doRender = (mBufferInfo.size > 0);
-							if (doRender) {
-								if (!onFrameAvailable(mBufferInfo.presentationTimeUs)) {
-									adjustPresentationTime(mBufferInfo.presentationTimeUs);
-								}
-							}
-							decoder.releaseOutputBuffer(decoderStatus, doRender);
-							if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-								if (DEBUG) Log.d(TAG, "video:output EOS");
-								synchronized (mSync) {
-									mOutputDone = true;
-									mSync.notifyAll();
-								}
-							}
-						}
-					}	// end of while
-				}
-			};
+		protected void renderFrame(
+			@NonNull final MediaCodec decoder,
+			final int index, final long renderTimeNs) {
+
+			// API<21では描画時刻を指定できないので表示予定時刻になってから呼び出す
+			decoder.releaseOutputBuffer(index, true);
+		}
+
+		@Override
+		protected long getRenderLeadUs() {
+			return 0;
 		}
 	}
 
 	@RequiresApi(Build.VERSION_CODES.LOLLIPOP)
 	private static class VideoDecoderAPI21 extends VideoDecoder {
 		private static final String TAG = VideoDecoderAPI21.class.getSimpleName();
+		/**
+		 * MediaCodec#releaseOutputBuffer(int,long)は描画したい時刻からvsync x 2早く呼び出すと
+		 * 最適なパフォーマンスと品質が得られるらしい
+		 */
+		private static final long VSYNC2_US = 33330L;		// 33.33ミリ秒, approx. 2 frames @ 60fps
+
 		/**
 		 * コンストラクタ
 		 * 直接のインスタンス生成を防止するためにprivateにする
@@ -196,36 +658,16 @@ public abstract class VideoDecoder extends AbstractDecoder {
 		}
 
 		@Override
-		protected OutputTask createOutputTask(final int trackIndex) {
-			return new OutputTask(trackIndex) {
-				@Override
-				protected void handleOutput(@NonNull final MediaCodec decoder) {
-					while (isRunning() && !mOutputDone) {
-						final int decoderStatus = decoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-						if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-							return;
-						} else if (decoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-							// API>=21ではdeprecated
-							if (DEBUG) Log.d(TAG, "INFO_OUTPUT_BUFFERS_CHANGED:");
-						} else if (decoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-							if (DEBUG) Log.d(TAG, "INFO_OUTPUT_FORMAT_CHANGED:" + decoder.getOutputFormat());
-						} else if (decoderStatus < 0) {
-							throw new RuntimeException(
-								"unexpected result from video decoder.dequeueOutputBuffer: " + decoderStatus);
-						} else { // decoderStatus >= 0
-							decoder.releaseOutputBuffer(decoderStatus,						// API>=21
-								adjustPresentationTime(mBufferInfo.presentationTimeUs));
-							if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-								if (DEBUG) Log.d(TAG, "video:output EOS");
-								synchronized (mSync) {
-									mOutputDone = true;
-									mSync.notifyAll();
-								}
-							}
-						}
-					}	// end of while
-				}
-			};
+		protected void renderFrame(
+			@NonNull final MediaCodec decoder,
+			final int index, final long renderTimeNs) {
+
+			decoder.releaseOutputBuffer(index, renderTimeNs);	// API>=21
+		}
+
+		@Override
+		protected long getRenderLeadUs() {
+			return VSYNC2_US;
 		}
 	}
 }
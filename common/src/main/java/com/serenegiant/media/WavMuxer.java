@@ -0,0 +1,585 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.documentfile.provider.DocumentFile;
+
+/**
+ * 無圧縮PCM音声データをWAVファイルへ書き出すIMuxer実装
+ * IAudioSamplerから受け取ったPCM音声データをエンコードせずにそのままFileChannelへ書き込む
+ * データサイズが4GBを超える場合はRF64形式に切り替える
+ * (RF64へ切り替えられるようにヘッダーにds64チャンク分の領域をJUNKチャンクとして確保しておく)
+ * アプリがクラッシュしても途中まで再生できるように一定間隔でヘッダーのサイズ情報を更新する
+ * ファイルパスで出力先を指定した場合はメモリーマップトファイルへの書き込みも選択できる
+ * トラックはMIMETYPE_AUDIO_RAWの音声トラック1つのみ
+ */
+public class WavMuxer implements IMuxer {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = WavMuxer.class.getSimpleName();
+
+	/**
+	 * 生の音声データのmime type(MediaFormat.MIMETYPE_AUDIO_RAW)
+	 */
+	public static final String MIME_AUDIO_RAW = "audio/raw";
+	/**
+	 * メモリーマップトファイルへの書き込み時に1度にマップするサイズ
+	 */
+	private static final int MMAP_CHUNK_SIZE = 8 * 1024 * 1024;
+	private static final int WAVE_FORMAT_PCM = 0x0001;
+	private static final int WAVE_FORMAT_IEEE_FLOAT = 0x0003;
+	private static final int WAVE_FORMAT_EXTENSIBLE = 0xfffe;
+	/**
+	 * RIFF/WAVEでのサイズフィールドの最大値
+	 * これを超えるとRF64形式へ切り替える
+	 */
+	private static final long MAX_RIFF_SIZE = 0xffffffffL;
+	// ヘッダー内の各フィールドの位置
+	private static final int OFFSET_RIFF_SIZE = 4;
+	private static final int OFFSET_DS64 = 12;
+	private static final int DS64_SIZE = 28;
+	private static final int OFFSET_FMT = OFFSET_DS64 + 8 + DS64_SIZE;
+
+	/**
+	 * WavMuxer生成用のIMuxerFactory実装
+	 * useMediaMuxerは無視する
+	 */
+	public static class Factory implements IMuxerFactory {
+		private final boolean mUseMmap;
+
+		/**
+		 * コンストラクタ
+		 * メモリーマップトファイルへの書き込みをしない
+		 */
+		public Factory() {
+			this(false);
+		}
+
+		/**
+		 * コンストラクタ
+		 * @param useMmap ファイルパスで出力先を指定した場合にメモリーマップトファイルへ書き込むかどうか
+		 */
+		public Factory(final boolean useMmap) {
+			mUseMmap = useMmap;
+		}
+
+		@Deprecated
+		@Override
+		public IMuxer createMuxer(final boolean useMediaMuxer, final String outputPath) throws IOException {
+			return new WavMuxer(outputPath, mUseMmap);
+		}
+
+		@Deprecated
+		@Override
+		public IMuxer createMuxer(final boolean useMediaMuxer, final int fd) throws IOException {
+			final ParcelFileDescriptor pfd = ParcelFileDescriptor.fromFd(fd);
+			return new WavMuxer(new ParcelFileDescriptor.AutoCloseOutputStream(pfd).getChannel());
+		}
+
+		@Override
+		public IMuxer createMuxer(@NonNull final Context context, final boolean useMediaMuxer,
+			@NonNull final DocumentFile file) throws IOException {
+
+			final ParcelFileDescriptor pfd
+				= context.getContentResolver().openFileDescriptor(file.getUri(), "rw");
+			if (pfd == null) {
+				throw new IOException("failed to open " + file.getUri());
+			}
+			return new WavMuxer(new ParcelFileDescriptor.AutoCloseOutputStream(pfd).getChannel());
+		}
+	}
+
+	/**
+	 * IAudioSamplerがコールバックへ渡す音声データに対応するMediaFormatを生成する
+	 * @param sampler
+	 * @return
+	 */
+	@NonNull
+	public static MediaFormat createAudioFormat(@NonNull final IAudioSampler sampler) {
+		return createAudioFormat(sampler.getOutputSamplingFrequency(),
+			sampler.getOutputChannels(), sampler.getOutputAudioFormat());
+	}
+
+	/**
+	 * 無圧縮PCM音声データのMediaFormatを生成する
+	 * @param samplingFrequency
+	 * @param channels
+	 * @param audioFormat ENCODING_PCM_8BIT, ENCODING_PCM_16BIT, ENCODING_PCM_FLOAT
+	 * @return
+	 */
+	@SuppressLint("InlinedApi")
+	@NonNull
+	public static MediaFormat createAudioFormat(final int samplingFrequency,
+		final int channels, @AudioRecordCompat.AudioFormats final int audioFormat) {
+
+		final MediaFormat format = MediaFormat.createAudioFormat(MIME_AUDIO_RAW, samplingFrequency, channels);
+		format.setInteger(MediaFormat.KEY_PCM_ENCODING, audioFormat);
+		return format;
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final FileChannel mChannel;
+	@Nullable
+	private final RandomAccessFile mRandomAccessFile;
+	private final boolean mUseMmap;
+	@NonNull
+	private final ByteBuffer mHeader = ByteBuffer.allocate(OFFSET_FMT + 8 + 40 + 8)
+		.order(ByteOrder.LITTLE_ENDIAN);
+	@NonNull
+	private final ByteBuffer mWork = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+	@NonNull
+	private final MediaCodec.BufferInfo mCallbackInfo = new MediaCodec.BufferInfo();
+	@Nullable
+	private MediaFormat mFormat;
+	private int mHeaderSize;
+	private int mBlockAlign;
+	private long mPatchIntervalBytes;
+	private long mDataSize;
+	private long mLastPatchedSize;
+	private boolean mIsRF64;
+	@Nullable
+	private MappedByteBuffer mMapped;
+	private long mMappedPosition;
+	private volatile boolean mIsStarted;
+	private boolean mReleased;
+
+	/**
+	 * コンストラクタ
+	 * @param outputPath 出力先ファイルパス
+	 * @param useMmap メモリーマップトファイルへ書き込むかどうか
+	 * @throws IOException
+	 */
+	public WavMuxer(@NonNull final String outputPath, final boolean useMmap) throws IOException {
+		mRandomAccessFile = new RandomAccessFile(outputPath, "rw");
+		mRandomAccessFile.setLength(0);
+		mChannel = mRandomAccessFile.getChannel();
+		mUseMmap = useMmap;
+	}
+
+	/**
+	 * コンストラクタ
+	 * メモリーマップトファイルへの書き込みはしない
+	 * @param channel 出力先のFileChannel, 位置指定での書き込みができること, #releaseで閉じる
+	 */
+	public WavMuxer(@NonNull final FileChannel channel) {
+		mRandomAccessFile = null;
+		mChannel = channel;
+		mUseMmap = false;
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param stream 出力先, #releaseで閉じる
+	 */
+	public WavMuxer(@NonNull final FileOutputStream stream) {
+		this(stream.getChannel());
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			release();
+		} finally {
+			super.finalize();
+		}
+	}
+
+	/**
+	 * 音声トラックを追加する
+	 * @param format MIMETYPE_AUDIO_RAWのMediaFormat, KEY_PCM_ENCODINGがなければENCODING_PCM_16BIT
+	 * @return トラックインデックス, 常に0
+	 * @throws IllegalArgumentException
+	 * @throws IllegalStateException
+	 */
+	@SuppressLint("InlinedApi")
+	@Override
+	public int addTrack(@NonNull final MediaFormat format)
+		throws IllegalArgumentException, IllegalStateException {
+
+		if (DEBUG) Log.v(TAG, "addTrack:" + format);
+		synchronized (mSync) {
+			checkReleased();
+			if (mIsStarted) {
+				throw new IllegalStateException("already started");
+			}
+			if (mFormat != null) {
+				throw new IllegalArgumentException("Audio track is already added");
+			}
+			final String mime = format.containsKey(MediaFormat.KEY_MIME)
+				? format.getString(MediaFormat.KEY_MIME) : null;
+			if (!MIME_AUDIO_RAW.equals(mime)) {
+				throw new IllegalArgumentException("Unexpected mime type=" + mime);
+			}
+			if (!format.containsKey(MediaFormat.KEY_SAMPLE_RATE)
+				|| !format.containsKey(MediaFormat.KEY_CHANNEL_COUNT)) {
+				throw new IllegalArgumentException("sample rate and channel count are required");
+			}
+			final int encoding = format.containsKey(MediaFormat.KEY_PCM_ENCODING)
+				? format.getInteger(MediaFormat.KEY_PCM_ENCODING)
+				: AudioFormat.ENCODING_PCM_16BIT;
+			switch (encoding) {
+			case AudioFormat.ENCODING_PCM_8BIT:
+			case AudioFormat.ENCODING_PCM_16BIT:
+			case AudioFormat.ENCODING_PCM_FLOAT:
+				break;
+			default:
+				throw new IllegalArgumentException("Unsupported pcm encoding=" + encoding);
+			}
+			mFormat = format;
+			return 0;
+		}
+	}
+
+	/**
+	 * WAVファイルのヘッダーを書き込んで書き込みを開始する
+	 * @throws IllegalStateException
+	 */
+	@Override
+	public void start() throws IllegalStateException {
+		if (DEBUG) Log.v(TAG, "start:");
+		synchronized (mSync) {
+			checkReleased();
+			if (mIsStarted) {
+				throw new IllegalStateException("already started");
+			}
+			if (mFormat == null) {
+				throw new IllegalStateException("no track added");
+			}
+			try {
+				writeHeader(mFormat);
+			} catch (final IOException e) {
+				throw new IllegalStateException(e);
+			}
+			mIsStarted = true;
+		}
+	}
+
+	/**
+	 * 書き込みを終了してヘッダーのサイズ情報を更新する
+	 */
+	@Override
+	public void stop() {
+		if (DEBUG) Log.v(TAG, "stop:");
+		synchronized (mSync) {
+			if (mIsStarted) {
+				mIsStarted = false;
+				try {
+					if (mMapped != null) {
+						mMapped.force();
+						mMapped = null;
+						// マップした領域の未使用部分を切り捨てる
+						mChannel.truncate(mHeaderSize + mDataSize);
+					}
+					patchHeader();
+					mChannel.force(true);
+				} catch (final IOException e) {
+					Log.w(TAG, e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void release() {
+		synchronized (mSync) {
+			if (!mReleased) {
+				if (DEBUG) Log.v(TAG, "release:");
+				stop();
+				mReleased = true;
+				try {
+					mChannel.close();
+				} catch (final IOException e) {
+					Log.w(TAG, e);
+				}
+				if (mRandomAccessFile != null) {
+					try {
+						mRandomAccessFile.close();
+					} catch (final IOException e) {
+						Log.w(TAG, e);
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean isStarted() {
+		synchronized (mSync) {
+			return !mReleased && mIsStarted;
+		}
+	}
+
+	/**
+	 * 音声データを書き込む
+	 * @param trackIndex 常に0
+	 * @param buffer
+	 * @param info
+	 */
+	@Override
+	public void writeSampleData(final int trackIndex,
+		@NonNull final ByteBuffer buffer,
+		@NonNull final MediaCodec.BufferInfo info) {
+
+		if (trackIndex != 0) {
+			throw new IllegalArgumentException("trackIndex is invalid");
+		}
+		if ((info.size < 0) || (info.offset < 0)
+			|| ((info.offset + info.size) > buffer.capacity())) {
+			throw new IllegalArgumentException("bufferInfo must specify a valid buffer offset and size");
+		}
+		synchronized (mSync) {
+			checkReleased();
+			if (!mIsStarted) {
+				throw new IllegalStateException("Can't write, muxer is not started");
+			}
+			// 途中で切れたサンプルを書き込まないようにブロック単位に切り捨てる
+			final int size = info.size - info.size % mBlockAlign;
+			if (size <= 0) return;
+			final ByteBuffer src = buffer.duplicate();
+			src.clear();
+			src.position(info.offset).limit(info.offset + size);
+			try {
+				if (mUseMmap) {
+					writeMapped(src);
+				} else {
+					long pos = mHeaderSize + mDataSize;
+					while (src.hasRemaining()) {
+						pos += mChannel.write(src, pos);
+					}
+				}
+				mDataSize += size;
+				if (mDataSize - mLastPatchedSize >= mPatchIntervalBytes) {
+					patchHeader();
+				}
+			} catch (final IOException e) {
+				Log.w(TAG, e);
+			}
+		}
+	}
+
+	/**
+	 * IAudioSamplerから受け取った音声データをこのWavMuxerへ書き込むコールバックを取得
+	 * #addTrack(#createAudioFormat(IAudioSampler))と#startを呼んでから
+	 * IAudioSampler#addCallbackで登録すること
+	 * @return
+	 */
+	@NonNull
+	public IAudioSampler.SoundSamplerCallback getSamplerCallback() {
+		return mSamplerCallback;
+	}
+
+	/**
+	 * 書き込んだ音声データのバイト数を取得
+	 * @return
+	 */
+	public long getDataSize() {
+		synchronized (mSync) {
+			return mDataSize;
+		}
+	}
+
+	private final IAudioSampler.SoundSamplerCallback mSamplerCallback
+		= new IAudioSampler.SoundSamplerCallback() {
+		@Override
+		public void onData(@NonNull final ByteBuffer buffer, final long presentationTimeUs) {
+			if (isStarted()) {
+				// コールバックスレッドからのみ呼ばれるのでBufferInfoは使い回す
+				mCallbackInfo.set(buffer.position(), buffer.remaining(), presentationTimeUs, 0);
+				writeSampleData(0, buffer, mCallbackInfo);
+			}
+		}
+
+		@Override
+		public void onError(@NonNull final Throwable t) {
+			Log.w(TAG, t);
+		}
+	};
+
+	/**
+	 * 破棄されたかどうかをチェックして破棄されていればIllegalStateExceptionを投げる
+	 * @throws IllegalStateException
+	 */
+	private void checkReleased() throws IllegalStateException {
+		if (mReleased) {
+			throw new IllegalStateException("already released");
+		}
+	}
+
+	/**
+	 * WAVファイルのヘッダーを書き込む
+	 * RIFF(12) + JUNK(8+28, RF64へ切り替える時にds64チャンクに置き換える) + fmt + dataチャンクヘッダー(8)
+	 * @param format
+	 * @throws IOException
+	 */
+	@SuppressLint("InlinedApi")
+	private void writeHeader(@NonNull final MediaFormat format) throws IOException {
+		final int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+		final int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+		final int encoding = format.containsKey(MediaFormat.KEY_PCM_ENCODING)
+			? format.getInteger(MediaFormat.KEY_PCM_ENCODING)
+			: AudioFormat.ENCODING_PCM_16BIT;
+		final int bytesPerSample = AudioRecordCompat.getBitResolution(encoding);
+		final boolean isFloat = encoding == AudioFormat.ENCODING_PCM_FLOAT;
+		// 3チャネル以上の時はWAVE_FORMAT_EXTENSIBLEにする
+		final boolean extensible = channels > 2;
+		mBlockAlign = channels * bytesPerSample;
+		final int byteRate = sampleRate * mBlockAlign;
+		// 約1秒毎にヘッダーのサイズ情報を更新する
+		mPatchIntervalBytes = Math.max(byteRate, mBlockAlign);
+		final ByteBuffer header = mHeader;
+		header.clear();
+		header.put((byte)'R').put((byte)'I').put((byte)'F').put((byte)'F');
+		header.putInt(0);	// RIFFサイズ, 後で更新する
+		header.put((byte)'W').put((byte)'A').put((byte)'V').put((byte)'E');
+		header.put((byte)'J').put((byte)'U').put((byte)'N').put((byte)'K');
+		header.putInt(DS64_SIZE);
+		for (int i = 0; i < DS64_SIZE; i++) {
+			header.put((byte)0);
+		}
+		header.put((byte)'f').put((byte)'m').put((byte)'t').put((byte)' ');
+		header.putInt(extensible ? 40 : 16);
+		header.putShort((short)(extensible ? WAVE_FORMAT_EXTENSIBLE
+			: (isFloat ? WAVE_FORMAT_IEEE_FLOAT : WAVE_FORMAT_PCM)));
+		header.putShort((short)channels);
+		header.putInt(sampleRate);
+		header.putInt(byteRate);
+		header.putShort((short)mBlockAlign);
+		header.putShort((short)(bytesPerSample * 8));
+		if (extensible) {
+			header.putShort((short)22);					// cbSize
+			header.putShort((short)(bytesPerSample * 8));	// wValidBitsPerSample
+			header.putInt(0);								// dwChannelMask, 未指定
+			// SubFormat GUID, 先頭2バイト以外はKSDATAFORMAT_SUBTYPE_PCM/IEEE_FLOAT共通
+			header.putShort((short)(isFloat ? WAVE_FORMAT_IEEE_FLOAT : WAVE_FORMAT_PCM));
+			header.put(new byte[] {
+				0x00, 0x00, 0x00, 0x00, 0x10, 0x00, (byte)0x80, 0x00,
+				0x00, (byte)0xaa, 0x00, 0x38, (byte)0x9b, 0x71 });
+		}
+		header.put((byte)'d').put((byte)'a').put((byte)'t').put((byte)'a');
+		header.putInt(0);	// dataサイズ, 後で更新する
+		header.flip();
+		mHeaderSize = header.remaining();
+		mDataSize = mLastPatchedSize = 0;
+		mIsRF64 = false;
+		mMapped = null;
+		mMappedPosition = mHeaderSize;
+		long pos = 0;
+		while (header.hasRemaining()) {
+			pos += mChannel.write(header, pos);
+		}
+		patchHeader();
+	}
+
+	/**
+	 * ヘッダーのサイズ情報を更新する
+	 * データサイズが4GBを超えたときはRF64形式へ切り替える
+	 * @throws IOException
+	 */
+	private void patchHeader() throws IOException {
+		final long riffSize = mHeaderSize - 8 + mDataSize;
+		if (!mIsRF64 && (riffSize > MAX_RIFF_SIZE)) {
+			// RF64形式へ切り替える
+			mIsRF64 = true;
+			writeFourCC(0, 'R', 'F', '6', '4');
+			writeFourCC(OFFSET_DS64, 'd', 's', '6', '4');
+			writeInt(OFFSET_RIFF_SIZE, (int)MAX_RIFF_SIZE);
+			writeInt(mHeaderSize - 4, (int)MAX_RIFF_SIZE);
+		}
+		if (mIsRF64) {
+			// ds64チャンクの64ビットのRIFFサイズ, dataサイズ, サンプル数
+			writeLong(OFFSET_DS64 + 8, riffSize);
+			writeLong(OFFSET_DS64 + 16, mDataSize);
+			writeLong(OFFSET_DS64 + 24, mDataSize / mBlockAlign);
+		} else {
+			writeInt(OFFSET_RIFF_SIZE, (int)riffSize);
+			writeInt(mHeaderSize - 4, (int)mDataSize);
+		}
+		mLastPatchedSize = mDataSize;
+	}
+
+	/**
+	 * メモリーマップトファイルへ書き込む
+	 * @param src
+	 * @throws IOException
+	 */
+	private void writeMapped(@NonNull final ByteBuffer src) throws IOException {
+		while (src.hasRemaining()) {
+			if ((mMapped == null) || !mMapped.hasRemaining()) {
+				if (mMapped != null) {
+					mMappedPosition += mMapped.capacity();
+				}
+				mMapped = mChannel.map(FileChannel.MapMode.READ_WRITE, mMappedPosition, MMAP_CHUNK_SIZE);
+			}
+			final int n = Math.min(src.remaining(), mMapped.remaining());
+			final int limit = src.limit();
+			src.limit(src.position() + n);
+			mMapped.put(src);
+			src.limit(limit);
+		}
+	}
+
+	private void writeFourCC(final long position,
+		final char c0, final char c1, final char c2, final char c3) throws IOException {
+
+		mWork.clear();
+		mWork.put((byte)c0).put((byte)c1).put((byte)c2).put((byte)c3);
+		mWork.flip();
+		write(position);
+	}
+
+	private void writeInt(final long position, final int value) throws IOException {
+		mWork.clear();
+		mWork.putInt(value);
+		mWork.flip();
+		write(position);
+	}
+
+	private void writeLong(final long position, final long value) throws IOException {
+		mWork.clear();
+		mWork.putLong(value);
+		mWork.flip();
+		write(position);
+	}
+
+	private void write(final long position) throws IOException {
+		long pos = position;
+		while (mWork.hasRemaining()) {
+			pos += mChannel.write(mWork, pos);
+		}
+	}
+}
@@ -153,7 +153,7 @@ public abstract class AbstractChannelDataLink {
 	/**
 	 * 受信スレッドの実行部
 	 */
-	protected static abstract class AbstractClient implements Runnable, Handler.Callback {
+	public static abstract class AbstractClient implements Runnable, Handler.Callback {
 		@NonNull
 		private final WeakReference<AbstractChannelDataLink> mWeakParent;
 		@Nullable
@@ -254,6 +254,24 @@ public class UdpSocket {
 		broadcast(ByteBuffer.wrap(bytes));
 	}
 
+	/**
+	 * 指定したアドレスへメッセージを送信する
+	 * ノンブロッキングなので送信バッファに空きが無いときは送信せずに0を返す
+	 * @param buffer
+	 * @param target
+	 * @return 送信したバイト数
+	 * @throws IOException
+	 * @throws IllegalStateException
+	 */
+	public int send(@NonNull final ByteBuffer buffer, @NonNull final SocketAddress target)
+		throws IOException, IllegalStateException {
+
+		if (channel == null) {
+			throw new IllegalStateException("already released");
+		}
+		return channel.send(buffer, target);
+	}
+
 	/**
 	 * 受信待ち, タイムアウトまたはメッセージを受信するまで呼び出しスレッドをブロックする
 	 * @param buffer
@@ -23,7 +23,6 @@ import android.os.Parcelable;
 import android.util.Log;
 
 import java.io.Serializable;
-import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -252,23 +251,9 @@ public class ArrayUtils {
 	public static byte[] floatArrayToByteArray(
 		@NonNull final float[] array, final int offset, final int num) {
 
-		final ByteBuffer buf = ByteBuffer.allocate(num * Float.SIZE / 8);
-		buf.order(ByteOrder.nativeOrder());
-		final int n8 = num % 8 + offset;
-		final int n = offset + num;
-		for (int i = offset; i < n8; i++) buf.putFloat(array[i]);
-		for (int i = n8; i < n; i += 8) {
-			buf.putFloat(array[i]);
-			buf.putFloat(array[i + 1]);
-			buf.putFloat(array[i + 2]);
-			buf.putFloat(array[i + 3]);
-			buf.putFloat(array[i + 4]);
-			buf.putFloat(array[i + 5]);
-			buf.putFloat(array[i + 6]);
-			buf.putFloat(array[i + 7]);
-		}
-		buf.flip();
-		return buf.array();
+		final byte[] result = new byte[num * Float.SIZE / 8];
+		PrimitiveBytesHelper.toBytes(array, offset, num, result, 0, ByteOrder.nativeOrder());
+		return result;
 	}
 
 	/**
@@ -282,22 +267,9 @@ public class ArrayUtils {
 		@Nullable final byte[] bytes) {
 
 		if ((bytes == null) || (bytes.length < Float.SIZE / 8)) return null;
-		final ByteBuffer tmp = ByteBuffer.wrap(bytes);
-		tmp.order(ByteOrder.nativeOrder());
-		final int n = tmp.limit() / (Float.SIZE / 8);    // nはfloatの配列とみなした時の要素数
+		final int n = bytes.length / (Float.SIZE / 8);    // nはfloatの配列とみなした時の要素数
 		final float[] array = new float[n];
-		final int n8 = n % 8;
-		for (int i = 0; i < n8; i++) array[i] = tmp.getFloat();
-		for (int i = n8; i < n; i += 8) {
-			array[i] = tmp.getFloat();
-			array[i + 1] = tmp.getFloat();
-			array[i + 2] = tmp.getFloat();
-			array[i + 3] = tmp.getFloat();
-			array[i + 4] = tmp.getFloat();
-			array[i + 5] = tmp.getFloat();
-			array[i + 6] = tmp.getFloat();
-			array[i + 7] = tmp.getFloat();
-		}
+		PrimitiveBytesHelper.fromBytes(bytes, 0, ByteOrder.nativeOrder(), array, 0, n);
 		return array;
 	}
 
@@ -312,23 +284,9 @@ public class ArrayUtils {
 	public static byte[] doubleArrayToByteArray(
 		@NonNull final double[] array, final int offset, final int num) {
 
-		final ByteBuffer buf = ByteBuffer.allocate(num * Double.SIZE / 8);
-		buf.order(ByteOrder.nativeOrder());
-		final int n8 = num % 8 + offset;
-		final int n = offset + num;
-		for (int i = offset; i < n8; i++) buf.putDouble(array[i]);
-		for (int i = n8; i < n; i += 8) {
-			buf.putDouble(array[i]);
-			buf.putDouble(array[i + 1]);
-			buf.putDouble(array[i + 2]);
-			buf.putDouble(array[i + 3]);
-			buf.putDouble(array[i + 4]);
-			buf.putDouble(array[i + 5]);
-			buf.putDouble(array[i + 6]);
-			buf.putDouble(array[i + 7]);
-		}
-		buf.flip();
-		return buf.array();
+		final byte[] result = new byte[num * Double.SIZE / 8];
+		PrimitiveBytesHelper.toBytes(array, offset, num, result, 0, ByteOrder.nativeOrder());
+		return result;
 	}
 
 	/**
@@ -342,22 +300,9 @@ public class ArrayUtils {
 		@Nullable final byte[] bytes) {
 
 		if ((bytes == null) || (bytes.length < Double.SIZE / 8)) return null;
-		final ByteBuffer tmp = ByteBuffer.wrap(bytes);
-		tmp.order(ByteOrder.nativeOrder());
-		final int n = tmp.limit() / (Double.SIZE / 8);    // nはdoubleの配列とみなした時の要素数
+		final int n = bytes.length / (Double.SIZE / 8);    // nはdoubleの配列とみなした時の要素数
 		final double[] array = new double[n];
-		final int n8 = n % 8;
-		for (int i = 0; i < n8; i++) array[i] = tmp.getDouble();
-		for (int i = n8; i < n; i += 8) {
-			array[i] = tmp.getDouble();
-			array[i + 1] = tmp.getDouble();
-			array[i + 2] = tmp.getDouble();
-			array[i + 3] = tmp.getDouble();
-			array[i + 4] = tmp.getDouble();
-			array[i + 5] = tmp.getDouble();
-			array[i + 6] = tmp.getDouble();
-			array[i + 7] = tmp.getDouble();
-		}
+		PrimitiveBytesHelper.fromBytes(bytes, 0, ByteOrder.nativeOrder(), array, 0, n);
 		return array;
 	}
 
@@ -372,23 +317,9 @@ public class ArrayUtils {
 	public static byte[] intArrayToByteArray(
 		@NonNull final int[] array, final int offset, final int num) {
 
-		final ByteBuffer buf = ByteBuffer.allocate(num * Integer.SIZE / 8);
-		buf.order(ByteOrder.nativeOrder());
-		final int n8 = num % 8 + offset;
-		final int n = offset + num;
-		for (int i = offset; i < n8; i++) buf.putInt(array[i]);
-		for (int i = n8; i < n; i += 8) {
-			buf.putInt(array[i]);
-			buf.putInt(array[i + 1]);
-			buf.putInt(array[i + 2]);
-			buf.putInt(array[i + 3]);
-			buf.putInt(array[i + 4]);
-			buf.putInt(array[i + 5]);
-			buf.putInt(array[i + 6]);
-			buf.putInt(array[i + 7]);
-		}
-		buf.flip();
-		return buf.array();
+		final byte[] result = new byte[num * Integer.SIZE / 8];
+		PrimitiveBytesHelper.toBytes(array, offset, num, result, 0, ByteOrder.nativeOrder());
+		return result;
 	}
 
 	/**
@@ -402,22 +333,9 @@ public class ArrayUtils {
 		@Nullable final byte[] bytes) {
 
 		if ((bytes == null) || (bytes.length < Integer.SIZE / 8)) return null;
-		final ByteBuffer tmp = ByteBuffer.wrap(bytes);
-		tmp.order(ByteOrder.nativeOrder());
-		final int n = tmp.limit() / (Integer.SIZE / 8);    // nはintの配列とみなした時の要素数
+		final int n = bytes.length / (Integer.SIZE / 8);    // nはintの配列とみなした時の要素数
 		final int[] array = new int[n];
-		final int n8 = n % 8;
-		for (int i = 0; i < n8; i++) array[i] = tmp.getInt();
-		for (int i = n8; i < n; i += 8) {
-			array[i] = tmp.getInt();
-			array[i + 1] = tmp.getInt();
-			array[i + 2] = tmp.getInt();
-			array[i + 3] = tmp.getInt();
-			array[i + 4] = tmp.getInt();
-			array[i + 5] = tmp.getInt();
-			array[i + 6] = tmp.getInt();
-			array[i + 7] = tmp.getInt();
-		}
+		PrimitiveBytesHelper.fromBytes(bytes, 0, ByteOrder.nativeOrder(), array, 0, n);
 		return array;
 	}
 
@@ -432,23 +350,9 @@ public class ArrayUtils {
 	public static byte[] shortArrayToByteArray(
 		@NonNull final short[] array, final int offset, final int num) {
 
-		final ByteBuffer buf = ByteBuffer.allocate(num * Short.SIZE / 8);
-		buf.order(ByteOrder.nativeOrder());
-		final int n8 = num % 8 + offset;
-		final int n = offset + num;
-		for (int i = offset; i < n8; i++) buf.putShort(array[i]);
-		for (int i = n8; i < n; i += 8) {
-			buf.putShort(array[i]);
-			buf.putShort(array[i + 1]);
-			buf.putShort(array[i + 2]);
-			buf.putShort(array[i + 3]);
-			buf.putShort(array[i + 4]);
-			buf.putShort(array[i + 5]);
-			buf.putShort(array[i + 6]);
-			buf.putShort(array[i + 7]);
-		}
-		buf.flip();
-		return buf.array();
+		final byte[] result = new byte[num * Short.SIZE / 8];
+		PrimitiveBytesHelper.toBytes(array, offset, num, result, 0, ByteOrder.nativeOrder());
+		return result;
 	}
 
 	/**
@@ -462,23 +366,10 @@ public class ArrayUtils {
 		@Nullable final byte[] bytes) {
 
 		if ((bytes == null) || (bytes.length < Short.SIZE / 8)) return null;
-		final ByteBuffer tmp = ByteBuffer.wrap(bytes);
-		tmp.order(ByteOrder.nativeOrder());
-		final int n = tmp.limit() / (Short.SIZE / 8);    // nはshortの配列とみなした時の要素数
-		final short[] buf = new short[n];
-		final int n8 = n % 8;
-		for (int i = 0; i < n8; i++) buf[i] = tmp.getShort();
-		for (int i = n8; i < n; i += 8) {
-			buf[i] = tmp.getShort();
-			buf[i + 1] = tmp.getShort();
-			buf[i + 2] = tmp.getShort();
-			buf[i + 3] = tmp.getShort();
-			buf[i + 4] = tmp.getShort();
-			buf[i + 5] = tmp.getShort();
-			buf[i + 6] = tmp.getShort();
-			buf[i + 7] = tmp.getShort();
-		}
-		return buf;
+		final int n = bytes.length / (Short.SIZE / 8);    // nはshortの配列とみなした時の要素数
+		final short[] array = new short[n];
+		PrimitiveBytesHelper.fromBytes(bytes, 0, ByteOrder.nativeOrder(), array, 0, n);
+		return array;
 	}
 
 	/**
@@ -492,23 +383,9 @@ public class ArrayUtils {
 	public static byte[] longArrayToByteArray(
 		@NonNull final long[] array, final int offset, final int num) {
 
-		final ByteBuffer buf = ByteBuffer.allocate(num * Long.SIZE / 8);
-		buf.order(ByteOrder.nativeOrder());
-		final int n8 = num % 8 + offset;
-		final int n = offset + num;
-		for (int i = offset; i < n8; i++) buf.putLong(array[i]);
-		for (int i = n8; i < n; i += 8) {
-			buf.putLong(array[i]);
-			buf.putLong(array[i + 1]);
-			buf.putLong(array[i + 2]);
-			buf.putLong(array[i + 3]);
-			buf.putLong(array[i + 4]);
-			buf.putLong(array[i + 5]);
-			buf.putLong(array[i + 6]);
-			buf.putLong(array[i + 7]);
-		}
-		buf.flip();
-		return buf.array();
+		final byte[] result = new byte[num * Long.SIZE / 8];
+		PrimitiveBytesHelper.toBytes(array, offset, num, result, 0, ByteOrder.nativeOrder());
+		return result;
 	}
 
 	/**
@@ -522,22 +399,9 @@ public class ArrayUtils {
 		@Nullable final byte[] bytes) {
 
 		if ((bytes == null) || (bytes.length < Long.SIZE / 8)) return null;
-		final ByteBuffer tmp = ByteBuffer.wrap(bytes);
-		tmp.order(ByteOrder.nativeOrder());
-		final int n = tmp.limit() / (Long.SIZE / 8);    // nはlongの配列とみなした時の要素数
+		final int n = bytes.length / (Long.SIZE / 8);    // nはlongの配列とみなした時の要素数
 		final long[] array = new long[n];
-		final int n8 = n % 8;
-		for (int i = 0; i < n8; i++) array[i] = tmp.getLong();
-		for (int i = n8; i < n; i += 8) {
-			array[i] = tmp.getLong();
-			array[i + 1] = tmp.getLong();
-			array[i + 2] = tmp.getLong();
-			array[i + 3] = tmp.getLong();
-			array[i + 4] = tmp.getLong();
-			array[i + 5] = tmp.getLong();
-			array[i + 6] = tmp.getLong();
-			array[i + 7] = tmp.getLong();
-		}
+		PrimitiveBytesHelper.fromBytes(bytes, 0, ByteOrder.nativeOrder(), array, 0, n);
 		return array;
 	}
 }
@@ -0,0 +1,627 @@
+package com.serenegiant.utils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.util.Log;
+
+import com.serenegiant.system.Time;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+/**
+ * 呼び出し元スレッドでは文字列生成をせずに書式IDとプリミティブ引数だけを
+ * スレッド毎のリングバッファへ記録して、バックグラウンドスレッドで書式化してから出力するロガー
+ * エンコーダーやGLスレッドでログ出力した時の処理遅延を最小限にするため
+ * 呼び出し元スレッドでは排他制御もメモリー割り当ても行わない
+ * (スレッド毎のリングバッファはそのスレッドで最初にログ出力した時のみ生成する)
+ *
+ * 書式文字列は#registerで事前に登録して、返り値の書式IDを#logへ渡す
+ * 書式文字列内では以下の書式指定子を使うことができる
+ *   %d: 10進数(long), %x: 16進数(long), %f: 浮動小数点数(#fで変換したdouble), %b: 真偽値(0以外をtrue), %%: '%'
+ * リングバッファがいっぱいの時は新しいレコードを破棄して#getDroppedでカウントする
+ */
+public class AsyncLogger {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = AsyncLogger.class.getSimpleName();
+
+	/**
+	 * 1レコードあたりの最大引数の数
+	 */
+	public static final int MAX_ARGS = 4;
+	/**
+	 * スレッド毎のリングバッファのデフォルトのレコード数
+	 */
+	public static final int DEFAULT_RING_SIZE = 1024;
+	/**
+	 * リングバッファが空の時のバックグラウンドスレッドの待機時間[ナノ秒]
+	 */
+	private static final long DRAIN_INTERVAL_NS = 10000000L;	// 10ミリ秒
+	/**
+	 * 1レコードあたりのスロット数(ヘッダー, タイムスタンプ, 引数)
+	 */
+	private static final int RECORD_SLOTS = 2 + MAX_ARGS;
+
+	/**
+	 * 書式化したログの出力先
+	 */
+	public interface Sink {
+		/**
+		 * 書式化したログを出力する
+		 * バックグラウンドスレッドから呼び出される
+		 * @param priority android.util.Logのプライオリティ
+		 * @param tag
+		 * @param timeNs #logを呼び出したときのTime#nanoTime
+		 * @param threadId #logを呼び出したスレッドのID
+		 * @param message
+		 */
+		@WorkerThread
+		public void write(final int priority, @NonNull final String tag,
+			final long timeNs, final long threadId, @NonNull final String message);
+
+		/**
+		 * バッファリングしている内容を出力する
+		 */
+		@WorkerThread
+		public void flush();
+
+		/**
+		 * 関係するリソースを破棄する
+		 */
+		@WorkerThread
+		public void release();
+	}
+
+	/**
+	 * logcatへ出力するSink実装
+	 */
+	public static class LogcatSink implements Sink {
+		@Override
+		public void write(final int priority, @NonNull final String tag,
+			final long timeNs, final long threadId, @NonNull final String message) {
+
+			Log.println(priority, tag, "[" + threadId + "," + (timeNs / 1000L) + "us]" + message);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void release() {
+		}
+	}
+
+	/**
+	 * ファイルへ出力するSink実装
+	 * ファイルサイズが指定値を超えると
+	 * prefix.log→prefix.1.log→prefix.2.log...の様に名前を変えて最大ファイル数まで保持する
+	 */
+	public static class RotatingFileSink implements Sink {
+		@NonNull
+		private final File mDir;
+		@NonNull
+		private final String mPrefix;
+		private final long mMaxBytes;
+		private final int mMaxFiles;
+		@Nullable
+		private Writer mWriter;
+		private long mWritten;
+
+		/**
+		 * コンストラクタ
+		 * @param dir 出力先ディレクトリ
+		 * @param prefix ファイル名のプレフィックス
+		 * @param maxBytes 1ファイルあたりの最大サイズ(目安)
+		 * @param maxFiles 保持する最大ファイル数
+		 */
+		public RotatingFileSink(@NonNull final File dir, @NonNull final String prefix,
+			final long maxBytes, final int maxFiles) {
+
+			mDir = dir;
+			mPrefix = prefix;
+			mMaxBytes = maxBytes;
+			mMaxFiles = Math.max(maxFiles, 1);
+		}
+
+		@Override
+		public void write(final int priority, @NonNull final String tag,
+			final long timeNs, final long threadId, @NonNull final String message) {
+
+			try {
+				if ((mWriter == null) || (mWritten > mMaxBytes)) {
+					rotate();
+				}
+				final String line = String.format(Locale.US, "%d.%06d %d %c/%s: %s\n",
+					timeNs / 1000000000L, (timeNs / 1000L) % 1000000L,
+					threadId, priorityChar(priority), tag, message);
+				//noinspection ConstantConditions
+				mWriter.write(line);
+				mWritten += line.length();
+			} catch (final IOException e) {
+				Log.w(TAG, e);
+			}
+		}
+
+		@Override
+		public void flush() {
+			if (mWriter != null) {
+				try {
+					mWriter.flush();
+				} catch (final IOException e) {
+					Log.w(TAG, e);
+				}
+			}
+		}
+
+		@Override
+		public void release() {
+			if (mWriter != null) {
+				try {
+					mWriter.close();
+				} catch (final IOException e) {
+					Log.w(TAG, e);
+				}
+				mWriter = null;
+			}
+		}
+
+		private void rotate() throws IOException {
+			release();
+			if (!mDir.exists() && !mDir.mkdirs()) {
+				throw new IOException("failed to create dir," + mDir);
+			}
+			for (int i = mMaxFiles - 1; i >= 1; i--) {
+				final File src = file(i - 1);
+				if (src.exists()) {
+					final File dst = file(i);
+					if (dst.exists() && !dst.delete()) {
+						Log.w(TAG, "failed to delete " + dst);
+					}
+					if (!src.renameTo(dst)) {
+						Log.w(TAG, "failed to rename " + src);
+					}
+				}
+			}
+			mWriter = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file(0), false), StandardCharsets.UTF_8));
+			mWritten = 0;
+		}
+
+		@NonNull
+		private File file(final int index) {
+			return new File(mDir, index == 0 ? mPrefix + ".log" : mPrefix + "." + index + ".log");
+		}
+
+		private static char priorityChar(final int priority) {
+			switch (priority) {
+			case Log.VERBOSE:	return 'V';
+			case Log.DEBUG:		return 'D';
+			case Log.INFO:		return 'I';
+			case Log.WARN:		return 'W';
+			case Log.ERROR:		return 'E';
+			default:			return 'A';
+			}
+		}
+	}
+
+	/**
+	 * 登録済み書式
+	 */
+	private static class Format {
+		private final int priority;
+		@NonNull
+		private final String tag;
+		/** 書式指定子で分割した文字列, 書式指定子の数+1個 */
+		@NonNull
+		private final String[] parts;
+		/** 書式指定子の種類 */
+		@NonNull
+		private final char[] types;
+
+		private Format(final int priority, @NonNull final String tag, @NonNull final String format) {
+			this.priority = priority;
+			this.tag = tag;
+			final List<String> parts = new ArrayList<>();
+			final StringBuilder types = new StringBuilder();
+			final StringBuilder sb = new StringBuilder();
+			final int n = format.length();
+			for (int i = 0; i < n; i++) {
+				final char c = format.charAt(i);
+				if ((c == '%') && (i + 1 < n)) {
+					final char t = format.charAt(i + 1);
+					if (t == '%') {
+						sb.append('%');
+						i++;
+						continue;
+					} else if ((t == 'd') || (t == 'x') || (t == 'f') || (t == 'b')) {
+						if (types.length() >= MAX_ARGS) {
+							throw new IllegalArgumentException("too many arguments," + format);
+						}
+						parts.add(sb.toString());
+						sb.setLength(0);
+						types.append(t);
+						i++;
+						continue;
+					}
+				}
+				sb.append(c);
+			}
+			parts.add(sb.toString());
+			this.parts = parts.toArray(new String[0]);
+			this.types = types.toString().toCharArray();
+		}
+	}
+
+	/**
+	 * スレッド毎のリングバッファ
+	 * 書き込みは所有スレッドのみ、読み込みはバックグラウンドスレッドのみ(SPSC)
+	 */
+	private static class Ring {
+		@NonNull
+		private final WeakReference<Thread> mThread;
+		private final long mThreadId;
+		private final int mMask;
+		private final int mSize;
+		@NonNull
+		private final long[] mSlots;
+		/** 書き込んだレコード数, スロットへ書き込んでからlazySetで公開する */
+		@NonNull
+		private final AtomicLong mHead = new AtomicLong();
+		/** 読み込んだレコード数 */
+		@NonNull
+		private final AtomicLong mTail = new AtomicLong();
+		/** 所有スレッドのみが参照するmTailのキャッシュ */
+		private long mTailCache;
+
+		private Ring(@NonNull final Thread thread, final int size) {
+			mThread = new WeakReference<>(thread);
+			mThreadId = thread.getId();
+			mSize = size;
+			mMask = size - 1;
+			mSlots = new long[size * RECORD_SLOTS];
+		}
+
+		/**
+		 * 書き込み用のスロットオフセットを取得
+		 * @return いっぱいなら-1
+		 */
+		private int claim() {
+			final long head = mHead.get();
+			if (head - mTailCache >= mSize) {
+				mTailCache = mTail.get();
+				if (head - mTailCache >= mSize) {
+					return -1;
+				}
+			}
+			return (int)(head & mMask) * RECORD_SLOTS;
+		}
+
+		private void publish() {
+			mHead.lazySet(mHead.get() + 1);
+		}
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final Sink mSink;
+	private final int mRingSize;
+	@NonNull
+	private final CopyOnWriteArrayList<Ring> mRings = new CopyOnWriteArrayList<>();
+	@NonNull
+	private final ThreadLocal<Ring> mLocalRing = new ThreadLocal<>();
+	@NonNull
+	private final AtomicLong mDropped = new AtomicLong();
+	/**
+	 * 登録済み書式, 登録時にコピーして置き換える
+	 */
+	@NonNull
+	private volatile Format[] mFormats = new Format[0];
+	private volatile int mMinPriority = Log.VERBOSE;
+	private volatile boolean mEnabled = true;
+	private volatile boolean mReleased;
+	@NonNull
+	private final Thread mDrainThread;
+
+	/**
+	 * コンストラクタ
+	 * @param sink
+	 */
+	public AsyncLogger(@NonNull final Sink sink) {
+		this(sink, DEFAULT_RING_SIZE);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param sink
+	 * @param ringSize スレッド毎のリングバッファのレコード数, 2のべき乗に切り上げる
+	 */
+	public AsyncLogger(@NonNull final Sink sink, final int ringSize) {
+		mSink = sink;
+		int n = Integer.highestOneBit(Math.max(ringSize, 2));
+		if (n < ringSize) {
+			n <<= 1;
+		}
+		mRingSize = n;
+		mDrainThread = new Thread(mDrainTask, TAG);
+		mDrainThread.setDaemon(true);
+		mDrainThread.start();
+	}
+
+	/**
+	 * 関係するリソースを破棄する
+	 * 記録済みのレコードを出力してからバックグラウンドスレッドを終了する
+	 */
+	public void release() {
+		if (!mReleased) {
+			mReleased = true;
+			LockSupport.unpark(mDrainThread);
+			try {
+				mDrainThread.join(1000);
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * ログ出力の有効無効を切り替える
+	 * @param enabled
+	 */
+	public void setEnabled(final boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	/**
+	 * 出力する最低プライオリティをセットする
+	 * @param priority android.util.Logのプライオリティ
+	 */
+	public void setMinPriority(final int priority) {
+		mMinPriority = priority;
+	}
+
+	/**
+	 * リングバッファがいっぱいで破棄したレコード数を取得
+	 * @return
+	 */
+	public long getDropped() {
+		return mDropped.get();
+	}
+
+	/**
+	 * 書式を登録する
+	 * @param priority android.util.Logのプライオリティ
+	 * @param tag
+	 * @param format
+	 * @return 書式ID
+	 * @throws IllegalArgumentException 書式指定子の数がMAX_ARGSを超えたとき
+	 */
+	public int register(final int priority, @NonNull final String tag, @NonNull final String format)
+		throws IllegalArgumentException {
+
+		final Format f = new Format(priority, tag, format);
+		synchronized (mSync) {
+			final Format[] formats = mFormats;
+			final Format[] result = new Format[formats.length + 1];
+			System.arraycopy(formats, 0, result, 0, formats.length);
+			result[formats.length] = f;
+			mFormats = result;
+			return formats.length;
+		}
+	}
+
+	/**
+	 * doubleを#logの引数として渡すためにlongへ変換する
+	 * 書式指定子は%fを使う
+	 * @param value
+	 * @return
+	 */
+	public static long f(final double value) {
+		return Double.doubleToRawLongBits(value);
+	}
+
+	/**
+	 * booleanを#logの引数として渡すためにlongへ変換する
+	 * 書式指定子は%bを使う
+	 * @param value
+	 * @return
+	 */
+	public static long b(final boolean value) {
+		return value ? 1 : 0;
+	}
+
+	public void log(final int id) {
+		log(0, id, 0, 0, 0, 0);
+	}
+
+	public void log(final int id, final long a0) {
+		log(1, id, a0, 0, 0, 0);
+	}
+
+	public void log(final int id, final long a0, final long a1) {
+		log(2, id, a0, a1, 0, 0);
+	}
+
+	public void log(final int id, final long a0, final long a1, final long a2) {
+		log(3, id, a0, a1, a2, 0);
+	}
+
+	public void log(final int id, final long a0, final long a1, final long a2, final long a3) {
+		log(4, id, a0, a1, a2, a3);
+	}
+
+	/**
+	 * リングバッファへレコードを書き込む
+	 * @param argc
+	 * @param id
+	 * @param a0
+	 * @param a1
+	 * @param a2
+	 * @param a3
+	 */
+	private void log(final int argc, final int id,
+		final long a0, final long a1, final long a2, final long a3) {
+
+		if (!mEnabled || mReleased) return;
+		final Format[] formats = mFormats;
+		if ((id < 0) || (id >= formats.length) || (formats[id].priority < mMinPriority)) return;
+		Ring ring = mLocalRing.get();
+		if (ring == null) {
+			ring = new Ring(Thread.currentThread(), mRingSize);
+			mLocalRing.set(ring);
+			mRings.add(ring);
+		}
+		final int offset = ring.claim();
+		if (offset < 0) {
+			mDropped.incrementAndGet();
+			return;
+		}
+		final long[] slots = ring.mSlots;
+		slots[offset] = ((long)id << 8) | argc;
+		slots[offset + 1] = Time.nanoTime();
+		slots[offset + 2] = a0;
+		slots[offset + 3] = a1;
+		slots[offset + 4] = a2;
+		slots[offset + 5] = a3;
+		ring.publish();
+	}
+
+	/**
+	 * バックグラウンドスレッドでの処理
+	 */
+	private final Runnable mDrainTask = new Runnable() {
+		@Override
+		public void run() {
+			if (DEBUG) Log.v(TAG, "drain:start");
+			final StringBuilder sb = new StringBuilder();
+			try {
+				for ( ; ; ) {
+					final boolean released = mReleased;
+					int n = 0;
+					for (final Ring ring: mRings) {
+						n += drain(ring, sb);
+						final Thread t = ring.mThread.get();
+						if (((t == null) || !t.isAlive())
+							&& (ring.mHead.get() == ring.mTail.get())) {
+							// スレッドが終了していて未出力のレコードがないリングバッファは削除する
+							mRings.remove(ring);
+						}
+					}
+					if (n > 0) {
+						mSink.flush();
+					}
+					if (released) {
+						break;
+					} else if (n == 0) {
+						LockSupport.parkNanos(DRAIN_INTERVAL_NS);
+					}
+				}
+			} finally {
+				mSink.flush();
+				mSink.release();
+				mRings.clear();
+			}
+			if (DEBUG) Log.v(TAG, "drain:finished");
+		}
+	};
+
+	/**
+	 * 指定したリングバッファ内のレコードを書式化してSinkへ出力する
+	 * @param ring
+	 * @param sb
+	 * @return 出力したレコード数
+	 */
+	@WorkerThread
+	private int drain(@NonNull final Ring ring, @NonNull final StringBuilder sb) {
+		// 書式はレコードの書き込み前に登録されるのでmHeadを読み込んでからmFormatsを読み込む
+		// (逆順だと間に登録された書式のレコードを読み飛ばしてしまう)
+		final long head = ring.mHead.get();
+		Format[] formats = mFormats;
+		long tail = ring.mTail.get();
+		int result = 0;
+		final long[] slots = ring.mSlots;
+		for ( ; tail < head; tail++) {
+			final int offset = (int)(tail & ring.mMask) * RECORD_SLOTS;
+			final long header = slots[offset];
+			final int id = (int)(header >>> 8);
+			final int argc = (int)(header & 0xff);
+			final long timeNs = slots[offset + 1];
+			if (id >= formats.length) {
+				formats = mFormats;
+			}
+			if (id < formats.length) {
+				final Format format = formats[id];
+				sb.setLength(0);
+				final int n = format.types.length;
+				for (int i = 0; i < n; i++) {
+					sb.append(format.parts[i]);
+					if (i < argc) {
+						append(sb, format.types[i], slots[offset + 2 + i]);
+					} else {
+						sb.append('?');
+					}
+				}
+				sb.append(format.parts[n]);
+				try {
+					mSink.write(format.priority, format.tag, timeNs, ring.mThreadId, sb.toString());
+				} catch (final Exception e) {
+					Log.w(TAG, e);
+				}
+				result++;
+			}
+			ring.mTail.lazySet(tail + 1);
+		}
+		return result;
+	}
+
+	private static void append(@NonNull final StringBuilder sb, final char type, final long value) {
+		switch (type) {
+		case 'x':
+			sb.append(Long.toHexString(value));
+			break;
+		case 'f':
+			sb.append(Double.longBitsToDouble(value));
+			break;
+		case 'b':
+			sb.append(value != 0);
+			break;
+		case 'd':
+		default:
+			sb.append(value);
+			break;
+		}
+	}
+}
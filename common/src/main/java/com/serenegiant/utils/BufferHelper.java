@@ -220,39 +220,72 @@ public class BufferHelper {
 
 	/**
 	 * AnnexBのスタートマーカー(N[00] 00 00 01 (N ≧ 0))を探して先頭インデックスを返す
-	 * 返り値が0以上の場合は、返り値+3がpayloadの先頭位置(nalu headerのはず)
+	 * 返り値が0以上の場合は、返り値+3(4バイトのスタートマーカーの場合は+4)がpayloadの先頭位置(nalu headerのはず)
 	 * @param data
 	 * @param offset
 	 * @return 見つからなければ負
 	 */
 	public static final int findAnnexB(final byte[] data, final int offset) {
 		if (data != null) {
-			final int len5 = data.length - 5;	// 本当はlength-3までだけどpayloadが無いのは無効とみなしてlength-4までとする
-			for (int i = offset; i < len5; i++) {
-				// 最低3つは連続して0x00
-				if ((data[i] != 0x00) || (data[i+1] != 0x00) || (data[i+2] != 0x00)) {
+			return findAnnexB(ByteBuffer.wrap(data), offset, data.length);
+		}
+		return -1;
+	}
+
+	/**
+	 * ByteBufferの指定した範囲からAnnexBのスタートマーカー(N[00] 00 00 01 (N ≧ 0))を探して先頭インデックスを返す
+	 * 8バイトずつ読み込んで0x00を含まなければまとめて読み飛ばすので1バイトずつ比較するよりも速い
+	 * ByteBufferの内容はコピーせず、position/limitも変更しない
+	 * 4バイトのスタートマーカー(00 00 00 01)の場合は先頭の0x00の位置を返す
+	 * @param buffer
+	 * @param offset 検索開始位置(ByteBuffer先頭からの絶対位置)
+	 * @param limit 検索終了位置(ByteBuffer先頭からの絶対位置, この位置は含まない)
+	 * @return 見つからなければ負
+	 */
+	public static int findAnnexB(@NonNull final ByteBuffer buffer, final int offset, final int limit) {
+		// payloadが無いのは無効とみなしてlimit-4までとする
+		final int last = limit - 4;
+		int i = Math.max(offset, 0);
+		while (i <= last) {
+			if (i + 8 <= limit) {
+				final long v = buffer.getLong(i);
+				if (((v - 0x0101010101010101L) & ~v & 0x8080808080808080L) == 0) {
+					// 8バイト中に0x00が無いのでここから始まるスタートマーカーは無い
+					i += 8;
 					continue;
 				}
-				// 4つ目が0x01ならOK
-				if (data[i+3] == 0x01) {
-					return i;
-				}
 			}
-			final int len4 = data.length - 4;	// 本当はlength-3までだけどpayloadが無いのは無効とみなしてlength-4までとする
-			for (int i = offset; i < len4; i++) {
-				// 最低2つは連続して0x00でないとだめ
-				if ((data[i] != 0x00) || (data[i+1] != 0x00)) {
-					continue;
-				}
-				// 3つ目が0x01ならOK
-				if (data[i+2] == 0x01) {
-					return i;
+			final int n = Math.min(i + 8, last + 1);
+			for (; i < n; i++) {
+				if ((buffer.get(i) == 0x00) && (buffer.get(i + 1) == 0x00)
+					&& (buffer.get(i + 2) == 0x01)) {
+					return ((i > offset) && (buffer.get(i - 1) == 0x00)) ? i - 1 : i;
 				}
 			}
 		}
 		return -1;
 	}
 
+	/**
+	 * 指定した位置から始まるAnnexBのスタートマーカーの長さを取得する
+	 * @param buffer
+	 * @param index BufferHelper#findAnnexBの返り値
+	 * @return 3または4, スタートマーカーでなければ0
+	 */
+	public static int getAnnexBStartMarkLength(@NonNull final ByteBuffer buffer, final int index) {
+		final int limit = buffer.limit();
+		if ((index >= 0) && (index + 3 <= limit)
+			&& (buffer.get(index) == 0x00) && (buffer.get(index + 1) == 0x00)) {
+			final byte b = buffer.get(index + 2);
+			if (b == 0x01) {
+				return 3;
+			} else if ((b == 0x00) && (index + 4 <= limit) && (buffer.get(index + 3) == 0x01)) {
+				return 4;
+			}
+		}
+		return 0;
+	}
+
 	/**
 	 * float1つのサイズ[バイト]
 	 */
@@ -22,6 +22,7 @@ import com.serenegiant.system.Time;
 
 /**
  * フレームレート測定用ヘルパークラス
+ * フレーム間隔のパーセンタイル値やジャンク数が必要な場合はFrameTimingRecorderを使う
  */
 public class FpsCounter {
 	private int cnt, prevCnt;
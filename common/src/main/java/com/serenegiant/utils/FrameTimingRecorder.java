@@ -0,0 +1,279 @@
+package com.serenegiant.utils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.math.Fraction;
+import com.serenegiant.system.Time;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * フレーム間隔測定用ヘルパークラス
+ * FpsCounterと違って排他制御なし・フレーム毎のメモリー割り当てなしで
+ * 固定長のリングバッファへ描画タイムスタンプを記録して、
+ * 直近のフレーム間隔のパーセンタイル値(p50/p95/p99)、ジャンク数、ドロップフレーム数、最大間隔を取得できる
+ * #recordは1つのスレッド(通常はGLスレッド)からのみ呼び出すこと(シングルライター)
+ * #getStatsは任意のスレッドから呼び出し可能
+ */
+public class FrameTimingRecorder {
+	/**
+	 * リングバッファのデフォルトサイズ
+	 */
+	public static final int DEFAULT_CAPACITY = 128;
+	/**
+	 * 目標フレーム間隔に対してこの倍率を超えるとジャンクとみなす
+	 */
+	public static final float JANK_FACTOR = 1.5f;
+
+	/**
+	 * フレーム間隔統計値保持用のホルダークラス
+	 * 内部に作業用配列を保持するので使い回すことで#getStats呼び出し時もメモリー割り当てなしにできる
+	 */
+	public static class Stats {
+		@NonNull
+		private final long[] mWork;
+		/** 統計計算に使ったフレーム間隔の数 */
+		public int samples;
+		/** フレーム間隔の中央値[ナノ秒] */
+		public long p50Ns;
+		/** フレーム間隔の95パーセンタイル値[ナノ秒] */
+		public long p95Ns;
+		/** フレーム間隔の99パーセンタイル値[ナノ秒] */
+		public long p99Ns;
+		/** リングバッファ内での最大フレーム間隔[ナノ秒] */
+		public long maxIntervalNs;
+		/** リセット後の最大フレーム間隔[ナノ秒] */
+		public long maxGapNs;
+		/** リセット後のフレーム数 */
+		public long frames;
+		/** リセット後のジャンク数 */
+		public long janks;
+		/** リセット後のドロップフレーム数の推定値 */
+		public long dropped;
+		/** リングバッファ内のフレーム間隔から計算したフレームレート */
+		public float fps;
+
+		/**
+		 * コンストラクタ
+		 * @param capacity 対応するFrameTimingRecorderの容量以上にすること
+		 */
+		public Stats(final int capacity) {
+			mWork = new long[capacity];
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+				"Stats{samples=%d,fps=%.2f,p50=%.2fms,p95=%.2fms,p99=%.2fms,max=%.2fms,"
+					+ "maxGap=%.2fms,frames=%d,janks=%d,dropped=%d}",
+				samples, fps, p50Ns / 1e6f, p95Ns / 1e6f, p99Ns / 1e6f, maxIntervalNs / 1e6f,
+				maxGapNs / 1e6f, frames, janks, dropped);
+		}
+	}
+
+	private final int mCapacity;
+	private final int mMask;
+	@NonNull
+	private final long[] mTimestamps;
+	/**
+	 * 書き込んだタイムスタンプの総数
+	 * リングバッファへ書き込んでからlazySetで公開する
+	 */
+	@NonNull
+	private final AtomicLong mWritten = new AtomicLong();
+	/**
+	 * 目標フレーム間隔[ナノ秒], 0以下ならジャンク・ドロップフレームの判定をしない
+	 */
+	private volatile long mTargetIntervalNs;
+	// 以下はシングルライターのみが更新するのでvolatileで公開するだけ
+	private volatile long mFrames;
+	private volatile long mJanks;
+	private volatile long mDropped;
+	private volatile long mMaxGapNs;
+	private long mLastNs;
+
+	/**
+	 * コンストラクタ
+	 * 目標フレームレートなし
+	 */
+	public FrameTimingRecorder() {
+		this(DEFAULT_CAPACITY, null);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param capacity リングバッファのサイズ, 2のべき乗に切り上げる
+	 * @param targetFps 目標フレームレート, nullならジャンク・ドロップフレームの判定をしない
+	 */
+	public FrameTimingRecorder(final int capacity, @Nullable final Fraction targetFps) {
+		if (capacity < 2) {
+			throw new IllegalArgumentException("capacity should be greater than 1");
+		}
+		int n = Integer.highestOneBit(capacity);
+		if (n < capacity) {
+			n <<= 1;
+		}
+		mCapacity = n;
+		mMask = n - 1;
+		mTimestamps = new long[n];
+		setTargetFps(targetFps);
+	}
+
+	/**
+	 * リングバッファのサイズを取得
+	 * @return
+	 */
+	public int capacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * 目標フレームレートをセット
+	 * @param targetFps nullまたは0以下ならジャンク・ドロップフレームの判定をしない
+	 */
+	public void setTargetFps(@Nullable final Fraction targetFps) {
+		final float fps = targetFps != null ? targetFps.asFloat() : 0.0f;
+		mTargetIntervalNs = fps > 0 ? Math.round(1000000000.0 / fps) : 0;
+	}
+
+	/**
+	 * 統計値をリセットする
+	 * #recordと同じスレッドまたは#recordを呼んでいないときに呼び出すこと
+	 */
+	public void reset() {
+		mWritten.set(0);
+		mFrames = mJanks = mDropped = mMaxGapNs = 0;
+		mLastNs = 0;
+	}
+
+	/**
+	 * 現在時刻でフレームを記録する
+	 */
+	public void record() {
+		record(Time.nanoTime());
+	}
+
+	/**
+	 * 指定した時刻でフレームを記録する
+	 * 排他制御もメモリー割り当てもしない
+	 * @param timeNs Time#nanoTimeと同じ時間軸のタイムスタンプ[ナノ秒]
+	 */
+	public void record(final long timeNs) {
+		final long last = mLastNs;
+		if (last != 0) {
+			final long interval = timeNs - last;
+			if (interval > mMaxGapNs) {
+				mMaxGapNs = interval;
+			}
+			final long target = mTargetIntervalNs;
+			if ((target > 0) && (interval > target * JANK_FACTOR)) {
+				mJanks++;
+				mDropped += (interval + target / 2) / target - 1;
+			}
+		}
+		mLastNs = timeNs;
+		mFrames++;
+		final long written = mWritten.get();
+		mTimestamps[(int)(written & mMask)] = timeNs;
+		mWritten.lazySet(written + 1);
+	}
+
+	/**
+	 * 統計値を取得する
+	 * 呼び出しごとにStatsを生成する
+	 * @return
+	 */
+	@NonNull
+	public Stats getStats() {
+		return getStats(new Stats(mCapacity));
+	}
+
+	/**
+	 * 統計値を取得する
+	 * 排他制御をしていないので各値は厳密に同一時点のものとは限らない
+	 * @param stats 値を書き込むStats, 使い回すことでメモリー割り当てなしにできる
+	 * @return 引数のstats
+	 * @throws IllegalArgumentException statsの容量が足りないとき
+	 */
+	@NonNull
+	public Stats getStats(@NonNull final Stats stats) throws IllegalArgumentException {
+		if (stats.mWork.length < mCapacity) {
+			throw new IllegalArgumentException("stats capacity is too small");
+		}
+		final long[] work = stats.mWork;
+		final long end = mWritten.get();
+		long start = Math.max(end - mCapacity, 0);
+		for (long i = start; i < end; i++) {
+			work[(int)(i - start)] = mTimestamps[(int)(i & mMask)];
+		}
+		// コピー中にライターに上書きされたかもしれない古い部分は捨てる
+		// ライターはmWrittenを進める前に次のスロットへ書き込むので
+		// mWritten - mCapacityのスロットも上書き中の可能性があるためさらに1つ捨てる
+		final long clobbered = mWritten.get() - mCapacity;
+		final int skip = (int)Math.max(clobbered + 1 - start, 0);
+		start += skip;
+		final int n = (int)Math.max(end - start - 1, 0);
+		long max = 0;
+		for (int i = 0; i < n; i++) {
+			final long interval = work[skip + i + 1] - work[skip + i];
+			work[i] = interval;
+			if (interval > max) {
+				max = interval;
+			}
+		}
+		stats.samples = n;
+		stats.maxIntervalNs = max;
+		if (n > 0) {
+			Arrays.sort(work, 0, n);
+			stats.p50Ns = work[percentileIndex(n, 50)];
+			stats.p95Ns = work[percentileIndex(n, 95)];
+			stats.p99Ns = work[percentileIndex(n, 99)];
+			long sum = 0;
+			for (int i = 0; i < n; i++) {
+				sum += work[i];
+			}
+			stats.fps = sum > 0 ? n * 1000000000.0f / sum : 0.0f;
+		} else {
+			stats.p50Ns = stats.p95Ns = stats.p99Ns = 0;
+			stats.fps = 0.0f;
+		}
+		stats.maxGapNs = mMaxGapNs;
+		stats.frames = mFrames;
+		stats.janks = mJanks;
+		stats.dropped = mDropped;
+		return stats;
+	}
+
+	/**
+	 * ソート済み配列から指定したパーセンタイル値のインデックスを取得(nearest-rank法)
+	 * @param n
+	 * @param percentile
+	 * @return
+	 */
+	private static int percentileIndex(final int n, final int percentile) {
+		final int rank = (n * percentile + 99) / 100;
+		return Math.min(Math.max(rank - 1, 0), n - 1);
+	}
+}
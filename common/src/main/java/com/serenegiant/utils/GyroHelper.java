@@ -34,14 +34,56 @@ import com.serenegiant.system.ContextUtils;
 import java.lang.ref.WeakReference;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * ジャイロセンセーからのデータ取得・計算用ヘルパークラス
+ * センサー値はセンサーのコールバックスレッドのみが更新するので、
+ * 排他制御の代わりにシーケンスロック(seqlock)で公開して描画スレッド等からロックなしで読み込めるようにする
+ * また各センサーの生の値と計算した方位をタイムスタンプ付きでSensorSampleRingへ記録するので
+ * #getInterpolatedで任意の時刻(フレームのタイムスタンプ等)の値を補間して取得できる
  */
 public class GyroHelper {
 	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
 	private static final String TAG = GyroHelper.class.getSimpleName();
 
+	/**
+	 * SensorSampleRingへ方位(方位角・パン・チルト[度])を記録するときのサンプルの種類
+	 * Sensor.TYPE_XXXと重ならないように負の値にする
+	 */
+	public static final int SAMPLE_TYPE_ORIENTATION = -1;
+
+	/**
+	 * センサー値のスナップショット
+	 */
+	public static class SensorSnapshot {
+		/** 磁気[μT] */
+		@NonNull
+		public final float[] magnet = new float[3];
+		/** 重力[m/s^2] */
+		@NonNull
+		public final float[] gravity = new float[3];
+		/** 方位[-180,+180][度] */
+		@NonNull
+		public final float[] azimuth = new float[3];
+		/** 加速度[m/s^2] */
+		@NonNull
+		public final float[] accel = new float[3];
+		/** ジャイロ[radian/s] */
+		@NonNull
+		public final float[] gyro = new float[3];
+		/** 最後に更新したセンサーイベントのタイムスタンプ[ナノ秒] */
+		public long timestampNs;
+	}
+
+	// スナップショット内のオフセット
+	private static final int IX_MAGNET = 0;
+	private static final int IX_GRAVITY = 3;
+	private static final int IX_AZIMUTH = 6;
+	private static final int IX_ACCEL = 9;
+	private static final int IX_GYRO = 12;
+	private static final int NUM_VALUES = 15;
+
 	private static final int[] SENSOR_TYPES = {
 		Sensor.TYPE_MAGNETIC_FIELD,
 		Sensor.TYPE_GRAVITY,
@@ -56,8 +98,20 @@ public class GyroHelper {
 	private SensorManager mSensorManager;
 	private boolean mRegistered;
 	private int mRotation;									// 画面の向き
+	/**
+	 * 公開用のセンサー値を保護するシーケンスロック
+	 */
+	@NonNull
+	private final SeqLock mSeqLock = new SeqLock();
+	/**
+	 * 公開用のセンサー値, Float#floatToRawIntBitsで変換して保持する
+	 */
 	@NonNull
-	private final Object mSensorSync = new Object();		// センサー値同期用
+	private final AtomicIntegerArray mSnapshot = new AtomicIntegerArray(NUM_VALUES);
+	private volatile long mTimestampNs;
+	@NonNull
+	private final SensorSampleRing mSamples;
+	// 以下はセンサーのコールバックスレッドのみがアクセスする作業用配列
 	@NonNull
 	private final float[] mMagnetValues = new float[3];		// 磁気[μT]
 	@NonNull
@@ -74,7 +128,17 @@ public class GyroHelper {
 	 * @param context
 	 */
 	public GyroHelper(@NonNull final Context context) {
+		this(context, SensorSampleRing.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param context
+	 * @param sampleCapacity タイムスタンプ付きのセンサー値を保持するリングバッファのサンプル数
+	 */
+	public GyroHelper(@NonNull final Context context, final int sampleCapacity) {
 		mWeakContext = new WeakReference<Context>(context);
+		mSamples = new SensorSampleRing(sampleCapacity);
 		synchronized (mSync) {
 			mSensorManager = ContextUtils.requireSystemService(context, SensorManager.class);
 		}
@@ -100,6 +164,13 @@ public class GyroHelper {
 				mMagnetValues[i] = mGravityValues[i] = mAzimuthValues[i] = 0;
 				mAccelValues[i] = mGyroValues[i] = 0;
 			}
+			mSeqLock.beginWrite();
+			for (int i = 0; i < NUM_VALUES; i++) {
+				mSnapshot.lazySet(i, Float.floatToRawIntBits(0.0f));
+			}
+			mTimestampNs = 0;
+			mSeqLock.endWrite();
+			mSamples.clear();
 			// 重力センサーがあればそれを使う。なければ加速度センサーで代用する
 			boolean hasGravity = false;
 			mRegistered = true;
@@ -146,9 +217,7 @@ public class GyroHelper {
 	 * @return
 	 */
 	public float getAzimuth() {
-		synchronized (mSensorSync) {
-			return mAzimuthValues[0];
-		}
+		return value(IX_AZIMUTH);
 	}
 
 	/**
@@ -156,9 +225,7 @@ public class GyroHelper {
 	 * @return
 	 */
 	public float getPan() {
-		synchronized (mSensorSync) {
-			return mAzimuthValues[1];
-		}
+		return value(IX_AZIMUTH + 1);
 	}
 
 	/**
@@ -166,9 +233,7 @@ public class GyroHelper {
 	 * @return
 	 */
 	public float getTilt() {
-		synchronized (mSensorSync) {
-			return mAzimuthValues[2];
-		}
+		return value(IX_AZIMUTH + 2);
 	}
 
 	/**
@@ -176,9 +241,7 @@ public class GyroHelper {
 	 * @return
 	 */
 	public float getAccelX() {
-		synchronized (mSensorSync) {
-			return mAccelValues[0];
-		}
+		return value(IX_ACCEL);
 	}
 
 	/**
@@ -186,9 +249,7 @@ public class GyroHelper {
 	 * @return
 	 */
 	public float getAccelY() {
-		synchronized (mSensorSync) {
-			return mAccelValues[1];
-		}
+		return value(IX_ACCEL + 1);
 	}
 
 	/**
@@ -196,9 +257,7 @@ public class GyroHelper {
 	 * @return
 	 */
 	public float getAccelZ() {
-		synchronized (mSensorSync) {
-			return mAccelValues[2];
-		}
+		return value(IX_ACCEL + 2);
 	}
 
 	/**
@@ -207,10 +266,14 @@ public class GyroHelper {
 	 * @return
 	 */
 	public float[] getAccel(@Nullable final float[] out) {
-		final float[] _out = (out != null) && (out.length > 3) ? out : new float[3];
-		synchronized (mSensorSync) {
-			System.arraycopy(mAccelValues, 0, _out, 0, 3);
-		}
+		final float[] _out = (out != null) && (out.length >= 3) ? out : new float[3];
+		int seq;
+		do {
+			seq = mSeqLock.beginRead();
+			_out[0] = value(IX_ACCEL);
+			_out[1] = value(IX_ACCEL + 1);
+			_out[2] = value(IX_ACCEL + 2);
+		} while (mSeqLock.retry(seq));
 		return _out;
 	}
 
@@ -219,9 +282,7 @@ public class GyroHelper {
 	 * @return
 	 */
 	public float getGyroX() {
-		synchronized (mSensorSync) {
-			return mGyroValues[0];
-		}
+		return value(IX_GYRO);
 	}
 
 	/**
@@ -229,9 +290,7 @@ public class GyroHelper {
 	 * @return
 	 */
 	public float getGyroY() {
-		synchronized (mSensorSync) {
-			return mGyroValues[1];
-		}
+		return value(IX_GYRO + 1);
 	}
 
 	/**
@@ -239,9 +298,7 @@ public class GyroHelper {
 	 * @return
 	 */
 	public float getGyroZ() {
-		synchronized (mSensorSync) {
-			return mGyroValues[2];
-		}
+		return value(IX_GYRO + 2);
 	}
 
 	/**
@@ -250,13 +307,87 @@ public class GyroHelper {
 	 * @return
 	 */
 	public float[] getGyro(@Nullable final float[] out) {
-		final float[] _out = (out != null) && (out.length > 3) ? out : new float[3];
-		synchronized (mSensorSync) {
-			System.arraycopy(mGyroValues, 0, _out, 0, 3);
-		}
+		final float[] _out = (out != null) && (out.length >= 3) ? out : new float[3];
+		int seq;
+		do {
+			seq = mSeqLock.beginRead();
+			_out[0] = value(IX_GYRO);
+			_out[1] = value(IX_GYRO + 1);
+			_out[2] = value(IX_GYRO + 2);
+		} while (mSeqLock.retry(seq));
 		return _out;
 	}
 
+	/**
+	 * 全てのセンサー値の一貫したスナップショットを取得
+	 * ロックせずに読み込むのでセンサーのコールバックスレッドをブロックしない
+	 * @param out 値を受け取るSensorSnapshot, nullなら新規に生成する
+	 * @return
+	 */
+	@NonNull
+	public SensorSnapshot getSnapshot(@Nullable final SensorSnapshot out) {
+		final SensorSnapshot result = out != null ? out : new SensorSnapshot();
+		int seq;
+		do {
+			seq = mSeqLock.beginRead();
+			for (int i = 0; i < 3; i++) {
+				result.magnet[i] = value(IX_MAGNET + i);
+				result.gravity[i] = value(IX_GRAVITY + i);
+				result.azimuth[i] = value(IX_AZIMUTH + i);
+				result.accel[i] = value(IX_ACCEL + i);
+				result.gyro[i] = value(IX_GYRO + i);
+			}
+			result.timestampNs = mTimestampNs;
+		} while (mSeqLock.retry(seq));
+		return result;
+	}
+
+	/**
+	 * タイムスタンプ付きのセンサー値を保持しているリングバッファを取得
+	 * サンプルの種類はSensor.TYPE_XXXまたは#SAMPLE_TYPE_ORIENTATION
+	 * タイムスタンプはSensorEvent#timestamp
+	 * @return
+	 */
+	@NonNull
+	public SensorSampleRing getSamples() {
+		return mSamples;
+	}
+
+	/**
+	 * 指定した時刻のセンサー値を前後のサンプルから線形補間して取得する
+	 * @param type Sensor.TYPE_XXXまたは#SAMPLE_TYPE_ORIENTATION
+	 * @param timestampNs SensorEvent#timestampと同じ時間軸の時刻[ナノ秒]
+	 * @param out 値を受け取る配列
+	 * @return 値を取得できればtrue
+	 */
+	public boolean getInterpolated(final int type, final long timestampNs,
+		@NonNull final float[] out) {
+
+		return mSamples.interpolate(type, timestampNs,
+			type == SAMPLE_TYPE_ORIENTATION, out);
+	}
+
+	/**
+	 * 公開用のセンサー値を取得
+	 * @param ix
+	 * @return
+	 */
+	private float value(final int ix) {
+		return Float.intBitsToFloat(mSnapshot.get(ix));
+	}
+
+
+	/**
+	 * 公開用のセンサー値を更新する, SeqLock#beginWrite/#endWriteの間で呼ぶこと
+	 * @param ix
+	 * @param values
+	 */
+	private void publish(final int ix, @NonNull final float[] values) {
+		mSnapshot.lazySet(ix, Float.floatToRawIntBits(values[0]));
+		mSnapshot.lazySet(ix + 1, Float.floatToRawIntBits(values[1]));
+		mSnapshot.lazySet(ix + 2, Float.floatToRawIntBits(values[2]));
+	}
+
 	/**
 	 * センサー値を取得するためのSensorEventListener実装
 	 */
@@ -322,41 +453,55 @@ public class GyroHelper {
 			if (DEBUG) Log.v(TAG, "onSensorChanged:" + event);
 			final float[] values = event.values;
 			final int type = event.sensor.getType();
+			final long timestamp = event.timestamp;
 			switch (type) {
 			case Sensor.TYPE_MAGNETIC_FIELD:	// 磁気センサー
-				synchronized (mSensorSync) {
-					// ハイパスフィルターを通して取得
-					// alpha=t/(t+dt), dt≒20msec@SENSOR_DELAY_GAME, tはローパスフィルタの時定数(t=80)
-					highPassFilter(mMagnetValues, values, 0.8f);
-					System.arraycopy(values, 0, mMagnetValues, 0, 3);
-					// 磁気センサーの値と重力センサーの値から方位を計算
-					SensorManager.getRotationMatrix(mRotateMatrix, mInclinationMatrix, mGravityValues, mMagnetValues);
-					getOrientation(mRotateMatrix, mAzimuthValues);
-					mAzimuthValues[0] *= TO_DEGREE;
-					mAzimuthValues[1] *= TO_DEGREE;
-					mAzimuthValues[2] *= TO_DEGREE;
-				}
+				// ハイパスフィルターを通して取得
+				// alpha=t/(t+dt), dt≒20msec@SENSOR_DELAY_GAME, tはローパスフィルタの時定数(t=80)
+				highPassFilter(mMagnetValues, values, 0.8f);
+				System.arraycopy(values, 0, mMagnetValues, 0, 3);
+				// 磁気センサーの値と重力センサーの値から方位を計算
+				SensorManager.getRotationMatrix(mRotateMatrix, mInclinationMatrix, mGravityValues, mMagnetValues);
+				getOrientation(mRotateMatrix, mAzimuthValues);
+				mAzimuthValues[0] *= TO_DEGREE;
+				mAzimuthValues[1] *= TO_DEGREE;
+				mAzimuthValues[2] *= TO_DEGREE;
+				mSeqLock.beginWrite();
+				publish(IX_MAGNET, mMagnetValues);
+				publish(IX_AZIMUTH, mAzimuthValues);
+				mTimestampNs = timestamp;
+				mSeqLock.endWrite();
+				mSamples.add(SAMPLE_TYPE_ORIENTATION, timestamp,
+					mAzimuthValues[0], mAzimuthValues[1], mAzimuthValues[2]);
 				break;
 			case Sensor.TYPE_GRAVITY:			// 重力センサー
-				synchronized (mSensorSync) {
-					System.arraycopy(values, 0, mGravityValues, 0, 3);
-				}
+				System.arraycopy(values, 0, mGravityValues, 0, 3);
+				mSeqLock.beginWrite();
+				publish(IX_GRAVITY, mGravityValues);
+				mTimestampNs = timestamp;
+				mSeqLock.endWrite();
 				break;
 			case Sensor.TYPE_ACCELEROMETER:		// 加速度センサー
-				synchronized (mSensorSync) {
-					System.arraycopy(values, 0, mAccelValues, 0, 3);
-					System.arraycopy(values, 0, mGravityValues, 0, 3);	// 重力センサーが無い時は加速度センサーで代用
-				}
+				System.arraycopy(values, 0, mAccelValues, 0, 3);
+				System.arraycopy(values, 0, mGravityValues, 0, 3);	// 重力センサーが無い時は加速度センサーで代用
+				mSeqLock.beginWrite();
+				publish(IX_ACCEL, mAccelValues);
+				publish(IX_GRAVITY, mGravityValues);
+				mTimestampNs = timestamp;
+				mSeqLock.endWrite();
 				break;
 			case Sensor.TYPE_GYROSCOPE:			// ジャイロセンサー
-				synchronized (mSensorSync) {
-					System.arraycopy(values, 0, mGyroValues, 0, 3);
-				}
+				System.arraycopy(values, 0, mGyroValues, 0, 3);
+				mSeqLock.beginWrite();
+				publish(IX_GYRO, mGyroValues);
+				mTimestampNs = timestamp;
+				mSeqLock.endWrite();
 				break;
 			default:
 				if (DEBUG) Log.v(TAG, "onSensorChanged:" + String.format(Locale.US, "その他%d(%f,%f,%f)", type, values[0], values[1], values[2]));
-				break;
+				return;
 			}
+			mSamples.add(type, timestamp, values[0], values[1], values[2]);
 		}
 
 		/**
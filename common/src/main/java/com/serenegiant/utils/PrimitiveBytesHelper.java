@@ -0,0 +1,643 @@
+package com.serenegiant.utils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import androidx.annotation.NonNull;
+
+/**
+ * プリミティブ配列とbyte配列/ByteBufferを相互変換するためのヘルパークラス
+ * ArrayUtils#floatArrayToByteArray等と違って呼び出し元が用意した変換先へ書き込むので
+ * データ量に比例したメモリー割り当てをしない
+ * (変換にはByteBufferのビュー(#asFloatBuffer等)を使うので一括コピー/バイトスワップが使われる)
+ * バイトオーダーは引数で明示する, ByteBufferのバイトオーダー設定は変更しない
+ */
+public class PrimitiveBytesHelper {
+	private PrimitiveBytesHelper() {
+		// インスタンス化をエラーにするためにデフォルトコンストラクタをprivateに
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * short[]の指定範囲をbyte[]へ書き込む
+	 * @param src
+	 * @param srcOffset
+	 * @param num 変換する要素数
+	 * @param dst
+	 * @param dstOffset
+	 * @param order
+	 * @return 書き込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 */
+	public static int toBytes(
+		@NonNull final short[] src, final int srcOffset, final int num,
+		@NonNull final byte[] dst, final int dstOffset,
+		@NonNull final ByteOrder order) throws IndexOutOfBoundsException {
+
+		final int bytes = num * 2;
+		ByteBuffer.wrap(dst, dstOffset, bytes).order(order)
+			.asShortBuffer().put(src, srcOffset, num);
+		return bytes;
+	}
+
+	/**
+	 * short[]の指定範囲をByteBufferの現在位置へ書き込んでpositionを進める
+	 * @param src
+	 * @param srcOffset
+	 * @param num 変換する要素数
+	 * @param dst
+	 * @param order
+	 * @return 書き込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 * @throws java.nio.BufferOverflowException dstの残りが足りないとき
+	 */
+	public static int toBytes(
+		@NonNull final short[] src, final int srcOffset, final int num,
+		@NonNull final ByteBuffer dst,
+		@NonNull final ByteOrder order) throws IndexOutOfBoundsException {
+
+		final int bytes = num * 2;
+		final ByteOrder prev = dst.order();
+		try {
+			dst.order(order).asShortBuffer().put(src, srcOffset, num);
+		} finally {
+			dst.order(prev);
+		}
+		dst.position(dst.position() + bytes);
+		return bytes;
+	}
+
+	/**
+	 * byte[]の指定位置から既存のshort[]へ読み込む
+	 * @param src
+	 * @param srcOffset
+	 * @param order
+	 * @param dst
+	 * @param dstOffset
+	 * @param num 変換する要素数
+	 * @return 読み込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 */
+	public static int fromBytes(
+		@NonNull final byte[] src, final int srcOffset,
+		@NonNull final ByteOrder order,
+		@NonNull final short[] dst, final int dstOffset, final int num)
+			throws IndexOutOfBoundsException {
+
+		final int bytes = num * 2;
+		ByteBuffer.wrap(src, srcOffset, bytes).order(order)
+			.asShortBuffer().get(dst, dstOffset, num);
+		return bytes;
+	}
+
+	/**
+	 * ByteBufferの現在位置から既存のshort[]へ読み込んでpositionを進める
+	 * @param src
+	 * @param order
+	 * @param dst
+	 * @param dstOffset
+	 * @param num 変換する要素数
+	 * @return 読み込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 * @throws java.nio.BufferUnderflowException srcの残りが足りないとき
+	 */
+	public static int fromBytes(
+		@NonNull final ByteBuffer src,
+		@NonNull final ByteOrder order,
+		@NonNull final short[] dst, final int dstOffset, final int num)
+			throws IndexOutOfBoundsException {
+
+		final int bytes = num * 2;
+		final ByteOrder prev = src.order();
+		try {
+			src.order(order).asShortBuffer().get(dst, dstOffset, num);
+		} finally {
+			src.order(prev);
+		}
+		src.position(src.position() + bytes);
+		return bytes;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * char[]の指定範囲をbyte[]へ書き込む
+	 * @param src
+	 * @param srcOffset
+	 * @param num 変換する要素数
+	 * @param dst
+	 * @param dstOffset
+	 * @param order
+	 * @return 書き込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 */
+	public static int toBytes(
+		@NonNull final char[] src, final int srcOffset, final int num,
+		@NonNull final byte[] dst, final int dstOffset,
+		@NonNull final ByteOrder order) throws IndexOutOfBoundsException {
+
+		final int bytes = num * 2;
+		ByteBuffer.wrap(dst, dstOffset, bytes).order(order)
+			.asCharBuffer().put(src, srcOffset, num);
+		return bytes;
+	}
+
+	/**
+	 * char[]の指定範囲をByteBufferの現在位置へ書き込んでpositionを進める
+	 * @param src
+	 * @param srcOffset
+	 * @param num 変換する要素数
+	 * @param dst
+	 * @param order
+	 * @return 書き込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 * @throws java.nio.BufferOverflowException dstの残りが足りないとき
+	 */
+	public static int toBytes(
+		@NonNull final char[] src, final int srcOffset, final int num,
+		@NonNull final ByteBuffer dst,
+		@NonNull final ByteOrder order) throws IndexOutOfBoundsException {
+
+		final int bytes = num * 2;
+		final ByteOrder prev = dst.order();
+		try {
+			dst.order(order).asCharBuffer().put(src, srcOffset, num);
+		} finally {
+			dst.order(prev);
+		}
+		dst.position(dst.position() + bytes);
+		return bytes;
+	}
+
+	/**
+	 * byte[]の指定位置から既存のchar[]へ読み込む
+	 * @param src
+	 * @param srcOffset
+	 * @param order
+	 * @param dst
+	 * @param dstOffset
+	 * @param num 変換する要素数
+	 * @return 読み込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 */
+	public static int fromBytes(
+		@NonNull final byte[] src, final int srcOffset,
+		@NonNull final ByteOrder order,
+		@NonNull final char[] dst, final int dstOffset, final int num)
+			throws IndexOutOfBoundsException {
+
+		final int bytes = num * 2;
+		ByteBuffer.wrap(src, srcOffset, bytes).order(order)
+			.asCharBuffer().get(dst, dstOffset, num);
+		return bytes;
+	}
+
+	/**
+	 * ByteBufferの現在位置から既存のchar[]へ読み込んでpositionを進める
+	 * @param src
+	 * @param order
+	 * @param dst
+	 * @param dstOffset
+	 * @param num 変換する要素数
+	 * @return 読み込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 * @throws java.nio.BufferUnderflowException srcの残りが足りないとき
+	 */
+	public static int fromBytes(
+		@NonNull final ByteBuffer src,
+		@NonNull final ByteOrder order,
+		@NonNull final char[] dst, final int dstOffset, final int num)
+			throws IndexOutOfBoundsException {
+
+		final int bytes = num * 2;
+		final ByteOrder prev = src.order();
+		try {
+			src.order(order).asCharBuffer().get(dst, dstOffset, num);
+		} finally {
+			src.order(prev);
+		}
+		src.position(src.position() + bytes);
+		return bytes;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * int[]の指定範囲をbyte[]へ書き込む
+	 * @param src
+	 * @param srcOffset
+	 * @param num 変換する要素数
+	 * @param dst
+	 * @param dstOffset
+	 * @param order
+	 * @return 書き込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 */
+	public static int toBytes(
+		@NonNull final int[] src, final int srcOffset, final int num,
+		@NonNull final byte[] dst, final int dstOffset,
+		@NonNull final ByteOrder order) throws IndexOutOfBoundsException {
+
+		final int bytes = num * 4;
+		ByteBuffer.wrap(dst, dstOffset, bytes).order(order)
+			.asIntBuffer().put(src, srcOffset, num);
+		return bytes;
+	}
+
+	/**
+	 * int[]の指定範囲をByteBufferの現在位置へ書き込んでpositionを進める
+	 * @param src
+	 * @param srcOffset
+	 * @param num 変換する要素数
+	 * @param dst
+	 * @param order
+	 * @return 書き込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 * @throws java.nio.BufferOverflowException dstの残りが足りないとき
+	 */
+	public static int toBytes(
+		@NonNull final int[] src, final int srcOffset, final int num,
+		@NonNull final ByteBuffer dst,
+		@NonNull final ByteOrder order) throws IndexOutOfBoundsException {
+
+		final int bytes = num * 4;
+		final ByteOrder prev = dst.order();
+		try {
+			dst.order(order).asIntBuffer().put(src, srcOffset, num);
+		} finally {
+			dst.order(prev);
+		}
+		dst.position(dst.position() + bytes);
+		return bytes;
+	}
+
+	/**
+	 * byte[]の指定位置から既存のint[]へ読み込む
+	 * @param src
+	 * @param srcOffset
+	 * @param order
+	 * @param dst
+	 * @param dstOffset
+	 * @param num 変換する要素数
+	 * @return 読み込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 */
+	public static int fromBytes(
+		@NonNull final byte[] src, final int srcOffset,
+		@NonNull final ByteOrder order,
+		@NonNull final int[] dst, final int dstOffset, final int num)
+			throws IndexOutOfBoundsException {
+
+		final int bytes = num * 4;
+		ByteBuffer.wrap(src, srcOffset, bytes).order(order)
+			.asIntBuffer().get(dst, dstOffset, num);
+		return bytes;
+	}
+
+	/**
+	 * ByteBufferの現在位置から既存のint[]へ読み込んでpositionを進める
+	 * @param src
+	 * @param order
+	 * @param dst
+	 * @param dstOffset
+	 * @param num 変換する要素数
+	 * @return 読み込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 * @throws java.nio.BufferUnderflowException srcの残りが足りないとき
+	 */
+	public static int fromBytes(
+		@NonNull final ByteBuffer src,
+		@NonNull final ByteOrder order,
+		@NonNull final int[] dst, final int dstOffset, final int num)
+			throws IndexOutOfBoundsException {
+
+		final int bytes = num * 4;
+		final ByteOrder prev = src.order();
+		try {
+			src.order(order).asIntBuffer().get(dst, dstOffset, num);
+		} finally {
+			src.order(prev);
+		}
+		src.position(src.position() + bytes);
+		return bytes;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * long[]の指定範囲をbyte[]へ書き込む
+	 * @param src
+	 * @param srcOffset
+	 * @param num 変換する要素数
+	 * @param dst
+	 * @param dstOffset
+	 * @param order
+	 * @return 書き込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 */
+	public static int toBytes(
+		@NonNull final long[] src, final int srcOffset, final int num,
+		@NonNull final byte[] dst, final int dstOffset,
+		@NonNull final ByteOrder order) throws IndexOutOfBoundsException {
+
+		final int bytes = num * 8;
+		ByteBuffer.wrap(dst, dstOffset, bytes).order(order)
+			.asLongBuffer().put(src, srcOffset, num);
+		return bytes;
+	}
+
+	/**
+	 * long[]の指定範囲をByteBufferの現在位置へ書き込んでpositionを進める
+	 * @param src
+	 * @param srcOffset
+	 * @param num 変換する要素数
+	 * @param dst
+	 * @param order
+	 * @return 書き込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 * @throws java.nio.BufferOverflowException dstの残りが足りないとき
+	 */
+	public static int toBytes(
+		@NonNull final long[] src, final int srcOffset, final int num,
+		@NonNull final ByteBuffer dst,
+		@NonNull final ByteOrder order) throws IndexOutOfBoundsException {
+
+		final int bytes = num * 8;
+		final ByteOrder prev = dst.order();
+		try {
+			dst.order(order).asLongBuffer().put(src, srcOffset, num);
+		} finally {
+			dst.order(prev);
+		}
+		dst.position(dst.position() + bytes);
+		return bytes;
+	}
+
+	/**
+	 * byte[]の指定位置から既存のlong[]へ読み込む
+	 * @param src
+	 * @param srcOffset
+	 * @param order
+	 * @param dst
+	 * @param dstOffset
+	 * @param num 変換する要素数
+	 * @return 読み込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 */
+	public static int fromBytes(
+		@NonNull final byte[] src, final int srcOffset,
+		@NonNull final ByteOrder order,
+		@NonNull final long[] dst, final int dstOffset, final int num)
+			throws IndexOutOfBoundsException {
+
+		final int bytes = num * 8;
+		ByteBuffer.wrap(src, srcOffset, bytes).order(order)
+			.asLongBuffer().get(dst, dstOffset, num);
+		return bytes;
+	}
+
+	/**
+	 * ByteBufferの現在位置から既存のlong[]へ読み込んでpositionを進める
+	 * @param src
+	 * @param order
+	 * @param dst
+	 * @param dstOffset
+	 * @param num 変換する要素数
+	 * @return 読み込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 * @throws java.nio.BufferUnderflowException srcの残りが足りないとき
+	 */
+	public static int fromBytes(
+		@NonNull final ByteBuffer src,
+		@NonNull final ByteOrder order,
+		@NonNull final long[] dst, final int dstOffset, final int num)
+			throws IndexOutOfBoundsException {
+
+		final int bytes = num * 8;
+		final ByteOrder prev = src.order();
+		try {
+			src.order(order).asLongBuffer().get(dst, dstOffset, num);
+		} finally {
+			src.order(prev);
+		}
+		src.position(src.position() + bytes);
+		return bytes;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * float[]の指定範囲をbyte[]へ書き込む
+	 * @param src
+	 * @param srcOffset
+	 * @param num 変換する要素数
+	 * @param dst
+	 * @param dstOffset
+	 * @param order
+	 * @return 書き込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 */
+	public static int toBytes(
+		@NonNull final float[] src, final int srcOffset, final int num,
+		@NonNull final byte[] dst, final int dstOffset,
+		@NonNull final ByteOrder order) throws IndexOutOfBoundsException {
+
+		final int bytes = num * 4;
+		ByteBuffer.wrap(dst, dstOffset, bytes).order(order)
+			.asFloatBuffer().put(src, srcOffset, num);
+		return bytes;
+	}
+
+	/**
+	 * float[]の指定範囲をByteBufferの現在位置へ書き込んでpositionを進める
+	 * @param src
+	 * @param srcOffset
+	 * @param num 変換する要素数
+	 * @param dst
+	 * @param order
+	 * @return 書き込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 * @throws java.nio.BufferOverflowException dstの残りが足りないとき
+	 */
+	public static int toBytes(
+		@NonNull final float[] src, final int srcOffset, final int num,
+		@NonNull final ByteBuffer dst,
+		@NonNull final ByteOrder order) throws IndexOutOfBoundsException {
+
+		final int bytes = num * 4;
+		final ByteOrder prev = dst.order();
+		try {
+			dst.order(order).asFloatBuffer().put(src, srcOffset, num);
+		} finally {
+			dst.order(prev);
+		}
+		dst.position(dst.position() + bytes);
+		return bytes;
+	}
+
+	/**
+	 * byte[]の指定位置から既存のfloat[]へ読み込む
+	 * @param src
+	 * @param srcOffset
+	 * @param order
+	 * @param dst
+	 * @param dstOffset
+	 * @param num 変換する要素数
+	 * @return 読み込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 */
+	public static int fromBytes(
+		@NonNull final byte[] src, final int srcOffset,
+		@NonNull final ByteOrder order,
+		@NonNull final float[] dst, final int dstOffset, final int num)
+			throws IndexOutOfBoundsException {
+
+		final int bytes = num * 4;
+		ByteBuffer.wrap(src, srcOffset, bytes).order(order)
+			.asFloatBuffer().get(dst, dstOffset, num);
+		return bytes;
+	}
+
+	/**
+	 * ByteBufferの現在位置から既存のfloat[]へ読み込んでpositionを進める
+	 * @param src
+	 * @param order
+	 * @param dst
+	 * @param dstOffset
+	 * @param num 変換する要素数
+	 * @return 読み込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 * @throws java.nio.BufferUnderflowException srcの残りが足りないとき
+	 */
+	public static int fromBytes(
+		@NonNull final ByteBuffer src,
+		@NonNull final ByteOrder order,
+		@NonNull final float[] dst, final int dstOffset, final int num)
+			throws IndexOutOfBoundsException {
+
+		final int bytes = num * 4;
+		final ByteOrder prev = src.order();
+		try {
+			src.order(order).asFloatBuffer().get(dst, dstOffset, num);
+		} finally {
+			src.order(prev);
+		}
+		src.position(src.position() + bytes);
+		return bytes;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * double[]の指定範囲をbyte[]へ書き込む
+	 * @param src
+	 * @param srcOffset
+	 * @param num 変換する要素数
+	 * @param dst
+	 * @param dstOffset
+	 * @param order
+	 * @return 書き込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 */
+	public static int toBytes(
+		@NonNull final double[] src, final int srcOffset, final int num,
+		@NonNull final byte[] dst, final int dstOffset,
+		@NonNull final ByteOrder order) throws IndexOutOfBoundsException {
+
+		final int bytes = num * 8;
+		ByteBuffer.wrap(dst, dstOffset, bytes).order(order)
+			.asDoubleBuffer().put(src, srcOffset, num);
+		return bytes;
+	}
+
+	/**
+	 * double[]の指定範囲をByteBufferの現在位置へ書き込んでpositionを進める
+	 * @param src
+	 * @param srcOffset
+	 * @param num 変換する要素数
+	 * @param dst
+	 * @param order
+	 * @return 書き込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 * @throws java.nio.BufferOverflowException dstの残りが足りないとき
+	 */
+	public static int toBytes(
+		@NonNull final double[] src, final int srcOffset, final int num,
+		@NonNull final ByteBuffer dst,
+		@NonNull final ByteOrder order) throws IndexOutOfBoundsException {
+
+		final int bytes = num * 8;
+		final ByteOrder prev = dst.order();
+		try {
+			dst.order(order).asDoubleBuffer().put(src, srcOffset, num);
+		} finally {
+			dst.order(prev);
+		}
+		dst.position(dst.position() + bytes);
+		return bytes;
+	}
+
+	/**
+	 * byte[]の指定位置から既存のdouble[]へ読み込む
+	 * @param src
+	 * @param srcOffset
+	 * @param order
+	 * @param dst
+	 * @param dstOffset
+	 * @param num 変換する要素数
+	 * @return 読み込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 */
+	public static int fromBytes(
+		@NonNull final byte[] src, final int srcOffset,
+		@NonNull final ByteOrder order,
+		@NonNull final double[] dst, final int dstOffset, final int num)
+			throws IndexOutOfBoundsException {
+
+		final int bytes = num * 8;
+		ByteBuffer.wrap(src, srcOffset, bytes).order(order)
+			.asDoubleBuffer().get(dst, dstOffset, num);
+		return bytes;
+	}
+
+	/**
+	 * ByteBufferの現在位置から既存のdouble[]へ読み込んでpositionを進める
+	 * @param src
+	 * @param order
+	 * @param dst
+	 * @param dstOffset
+	 * @param num 変換する要素数
+	 * @return 読み込んだバイト数
+	 * @throws IndexOutOfBoundsException 範囲外のとき
+	 * @throws java.nio.BufferUnderflowException srcの残りが足りないとき
+	 */
+	public static int fromBytes(
+		@NonNull final ByteBuffer src,
+		@NonNull final ByteOrder order,
+		@NonNull final double[] dst, final int dstOffset, final int num)
+			throws IndexOutOfBoundsException {
+
+		final int bytes = num * 8;
+		final ByteOrder prev = src.order();
+		try {
+			src.order(order).asDoubleBuffer().get(dst, dstOffset, num);
+		} finally {
+			src.order(prev);
+		}
+		src.position(src.position() + bytes);
+		return bytes;
+	}
+}
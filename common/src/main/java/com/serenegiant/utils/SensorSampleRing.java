@@ -0,0 +1,223 @@
+package com.serenegiant.utils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Size;
+
+/**
+ * タイムスタンプ付きの3軸センサー値を保持する固定長のリングバッファ
+ * 書き込みは1つのスレッド(センサーのコールバックスレッド)からのみ行うこと(シングルライター)
+ * 読み込みは排他制御なしで任意のスレッドから行うことができる
+ * 読み込み中にライターに上書きされた可能性があるサンプルは無視する
+ */
+public class SensorSampleRing {
+	/**
+	 * リングバッファのデフォルトのサンプル数
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private final int mCapacity;
+	private final int mMask;
+	@NonNull
+	private final AtomicIntegerArray mTypes;
+	@NonNull
+	private final AtomicLongArray mTimestamps;
+	/** 値はFloat#floatToRawIntBitsで変換して1サンプルあたり3要素保持する */
+	@NonNull
+	private final AtomicIntegerArray mValues;
+	/** 書き込んだサンプル数, スロットへ書き込んでから更新する */
+	@NonNull
+	private final AtomicLong mWritten = new AtomicLong();
+
+	/**
+	 * コンストラクタ
+	 */
+	public SensorSampleRing() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param capacity リングバッファのサンプル数, 2のべき乗に切り上げる
+	 */
+	public SensorSampleRing(final int capacity) {
+		if (capacity < 2) {
+			throw new IllegalArgumentException("capacity should be greater than 1");
+		}
+		int n = Integer.highestOneBit(capacity);
+		if (n < capacity) {
+			n <<= 1;
+		}
+		mCapacity = n;
+		mMask = n - 1;
+		mTypes = new AtomicIntegerArray(n);
+		mTimestamps = new AtomicLongArray(n);
+		mValues = new AtomicIntegerArray(n * 3);
+	}
+
+	/**
+	 * リングバッファのサンプル数を取得
+	 * @return
+	 */
+	public int capacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * 全てのサンプルを破棄する
+	 * #addと同じスレッドまたは#addを呼んでいないときに呼び出すこと
+	 */
+	public void clear() {
+		mWritten.set(0);
+	}
+
+	/**
+	 * サンプルを追加する
+	 * @param type サンプルの種類(Sensor.TYPE_XXX等)
+	 * @param timestampNs サンプルのタイムスタンプ[ナノ秒]
+	 * @param v0
+	 * @param v1
+	 * @param v2
+	 */
+	public void add(final int type, final long timestampNs,
+		final float v0, final float v1, final float v2) {
+
+		final long seq = mWritten.get();
+		final int ix = (int)(seq & mMask);
+		mTypes.lazySet(ix, type);
+		mTimestamps.lazySet(ix, timestampNs);
+		mValues.lazySet(ix * 3, Float.floatToRawIntBits(v0));
+		mValues.lazySet(ix * 3 + 1, Float.floatToRawIntBits(v1));
+		mValues.lazySet(ix * 3 + 2, Float.floatToRawIntBits(v2));
+		mWritten.set(seq + 1);
+	}
+
+	/**
+	 * 指定した種類のサンプルの内で最新のものを取得する
+	 * @param type
+	 * @param out 値を受け取る配列
+	 * @return サンプルのタイムスタンプ, 見つからなければ-1
+	 */
+	public long getLatest(final int type, @NonNull @Size(min=3) final float[] out) {
+		final long end = mWritten.get();
+		final long start = Math.max(end - mCapacity + 1, 0);
+		for (long seq = end - 1; seq >= start; seq--) {
+			final int ix = (int)(seq & mMask);
+			if (mTypes.get(ix) == type) {
+				final long t = mTimestamps.get(ix);
+				read(ix, out, 0);
+				if (isValid(seq)) {
+					return t;
+				}
+				break;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 指定した種類のサンプルを線形補間して指定した時刻の値を取得する
+	 * 指定した時刻が最新のサンプルより新しい場合は最新のサンプルの値を返す
+	 * @param type
+	 * @param timestampNs
+	 * @param isAngle 値が[-180,+180]の角度[度]の場合にtrue, ±180度をまたぐ場合も最短方向で補間する
+	 * @param out 値を受け取る配列
+	 * @return 値を取得できればtrue, 指定した時刻よりも古いサンプルが残っていなければfalse
+	 */
+	public boolean interpolate(final int type, final long timestampNs, final boolean isAngle,
+		@NonNull @Size(min=3) final float[] out) {
+
+		final long end = mWritten.get();
+		final long start = Math.max(end - mCapacity + 1, 0);
+		long t1 = -1;
+		float a0 = 0, a1 = 0, a2 = 0;
+		for (long seq = end - 1; seq >= start; seq--) {
+			final int ix = (int)(seq & mMask);
+			if (mTypes.get(ix) != type) continue;
+			final long t = mTimestamps.get(ix);
+			final float v0 = Float.intBitsToFloat(mValues.get(ix * 3));
+			final float v1 = Float.intBitsToFloat(mValues.get(ix * 3 + 1));
+			final float v2 = Float.intBitsToFloat(mValues.get(ix * 3 + 2));
+			if (!isValid(seq)) {
+				// 読み込み中に上書きされた, これより古いサンプルも上書きされているので終了
+				break;
+			}
+			if (t <= timestampNs) {
+				if ((t1 < 0) || (t1 == t)) {
+					// 指定時刻以降のサンプルがない
+					out[0] = v0;
+					out[1] = v1;
+					out[2] = v2;
+				} else {
+					final float ratio = (timestampNs - t) / (float)(t1 - t);
+					out[0] = lerp(v0, a0, ratio, isAngle);
+					out[1] = lerp(v1, a1, ratio, isAngle);
+					out[2] = lerp(v2, a2, ratio, isAngle);
+				}
+				return true;
+			}
+			t1 = t;
+			a0 = v0;
+			a1 = v1;
+			a2 = v2;
+		}
+		return false;
+	}
+
+	/**
+	 * 読み込んだサンプルが読み込み中にライターに上書きされていないかどうかを確認
+	 * ライターが書き込み中のスロットも無効とみなす
+	 * @param seq
+	 * @return
+	 */
+	private boolean isValid(final long seq) {
+		return seq > mWritten.get() - mCapacity;
+	}
+
+	private void read(final int ix, @NonNull final float[] out, final int offset) {
+		out[offset] = Float.intBitsToFloat(mValues.get(ix * 3));
+		out[offset + 1] = Float.intBitsToFloat(mValues.get(ix * 3 + 1));
+		out[offset + 2] = Float.intBitsToFloat(mValues.get(ix * 3 + 2));
+	}
+
+	private static float lerp(final float v0, final float v1, final float ratio, final boolean isAngle) {
+		float diff = v1 - v0;
+		if (isAngle) {
+			if (diff > 180.0f) {
+				diff -= 360.0f;
+			} else if (diff < -180.0f) {
+				diff += 360.0f;
+			}
+			float result = v0 + diff * ratio;
+			if (result > 180.0f) {
+				result -= 360.0f;
+			} else if (result < -180.0f) {
+				result += 360.0f;
+			}
+			return result;
+		} else {
+			return v0 + diff * ratio;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.serenegiant.utils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+
+/**
+ * シングルライター用のシーケンスロック
+ * 書き込みは1つのスレッドからのみ行うこと, 読み込みはロックせずに任意のスレッドから行うことができる
+ * 保護する値はAtomicIntegerArray等で読み書きすること
+ * <pre>
+ * 書き込み側
+ *   lock.beginWrite();
+ *   // 値を更新
+ *   lock.endWrite();
+ * 読み込み側
+ *   int seq;
+ *   do {
+ *     seq = lock.beginRead();
+ *     // 値を読み込む
+ *   } while (lock.retry(seq));
+ * </pre>
+ */
+public class SeqLock {
+	/**
+	 * シーケンスカウンタ, 書き込み中は奇数
+	 */
+	@NonNull
+	private final AtomicInteger mSeq = new AtomicInteger();
+
+	/**
+	 * 読み込み開始
+	 * 書き込み中なら書き込みが終わるまで待つ
+	 * @return #retryへ渡すシーケンス番号
+	 */
+	public int beginRead() {
+		int seq = mSeq.get();
+		while ((seq & 1) != 0) {
+			Thread.yield();
+			seq = mSeq.get();
+		}
+		return seq;
+	}
+
+	/**
+	 * 読み込み中に書き込まれたかどうか
+	 * @param seq #beginReadが返したシーケンス番号
+	 * @return true: 読み込み中に書き込まれたので読み込み直す必要がある
+	 */
+	public boolean retry(final int seq) {
+		return mSeq.get() != seq;
+	}
+
+	/**
+	 * 書き込み開始
+	 * ライターは1つだけなのでCASは不要
+	 */
+	public void beginWrite() {
+		mSeq.set(mSeq.get() + 1);
+	}
+
+	/**
+	 * 書き込み終了
+	 */
+	public void endWrite() {
+		mSeq.set(mSeq.get() + 1);
+	}
+}
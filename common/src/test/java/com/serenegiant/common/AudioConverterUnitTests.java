@@ -0,0 +1,146 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.AudioFormat;
+
+import com.serenegiant.media.AudioConverter;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.media.AudioConverter用のローカルユニットテストクラス
+ */
+public class AudioConverterUnitTests {
+
+	private static final int FRAMES = 1024;
+
+	/**
+	 * サンプリング周波数変換時の出力フレーム数とpresentationTimeUsをテスト
+	 */
+	@Test
+	public void resampleFrames() {
+		final AudioConverter converter = new AudioConverter(
+			44100, 1, AudioFormat.ENCODING_PCM_16BIT,
+			48000, 1, AudioFormat.ENCODING_PCM_16BIT, FRAMES * 2);
+		final ByteBuffer in = ByteBuffer.allocateDirect(FRAMES * 2).order(ByteOrder.nativeOrder());
+		final ByteBuffer out = ByteBuffer.allocateDirect(converter.getMaxOutputBytes(FRAMES * 2))
+			.order(ByteOrder.nativeOrder());
+		long inFrames = 0;
+		long outFrames = 0;
+		for (int i = 0; i < 100; i++) {
+			in.clear();
+			out.clear();
+			final long pts = 1000000L + inFrames * 1000000L / 44100;
+			final int bytes = converter.process(in, pts, out);
+			assertEquals(0, in.remaining());
+			assertEquals(out.position(), bytes);
+			// 出力したフレーム数から計算した時刻とずれていないこと
+			assertEquals(1000000L + outFrames * 1000000L / 48000,
+				converter.getOutputPresentationTimeUs());
+			inFrames += FRAMES;
+			outFrames += bytes / 2;
+		}
+		// フィルタの遅延分(タップ数)以内の誤差で変換比通りのフレーム数を出力すること
+		assertEquals(inFrames * 48000 / 44100, outFrames, 16);
+	}
+
+	/**
+	 * 直流成分のゲインが1であることをテスト
+	 */
+	@Test
+	public void resampleDc() {
+		final AudioConverter converter = new AudioConverter(
+			44100, 1, AudioFormat.ENCODING_PCM_16BIT,
+			48000, 1, AudioFormat.ENCODING_PCM_FLOAT, FRAMES * 2);
+		final ByteBuffer in = ByteBuffer.allocateDirect(FRAMES * 2).order(ByteOrder.nativeOrder());
+		final ByteBuffer out = ByteBuffer.allocateDirect(converter.getMaxOutputBytes(FRAMES * 2))
+			.order(ByteOrder.nativeOrder());
+		for (int i = 0; i < FRAMES; i++) {
+			in.putShort(i * 2, (short)16384);
+		}
+		for (int i = 0; i < 4; i++) {
+			in.clear();
+			out.clear();
+			converter.process(in, i * FRAMES * 1000000L / 44100, out);
+		}
+		out.flip();
+		// 最後の出力は全て定常状態のはず
+		while (out.hasRemaining()) {
+			assertEquals(0.5f, out.getFloat(), 1e-3f);
+		}
+	}
+
+	/**
+	 * チャネル数変換をテスト
+	 */
+	@Test
+	public void mix() {
+		// モノラル→ステレオ
+		AudioConverter converter = new AudioConverter(
+			48000, 1, AudioFormat.ENCODING_PCM_16BIT,
+			48000, 2, AudioFormat.ENCODING_PCM_16BIT, FRAMES * 2);
+		ByteBuffer in = ByteBuffer.allocate(FRAMES * 2).order(ByteOrder.nativeOrder());
+		ByteBuffer out = ByteBuffer.allocate(converter.getMaxOutputBytes(FRAMES * 2))
+			.order(ByteOrder.nativeOrder());
+		for (int i = 0; i < FRAMES; i++) {
+			in.putShort((short)(i * 16));
+		}
+		in.flip();
+		assertEquals(FRAMES * 4, converter.process(in, 0, out));
+		out.flip();
+		for (int i = 0; i < FRAMES; i++) {
+			assertEquals((short)(i * 16), out.getShort());
+			assertEquals((short)(i * 16), out.getShort());
+		}
+		// ステレオ→モノラル
+		converter = new AudioConverter(
+			48000, 2, AudioFormat.ENCODING_PCM_16BIT,
+			48000, 1, AudioFormat.ENCODING_PCM_16BIT, FRAMES * 4);
+		in = ByteBuffer.allocate(FRAMES * 4).order(ByteOrder.nativeOrder());
+		out = ByteBuffer.allocate(converter.getMaxOutputBytes(FRAMES * 4))
+			.order(ByteOrder.nativeOrder());
+		for (int i = 0; i < FRAMES; i++) {
+			in.putShort((short)1000);
+			in.putShort((short)3000);
+		}
+		in.flip();
+		assertEquals(FRAMES * 2, converter.process(in, 0, out));
+		out.flip();
+		for (int i = 0; i < FRAMES; i++) {
+			assertEquals((short)2000, out.getShort());
+		}
+	}
+
+	/**
+	 * 出力用バッファの空きが足りないときにIllegalArgumentExceptionを生成することをテスト
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void outputTooSmall() {
+		final AudioConverter converter = new AudioConverter(
+			44100, 1, AudioFormat.ENCODING_PCM_16BIT,
+			48000, 2, AudioFormat.ENCODING_PCM_16BIT, FRAMES * 2);
+		converter.process(ByteBuffer.allocate(FRAMES * 2), 0, ByteBuffer.allocate(FRAMES * 2));
+	}
+}
@@ -0,0 +1,218 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.media.BitrateController;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.media.BitrateController用のローカルユニットテストクラス
+ * 書き込み速度が変化する出力先を擬似的に再現して目標ビットレートの変化を確認する
+ */
+public class BitrateControllerUnitTests {
+
+	private static final int MIN_BITRATE = 500000;
+	private static final int MAX_BITRATE = 8000000;
+	private static final int FPS = 30;
+	private static final int QUEUE_CAPACITY = 300;
+	/**
+	 * シミュレーションの時間刻み[ミリ秒]
+	 */
+	private static final long TICK_MS = 100;
+	/**
+	 * 混雑を検出するまでに書き込み速度を超えて目標ビットレートを上げてしまう量の上限
+	 * (キューの滞留量が下限閾値を超えるまでは混雑と判定しないので数回分の増加量まで許容する)
+	 */
+	private static final float MAX_OVERSHOOT = MAX_BITRATE * BitrateController.DEFAULT_INCREASE_STEP * 3;
+
+	/**
+	 * エンコーダー -> キュー -> muxerを擬似的に再現するクラス
+	 * エンコーダーは目標ビットレートでフレームを生成し, muxerは書き込み速度の上限までキューから取り出す
+	 * キューが一杯のときは新しいフレームを破棄する
+	 */
+	private static class Simulator {
+		private final BitrateController controller;
+		private final ArrayDeque<Integer> queue = new ArrayDeque<>();
+		private long timeMs;
+		private long writtenBytes;
+		private long droppedFrames;
+		private long budget;
+		private int changes;
+		/**
+		 * 直近の#runの間の目標ビットレートの最小値/最大値
+		 */
+		private int minBitrate;
+		private int maxBitrate;
+
+		private Simulator(final BitrateController controller) {
+			this.controller = controller;
+		}
+
+		/**
+		 * 指定した時間だけシミュレーションを進める
+		 * @param durationMs
+		 * @param sinkBps muxerの書き込み速度の上限[bps]
+		 */
+		private void run(final long durationMs, final long sinkBps) {
+			final long end = timeMs + durationMs;
+			minBitrate = Integer.MAX_VALUE;
+			maxBitrate = 0;
+			while (timeMs < end) {
+				timeMs += TICK_MS;
+				// エンコーダーがフレームを生成
+				final int frameSize = controller.getBitrate() / 8 / FPS;
+				for (int i = 0; i < FPS * TICK_MS / 1000; i++) {
+					if (queue.size() < QUEUE_CAPACITY) {
+						queue.add(frameSize);
+					} else {
+						droppedFrames++;
+					}
+				}
+				// muxerが書き込み
+				// (書き込みきれなかった分は次へ持ち越すがキューが空になったら捨てる)
+				budget += sinkBps / 8 * TICK_MS / 1000;
+				while (!queue.isEmpty() && (queue.peek() <= budget)) {
+					final int size = queue.poll();
+					budget -= size;
+					writtenBytes += size;
+				}
+				if (queue.isEmpty()) {
+					budget = 0;
+				}
+				if (controller.update(timeMs, queue.size(), QUEUE_CAPACITY, writtenBytes, droppedFrames)) {
+					changes++;
+				}
+				minBitrate = Math.min(minBitrate, controller.getBitrate());
+				maxBitrate = Math.max(maxBitrate, controller.getBitrate());
+				assertTrue(controller.getBitrate() >= MIN_BITRATE);
+				assertTrue(controller.getBitrate() <= MAX_BITRATE);
+			}
+		}
+	}
+
+	/**
+	 * コンストラクタで初期ビットレートが最小/最大ビットレートに丸められることを確認
+	 */
+	@Test
+	public void clampInitialBitrate() {
+		assertEquals(MIN_BITRATE, new BitrateController(MIN_BITRATE, MAX_BITRATE, 1).getBitrate());
+		assertEquals(MAX_BITRATE, new BitrateController(MIN_BITRATE, MAX_BITRATE, Integer.MAX_VALUE).getBitrate());
+		assertEquals(2000000, new BitrateController(MIN_BITRATE, MAX_BITRATE, 2000000).getBitrate());
+	}
+
+	/**
+	 * 最小/最大ビットレートが不正なときにIllegalArgumentExceptionを生成することを確認
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidRange() {
+		new BitrateController(MAX_BITRATE, MIN_BITRATE, MIN_BITRATE);
+	}
+
+	/**
+	 * 評価間隔が経過するまでは目標ビットレートを変更しないことを確認
+	 */
+	@Test
+	public void intervals() {
+		final BitrateController controller = new BitrateController(MIN_BITRATE, MAX_BITRATE, MAX_BITRATE);
+		assertFalse(controller.update(0, 0, QUEUE_CAPACITY, 0, 0));
+		// 評価間隔内ならフレームが破棄されていても変更しない
+		assertFalse(controller.update(500, QUEUE_CAPACITY, QUEUE_CAPACITY, 0, 100));
+		assertEquals(MAX_BITRATE, controller.getBitrate());
+		assertTrue(controller.update(1000, QUEUE_CAPACITY, QUEUE_CAPACITY, 0, 100));
+		assertTrue(controller.getBitrate() < MAX_BITRATE);
+	}
+
+	/**
+	 * フレームが破棄されたときは大きく下げることを確認
+	 */
+	@Test
+	public void dropHalvesBitrate() {
+		final BitrateController controller = new BitrateController(MIN_BITRATE, MAX_BITRATE, 4000000);
+		controller.update(0, 0, QUEUE_CAPACITY, 0, 0);
+		// スループットは十分あるがフレームが破棄された
+		assertTrue(controller.update(1000, 0, QUEUE_CAPACITY, 1000000, 1));
+		assertEquals(2000000, controller.getBitrate());
+		assertEquals(1, controller.getDecreaseCount());
+	}
+
+	/**
+	 * 書き込み速度が目標ビットレートより低いときは書き込み速度付近まで下がって
+	 * 最小ビットレートより下がらないことを確認
+	 */
+	@Test
+	public void congestion() {
+		final BitrateController controller = new BitrateController(MIN_BITRATE, MAX_BITRATE, MAX_BITRATE);
+		final Simulator sim = new Simulator(controller);
+		sim.run(10000, 2000000);
+		assertTrue(controller.getDecreaseCount() > 0);
+		// 混雑を検出するまでに書き込み速度を超えて上げるのは数回分の増加量まで
+		final long dropped = sim.droppedFrames;
+		sim.run(30000, 2000000);
+		assertTrue("max=" + sim.maxBitrate, sim.maxBitrate <= 2000000 + MAX_OVERSHOOT);
+		assertEquals(dropped, sim.droppedFrames);
+		// 書き込み速度が最小ビットレートより低くても最小ビットレートで止まる
+		sim.run(20000, 100000);
+		assertEquals(MIN_BITRATE, controller.getBitrate());
+	}
+
+	/**
+	 * 書き込み速度が回復したときは待機時間が経過してから少しずつ最大ビットレートまで上がることを確認
+	 */
+	@Test
+	public void recovery() {
+		final BitrateController controller = new BitrateController(MIN_BITRATE, MAX_BITRATE, MAX_BITRATE);
+		final Simulator sim = new Simulator(controller);
+		sim.run(20000, 2000000);
+		final int congested = controller.getBitrate();
+		// 待機時間内は上げない
+		sim.run(BitrateController.DEFAULT_HOLD_OFF_MS - 1000, 100000000);
+		assertTrue(controller.getBitrate() <= congested + MAX_BITRATE * BitrateController.DEFAULT_INCREASE_STEP);
+		// 1回に上げる量は最大ビットレートのDEFAULT_INCREASE_STEP倍まで
+		int prev = controller.getBitrate();
+		for (int i = 0; i < 100; i++) {
+			sim.run(1000, 100000000);
+			assertTrue(controller.getBitrate() - prev <= MAX_BITRATE * BitrateController.DEFAULT_INCREASE_STEP);
+			prev = controller.getBitrate();
+		}
+		assertEquals(MAX_BITRATE, controller.getBitrate());
+	}
+
+	/**
+	 * 書き込み速度が一定なら目標ビットレートが上下に振動し続けないことを確認
+	 */
+	@Test
+	public void steadyState() {
+		final BitrateController controller = new BitrateController(MIN_BITRATE, MAX_BITRATE, MAX_BITRATE);
+		final Simulator sim = new Simulator(controller);
+		sim.run(60000, 3000000);
+		final int changes = sim.changes;
+		// 書き込み速度付近で上げて混雑したら下げるのを繰り返すが
+		// 待機時間があるので評価間隔毎には変化しない
+		sim.run(60000, 3000000);
+		assertTrue("changes=" + (sim.changes - changes),
+			sim.changes - changes <= 60000 / BitrateController.DEFAULT_HOLD_OFF_MS * 2);
+		assertTrue("min=" + sim.minBitrate, sim.minBitrate >= 3000000 / 2);
+		assertTrue("max=" + sim.maxBitrate, sim.maxBitrate <= 3000000 + MAX_OVERSHOOT);
+	}
+}
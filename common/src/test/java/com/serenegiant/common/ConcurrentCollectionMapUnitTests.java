@@ -0,0 +1,159 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.collections.ConcurrentCollectionMap;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.collections.ConcurrentCollectionMap用のローカルユニットテストクラス
+ */
+public class ConcurrentCollectionMapUnitTests {
+
+	@Test
+	public void addRemove() {
+		final ConcurrentCollectionMap<String, Integer> map = new ConcurrentCollectionMap<>();
+		assertTrue(map.add("a", 1));
+		assertFalse(map.add("a", 1));
+		assertTrue(map.add("a", 2));
+		assertTrue(map.add("b", 1));
+		assertEquals(2, map.size());
+		assertEquals(2, map.size("a"));
+		assertEquals(2, map.countInValue(1));
+		assertEquals(1, map.countInValue(2));
+		assertEquals(new HashSet<>(Arrays.asList("a", "b")), map.keySet());
+		assertEquals(new HashSet<>(Arrays.asList(1, 2)), map.valuesDistinct());
+		assertEquals(3, map.valuesAll().size());
+
+		assertTrue(map.remove("a", 1));
+		assertFalse(map.remove("a", 1));
+		assertEquals(1, map.countInValue(1));
+		assertEquals(1, map.removeInValue(1));
+		assertFalse(map.containsInValue(1));
+		assertTrue(map.containsInValue(2));
+
+		final Collection<Integer> removed = map.remove("a");
+		assertNotNull(removed);
+		assertEquals(1, removed.size());
+		assertFalse(map.containsInValue(2));
+		assertTrue(map.valuesDistinct().isEmpty());
+		map.clear();
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void put() {
+		final ConcurrentCollectionMap<String, Integer> map = new ConcurrentCollectionMap<>();
+		assertNull(map.put("a", Arrays.asList(1, 2, 2)));
+		assertEquals(2, map.size("a"));
+		final Collection<Integer> prev = map.put("a", Arrays.asList(3));
+		assertNotNull(prev);
+		assertEquals(new HashSet<>(Arrays.asList(1, 2)), new HashSet<>(prev));
+		assertFalse(map.containsInValue(1));
+		assertFalse(map.containsInValue(2));
+		assertTrue(map.containsInValue(3));
+	}
+
+	/**
+	 * 同じキー・値に対して並行してadd/remove/キー削除を繰り返した後に
+	 * 逆引きインデックスが実際の値コレクションの内容と一致することを確認
+	 */
+	@Test
+	public void concurrentAddRemove() throws InterruptedException {
+		final int threads = 4;
+		final int loops = 20000;
+		final int values = 2;
+		for (int round = 0; round < 50; round++) {
+			final ConcurrentCollectionMap<Integer, Integer> map = new ConcurrentCollectionMap<>();
+			final CountDownLatch start = new CountDownLatch(1);
+			final AtomicReference<Throwable> error = new AtomicReference<>();
+			final Thread[] workers = new Thread[threads];
+			for (int i = 0; i < threads; i++) {
+				final int id = i;
+				workers[i] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							start.await();
+							for (int j = 0; j < loops; j++) {
+								final int key = 0;
+								final int value = (j + id) % values;
+								switch (id) {
+								case 0:
+								case 1:
+									map.add(key, value);
+									break;
+								case 2:
+									map.remove(key, value);
+									break;
+								default:
+									if ((j & 0xff) == 0) {
+										map.remove(key);
+									} else {
+										map.removeInValue(value);
+									}
+									break;
+								}
+							}
+						} catch (final Throwable e) {
+							error.set(e);
+						}
+					}
+				});
+				workers[i].start();
+			}
+			start.countDown();
+			for (final Thread t: workers) {
+				t.join();
+			}
+			assertNull(error.get());
+			assertConsistent(map, values);
+		}
+	}
+
+	private static void assertConsistent(
+		final ConcurrentCollectionMap<Integer, Integer> map, final int values) {
+
+		final Set<Integer> distinct = new HashSet<>();
+		for (int v = 0; v < values; v++) {
+			int count = 0;
+			for (final Collection<Integer> c: map.values()) {
+				if (c.contains(v)) {
+					count++;
+				}
+			}
+			assertEquals("value=" + v, count, map.countInValue(v));
+			assertEquals("value=" + v, count > 0, map.containsInValue(v));
+			if (count > 0) {
+				distinct.add(v);
+			}
+		}
+		assertEquals(distinct, new HashSet<>(map.valuesDistinct()));
+	}
+}
@@ -0,0 +1,100 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.media.KeyFrameIndex;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.media.KeyFrameIndex用のローカルユニットテストクラス
+ */
+public class KeyFrameIndexUnitTests {
+
+	private static final long GOP_US = 1000000L;
+
+	@Test
+	public void empty() {
+		final KeyFrameIndex index = new KeyFrameIndex();
+		assertEquals(0, index.size());
+		assertEquals(-1, index.findPrevious(0));
+		index.complete();
+		assertEquals(-1, index.findPrevious(GOP_US));
+	}
+
+	/**
+	 * 指定した時刻以前で最も近いキーフレームを返すことを確認
+	 */
+	@Test
+	public void findPrevious() {
+		final KeyFrameIndex index = new KeyFrameIndex();
+		// 初期容量を超える数を追加して拡張も確認する
+		final int n = 1000;
+		for (int i = 0; i < n; i++) {
+			index.add(i * GOP_US + 100);
+		}
+		index.complete();
+		assertEquals(n, index.size());
+		assertEquals(-1, index.findPrevious(0));
+		assertEquals(-1, index.findPrevious(99));
+		assertEquals(100, index.findPrevious(100));
+		assertEquals(100, index.findPrevious(GOP_US + 99));
+		assertEquals(GOP_US + 100, index.findPrevious(GOP_US + 100));
+		assertEquals(500 * GOP_US + 100, index.findPrevious(500 * GOP_US + 500000));
+		assertEquals((n - 1) * GOP_US + 100, index.findPrevious(Long.MAX_VALUE));
+	}
+
+	/**
+	 * 昇順でなく追加したときや同じ時刻を追加したときも昇順に保持することを確認
+	 */
+	@Test
+	public void unordered() {
+		final KeyFrameIndex index = new KeyFrameIndex();
+		index.add(3 * GOP_US);
+		index.add(GOP_US);
+		index.add(0);
+		index.add(2 * GOP_US);
+		index.add(GOP_US);
+		index.complete();
+		assertEquals(4, index.size());
+		for (int i = 0; i < 4; i++) {
+			assertEquals(i * GOP_US, index.findPrevious(i * GOP_US));
+			assertEquals(i * GOP_US, index.findPrevious(i * GOP_US + GOP_US / 2));
+		}
+	}
+
+	/**
+	 * 走査途中は走査済みの範囲を超える時刻を検索できないことを確認
+	 */
+	@Test
+	public void incomplete() {
+		final KeyFrameIndex index = new KeyFrameIndex();
+		index.add(0);
+		index.add(GOP_US);
+		assertFalse(index.isCompleted());
+		assertEquals(0, index.findPrevious(GOP_US / 2));
+		assertEquals(GOP_US, index.findPrevious(GOP_US));
+		assertEquals(-1, index.findPrevious(GOP_US + 1));
+		index.complete();
+		assertTrue(index.isCompleted());
+		assertEquals(GOP_US, index.findPrevious(GOP_US + 1));
+	}
+}
@@ -0,0 +1,279 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.media.NalFramingConverter;
+import com.serenegiant.media.NalUnitScanner;
+import com.serenegiant.media.SyntheticAvcStream;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.media.NalFramingConverter用のローカルユニットテストクラス
+ */
+public class NalFramingConverterUnitTests {
+
+	/**
+	 * AnnexB形式→AVCC形式→AnnexB形式で元のNALユニットに戻ることを
+	 * NALユニット長のバイト数が1, 2, 4のそれぞれについて確認
+	 */
+	@Test
+	public void roundTrip() {
+		roundTrip(1, 1, 20, 255);
+		roundTrip(2, 1, 255, 256, 65535);
+		roundTrip(4, 1, 256, 65536, 100000);
+	}
+
+	private static void roundTrip(final int lengthSize, final int... nalSizes) {
+		final Random random = new Random(lengthSize);
+		final List<byte[]> nals = new ArrayList<>();
+		for (final int size: nalSizes) {
+			nals.add(createNal(random, size));
+		}
+		// 3バイトと4バイトのスタートマーカーを混在させてByteBufferの途中に配置する
+		final byte[] annexB = toAnnexB(nals, true);
+		final ByteBuffer src = ByteBuffer.allocateDirect(annexB.length + 10);
+		src.position(7);
+		src.put(annexB);
+		src.position(3).limit(7 + annexB.length);
+
+		final NalFramingConverter toAvcc = new NalFramingConverter(false,
+			NalFramingConverter.FRAMING_LENGTH_PREFIXED, lengthSize);
+		assertEquals(NalFramingConverter.FRAMING_LENGTH_PREFIXED, toAvcc.getFraming());
+		final ByteBuffer avcc = toAvcc.convert(src, 7, annexB.length);
+		assertNotNull(avcc);
+		// position/limitは変更しない
+		assertEquals(3, src.position());
+		assertEquals(7 + annexB.length, src.limit());
+		assertEquals(0, avcc.position());
+		int ix = 0;
+		for (final byte[] nal: nals) {
+			int len = 0;
+			for (int i = 0; i < lengthSize; i++) {
+				len = (len << 8) | (avcc.get(ix + i) & 0xff);
+			}
+			assertEquals(nal.length, len);
+			ix += lengthSize;
+			for (int i = 0; i < nal.length; i++) {
+				assertEquals(nal[i], avcc.get(ix + i));
+			}
+			ix += len;
+		}
+		assertEquals(avcc.limit(), ix);
+
+		// 変換結果は次の#convert呼び出しまでしか有効でないのでコピーしてから戻す
+		final ByteBuffer copy = ByteBuffer.allocate(avcc.remaining());
+		copy.put(avcc).flip();
+		final NalFramingConverter toAnnexB = new NalFramingConverter(false,
+			NalFramingConverter.FRAMING_ANNEX_B, lengthSize);
+		final ByteBuffer result = toAnnexB.convert(copy, 0, copy.limit());
+		assertNotNull(result);
+		assertEquals(ByteBuffer.wrap(toAnnexB(nals, false)), result);
+	}
+
+	/**
+	 * NALユニット長が指定したバイト数に収まらないときはIllegalArgumentExceptionを投げることを確認
+	 */
+	@Test
+	public void lengthOverflow() {
+		assertLengthOverflow(1, 256);
+		assertLengthOverflow(2, 65536);
+	}
+
+	private static void assertLengthOverflow(final int lengthSize, final int nalSize) {
+		final Random random = new Random(nalSize);
+		final byte[] annexB = toAnnexB(Arrays.asList(
+			createNal(random, 10), createNal(random, nalSize)), false);
+		final ByteBuffer src = ByteBuffer.wrap(annexB);
+		final NalFramingConverter converter = new NalFramingConverter(false,
+			NalFramingConverter.FRAMING_LENGTH_PREFIXED, lengthSize);
+		try {
+			converter.convert(src, 0, annexB.length);
+			fail("should throw IllegalArgumentException");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(0, src.position());
+		assertEquals(annexB.length, src.limit());
+		// 次のフレームは変換できる
+		final byte[] small = toAnnexB(Arrays.asList(createNal(random, nalSize - 1)), false);
+		assertNotNull(converter.convert(ByteBuffer.wrap(small), 0, small.length));
+	}
+
+	/**
+	 * スタートマーカーが無いフレームはnull, 不正なNALユニット長はIllegalArgumentExceptionになることを確認
+	 */
+	@Test
+	public void invalidInput() {
+		final NalFramingConverter toAvcc = new NalFramingConverter(false,
+			NalFramingConverter.FRAMING_LENGTH_PREFIXED, NalFramingConverter.DEFAULT_LENGTH_SIZE);
+		final ByteBuffer noStartMark = ByteBuffer.wrap(new byte[] { 0x65, 1, 2, 3, 4, 5 });
+		assertNull(toAvcc.convert(noStartMark, 0, noStartMark.limit()));
+
+		final NalFramingConverter toAnnexB = new NalFramingConverter(false,
+			NalFramingConverter.FRAMING_ANNEX_B, 2);
+		final ByteBuffer tooLong = ByteBuffer.wrap(new byte[] { 0, 5, 0x65, 1, 2 });
+		try {
+			toAnnexB.convert(tooLong, 0, tooLong.limit());
+			fail("should throw IllegalArgumentException");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			new NalFramingConverter(false, NalFramingConverter.FRAMING_ANNEX_B, 3);
+			fail("should throw IllegalArgumentException");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Baselineプロファイルのcsd-0/csd-1からavcCを生成して元のcsd-0/csd-1に戻せることを確認
+	 * Highプロファイル以外は拡張フィールドを付加しない
+	 */
+	@Test
+	public void avcCBaseline() {
+		final SyntheticAvcStream stream
+			= new SyntheticAvcStream(640, 480, 1000000, 30, 1.0f, 1);
+		final byte[] sps = stream.getSps();
+		final byte[] pps = stream.getPps();
+		final ByteBuffer avcC = NalFramingConverter.createAvcC(
+			ByteBuffer.wrap(sps), ByteBuffer.wrap(pps));
+		assertTrue(NalFramingConverter.isConfigRecord(avcC));
+		// スタートマーカー4バイト+NALユニットヘッダー1バイトの後ろがprofile_idc, constraint_set_flags, level_idc
+		assertEquals(66, avcC.get(1) & 0xff);
+		assertEquals(sps[6], avcC.get(2));
+		assertEquals(sps[7], avcC.get(3));
+		assertEquals(NalFramingConverter.DEFAULT_LENGTH_SIZE,
+			NalFramingConverter.getLengthSize(false, avcC));
+		assertEquals(1, avcC.get(5) & 0x1f);
+		// 7バイトのヘッダー+NALユニット長2バイトずつ, スタートマーカーは含まない
+		assertEquals(7 + 2 + (sps.length - 4) + 2 + (pps.length - 4), avcC.remaining());
+
+		final ByteBuffer[] csd = NalFramingConverter.toAnnexBCsd(false, avcC);
+		assertEquals(2, csd.length);
+		assertEquals(ByteBuffer.wrap(sps), csd[0]);
+		assertEquals(ByteBuffer.wrap(pps), csd[1]);
+	}
+
+	/**
+	 * High10プロファイルのSPSからavcCを生成したときは
+	 * chroma_format/ビット深度の拡張フィールドが付加されることを確認
+	 */
+	@Test
+	public void avcCHigh() {
+		final byte[] sps = SpsParserUnitTests.createAvcSps();
+		final byte[] pps = { 0, 0, 0, 1, 0x68, (byte)0xeb, (byte)0xe3, (byte)0xcb, 0x22, (byte)0xc0 };
+		// SPSとPPSがcsd-0にまとめて入っていてもよい
+		final ByteBuffer csd0 = ByteBuffer.allocate(sps.length + pps.length);
+		csd0.put(sps).put(pps).flip();
+		final ByteBuffer avcC = NalFramingConverter.createAvcC(csd0, null);
+		assertEquals(110, avcC.get(1) & 0xff);
+		final int ext = 7 + 2 + (sps.length - 4) + 2 + (pps.length - 4);
+		assertEquals(ext + 4, avcC.remaining());
+		assertEquals(0xfc | 1, avcC.get(ext) & 0xff);		// chroma_format = 4:2:0
+		assertEquals(0xf8 | 2, avcC.get(ext + 1) & 0xff);	// bit_depth_luma_minus8
+		assertEquals(0xf8 | 2, avcC.get(ext + 2) & 0xff);	// bit_depth_chroma_minus8
+		assertEquals(0, avcC.get(ext + 3));					// numOfSequenceParameterSetExt
+
+		final ByteBuffer[] csd = NalFramingConverter.toAnnexBCsd(false, avcC);
+		assertEquals(ByteBuffer.wrap(sps), csd[0]);
+		assertEquals(ByteBuffer.wrap(pps), csd[1]);
+	}
+
+	/**
+	 * VPS/SPS/PPSからhvcCを生成して元のcsd-0に戻せることを確認
+	 */
+	@Test
+	public void hvcC() {
+		final byte[] vps = { 0, 0, 0, 1, 0x40, 0x01, 0x0c, 0x01, (byte)0xff, (byte)0xff };
+		final byte[] sps = SpsParserUnitTests.createHevcSps();
+		final byte[] pps = { 0, 0, 0, 1, 0x44, 0x01, (byte)0xc1, 0x72, (byte)0xb4, 0x62, 0x40 };
+		final ByteBuffer csd0 = ByteBuffer.allocate(vps.length + sps.length + pps.length);
+		csd0.put(vps).put(sps).put(pps).flip();
+		assertFalse(NalFramingConverter.isConfigRecord(csd0));
+		final ByteBuffer hvcC = NalFramingConverter.createHvcC(csd0, null);
+		assertTrue(NalFramingConverter.isConfigRecord(hvcC));
+		assertEquals(2, hvcC.get(1) & 0x1f);				// general_profile_idc = Main10
+		assertEquals(120, hvcC.get(12) & 0xff);				// general_level_idc
+		assertEquals(0xfc | 1, hvcC.get(16) & 0xff);		// chromaFormat = 4:2:0
+		assertEquals(0xf8 | 2, hvcC.get(17) & 0xff);		// bitDepthLumaMinus8
+		assertEquals(0xf8 | 2, hvcC.get(18) & 0xff);		// bitDepthChromaMinus8
+		// numTemporalLayers=2, temporalIdNested=1, lengthSizeMinusOne=3
+		assertEquals((2 << 3) | (1 << 2) | 3, hvcC.get(21) & 0xff);
+		assertEquals(NalFramingConverter.DEFAULT_LENGTH_SIZE,
+			NalFramingConverter.getLengthSize(true, hvcC));
+		assertEquals(3, hvcC.get(22) & 0xff);				// numOfArrays
+		assertEquals(0x80 | NalUnitScanner.HEVC_NAL_VPS, hvcC.get(23) & 0xff);
+
+		final ByteBuffer[] csd = NalFramingConverter.toAnnexBCsd(true, hvcC);
+		assertEquals(1, csd.length);
+		csd0.rewind();
+		assertEquals(csd0, csd[0]);
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * スタートマーカーと紛らわしくならないように0を含まないNALユニットを生成する
+	 * @param random
+	 * @param size
+	 * @return
+	 */
+	private static byte[] createNal(final Random random, final int size) {
+		final byte[] result = new byte[size];
+		random.nextBytes(result);
+		for (int i = 0; i < size; i++) {
+			if (result[i] == 0) {
+				result[i] = 0x55;
+			}
+		}
+		result[0] = 0x41;	// NALユニットヘッダー, スライス
+		return result;
+	}
+
+	/**
+	 * AnnexB形式のフレームデータを生成する
+	 * @param nals
+	 * @param mixed trueなら3バイトと4バイトのスタートマーカーを交互に使う, falseなら全て4バイト
+	 * @return
+	 */
+	private static byte[] toAnnexB(final List<byte[]> nals, final boolean mixed) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < nals.size(); i++) {
+			if (!mixed || ((i & 1) == 0)) {
+				out.write(0);
+			}
+			out.write(0);
+			out.write(0);
+			out.write(1);
+			final byte[] nal = nals.get(i);
+			out.write(nal, 0, nal.length);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,245 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.media.NalUnitScanner;
+import com.serenegiant.utils.BufferHelper;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.media.NalUnitScannerとBufferHelper#findAnnexB用のローカルユニットテストクラス
+ */
+public class NalUnitScannerUnitTests {
+
+	/**
+	 * 3バイトと4バイトのスタートマーカーが混在していても正しく区切れることを確認
+	 */
+	@Test
+	public void startMarks() {
+		final ByteBuffer buf = wrap(
+			0, 0, 1, 0x67, 0xaa,			// 3バイト, SPS
+			0, 0, 0, 1, 0x68, 0xbb,			// 4バイト, PPS
+			0, 0, 1, 0x65, 0xcc, 0xdd);		// 3バイト, IDR
+		assertEquals(0, BufferHelper.findAnnexB(buf, 0, buf.limit()));
+		assertEquals(3, BufferHelper.getAnnexBStartMarkLength(buf, 0));
+		assertEquals(5, BufferHelper.findAnnexB(buf, 1, buf.limit()));
+		assertEquals(4, BufferHelper.getAnnexBStartMarkLength(buf, 5));
+		assertEquals(11, BufferHelper.findAnnexB(buf, 9, buf.limit()));
+		// 4バイトのスタートマーカーの途中から検索したときは3バイトのスタートマーカーとして見つかる
+		assertEquals(6, BufferHelper.findAnnexB(buf, 6, buf.limit()));
+		assertEquals(3, BufferHelper.getAnnexBStartMarkLength(buf, 6));
+		assertEquals(1, BufferHelper.findAnnexB(wrap(0, 0, 0, 1, 0x67), 1, 5));
+		assertEquals(0, BufferHelper.findAnnexB(wrap(0, 0, 0, 1, 0x67), 0, 5));
+		assertEquals(0, BufferHelper.getAnnexBStartMarkLength(buf, 3));
+		assertEquals(0, BufferHelper.getAnnexBStartMarkLength(buf, -1));
+
+		final NalUnitScanner scanner = new NalUnitScanner(false).reset(buf);
+		assertTrue(scanner.next());
+		assertEquals(0, scanner.getStart());
+		assertEquals(3, scanner.getPayloadOffset());
+		assertEquals(5, scanner.getEnd());
+		assertTrue(scanner.isSps());
+		assertTrue(scanner.isParameterSet());
+		assertTrue(scanner.next());
+		assertEquals(5, scanner.getStart());
+		assertEquals(9, scanner.getPayloadOffset());
+		assertEquals(11, scanner.getEnd());
+		assertTrue(scanner.isPps());
+		assertTrue(scanner.next());
+		assertEquals(11, scanner.getStart());
+		assertEquals(14, scanner.getPayloadOffset());
+		assertEquals(buf.limit(), scanner.getEnd());
+		assertEquals(3, scanner.getPayloadSize());
+		assertTrue(scanner.isKeyFrame());
+		assertTrue(scanner.isVcl());
+		assertFalse(scanner.next());
+		assertEquals(-1, scanner.getType());
+		// position/limitは変更しない
+		assertEquals(0, buf.position());
+		assertEquals(17, buf.limit());
+	}
+
+	/**
+	 * バッファ終端のスタートマーカーはペイロードが1バイト以上ある時だけ見つかることを確認
+	 */
+	@Test
+	public void startMarkAtEnd() {
+		final ByteBuffer noPayload = wrap(0, 0, 1, 0x41, 0xaa, 0, 0, 1);
+		assertEquals(-1, BufferHelper.findAnnexB(noPayload, 1, noPayload.limit()));
+		final NalUnitScanner scanner = new NalUnitScanner(false).reset(noPayload);
+		assertTrue(scanner.next());
+		assertEquals(noPayload.limit(), scanner.getEnd());
+		assertFalse(scanner.next());
+
+		final ByteBuffer onePayload = wrap(0, 0, 1, 0x41, 0xaa, 0, 0, 0, 1, 0x41);
+		assertEquals(5, BufferHelper.findAnnexB(onePayload, 1, onePayload.limit()));
+		scanner.reset(onePayload);
+		assertTrue(scanner.next());
+		assertEquals(5, scanner.getEnd());
+		assertTrue(scanner.next());
+		assertEquals(9, scanner.getPayloadOffset());
+		assertEquals(1, scanner.getPayloadSize());
+		assertFalse(scanner.next());
+
+		// 走査範囲を制限したときは範囲外のスタートマーカーは見えない
+		assertEquals(-1, BufferHelper.findAnnexB(onePayload, 1, onePayload.limit() - 1));
+		// スタートマーカーが無いとき
+		assertEquals(-1, BufferHelper.findAnnexB(wrap(1, 2, 3, 4, 5, 6, 7, 8, 9), 0, 9));
+		assertFalse(new NalUnitScanner(false).reset(wrap(0, 0, 2, 0x41, 0x00)).next());
+	}
+
+	/**
+	 * 8バイト単位の読み飛ばしがどの位置・アライメントでもスタートマーカーを見落とさないことを
+	 * 1バイトずつ比較する実装と比べて確認する
+	 */
+	@Test
+	public void findAnnexBRandom() {
+		final Random random = new Random(1);
+		for (int n = 0; n < 500; n++) {
+			final int size = 1 + random.nextInt(80);
+			final byte[] data = new byte[size];
+			for (int i = 0; i < size; i++) {
+				final int r = random.nextInt(8);
+				data[i] = (byte)(r < 3 ? 0 : (r == 3 ? 1 : random.nextInt(256)));
+			}
+			final ByteBuffer heap = ByteBuffer.wrap(data);
+			final ByteBuffer direct = ByteBuffer.allocateDirect(size + 3);
+			direct.position(3);
+			direct.put(data).flip();
+			for (int offset = 0; offset <= size; offset++) {
+				for (int limit = offset; limit <= size; limit++) {
+					final int expected = findAnnexBNaive(data, offset, limit);
+					assertEquals(expected, BufferHelper.findAnnexB(heap, offset, limit));
+					assertEquals(expected < 0 ? -1 : expected + 3,
+						BufferHelper.findAnnexB(direct, offset + 3, limit + 3));
+				}
+			}
+		}
+	}
+
+	/**
+	 * h.265/HEVCのTemporalIdとサブレイヤー非参照ピクチャーの判定を確認
+	 */
+	@Test
+	public void hevcTemporalId() {
+		final ByteBuffer buf = wrap(
+			0, 0, 0, 1, 0x42, 0x01, 0x05, 0xaa,	// SPS, sps_max_sub_layers_minus1=2
+			0, 0, 1, 0x26, 0x01, 0xaa,		// IDR_W_RADL, TemporalId=0
+			0, 0, 1, 0x00, 0x03, 0xaa,		// TRAIL_N, TemporalId=2
+			0, 0, 1, 0x00, 0x02, 0xaa,		// TRAIL_N, TemporalId=1
+			0, 0, 1, 0x02, 0x03, 0xaa,		// TRAIL_R, TemporalId=2
+			0, 0, 1, 0x04, 0x03, 0xaa,		// TSA_N, TemporalId=2
+			0, 0, 1, 0x10, 0x03, 0xaa,		// RASL_N, TemporalId=2
+			0, 0, 1, 0x4e, 0x01, 0xaa);		// PREFIX_SEI
+		final NalUnitScanner scanner = new NalUnitScanner(NalUnitScanner.MIME_VIDEO_HEVC).reset(buf);
+		assertTrue(scanner.isHevc());
+
+		assertTrue(scanner.next());
+		assertTrue(scanner.isSps());
+		assertEquals(2, scanner.getMaxTemporalId());
+		final int maxTemporalId = scanner.getMaxTemporalId();
+
+		assertTrue(scanner.next());
+		assertEquals(NalUnitScanner.HEVC_NAL_IDR_W_RADL, scanner.getType());
+		assertTrue(scanner.isKeyFrame());
+		assertEquals(0, scanner.getTemporalId());
+		assertEquals(-1, scanner.getMaxTemporalId());
+		assertFalse(scanner.isNonReference(maxTemporalId));
+
+		assertTrue(scanner.next());
+		assertEquals(2, scanner.getTemporalId());
+		assertTrue(scanner.isNonReference(maxTemporalId));
+		// 最大のTemporalIdが不明な時は参照されるかもしれないのでfalse
+		assertFalse(scanner.isNonReference());
+		assertFalse(scanner.isNonReference(-1));
+
+		assertTrue(scanner.next());
+		assertEquals(1, scanner.getTemporalId());
+		// より大きいTemporalIdのピクチャーから参照されるかもしれない
+		assertFalse(scanner.isNonReference(maxTemporalId));
+		assertTrue(scanner.isNonReference(1));
+
+		assertTrue(scanner.next());
+		assertEquals(2, scanner.getTemporalId());
+		assertFalse(scanner.isNonReference(maxTemporalId));
+
+		assertTrue(scanner.next());
+		assertTrue(scanner.isNonReference(maxTemporalId));
+
+		assertTrue(scanner.next());
+		assertTrue(scanner.isNonReference(maxTemporalId));
+
+		assertTrue(scanner.next());
+		assertEquals(NalUnitScanner.HEVC_NAL_PREFIX_SEI, scanner.getType());
+		assertFalse(scanner.isVcl());
+		assertFalse(scanner.isNonReference(maxTemporalId));
+		assertFalse(scanner.next());
+	}
+
+	/**
+	 * h.264/AVCのnal_ref_idcによる非参照スライスの判定を確認
+	 */
+	@Test
+	public void avcNonReference() {
+		final ByteBuffer buf = wrap(
+			0, 0, 1, 0x65, 0xaa,	// IDR, nal_ref_idc=3
+			0, 0, 1, 0x41, 0xaa,	// スライス, nal_ref_idc=2
+			0, 0, 1, 0x01, 0xaa,	// スライス, nal_ref_idc=0
+			0, 0, 1, 0x06, 0xaa);	// SEI, nal_ref_idc=0
+		final NalUnitScanner scanner = new NalUnitScanner(false).reset(buf);
+		assertTrue(scanner.next());
+		assertFalse(scanner.isNonReference());
+		assertEquals(0, scanner.getTemporalId());
+		assertTrue(scanner.next());
+		assertFalse(scanner.isNonReference());
+		assertTrue(scanner.next());
+		assertTrue(scanner.isNonReference());
+		assertTrue(scanner.next());
+		assertEquals(NalUnitScanner.AVC_NAL_SEI, scanner.getType());
+		assertFalse(scanner.isNonReference());
+		assertFalse(scanner.next());
+	}
+
+//--------------------------------------------------------------------------------
+	private static ByteBuffer wrap(final int... values) {
+		final byte[] result = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = (byte)values[i];
+		}
+		return ByteBuffer.wrap(result);
+	}
+
+	/**
+	 * BufferHelper#findAnnexBと同じ結果を1バイトずつ比較して求める
+	 */
+	private static int findAnnexBNaive(final byte[] data, final int offset, final int limit) {
+		for (int i = offset; i + 4 <= limit; i++) {
+			if ((data[i] == 0) && (data[i + 1] == 0) && (data[i + 2] == 1)) {
+				return ((i > offset) && (data[i - 1] == 0)) ? i - 1 : i;
+			}
+		}
+		return -1;
+	}
+}
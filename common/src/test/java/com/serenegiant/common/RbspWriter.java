@@ -0,0 +1,113 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * テスト用のSPS/VPS等を生成するためのビット単位の書き込みヘルパー
+ */
+class RbspWriter {
+	private final ByteArrayOutputStream mRbsp = new ByteArrayOutputStream();
+	private int mCurrent;
+	private int mBits;
+
+	/**
+	 * 固定長(u(n))で書き込む
+	 * @param n
+	 * @param value
+	 * @return
+	 */
+	RbspWriter writeBits(final int n, final long value) {
+		for (int i = n - 1; i >= 0; i--) {
+			mCurrent = (mCurrent << 1) | (int)((value >>> i) & 1);
+			if (++mBits == 8) {
+				mRbsp.write(mCurrent);
+				mCurrent = mBits = 0;
+			}
+		}
+		return this;
+	}
+
+	RbspWriter writeFlag(final boolean flag) {
+		return writeBits(1, flag ? 1 : 0);
+	}
+
+	/**
+	 * 符号なし指数ゴロム符号(ue(v))で書き込む
+	 * @param value
+	 * @return
+	 */
+	RbspWriter writeUE(final int value) {
+		final long v = (value & 0xffffffffL) + 1;
+		final int len = 64 - Long.numberOfLeadingZeros(v);
+		writeBits(len - 1, 0);
+		return writeBits(len, v);
+	}
+
+	/**
+	 * 符号付き指数ゴロム符号(se(v))で書き込む
+	 * @param value
+	 * @return
+	 */
+	RbspWriter writeSE(final int value) {
+		return writeUE(value > 0 ? 2 * value - 1 : -2 * value);
+	}
+
+	/**
+	 * 書き込んだビット列をそのまま(エミュレーション防止バイトを挿入せずに)取得する
+	 * 8ビットに満たない端数は0で埋める
+	 * @return
+	 */
+	byte[] toRawBytes() {
+		while (mBits != 0) {
+			writeBits(1, 0);
+		}
+		return mRbsp.toByteArray();
+	}
+
+	/**
+	 * rbsp_trailing_bitsを付加してエミュレーション防止バイトを挿入した
+	 * 4バイトのスタートマーカー付きのNALユニットを生成する
+	 * @param nalHeader NALユニットヘッダー(h.264は1バイト, h.265は2バイト)
+	 * @return
+	 */
+	byte[] toNalUnit(final int... nalHeader) {
+		writeBits(1, 1);	// rbsp_stop_one_bit
+		final byte[] rbsp = toRawBytes();
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(0);
+		out.write(0);
+		out.write(0);
+		out.write(1);
+		for (final int b: nalHeader) {
+			out.write(b);
+		}
+		int zeros = 0;
+		for (final byte b: rbsp) {
+			if ((zeros >= 2) && ((b & 0xff) <= 3)) {
+				out.write(0x03);	// emulation_prevention_three_byte
+				zeros = 0;
+			}
+			out.write(b);
+			zeros = (b == 0) ? zeros + 1 : 0;
+		}
+		return out.toByteArray();
+	}
+}
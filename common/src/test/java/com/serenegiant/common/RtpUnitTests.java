@@ -0,0 +1,331 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+
+import com.serenegiant.media.RtpDepacketizer;
+import com.serenegiant.media.RtpJitterBuffer;
+import com.serenegiant.media.RtpPacketizer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.media.RtpPacketizer/RtpJitterBuffer/RtpDepacketizer用のローカルユニットテストクラス
+ * パケットに分割してから並べ替え/欠落させてフレームデータを復元できることを確認する
+ */
+public class RtpUnitTests {
+
+	private static final int MTU = 500;
+	private static final int PT_VIDEO = 96;
+	private static final int PT_AUDIO = 97;
+	private static final long FRAME_INTERVALS_US = 33333;
+	@SuppressWarnings("deprecation")
+	private static final int FLAG_KEY_FRAME = MediaCodec.BUFFER_FLAG_SYNC_FRAME;
+
+	private static final byte[] SPS = { 0, 0, 0, 1, 0x67, 0x42, (byte)0xc0, 0x1f, 0x11, 0x22 };
+	private static final byte[] PPS = { 0, 0, 0, 1, 0x68, (byte)0xce, 0x3c, (byte)0x80 };
+
+	/**
+	 * 復元したフレーム
+	 */
+	private static class Frame {
+		private final byte[] data;
+		private final long ptsUs;
+		private final int flags;
+
+		private Frame(final byte[] data, final long ptsUs, final int flags) {
+			this.data = data;
+			this.ptsUs = ptsUs;
+			this.flags = flags;
+		}
+	}
+
+	private static class Collector implements RtpDepacketizer.FrameListener {
+		private final List<Frame> frames = new ArrayList<>();
+
+		@Override
+		public void onFrame(final ByteBuffer frame, final long presentationTimeUs, final int flags) {
+			final byte[] data = new byte[frame.remaining()];
+			frame.get(data);
+			frames.add(new Frame(data, presentationTimeUs, flags));
+		}
+	}
+
+	/**
+	 * 指定したNALユニットタイプでAnnexB形式のNALユニットを生成する
+	 */
+	private static byte[] nal(final int type, final int size, final Random random) {
+		final byte[] result = new byte[size + 4];
+		random.nextBytes(result);
+		result[0] = result[1] = result[2] = 0;
+		result[3] = 1;
+		result[4] = (byte)(0x60 | type);
+		// スタートマーカーと紛らわしい0x000001が出てこないようにする
+		for (int i = 5; i < result.length; i++) {
+			if (result[i] == 0) result[i] = 1;
+		}
+		return result;
+	}
+
+	private static byte[] concat(final byte[]... arrays) {
+		int n = 0;
+		for (final byte[] a: arrays) n += a.length;
+		final byte[] result = new byte[n];
+		int pos = 0;
+		for (final byte[] a: arrays) {
+			System.arraycopy(a, 0, result, pos, a.length);
+			pos += a.length;
+		}
+		return result;
+	}
+
+	private static List<byte[]> packetize(final RtpPacketizer packetizer,
+		final byte[] data, final long ptsUs, final int flags) throws IOException {
+
+		final List<byte[]> result = new ArrayList<>();
+		packetizer.packetize(ByteBuffer.wrap(data), 0, data.length, ptsUs, flags,
+			new RtpPacketizer.PacketSink() {
+				@Override
+				public void onPacket(final ByteBuffer packet) {
+					assertTrue(packet.remaining() <= MTU);
+					final byte[] copy = new byte[packet.remaining()];
+					packet.get(copy);
+					result.add(copy);
+				}
+			});
+		return result;
+	}
+
+	/**
+	 * SPS/PPS, IDR, Pフレームからなるh.264のフレームデータを生成する
+	 * 先頭はBUFFER_FLAG_CODEC_CONFIGのSPS/PPSで, gop毎にIDRフレームになる
+	 */
+	private static List<byte[]> createAvcFrames(final int num, final int gop, final Random random) {
+		final List<byte[]> result = new ArrayList<>();
+		for (int i = 0; i < num; i++) {
+			if (i % gop == 0) {
+				result.add(nal(5, 3000 + random.nextInt(2000), random));
+			} else {
+				result.add(concat(nal(6, 20, random), nal(1, 100 + random.nextInt(1500), random)));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 復元したh.264のフレームが元のフレームと一致することを確認する
+	 * キーフレームの前にはSPS/PPSが付加されている
+	 */
+	private static void assertAvcFrame(final byte[] expected, final boolean isKeyFrame, final Frame actual, final long ptsUs) {
+		if (isKeyFrame) {
+			assertEquals(FLAG_KEY_FRAME, actual.flags);
+			assertArrayEquals(concat(SPS, PPS, expected), actual.data);
+		} else {
+			assertEquals(0, actual.flags);
+			assertArrayEquals(expected, actual.data);
+		}
+		// RTPタイムスタンプへ変換したときの丸め誤差(1クロック分)まで許容する
+		assertTrue("pts=" + actual.ptsUs, Math.abs(actual.ptsUs - ptsUs) <= 1000000L / RtpPacketizer.CLOCK_RATE_VIDEO + 1);
+	}
+
+	/**
+	 * h.264のフレームデータを分割して復元できることを確認
+	 * MTUを超えるNALユニットはFU-Aに分割され, キーフレームの前にはSPS/PPSを送る
+	 */
+	@Test
+	public void avcRoundTrip() throws IOException {
+		final Random random = new Random(1);
+		final RtpPacketizer packetizer = RtpPacketizer.newAvc(PT_VIDEO, 1234, MTU);
+		final RtpDepacketizer depacketizer = RtpDepacketizer.newAvc();
+		final Collector collector = new Collector();
+		assertEquals(0, packetize(packetizer, concat(SPS, PPS), 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG).size());
+		final List<byte[]> frames = createAvcFrames(30, 10, random);
+		for (int i = 0; i < frames.size(); i++) {
+			for (final byte[] packet: packetize(packetizer, frames.get(i), i * FRAME_INTERVALS_US, 0)) {
+				assertTrue(depacketizer.push(ByteBuffer.wrap(packet), collector));
+			}
+		}
+		// 最初のキーフレームの前にSPS/PPSをBUFFER_FLAG_CODEC_CONFIGで通知する
+		assertEquals(frames.size() + 1, collector.frames.size());
+		assertEquals(MediaCodec.BUFFER_FLAG_CODEC_CONFIG, collector.frames.get(0).flags);
+		assertArrayEquals(concat(SPS, PPS), collector.frames.get(0).data);
+		for (int i = 0; i < frames.size(); i++) {
+			assertAvcFrame(frames.get(i), i % 10 == 0, collector.frames.get(i + 1), i * FRAME_INTERVALS_US);
+		}
+		assertEquals(0, depacketizer.getDroppedFrames());
+		assertEquals(0, depacketizer.getLostPackets());
+	}
+
+	/**
+	 * 順番が入れ替わったパケットをRtpJitterBufferで並べ替えて復元できることを確認
+	 */
+	@Test
+	public void reorder() throws IOException {
+		final Random random = new Random(2);
+		final RtpPacketizer packetizer = RtpPacketizer.newAvc(PT_VIDEO, 1234, MTU);
+		packetizer.setParameterSets(ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+		final List<byte[]> frames = createAvcFrames(20, 10, random);
+		final List<byte[]> packets = new ArrayList<>();
+		for (int i = 0; i < frames.size(); i++) {
+			packets.addAll(packetize(packetizer, frames.get(i), i * FRAME_INTERVALS_US, 0));
+		}
+		// 最初のパケット以外を近くのパケットと入れ替える
+		for (int i = 1; i + 4 < packets.size(); i += 4) {
+			Collections.shuffle(packets.subList(i, i + 4), random);
+		}
+		final RtpJitterBuffer jitterBuffer = new RtpJitterBuffer(50, 64);
+		final RtpDepacketizer depacketizer = RtpDepacketizer.newAvc();
+		final Collector collector = new Collector();
+		for (final byte[] packet: packets) {
+			assertTrue(jitterBuffer.offer(ByteBuffer.wrap(packet), 0));
+			for (ByteBuffer p = jitterBuffer.poll(0); p != null; p = jitterBuffer.poll(0)) {
+				depacketizer.push(p, collector);
+			}
+		}
+		assertEquals(0, jitterBuffer.count());
+		assertEquals(0, jitterBuffer.getLostPackets());
+		assertEquals(frames.size() + 1, collector.frames.size());
+		for (int i = 0; i < frames.size(); i++) {
+			assertAvcFrame(frames.get(i), i % 10 == 0, collector.frames.get(i + 1), i * FRAME_INTERVALS_US);
+		}
+	}
+
+	/**
+	 * パケットが欠けたときは遅延時間が経過してから読み飛ばして
+	 * 次のキーフレームまでのフレームを破棄することを確認
+	 */
+	@Test
+	public void packetLoss() throws IOException {
+		final Random random = new Random(3);
+		final RtpPacketizer packetizer = RtpPacketizer.newAvc(PT_VIDEO, 1234, MTU);
+		packetizer.setParameterSets(ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+		final List<byte[]> frames = createAvcFrames(20, 10, random);
+		final List<List<byte[]>> packets = new ArrayList<>();
+		for (int i = 0; i < frames.size(); i++) {
+			packets.add(packetize(packetizer, frames.get(i), i * FRAME_INTERVALS_US, 0));
+		}
+		final RtpJitterBuffer jitterBuffer = new RtpJitterBuffer(50, 256);
+		final RtpDepacketizer depacketizer = RtpDepacketizer.newAvc();
+		final Collector collector = new Collector();
+		long now = 0;
+		for (int i = 0; i < frames.size(); i++) {
+			final List<byte[]> list = packets.get(i);
+			for (int j = 0; j < list.size(); j++) {
+				// 4フレーム目の2番目のパケットを落とす
+				if ((i == 3) && (j == 1)) continue;
+				jitterBuffer.offer(ByteBuffer.wrap(list.get(j)), now);
+			}
+			for (ByteBuffer p = jitterBuffer.poll(now); p != null; p = jitterBuffer.poll(now)) {
+				depacketizer.push(p, collector);
+			}
+			now += 33;
+		}
+		assertEquals(1, jitterBuffer.getLostPackets());
+		// 4-10フレーム目は破棄され, 11フレーム目のキーフレームから再開する
+		assertEquals(7, depacketizer.getDroppedFrames());
+		assertEquals(1 + 3 + 10, collector.frames.size());
+		for (int i = 0; i < 3; i++) {
+			assertAvcFrame(frames.get(i), i == 0, collector.frames.get(i + 1), i * FRAME_INTERVALS_US);
+		}
+		for (int i = 10; i < 20; i++) {
+			assertAvcFrame(frames.get(i), i == 10, collector.frames.get(i - 6), i * FRAME_INTERVALS_US);
+		}
+	}
+
+	/**
+	 * AACのフレームデータを分割して復元できることを確認
+	 * ADTSヘッダーは取り除き, MTUを超えるフレームは複数のパケットへ分割する
+	 */
+	@Test
+	public void aacRoundTrip() throws IOException {
+		final Random random = new Random(4);
+		final int sampleRate = 48000;
+		final RtpPacketizer packetizer = RtpPacketizer.newAac(PT_AUDIO, 5678, sampleRate, MTU);
+		final RtpDepacketizer depacketizer = RtpDepacketizer.newAac(sampleRate);
+		final Collector collector = new Collector();
+		final long intervalsUs = RtpPacketizer.AAC_SAMPLES_PER_FRAME * 1000000L / sampleRate;
+		final List<byte[]> frames = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			final byte[] au = new byte[i == 5 ? 1500 : 200 + random.nextInt(200)];
+			random.nextBytes(au);
+			frames.add(au);
+			final byte[] data;
+			if (i % 2 == 0) {
+				// ADTSヘッダー(protection_absent=1)付き
+				final byte[] adts = { (byte)0xff, (byte)0xf1, 0x4c, (byte)0x80, 0, 0, (byte)0xfc };
+				data = concat(adts, au);
+			} else {
+				data = au;
+			}
+			final List<byte[]> packets = packetize(packetizer, data, i * intervalsUs, 0);
+			assertEquals(i == 5 ? 4 : 1, packets.size());
+			for (final byte[] packet: packets) {
+				depacketizer.push(ByteBuffer.wrap(packet), collector);
+			}
+		}
+		assertEquals(frames.size(), collector.frames.size());
+		for (int i = 0; i < frames.size(); i++) {
+			assertArrayEquals(frames.get(i), collector.frames.get(i).data);
+			assertTrue(Math.abs(collector.frames.get(i).ptsUs - i * intervalsUs) <= 1000000L / sampleRate + 1);
+		}
+	}
+
+	/**
+	 * RtpJitterBufferがシーケンス番号の折り返しを正しく扱えることを確認
+	 */
+	@Test
+	public void sequenceWrapAround() {
+		final int[] sequences = { 65534, 0, 65535, 2, 1 };
+		final RtpJitterBuffer jitterBuffer = new RtpJitterBuffer(10, 16);
+		final List<Integer> polled = new ArrayList<>();
+		for (final int seq: sequences) {
+			final ByteBuffer packet = ByteBuffer.allocate(RtpPacketizer.RTP_HEADER_SIZE + 1);
+			packet.put(0, (byte)0x80).putShort(2, (short)seq);
+			assertTrue(jitterBuffer.offer(packet, 0));
+			for (ByteBuffer p = jitterBuffer.poll(0); p != null; p = jitterBuffer.poll(0)) {
+				polled.add(p.getShort(p.position() + 2) & 0xffff);
+			}
+		}
+		assertEquals(Arrays.asList(65534, 65535, 0, 1, 2), polled);
+		// 既に取り出したシーケンス番号は遅れて届いたとみなす
+		final ByteBuffer late = ByteBuffer.allocate(RtpPacketizer.RTP_HEADER_SIZE + 1);
+		late.put(0, (byte)0x80).putShort(2, (short)65535);
+		assertFalse(jitterBuffer.offer(late, 0));
+		assertEquals(1, jitterBuffer.getLatePackets());
+		// 欠けたパケットは遅延時間が経過するまで待つ
+		final ByteBuffer next = ByteBuffer.allocate(RtpPacketizer.RTP_HEADER_SIZE + 1);
+		next.put(0, (byte)0x80).putShort(2, (short)4);
+		assertTrue(jitterBuffer.offer(next, 100));
+		assertNull(jitterBuffer.poll(105));
+		assertEquals(5, jitterBuffer.getWaitTimeMs(105));
+		assertNotNull(jitterBuffer.poll(110));
+		assertEquals(1, jitterBuffer.getLostPackets());
+	}
+}
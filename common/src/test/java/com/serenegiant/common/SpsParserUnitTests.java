@@ -0,0 +1,360 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodecInfo;
+
+import com.serenegiant.media.ExpGolombReader;
+import com.serenegiant.media.SpsParser;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.media.ExpGolombReader/SpsParser用のローカルユニットテストクラス
+ */
+public class SpsParserUnitTests {
+
+	/**
+	 * 固定長と指数ゴロム符号を書き込んだ値と同じ値を読み込めることを確認
+	 * 書き込み時に挿入したエミュレーション防止バイトは読み込み時に読み飛ばされる
+	 */
+	@Test
+	public void expGolomb() {
+		final Random random = new Random(1);
+		final RbspWriter writer = new RbspWriter();
+		final int n = 2000;
+		final int[] values = new int[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = i < 100 ? i : random.nextInt(1 << (random.nextInt(20) + 1));
+			switch (i % 3) {
+			case 0:	writer.writeUE(values[i]); break;
+			case 1:	writer.writeSE(values[i] - 500); break;
+			default:	writer.writeBits(17, values[i] & 0x1ffff); break;
+			}
+		}
+		writer.writeBits(32, 0xfedcba98L);
+		final byte[] data = writer.toNalUnit(0x06);
+		// スタートマーカーとNALユニットヘッダーを読み飛ばす
+		final ExpGolombReader reader
+			= new ExpGolombReader(ByteBuffer.wrap(data), 5, data.length);
+		for (int i = 0; i < n; i++) {
+			switch (i % 3) {
+			case 0:	assertEquals(values[i], reader.readUE()); break;
+			case 1:	assertEquals(values[i] - 500, reader.readSE()); break;
+			default:	assertEquals(values[i] & 0x1ffff, reader.readBits(17)); break;
+			}
+		}
+		assertEquals(0xfedcba98L, reader.readUInt32());
+		assertTrue(reader.readFlag());	// rbsp_stop_one_bit
+		while (reader.hasMoreData()) {
+			assertFalse(reader.readFlag());	// rbsp_alignment_zero_bit
+		}
+		try {
+			reader.readBit();
+			fail("should throw IllegalArgumentException");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * エミュレーション防止バイトを読み飛ばすことを確認
+	 */
+	@Test
+	public void emulationPrevention() {
+		final ByteBuffer buf = ByteBuffer.wrap(new byte[] {
+			(byte)0xff, 0x00, 0x00, 0x03, 0x01, 0x00, 0x00, 0x03, 0x03, (byte)0x80 });
+		final ExpGolombReader reader = new ExpGolombReader(buf, 1, buf.limit());
+		assertEquals(0x000001, reader.readBits(24));
+		assertEquals(0x000003, reader.readBits(24));
+		assertTrue(reader.readFlag());
+		reader.skipBits(7);
+		assertFalse(reader.hasMoreData());
+		// 終端がエミュレーション防止バイトの時
+		final ExpGolombReader reader2 = new ExpGolombReader(buf, 1, 4);
+		assertEquals(0, reader2.readBits(16));
+		try {
+			reader2.readBits(8);
+			fail("should throw IllegalArgumentException");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * クロッピングとVUIを含むh.264/AVCのHigh10プロファイルのSPSを解析できることを確認
+	 */
+	@Test
+	public void avcSps() {
+		final byte[] sps = createAvcSps();
+		final ByteBuffer buf = ByteBuffer.wrap(sps);
+		final SpsParser.SpsInfo info = new SpsParser.SpsInfo();
+		assertTrue(SpsParser.parse(false, buf, 0, buf.limit(), info));
+		assertFalse(info.isHevc);
+		assertEquals(110, info.profileIdc);
+		assertEquals(40, info.levelIdc);
+		assertEquals(1, info.chromaFormatIdc);
+		assertEquals(10, info.bitDepthLuma);
+		assertEquals(10, info.bitDepthChroma);
+		assertEquals(1920, info.codedWidth);
+		assertEquals(1088, info.codedHeight);
+		assertEquals(8, info.cropBottom);
+		assertEquals(1920, info.width);
+		assertEquals(1080, info.height);
+		assertEquals(4, info.sarWidth);
+		assertEquals(3, info.sarHeight);
+		assertTrue(info.hasVideoSignalType);
+		assertTrue(info.fullRange);
+		assertEquals(1, info.colourPrimaries);
+		assertEquals(1, info.transferCharacteristics);
+		assertEquals(1, info.matrixCoefficients);
+		assertEquals(30000 / 1001.0f, info.frameRate, 0.001f);
+		assertEquals(MediaCodecInfo.CodecProfileLevel.AVCProfileHigh10, info.getProfile());
+		// position/limitは変更しない
+		assertEquals(0, buf.position());
+		assertEquals(sps.length, buf.limit());
+	}
+
+	/**
+	 * conformance windowとVUIを含むh.265/HEVCのSPSを解析できることを確認
+	 */
+	@Test
+	public void hevcSps() {
+		final byte[] sps = createHevcSps();
+		final ByteBuffer buf = ByteBuffer.wrap(sps);
+		final SpsParser.SpsInfo info = new SpsParser.SpsInfo();
+		assertTrue(SpsParser.parse(true, buf, 0, buf.limit(), info));
+		assertTrue(info.isHevc);
+		assertEquals(2, info.profileIdc);
+		assertEquals(120, info.levelIdc);
+		assertFalse(info.highTier);
+		assertEquals(1, info.chromaFormatIdc);
+		assertEquals(10, info.bitDepthLuma);
+		assertEquals(10, info.bitDepthChroma);
+		assertEquals(3840, info.codedWidth);
+		assertEquals(2176, info.codedHeight);
+		assertEquals(16, info.cropBottom);
+		assertEquals(3840, info.width);
+		assertEquals(2160, info.height);
+		assertEquals(1, info.sarWidth);
+		assertEquals(1, info.sarHeight);
+		assertTrue(info.hasVideoSignalType);
+		assertFalse(info.fullRange);
+		assertEquals(9, info.colourPrimaries);
+		assertEquals(16, info.transferCharacteristics);
+		assertEquals(9, info.matrixCoefficients);
+		assertEquals(60000 / 1001.0f, info.frameRate, 0.001f);
+		assertEquals(MediaCodecInfo.CodecProfileLevel.HEVCProfileMain10HDR10, info.getProfile());
+	}
+
+	/**
+	 * SPSが見つからないときや途中で途切れているときはfalseを返すことを確認
+	 */
+	@Test
+	public void truncated() {
+		final byte[] sps = createAvcSps();
+		final SpsParser.SpsInfo info = new SpsParser.SpsInfo();
+		for (int size = 0; size < 12; size++) {
+			assertFalse(SpsParser.parse(false, ByteBuffer.wrap(sps), 0, size, info));
+		}
+		// PPSのみ
+		final ByteBuffer pps = ByteBuffer.wrap(new byte[] { 0, 0, 0, 1, 0x68, (byte)0xce, 0x3c, (byte)0x80 });
+		assertFalse(SpsParser.parse(false, pps, 0, pps.limit(), info));
+		assertNull(SpsParser.parse(false, pps, null));
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 1920x1080(1920x1088からクロッピング), High10プロファイル・スケーリングリスト付きで
+	 * 4:3のSAR・フルレンジ・BT.709・29.97fpsのVUIを持つSPSを生成する
+	 * NalFramingConverterUnitTestsからも使う
+	 * @return
+	 */
+	static byte[] createAvcSps() {
+		final RbspWriter writer = new RbspWriter();
+		writer.writeBits(8, 110);	// profile_idc
+		writer.writeBits(8, 0);		// constraint_set_flags
+		writer.writeBits(8, 40);	// level_idc
+		writer.writeUE(0);			// seq_parameter_set_id
+		writer.writeUE(1);			// chroma_format_idc
+		writer.writeUE(2);			// bit_depth_luma_minus8
+		writer.writeUE(2);			// bit_depth_chroma_minus8
+		writer.writeFlag(false);	// qpprime_y_zero_transform_bypass_flag
+		writer.writeFlag(true);		// seq_scaling_matrix_present_flag
+		for (int i = 0; i < 8; i++) {
+			writer.writeFlag(i == 0);	// seq_scaling_list_present_flag
+			if (i == 0) {
+				// delta_scale, 2つ目で0にして残りは前の値を使う
+				writer.writeSE(8);
+				writer.writeSE(-16);
+			}
+		}
+		writer.writeUE(0);			// log2_max_frame_num_minus4
+		writer.writeUE(1);			// pic_order_cnt_type
+		writer.writeFlag(false);	// delta_pic_order_always_zero_flag
+		writer.writeSE(-2);			// offset_for_non_ref_pic
+		writer.writeSE(0);			// offset_for_top_to_bottom_field
+		writer.writeUE(2);			// num_ref_frames_in_pic_order_cnt_cycle
+		writer.writeSE(2);
+		writer.writeSE(2);
+		writer.writeUE(4);			// max_num_ref_frames
+		writer.writeFlag(false);	// gaps_in_frame_num_value_allowed_flag
+		writer.writeUE(119);		// pic_width_in_mbs_minus1
+		writer.writeUE(67);			// pic_height_in_map_units_minus1
+		writer.writeFlag(true);		// frame_mbs_only_flag
+		writer.writeFlag(true);		// direct_8x8_inference_flag
+		writer.writeFlag(true);		// frame_cropping_flag
+		writer.writeUE(0);
+		writer.writeUE(0);
+		writer.writeUE(0);
+		writer.writeUE(4);			// frame_crop_bottom_offset, 4:2:0なので2倍
+		writer.writeFlag(true);		// vui_parameters_present_flag
+		writer.writeFlag(true);		// aspect_ratio_info_present_flag
+		writer.writeBits(8, 255);	// Extended_SAR
+		writer.writeBits(16, 4);
+		writer.writeBits(16, 3);
+		writer.writeFlag(true);		// overscan_info_present_flag
+		writer.writeFlag(false);	// overscan_appropriate_flag
+		writer.writeFlag(true);		// video_signal_type_present_flag
+		writer.writeBits(3, 5);		// video_format
+		writer.writeFlag(true);		// video_full_range_flag
+		writer.writeFlag(true);		// colour_description_present_flag
+		writer.writeBits(8, 1);
+		writer.writeBits(8, 1);
+		writer.writeBits(8, 1);
+		writer.writeFlag(true);		// chroma_loc_info_present_flag
+		writer.writeUE(0);
+		writer.writeUE(0);
+		writer.writeFlag(true);		// timing_info_present_flag
+		writer.writeBits(32, 1001);	// num_units_in_tick
+		writer.writeBits(32, 60000);	// time_scale
+		writer.writeFlag(true);		// fixed_frame_rate_flag
+		writer.writeFlag(false);	// nal_hrd_parameters_present_flag
+		writer.writeFlag(false);	// vcl_hrd_parameters_present_flag
+		writer.writeFlag(false);	// pic_struct_present_flag
+		writer.writeFlag(false);	// bitstream_restriction_flag
+		return writer.toNalUnit(0x67);
+	}
+
+	/**
+	 * 3840x2160(3840x2176からクロッピング), Main10プロファイルで
+	 * 1:1のSAR・BT.2020/PQ・59.94fpsのVUIを持つSPSを生成する
+	 * sps_max_sub_layers_minus1=1なのでサブレイヤーのprofile_tier_levelも含む
+	 * NalFramingConverterUnitTestsからも使う
+	 * @return
+	 */
+	static byte[] createHevcSps() {
+		final RbspWriter writer = new RbspWriter();
+		writer.writeBits(4, 0);		// sps_video_parameter_set_id
+		writer.writeBits(3, 1);		// sps_max_sub_layers_minus1
+		writer.writeFlag(true);		// sps_temporal_id_nesting_flag
+		// profile_tier_level
+		writer.writeBits(2, 0);		// general_profile_space
+		writer.writeFlag(false);	// general_tier_flag
+		writer.writeBits(5, 2);		// general_profile_idc
+		writer.writeBits(32, 0x20000000L);	// general_profile_compatibility_flag
+		writer.writeBits(4, 0x09);	// progressive_source, interlaced, non_packed, frame_only
+		writer.writeBits(44, 0);
+		writer.writeBits(8, 120);	// general_level_idc
+		writer.writeFlag(true);		// sub_layer_profile_present_flag[0]
+		writer.writeFlag(true);		// sub_layer_level_present_flag[0]
+		writer.writeBits(2 * 7, 0);	// reserved_zero_2bits
+		writer.writeBits(32, 0x02200000L);	// sub_layer_profile_space〜compatibility_flag(一部)
+		writer.writeBits(32, 0);
+		writer.writeBits(24, 0);
+		writer.writeBits(8, 93);	// sub_layer_level_idc
+		writer.writeUE(0);			// sps_seq_parameter_set_id
+		writer.writeUE(1);			// chroma_format_idc
+		writer.writeUE(3840);		// pic_width_in_luma_samples
+		writer.writeUE(2176);		// pic_height_in_luma_samples
+		writer.writeFlag(true);		// conformance_window_flag
+		writer.writeUE(0);
+		writer.writeUE(0);
+		writer.writeUE(0);
+		writer.writeUE(8);			// conf_win_bottom_offset, 4:2:0なので2倍
+		writer.writeUE(2);			// bit_depth_luma_minus8
+		writer.writeUE(2);			// bit_depth_chroma_minus8
+		writer.writeUE(4);			// log2_max_pic_order_cnt_lsb_minus4
+		writer.writeFlag(true);		// sps_sub_layer_ordering_info_present_flag
+		for (int i = 0; i < 2; i++) {
+			writer.writeUE(4);
+			writer.writeUE(2);
+			writer.writeUE(0);
+		}
+		writer.writeUE(0);			// log2_min_luma_coding_block_size_minus3
+		writer.writeUE(3);			// log2_diff_max_min_luma_coding_block_size
+		writer.writeUE(0);			// log2_min_luma_transform_block_size_minus2
+		writer.writeUE(3);			// log2_diff_max_min_luma_transform_block_size
+		writer.writeUE(1);			// max_transform_hierarchy_depth_inter
+		writer.writeUE(1);			// max_transform_hierarchy_depth_intra
+		writer.writeFlag(false);	// scaling_list_enabled_flag
+		writer.writeFlag(true);		// amp_enabled_flag
+		writer.writeFlag(true);		// sample_adaptive_offset_enabled_flag
+		writer.writeFlag(false);	// pcm_enabled_flag
+		writer.writeUE(2);			// num_short_term_ref_pic_sets
+		// st_ref_pic_set(0)
+		writer.writeUE(1);			// num_negative_pics
+		writer.writeUE(0);			// num_positive_pics
+		writer.writeUE(0);			// delta_poc_s0_minus1
+		writer.writeFlag(true);		// used_by_curr_pic_s0_flag
+		// st_ref_pic_set(1), inter_ref_pic_set_prediction
+		writer.writeFlag(true);		// inter_ref_pic_set_prediction_flag
+		writer.writeFlag(false);	// delta_rps_sign
+		writer.writeUE(0);			// abs_delta_rps_minus1
+		writer.writeFlag(true);		// used_by_curr_pic_flag[0]
+		writer.writeFlag(false);	// used_by_curr_pic_flag[1]
+		writer.writeFlag(true);		// use_delta_flag[1]
+		writer.writeFlag(false);	// long_term_ref_pics_present_flag
+		writer.writeFlag(true);		// sps_temporal_mvp_enabled_flag
+		writer.writeFlag(true);		// strong_intra_smoothing_enabled_flag
+		writer.writeFlag(true);		// vui_parameters_present_flag
+		writer.writeFlag(true);		// aspect_ratio_info_present_flag
+		writer.writeBits(8, 1);		// aspect_ratio_idc = 1:1
+		writer.writeFlag(false);	// overscan_info_present_flag
+		writer.writeFlag(true);		// video_signal_type_present_flag
+		writer.writeBits(3, 5);		// video_format
+		writer.writeFlag(false);	// video_full_range_flag
+		writer.writeFlag(true);		// colour_description_present_flag
+		writer.writeBits(8, 9);
+		writer.writeBits(8, 16);
+		writer.writeBits(8, 9);
+		writer.writeFlag(false);	// chroma_loc_info_present_flag
+		writer.writeFlag(false);	// neutral_chroma_indication_flag
+		writer.writeFlag(false);	// field_seq_flag
+		writer.writeFlag(false);	// frame_field_info_present_flag
+		writer.writeFlag(true);		// default_display_window_flag
+		writer.writeUE(0);
+		writer.writeUE(0);
+		writer.writeUE(0);
+		writer.writeUE(0);
+		writer.writeFlag(true);		// vui_timing_info_present_flag
+		writer.writeBits(32, 1001);
+		writer.writeBits(32, 60000);
+		writer.writeFlag(false);	// vui_poc_proportional_to_timing_flag
+		writer.writeFlag(false);	// vui_hrd_parameters_present_flag
+		writer.writeFlag(false);	// bitstream_restriction_flag
+		writer.writeFlag(false);	// sps_extension_present_flag
+		return writer.toNalUnit(0x42, 0x01);
+	}
+}
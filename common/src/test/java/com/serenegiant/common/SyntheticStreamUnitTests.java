@@ -0,0 +1,262 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+
+import com.serenegiant.media.BenchmarkMuxer;
+import com.serenegiant.media.GopFrameDropPolicy;
+import com.serenegiant.media.MediaCodecUtils;
+import com.serenegiant.media.MemMediaQueue;
+import com.serenegiant.media.NalUnitScanner;
+import com.serenegiant.media.RecycleMediaData;
+import com.serenegiant.media.SpsParser;
+import com.serenegiant.media.SyntheticAvcStream;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.media.SyntheticAvcStream/BenchmarkMuxer用のローカルユニットテストクラス
+ * ハードウエアエンコーダーなしで生成したフレームをキュー経由で書き込んで
+ * 書き込みが遅い時のフレーム破棄の挙動を確認する
+ */
+public class SyntheticStreamUnitTests {
+
+	private static final int FRAME_RATE = 30;
+	private static final long FRAME_INTERVALS_US = 1000000L / FRAME_RATE;
+	@SuppressWarnings("deprecation")
+	private static final int FLAG_KEY_FRAME = MediaCodec.BUFFER_FLAG_SYNC_FRAME;
+
+	@Test
+	public void codecConfig() {
+		final SyntheticAvcStream stream
+			= new SyntheticAvcStream(1918, 1080, 8000000, FRAME_RATE, 1.0f, 1);
+		final ByteBuffer buf = stream.next();
+		assertEquals(MediaCodec.BUFFER_FLAG_CODEC_CONFIG, stream.getFlags());
+		assertEquals(0, stream.getPresentationTimeUs());
+		assertEquals(0, stream.getFrameCount());
+		assertEquals(stream.getSps().length + stream.getPps().length, buf.remaining());
+		final SpsParser.SpsInfo info = new SpsParser.SpsInfo();
+		assertTrue(SpsParser.parse(false, buf, buf.position(), buf.remaining(), info));
+		assertEquals(1918, info.width);
+		assertEquals(1080, info.height);
+	}
+
+	@Test
+	public void gopStructure() {
+		final SyntheticAvcStream stream
+			= new SyntheticAvcStream(640, 480, 2000000, FRAME_RATE, 1.0f, 2);
+		stream.next();	// codec specific data
+		final NalUnitScanner scanner = new NalUnitScanner(false);
+		for (int i = 0; i < FRAME_RATE * 3; i++) {
+			final ByteBuffer buf = stream.next();
+			final boolean isKeyFrame = (i % FRAME_RATE) == 0;
+			assertEquals(i * 1000000L / FRAME_RATE, stream.getPresentationTimeUs());
+			assertEquals(isKeyFrame ? FLAG_KEY_FRAME : 0, stream.getFlags());
+			scanner.reset(buf, buf.position(), buf.remaining());
+			assertTrue(scanner.next());
+			assertEquals(isKeyFrame ? NalUnitScanner.AVC_NAL_IDR : NalUnitScanner.AVC_NAL_SLICE,
+				scanner.getType());
+			assertFalse(scanner.isNonReference());
+			assertEquals(buf.limit(), scanner.getEnd());
+			assertFalse(scanner.next());
+		}
+	}
+
+	@Test
+	public void nonReferenceFrames() {
+		final SyntheticAvcStream stream
+			= new SyntheticAvcStream(640, 480, 2000000, FRAME_RATE, 1.0f, 3)
+				.setNonReferenceFrames(true);
+		stream.next();	// codec specific data
+		final NalUnitScanner scanner = new NalUnitScanner(false);
+		int nonReference = 0;
+		for (int i = 0; i < FRAME_RATE; i++) {
+			final ByteBuffer buf = stream.next();
+			scanner.reset(buf, buf.position(), buf.remaining());
+			assertTrue(scanner.next());
+			if (scanner.isNonReference()) {
+				assertNotEquals(FLAG_KEY_FRAME, stream.getFlags() & FLAG_KEY_FRAME);
+				nonReference++;
+			}
+		}
+		assertEquals((FRAME_RATE - 1) / 2, nonReference);
+	}
+
+	/**
+	 * h.265/HEVCのサブレイヤー非参照ピクチャーは最大のTemporalIdのときだけ非参照と判定することを確認
+	 */
+	@Test
+	public void hevcNonReference() {
+		// SPS(sps_max_sub_layers_minus1=1), TRAIL_N(TemporalId=0), TRAIL_N(TemporalId=1), TRAIL_R(TemporalId=1)
+		final ByteBuffer buf = ByteBuffer.wrap(new byte[] {
+			0, 0, 0, 1, (byte)(NalUnitScanner.HEVC_NAL_SPS << 1), 0x01, 0x02, 0x00,
+			0, 0, 0, 1, 0x00, 0x01, (byte)0x80,
+			0, 0, 0, 1, 0x00, 0x02, (byte)0x80,
+			0, 0, 0, 1, 0x02, 0x02, (byte)0x80,
+		});
+		final NalUnitScanner scanner = new NalUnitScanner(true);
+		scanner.reset(buf, 0, buf.remaining());
+		assertTrue(scanner.next());
+		assertTrue(scanner.isSps());
+		final int maxTemporalId = scanner.getMaxTemporalId();
+		assertEquals(1, maxTemporalId);
+		assertTrue(scanner.next());
+		assertEquals(0, scanner.getTemporalId());
+		assertFalse(scanner.isNonReference(maxTemporalId));
+		assertTrue(scanner.next());
+		assertEquals(1, scanner.getTemporalId());
+		assertTrue(scanner.isNonReference(maxTemporalId));
+		// 最大のTemporalIdが不明なときは非参照と判定しない
+		assertFalse(scanner.isNonReference());
+		assertTrue(scanner.next());
+		assertFalse(scanner.isNonReference(maxTemporalId));
+		assertFalse(scanner.next());
+	}
+
+	@Test
+	public void bitrate() {
+		final int bitrate = 4000000;
+		final SyntheticAvcStream stream
+			= new SyntheticAvcStream(1280, 720, bitrate, FRAME_RATE, 1.0f, 4);
+		final ByteBuffer config = stream.next();
+		final long configBytes = config.remaining();
+		final int seconds = 10;
+		for (int i = 0; i < FRAME_RATE * seconds; i++) {
+			stream.next();
+		}
+		final double actual = (stream.getTotalBytes() - configBytes) * 8.0 / seconds;
+		assertEquals(bitrate, actual, bitrate * 0.05);
+	}
+
+	@Test
+	public void deterministic() {
+		final SyntheticAvcStream a = new SyntheticAvcStream(320, 240, 500000, FRAME_RATE, 1.0f, 5);
+		final SyntheticAvcStream b = new SyntheticAvcStream(320, 240, 500000, FRAME_RATE, 1.0f, 5);
+		for (int i = 0; i < FRAME_RATE * 2; i++) {
+			assertEquals(a.next(), b.next());
+		}
+	}
+
+	/**
+	 * 生成速度よりも書き込み速度が遅い時に
+	 * GopFrameDropPolicyでGOP単位でフレームを破棄して参照先が欠けたフレームを書き込まないことを確認
+	 */
+	@Test
+	public void slowMuxer() throws InterruptedException {
+		final int numFrames = FRAME_RATE * 10;
+		final SyntheticAvcStream stream
+			= new SyntheticAvcStream(640, 480, 2000000, FRAME_RATE, 1.0f, 6);
+		final GopFrameDropPolicy policy
+			= new GopFrameDropPolicy(MediaCodecUtils.MIME_VIDEO_AVC, GopFrameDropPolicy.TRACK_ANY);
+		final MemMediaQueue queue = new MemMediaQueue(2, 8, 8);
+		queue.setDropPolicy(policy);
+		queue.init(64 * 1024);
+		// 2Mbps(250kバイト/秒)に対して100kバイト/秒でしか書き込めないようにする
+		final BenchmarkMuxer muxer = new BenchmarkMuxer(100 * 1024, 0);
+		final int track = muxer.addTrack();
+		muxer.start();
+		final Consumer consumer = new Consumer(queue, muxer, track);
+		consumer.start();
+		try {
+			for (int i = 0; i <= numFrames; i++) {
+				final ByteBuffer buf = stream.next();
+				final RecycleMediaData frame = queue.obtain(buf.remaining());
+				if (frame != null) {
+					frame.set(buf, buf.position(), buf.remaining(),
+						stream.getPresentationTimeUs(), stream.getFlags());
+					queue.queueFrame(frame);
+				}
+			}
+		} finally {
+			consumer.finish();
+		}
+		muxer.stop();
+		assertNull(consumer.error);
+		assertEquals(0, consumer.gapErrors);
+		assertEquals(1, muxer.getConfigFrames(track));
+		assertEquals(0, muxer.getPtsErrors(track));
+		assertEquals(0, muxer.getLeadingNonKeyFrames(track));
+		assertTrue(muxer.getKeyFrames(track) > 0);
+		assertTrue(policy.getTotalDrops() > 0);
+		assertEquals(numFrames + 1, muxer.getFrames(track) + policy.getTotalDrops());
+		muxer.release();
+	}
+
+	/**
+	 * キューからフレームを取り出してBenchmarkMuxerへ書き込むスレッド
+	 * 書き込んだフレームのプレゼンテーションタイムが飛んだ時に
+	 * キーフレームでなければエラーとして数える
+	 */
+	private static class Consumer extends Thread {
+		private final MemMediaQueue queue;
+		private final BenchmarkMuxer muxer;
+		private final int track;
+		private volatile boolean finished;
+		private long lastPtsUs = -1;
+		private int gapErrors;
+		private Throwable error;
+
+		private Consumer(final MemMediaQueue queue, final BenchmarkMuxer muxer, final int track) {
+			this.queue = queue;
+			this.muxer = muxer;
+			this.track = track;
+		}
+
+		private void finish() throws InterruptedException {
+			finished = true;
+			join();
+		}
+
+		@Override
+		public void run() {
+			try {
+				for ( ; ; ) {
+					final RecycleMediaData frame = queue.poll(10, TimeUnit.MILLISECONDS);
+					if (frame == null) {
+						if (finished) break;
+						continue;
+					}
+					try {
+						final int flags = frame.flags();
+						final long ptsUs = frame.presentationTimeUs();
+						if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+							if ((lastPtsUs >= 0)
+								&& (ptsUs - lastPtsUs > FRAME_INTERVALS_US + 1)
+								&& ((flags & FLAG_KEY_FRAME) == 0)) {
+								gapErrors++;
+							}
+							lastPtsUs = ptsUs;
+						}
+						muxer.writeSampleData(track, frame.get(), 0, frame.size(), ptsUs, flags);
+					} finally {
+						frame.recycle();
+					}
+				}
+			} catch (final Throwable e) {
+				error = e;
+			}
+		}
+	}
+}
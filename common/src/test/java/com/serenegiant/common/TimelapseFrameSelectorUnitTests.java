@@ -0,0 +1,144 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.math.Fraction;
+import com.serenegiant.media.TimelapseFrameSelector;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.media.TimelapseFrameSelector用のローカルユニットテストクラス
+ */
+public class TimelapseFrameSelectorUnitTests {
+
+	private static final long CAPTURE_INTERVALS_NS = 1000000000L / 30;
+	private static final long OUTPUT_INTERVALS_US = 1000000L / 30;
+
+	/**
+	 * 30fpsの映像入力から1fpsで選択した時に選択数が実時間に一致して
+	 * プレゼンテーションタイムが出力動画のフレーム間隔で等間隔になることを確認
+	 */
+	@Test
+	public void decimation() {
+		final Random random = new Random(1);
+		final TimelapseFrameSelector selector
+			= new TimelapseFrameSelector(new Fraction(1, 1), OUTPUT_INTERVALS_US);
+		final int seconds = 60;
+		long timeNs = 1000000000L;
+		long selected = 0;
+		for (int i = 0; i < 30 * seconds; i++) {
+			// ±5ミリ秒揺らぐ
+			final long captureNs = timeNs + (random.nextInt(10000001) - 5000000);
+			if (selector.select(captureNs)) {
+				assertEquals(selected * OUTPUT_INTERVALS_US, selector.getPresentationTimeUs());
+				if (selected > 0) {
+					assertTrue(Math.abs(selector.getIntervalFrames() - 30) <= 1);
+				}
+				selected++;
+			}
+			timeNs += CAPTURE_INTERVALS_NS;
+		}
+		assertEquals(seconds, selected, 1);
+		assertEquals(selected, selector.getSelectedFrames());
+		assertEquals(30 * seconds, selector.getCapturedFrames());
+	}
+
+	/**
+	 * 選択するフレームレートが映像入力と同じ時は揺らぎがあっても全ての映像フレームを選択することを確認
+	 */
+	@Test
+	public void sameRate() {
+		final Random random = new Random(2);
+		final TimelapseFrameSelector selector
+			= new TimelapseFrameSelector(new Fraction(30, 1), OUTPUT_INTERVALS_US);
+		long timeNs = 0;
+		for (int i = 0; i < 300; i++) {
+			final long captureNs = timeNs + (random.nextInt(6000001) - 3000000);
+			assertTrue(selector.select(captureNs));
+			assertEquals(1, selector.getIntervalFrames());
+			timeNs += CAPTURE_INTERVALS_NS;
+		}
+	}
+
+	/**
+	 * 分数のフレームレート(2秒に1フレーム)で選択できることを確認
+	 */
+	@Test
+	public void fractionalRate() {
+		final TimelapseFrameSelector selector
+			= new TimelapseFrameSelector(new Fraction(1, 2), OUTPUT_INTERVALS_US);
+		long selected = 0;
+		for (int i = 0; i < 30 * 20; i++) {
+			if (selector.select(i * CAPTURE_INTERVALS_NS)) {
+				selected++;
+			}
+		}
+		assertEquals(10, selected);
+	}
+
+	/**
+	 * 映像入力が途切れた後に途切れていた間の映像フレームを連続して選択しないことを確認
+	 */
+	@Test
+	public void stall() {
+		final TimelapseFrameSelector selector
+			= new TimelapseFrameSelector(new Fraction(1, 1), OUTPUT_INTERVALS_US);
+		long timeNs = 0;
+		for (int i = 0; i < 30 * 3; i++) {
+			selector.select(timeNs);
+			timeNs += CAPTURE_INTERVALS_NS;
+		}
+		assertEquals(3, selector.getSelectedFrames());
+		// 5秒間映像入力が途切れる
+		timeNs += 5000000000L;
+		assertTrue(selector.select(timeNs));
+		assertEquals(3 * OUTPUT_INTERVALS_US, selector.getPresentationTimeUs());
+		timeNs += CAPTURE_INTERVALS_NS;
+		for (int i = 1; i < 30; i++) {
+			assertFalse(selector.select(timeNs));
+			timeNs += CAPTURE_INTERVALS_NS;
+		}
+		assertTrue(selector.select(timeNs));
+		assertEquals(5, selector.getSelectedFrames());
+	}
+
+	@Test
+	public void reset() {
+		final TimelapseFrameSelector selector
+			= new TimelapseFrameSelector(new Fraction(1, 1), OUTPUT_INTERVALS_US);
+		for (int i = 0; i < 30 * 3; i++) {
+			selector.select(i * CAPTURE_INTERVALS_NS);
+		}
+		selector.reset();
+		assertEquals(-1, selector.getPresentationTimeUs());
+		assertTrue(selector.select(0));
+		assertEquals(0, selector.getPresentationTimeUs());
+		assertEquals(1, selector.getSelectedFrames());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidFps() {
+		new TimelapseFrameSelector(new Fraction(0, 1), OUTPUT_INTERVALS_US);
+	}
+}